@@ -4,6 +4,8 @@
  */
 package org.whispersystems.dispatch;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.dispatch.io.RedisPubSubConnectionFactory;
@@ -14,16 +16,27 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads replies from a Redis pub/sub connection on a dedicated thread and dispatches them to subscribed channels.
+ * Dispatch happens on a bounded pool of lanes that preserves the order of events for each channel; if dispatch falls
+ * behind, the reader blocks until there's room rather than queueing without limit.
+ */
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public class DispatchManager extends Thread {
 
+  private static final String QUEUE_DEPTH_GAUGE_NAME      = DispatchManager.class.getName() + ".queueDepth";
+  private static final String DISPATCH_LATENCY_TIMER_NAME = DispatchManager.class.getName() + ".dispatchLatency";
+
+  private static final int DEFAULT_QUEUE_CAPACITY_PER_LANE = 10_000;
+
   private final Logger                       logger        = LoggerFactory.getLogger(DispatchManager.class);
-  private final Executor                     executor      = Executors.newCachedThreadPool();
   private final Map<String, DispatchChannel> subscriptions = new ConcurrentHashMap<>();
 
+  private final OrderedDispatchExecutor      executor;
+  private final Timer                        dispatchLatencyTimer;
+
   private final Optional<DispatchChannel>    deadLetterChannel;
   private final RedisPubSubConnectionFactory redisPubSubConnectionFactory;
 
@@ -32,9 +45,27 @@ public class DispatchManager extends Thread {
 
   public DispatchManager(RedisPubSubConnectionFactory redisPubSubConnectionFactory,
                          Optional<DispatchChannel> deadLetterChannel)
+  {
+    this(redisPubSubConnectionFactory, deadLetterChannel, Runtime.getRuntime().availableProcessors(),
+         DEFAULT_QUEUE_CAPACITY_PER_LANE);
+  }
+
+  /**
+   * @param dispatchThreads the number of threads on which to dispatch events; events for any one channel are always
+   *                        dispatched on the same thread
+   * @param queueCapacityPerThread the number of events that may wait for each dispatch thread before the reader blocks
+   */
+  public DispatchManager(RedisPubSubConnectionFactory redisPubSubConnectionFactory,
+                         Optional<DispatchChannel> deadLetterChannel,
+                         int dispatchThreads,
+                         int queueCapacityPerThread)
   {
     this.redisPubSubConnectionFactory = redisPubSubConnectionFactory;
     this.deadLetterChannel            = deadLetterChannel;
+    this.executor                     = new OrderedDispatchExecutor(dispatchThreads, queueCapacityPerThread);
+    this.dispatchLatencyTimer         = Metrics.timer(DISPATCH_LATENCY_TIMER_NAME);
+
+    Metrics.gauge(QUEUE_DEPTH_GAUGE_NAME, executor, OrderedDispatchExecutor::getQueueDepth);
   }
 
   @Override
@@ -47,6 +78,7 @@ public class DispatchManager extends Thread {
   public void shutdown() {
     this.running = false;
     this.pubSubConnection.close();
+    this.executor.shutdown();
   }
 
   public synchronized void subscribe(String name, DispatchChannel dispatchChannel) {
@@ -144,14 +176,28 @@ public class DispatchManager extends Thread {
   }
 
   private void dispatchMessage(final String name, final DispatchChannel channel, final byte[] message) {
-    executor.execute(() -> channel.onDispatchMessage(name, message));
+    dispatch(name, () -> channel.onDispatchMessage(name, message));
   }
 
   private void dispatchSubscription(final String name, final DispatchChannel channel) {
-    executor.execute(() -> channel.onDispatchSubscribed(name));
+    dispatch(name, () -> channel.onDispatchSubscribed(name));
   }
 
   private void dispatchUnsubscription(final String name, final DispatchChannel channel) {
-    executor.execute(() -> channel.onDispatchUnsubscribed(name));
+    dispatch(name, () -> channel.onDispatchUnsubscribed(name));
+  }
+
+  private void dispatch(final String name, final Runnable task) {
+    final long enqueued = System.nanoTime();
+
+    executor.execute(name, () -> {
+      dispatchLatencyTimer.record(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.warn("Dispatch error for channel: " + name, e);
+      }
+    });
   }
 }
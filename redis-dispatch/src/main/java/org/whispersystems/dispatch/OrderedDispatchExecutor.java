@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013-2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.whispersystems.dispatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs dispatch tasks on a fixed set of single-threaded lanes with bounded queues. All tasks for the same channel run
+ * on the same lane, so each channel sees its events in the order they were read from Redis, while different channels
+ * are dispatched in parallel.
+ * <p/>
+ * When a lane's queue is full, {@link #execute(String, Runnable)} blocks until the lane has room. Blocking the reader
+ * pushes the backlog back to the Redis server rather than growing it without limit in memory.
+ */
+class OrderedDispatchExecutor {
+
+  private static final Logger logger = LoggerFactory.getLogger(OrderedDispatchExecutor.class);
+
+  private final ThreadPoolExecutor[] lanes;
+
+  OrderedDispatchExecutor(int laneCount, int queueCapacityPerLane) {
+    if (laneCount < 1 || queueCapacityPerLane < 1) {
+      throw new IllegalArgumentException("Lane count and queue capacity must be positive");
+    }
+
+    this.lanes = new ThreadPoolExecutor[laneCount];
+
+    for (int i = 0; i < laneCount; i++) {
+      final String threadName = "dispatch-" + i;
+
+      lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<>(queueCapacityPerLane),
+                                        runnable -> {
+                                          Thread thread = new Thread(runnable, threadName);
+                                          thread.setDaemon(true);
+                                          return thread;
+                                        },
+                                        (task, executor) -> {
+                                          if (executor.isShutdown()) {
+                                            logger.warn("Dropping dispatch task after shutdown");
+                                            return;
+                                          }
+
+                                          try {
+                                            executor.getQueue().put(task);
+                                          } catch (InterruptedException e) {
+                                            Thread.currentThread().interrupt();
+                                          }
+                                        });
+    }
+  }
+
+  void execute(String channel, Runnable task) {
+    lanes[Math.floorMod(channel.hashCode(), lanes.length)].execute(task);
+  }
+
+  int getQueueDepth() {
+    int queueDepth = 0;
+
+    for (ThreadPoolExecutor lane : lanes) {
+      queueDepth += lane.getQueue().size();
+    }
+
+    return queueDepth;
+  }
+
+  void shutdown() {
+    for (ThreadPoolExecutor lane : lanes) {
+      lane.shutdown();
+    }
+  }
+}
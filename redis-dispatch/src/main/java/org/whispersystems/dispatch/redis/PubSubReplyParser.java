@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013-2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.whispersystems.dispatch.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Parses pub/sub replies directly from a buffer of RESP-encoded data. Headers and reply types are read in place, so the
+ * only allocations per reply are the channel name and message body.
+ * <p/>
+ * The buffer may hold an incomplete reply; in that case {@link #parse(ByteBuffer)} returns {@code null} and leaves the
+ * buffer's position where it was so the caller can read more data and try again.
+ */
+public class PubSubReplyParser {
+
+  private static final byte[] UNSUBSCRIBE_TYPE = {'u', 'n', 's', 'u', 'b', 's', 'c', 'r', 'i', 'b', 'e'};
+  private static final byte[] SUBSCRIBE_TYPE   = {'s', 'u', 'b', 's', 'c', 'r', 'i', 'b', 'e'          };
+  private static final byte[] MESSAGE_TYPE     = {'m', 'e', 's', 's', 'a', 'g', 'e'                    };
+
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+
+  private static final int INCOMPLETE = -1;
+
+  /**
+   * Parses the next reply from the given buffer.
+   *
+   * @param buffer a buffer in read mode; its position is advanced past the reply only if a complete reply is available
+   *
+   * @return the next reply, or {@code null} if the buffer doesn't yet hold a complete reply
+   *
+   * @throws IOException if the buffer holds data that isn't a well-formed pub/sub reply
+   */
+  public PubSubReply parse(final ByteBuffer buffer) throws IOException {
+    final int start = buffer.position();
+    final PubSubReply reply = parseReply(buffer);
+
+    if (reply == null) {
+      buffer.position(start);
+    }
+
+    return reply;
+  }
+
+  private PubSubReply parseReply(final ByteBuffer buffer) throws IOException {
+    final int elementCount = readInteger(buffer, '*');
+
+    if (elementCount == INCOMPLETE) {
+      return null;
+    } else if (elementCount != 3) {
+      throw new IOException("Received array reply header with strange count: " + elementCount);
+    }
+
+    final int typeLength = readBulkStringLength(buffer);
+
+    if (typeLength == INCOMPLETE) {
+      return null;
+    }
+
+    final int typeOffset = buffer.position();
+    buffer.position(typeOffset + typeLength + 2);
+
+    final int channelLength = readBulkStringLength(buffer);
+
+    if (channelLength == INCOMPLETE) {
+      return null;
+    }
+
+    final String channel = readString(buffer, channelLength);
+
+    if (matches(buffer, typeOffset, typeLength, MESSAGE_TYPE)) {
+      final int messageLength = readBulkStringLength(buffer);
+
+      if (messageLength == INCOMPLETE) {
+        return null;
+      }
+
+      final byte[] message = new byte[messageLength];
+      buffer.get(message);
+      buffer.position(buffer.position() + 2);
+
+      return new PubSubReply(PubSubReply.Type.MESSAGE, channel, Optional.of(message));
+    } else if (matches(buffer, typeOffset, typeLength, SUBSCRIBE_TYPE)) {
+      return readInteger(buffer, ':') == INCOMPLETE ? null
+          : new PubSubReply(PubSubReply.Type.SUBSCRIBE, channel, Optional.empty());
+    } else if (matches(buffer, typeOffset, typeLength, UNSUBSCRIBE_TYPE)) {
+      return readInteger(buffer, ':') == INCOMPLETE ? null
+          : new PubSubReply(PubSubReply.Type.UNSUBSCRIBE, channel, Optional.empty());
+    } else {
+      final byte[] type = new byte[typeLength];
+      buffer.duplicate().position(typeOffset).get(type);
+
+      throw new IOException("Unknown reply type: " + new String(type, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Reads a bulk string header and, if the whole string and its trailing CRLF are available, returns the string's
+   * length with the buffer positioned at its first byte.
+   */
+  private static int readBulkStringLength(final ByteBuffer buffer) throws IOException {
+    final int length = readInteger(buffer, '$');
+
+    if (length == INCOMPLETE || buffer.remaining() < length + 2) {
+      return INCOMPLETE;
+    }
+
+    return length;
+  }
+
+  private static String readString(final ByteBuffer buffer, final int length) {
+    final byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    buffer.position(buffer.position() + 2);
+
+    return new String(bytes);
+  }
+
+  /**
+   * Reads a line of the form {@code <prefix><non-negative integer>\r\n} and returns the integer, or
+   * {@link #INCOMPLETE} if the buffer ends before the line does.
+   */
+  private static int readInteger(final ByteBuffer buffer, final char prefix) throws IOException {
+    if (!buffer.hasRemaining()) {
+      return INCOMPLETE;
+    }
+
+    final byte first = buffer.get();
+
+    if (first != prefix) {
+      throw new IOException("Expected '" + prefix + "' but found '" + (char) first + "'");
+    }
+
+    long value = 0;
+    int digits = 0;
+
+    while (buffer.hasRemaining()) {
+      final byte b = buffer.get();
+
+      if (b == CR) {
+        if (!buffer.hasRemaining()) {
+          return INCOMPLETE;
+        }
+
+        if (buffer.get() != LF || digits == 0) {
+          throw new IOException("Malformed integer after '" + prefix + "'");
+        }
+
+        return (int) value;
+      } else if (b >= '0' && b <= '9' && digits < 10) {
+        value = value * 10 + (b - '0');
+        digits++;
+
+        if (value > Integer.MAX_VALUE) {
+          throw new IOException("Integer after '" + prefix + "' is too large");
+        }
+      } else {
+        throw new IOException("Malformed integer after '" + prefix + "'");
+      }
+    }
+
+    return INCOMPLETE;
+  }
+
+  private static boolean matches(final ByteBuffer buffer, final int offset, final int length, final byte[] expected) {
+    if (length != expected.length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(offset + i) != expected[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013-2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.whispersystems.dispatch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedDispatchExecutorTest {
+
+  @Test
+  public void testPerChannelOrdering() throws InterruptedException {
+    OrderedDispatchExecutor        executor = new OrderedDispatchExecutor(4, 16);
+    Map<String, List<Integer>>     received = new ConcurrentHashMap<>();
+    CountDownLatch                 done     = new CountDownLatch(8 * 1000);
+
+    for (int i = 0; i < 1000; i++) {
+      for (int channel = 0; channel < 8; channel++) {
+        final String name  = "channel-" + channel;
+        final int    value = i;
+
+        executor.execute(name, () -> {
+          received.computeIfAbsent(name, ignored -> Collections.synchronizedList(new ArrayList<>())).add(value);
+          done.countDown();
+        });
+      }
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    for (List<Integer> values : received.values()) {
+      for (int i = 0; i < values.size(); i++) {
+        assertEquals(i, (int) values.get(i));
+      }
+    }
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void testBlocksWhenFull() throws InterruptedException {
+    OrderedDispatchExecutor executor = new OrderedDispatchExecutor(1, 1);
+    CountDownLatch          release  = new CountDownLatch(1);
+    CountDownLatch          enqueued = new CountDownLatch(1);
+
+    executor.execute("foo", () -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+
+    executor.execute("foo", () -> {});
+    assertEquals(1, executor.getQueueDepth());
+
+    Thread producer = new Thread(() -> {
+      executor.execute("foo", () -> {});
+      enqueued.countDown();
+    });
+
+    producer.start();
+
+    assertFalse(enqueued.await(100, TimeUnit.MILLISECONDS));
+
+    release.countDown();
+
+    assertTrue(enqueued.await(1, TimeUnit.SECONDS));
+
+    executor.shutdown();
+  }
+}
@@ -22,6 +22,7 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.whispersystems.dispatch.util.Util;
 
 public class PubSubConnectionTest {
 
@@ -65,6 +66,7 @@ public class PubSubConnectionTest {
     OutputStream outputStream = mock(OutputStream.class);
     Socket       socket       = mock(Socket.class      );
     when(socket.getOutputStream()).thenReturn(outputStream);
+    when(socket.getInputStream()).thenReturn(mock(InputStream.class));
     PubSubConnection connection  = new PubSubConnection(socket);
 
     connection.subscribe("foobar");
@@ -80,6 +82,7 @@ public class PubSubConnectionTest {
     OutputStream outputStream = mock(OutputStream.class);
     Socket       socket       = mock(Socket.class      );
     when(socket.getOutputStream()).thenReturn(outputStream);
+    when(socket.getInputStream()).thenReturn(mock(InputStream.class));
     PubSubConnection connection  = new PubSubConnection(socket);
 
     connection.unsubscribe("bazbar");
@@ -126,6 +129,43 @@ public class PubSubConnectionTest {
     readResponses(pubSubConnection);
   }
 
+  @Test
+  public void testLargeMessage() throws Exception {
+    byte[] message = new byte[100_000];
+    new SecureRandom().nextBytes(message);
+
+    byte[] reply = Util.combine(("*3\r\n$7\r\nmessage\r\n$5\r\nabcde\r\n$" + message.length + "\r\n").getBytes(),
+                                message,
+                                "\r\n".getBytes(),
+                                REPLY.getBytes());
+
+    InputStream  inputStream  = mockInputStreamFor(new RandomInputStream(reply));
+    OutputStream outputStream = mock(OutputStream.class);
+    Socket       socket       = mock(Socket.class      );
+    when(socket.getOutputStream()).thenReturn(outputStream);
+    when(socket.getInputStream()).thenReturn(inputStream);
+
+    PubSubConnection pubSubConnection = new PubSubConnection(socket);
+    PubSubReply      largeReply       = pubSubConnection.read();
+
+    assertEquals(largeReply.getType(), PubSubReply.Type.MESSAGE);
+    assertEquals(largeReply.getChannel(), "abcde");
+    assertArrayEquals(largeReply.getContent().get(), message);
+
+    readResponses(pubSubConnection);
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformedResponse() throws Exception {
+    InputStream  inputStream  = mockInputStreamFor(new FullInputStream("*3\r\n$7\r\nmassage\r\n$5\r\nabcde\r\n:1\r\n".getBytes()));
+    OutputStream outputStream = mock(OutputStream.class);
+    Socket       socket       = mock(Socket.class      );
+    when(socket.getOutputStream()).thenReturn(outputStream);
+    when(socket.getInputStream()).thenReturn(inputStream);
+
+    new PubSubConnection(socket).read();
+  }
+
   private InputStream mockInputStreamFor(final MockInputStream stub) throws IOException {
     InputStream result = mock(InputStream.class);
 
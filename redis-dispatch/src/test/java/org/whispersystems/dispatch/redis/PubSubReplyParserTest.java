@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013-2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.whispersystems.dispatch.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class PubSubReplyParserTest {
+
+  private final PubSubReplyParser parser = new PubSubReplyParser();
+
+  @Test
+  public void testMessage() throws IOException {
+    final ByteBuffer buffer = buffer("*3\r\n$7\r\nmessage\r\n$3\r\nfoo\r\n$5\r\nhello\r\n");
+    final PubSubReply reply = parser.parse(buffer);
+
+    assertEquals(PubSubReply.Type.MESSAGE, reply.getType());
+    assertEquals("foo", reply.getChannel());
+    assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), reply.getContent().get());
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testSubscribe() throws IOException {
+    final PubSubReply reply = parser.parse(buffer("*3\r\n$9\r\nsubscribe\r\n$3\r\nfoo\r\n:23\r\n"));
+
+    assertEquals(PubSubReply.Type.SUBSCRIBE, reply.getType());
+    assertEquals("foo", reply.getChannel());
+    assertFalse(reply.getContent().isPresent());
+  }
+
+  @Test
+  public void testUnsubscribe() throws IOException {
+    final PubSubReply reply = parser.parse(buffer("*3\r\n$11\r\nunsubscribe\r\n$3\r\nfoo\r\n:0\r\n"));
+
+    assertEquals(PubSubReply.Type.UNSUBSCRIBE, reply.getType());
+    assertEquals("foo", reply.getChannel());
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    assertNull(parser.parse(buffer("")));
+  }
+
+  @Test
+  public void testIncomplete() throws IOException {
+    final String reply = "*3\r\n$7\r\nmessage\r\n$3\r\nfoo\r\n$5\r\nhello\r\n";
+
+    for (int length = 0; length < reply.length(); length++) {
+      final ByteBuffer buffer = buffer(reply.substring(0, length));
+
+      assertNull(parser.parse(buffer));
+      assertEquals(0, buffer.position());
+    }
+  }
+
+  @Test
+  public void testTruncatedArrayHeader() throws IOException {
+    assertNull(parser.parse(buffer("*")));
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadArrayPrefix() throws IOException {
+    parser.parse(buffer(":3\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadArrayCount() throws IOException {
+    parser.parse(buffer("*ABC\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingArrayCount() throws IOException {
+    parser.parse(buffer("*\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnexpectedArrayCount() throws IOException {
+    parser.parse(buffer("*4\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadStringPrefix() throws IOException {
+    parser.parse(buffer("*3\r\n*7\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadStringLength() throws IOException {
+    parser.parse(buffer("*3\r\n$100A\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadIntegerReply() throws IOException {
+    parser.parse(buffer("*3\r\n$9\r\nsubscribe\r\n$3\r\nfoo\r\n:A\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadIntegerPrefix() throws IOException {
+    parser.parse(buffer("*3\r\n$9\r\nsubscribe\r\n$3\r\nfoo\r\n*1\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testIntegerOverflow() throws IOException {
+    parser.parse(buffer("*3\r\n$99999999999\r\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownType() throws IOException {
+    parser.parse(buffer("*3\r\n$7\r\npmessag\r\n$3\r\nfoo\r\n$5\r\nhello\r\n"));
+  }
+
+  private static ByteBuffer buffer(final String data) {
+    return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+  }
+}
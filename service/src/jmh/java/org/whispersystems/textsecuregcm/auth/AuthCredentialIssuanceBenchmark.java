@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.auth;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.signal.zkgroup.ServerSecretParams;
+import org.signal.zkgroup.auth.AuthCredentialResponse;
+import org.signal.zkgroup.auth.ServerZkAuthOperations;
+
+/**
+ * Measures the CPU cost of issuing zkgroup auth credentials, both singly and for the full eight-day range clients
+ * request from {@code /v1/certificate/group}, to help size hosts serving that endpoint. Range benchmarks use a fresh
+ * account for each invocation so that every credential is issued rather than served from cache, except for
+ * {@link #issueRangeCached()}, which measures the cost of a fully-cached range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthCredentialIssuanceBenchmark {
+
+  private static final int REDEMPTION_DAYS = 8;
+  private static final int START_REDEMPTION_TIME = 18_000;
+
+  private ServerZkAuthOperations serverZkAuthOperations;
+  private ExecutorService issuanceExecutor;
+
+  private AuthCredentialCache sequentialCache;
+  private AuthCredentialCache parallelCache;
+
+  private final UUID cachedUuid = UUID.randomUUID();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    serverZkAuthOperations = new ServerZkAuthOperations(ServerSecretParams.generate());
+    issuanceExecutor = Executors.newFixedThreadPool(REDEMPTION_DAYS);
+
+    sequentialCache = new AuthCredentialCache(serverZkAuthOperations, 1_000_000, null);
+    parallelCache = new AuthCredentialCache(serverZkAuthOperations, 1_000_000, issuanceExecutor);
+
+    sequentialCache.getCredentials(cachedUuid, START_REDEMPTION_TIME, START_REDEMPTION_TIME + REDEMPTION_DAYS - 1);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    issuanceExecutor.shutdown();
+  }
+
+  @Benchmark
+  public AuthCredentialResponse issueSingle() {
+    return serverZkAuthOperations.issueAuthCredential(UUID.randomUUID(), START_REDEMPTION_TIME);
+  }
+
+  @Benchmark
+  public List<byte[]> issueRangeSequential() {
+    return sequentialCache.getCredentials(UUID.randomUUID(), START_REDEMPTION_TIME,
+        START_REDEMPTION_TIME + REDEMPTION_DAYS - 1);
+  }
+
+  @Benchmark
+  public List<byte[]> issueRangeParallel() {
+    return parallelCache.getCredentials(UUID.randomUUID(), START_REDEMPTION_TIME,
+        START_REDEMPTION_TIME + REDEMPTION_DAYS - 1);
+  }
+
+  @Benchmark
+  public List<byte[]> issueRangeCached() {
+    return sequentialCache.getCredentials(cachedUuid, START_REDEMPTION_TIME,
+        START_REDEMPTION_TIME + REDEMPTION_DAYS - 1);
+  }
+}
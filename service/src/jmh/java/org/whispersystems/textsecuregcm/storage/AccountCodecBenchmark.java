@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.textsecuregcm.entities.SignedPreKey;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+/**
+ * Compares the cost of encoding, decoding, and copying accounts with {@link AccountCodec} against the
+ * {@link SystemMapper} JSON representation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountCodecBenchmark {
+
+  @Param({"1", "3", "6"})
+  private int deviceCount;
+
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+
+  private Account account;
+  private byte[] binary;
+  private byte[] json;
+
+  @Setup
+  public void setUp() throws IOException {
+    final Set<Device> devices = new HashSet<>();
+
+    for (int i = 1; i <= deviceCount; i++) {
+      devices.add(new Device(i, "device-name-" + i, "0123456789abcdef0123456789abcdef01234567", "1234567890",
+          i % 2 == 0 ? "gcm-registration-id-" + i : null, i % 2 == 1 ? "apn-registration-id-" + i : null, null,
+          false, 12345, new SignedPreKey(i, "BWVkMjU1MTkgcHVibGljIGtleSBnb2VzIGhlcmUgYW5kIGhlcmU",
+              "c2lnbmF0dXJlIGJ5dGVzIGdvIGhlcmUgYW5kIGhlcmUgYW5kIGhlcmUgYW5kIGhlcmUgYW5kIGhlcmUgYW5kIGhlcmU"),
+          System.currentTimeMillis(), System.currentTimeMillis(), "Signal-Android/5.0.0 Android/30", 0,
+          new Device.DeviceCapabilities(true, true, true, true, false, true, true, true, false)));
+    }
+
+    account = new Account("+18005551234", UUID.randomUUID(), devices, new byte[16]);
+    account.setIdentityKey("BSBpZGVudGl0eSBrZXkgZ29lcyBoZXJlIGFuZCBoZXJlIGFuZCBoZXJl");
+    account.setCurrentProfileVersion("0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+    account.setProfileName("cHJvZmlsZSBuYW1lIGNpcGhlcnRleHQgZ29lcyBoZXJlIGFuZCBoZXJl");
+
+    binary = AccountCodec.encode(account);
+    json = mapper.writeValueAsBytes(account);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return AccountCodec.encode(account);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() throws IOException {
+    return mapper.writeValueAsBytes(account);
+  }
+
+  @Benchmark
+  public Account decodeBinary() throws IOException {
+    return AccountCodec.decode(binary);
+  }
+
+  @Benchmark
+  public Account decodeJson() throws IOException {
+    return mapper.readValue(json, Account.class);
+  }
+
+  @Benchmark
+  public Account copyBinary() {
+    return AccountCodec.copy(account);
+  }
+
+  @Benchmark
+  public Account copyJson() throws IOException {
+    final Account copy = mapper.readValue(mapper.writeValueAsBytes(account), Account.class);
+    copy.setUuid(account.getUuid());
+
+    return copy;
+  }
+}
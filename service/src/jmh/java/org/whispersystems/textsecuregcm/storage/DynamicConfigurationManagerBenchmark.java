@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
+import org.whispersystems.textsecuregcm.util.Util;
+
+/**
+ * Measures {@link DynamicConfigurationManager#getConfiguration()} read throughput with many threads reading at once,
+ * alongside a reproduction of the previous read path, which entered a monitor on every call to check for
+ * initialization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class DynamicConfigurationManagerBenchmark {
+
+  private DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
+  private SynchronizedConfigurationHolder synchronizedConfigurationHolder;
+
+  @Setup
+  public void setUp() {
+    final DynamicConfiguration configuration = new DynamicConfiguration();
+
+    dynamicConfigurationManager = new DynamicConfigurationManager<>(configuration);
+    synchronizedConfigurationHolder = new SynchronizedConfigurationHolder(configuration);
+  }
+
+  @Benchmark
+  public DynamicConfiguration getConfiguration() {
+    return dynamicConfigurationManager.getConfiguration();
+  }
+
+  @Benchmark
+  public DynamicConfiguration getConfigurationSynchronized() {
+    return synchronizedConfigurationHolder.getConfiguration();
+  }
+
+  private static class SynchronizedConfigurationHolder {
+
+    private final AtomicReference<DynamicConfiguration> configuration = new AtomicReference<>();
+    private boolean initialized;
+
+    private SynchronizedConfigurationHolder(final DynamicConfiguration configuration) {
+      this.configuration.set(configuration);
+      this.initialized = true;
+    }
+
+    private DynamicConfiguration getConfiguration() {
+      synchronized (this) {
+        while (!initialized) {
+          Util.wait(this);
+        }
+      }
+
+      return configuration.get();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.auth;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import org.signal.zkgroup.auth.ServerZkAuthOperations;
+
+/**
+ * Issues zkgroup auth credentials for ranges of redemption days, keeping issued credentials in a bounded in-memory
+ * cache. Any valid credential for a given account and redemption day is interchangeable with any other, so clients that
+ * repeatedly request overlapping ranges can be served previously-issued credentials. Credentials that aren't already
+ * cached may optionally be issued in parallel.
+ */
+public class AuthCredentialCache {
+
+  private final ServerZkAuthOperations serverZkAuthOperations;
+  private final Cache<CredentialKey, byte[]> credentials;
+
+  @Nullable
+  private final Executor issuanceExecutor;
+
+  // Issued credentials stay valid for their redemption day, but there's little value in holding on to credentials for
+  // accounts that haven't asked for them in a day
+  private static final long CREDENTIAL_CACHE_TTL_HOURS = 24;
+
+  private static final Counter CACHE_HIT_COUNTER = Metrics.counter(name(AuthCredentialCache.class, "lookup"), "outcome", "hit");
+  private static final Counter CACHE_MISS_COUNTER = Metrics.counter(name(AuthCredentialCache.class, "lookup"), "outcome", "miss");
+  private static final Timer ISSUE_CREDENTIAL_TIMER = Metrics.timer(name(AuthCredentialCache.class, "issueCredential"));
+
+  public AuthCredentialCache(final ServerZkAuthOperations serverZkAuthOperations, final long maxSize,
+      @Nullable final Executor issuanceExecutor) {
+
+    this(serverZkAuthOperations, maxSize, issuanceExecutor, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  AuthCredentialCache(final ServerZkAuthOperations serverZkAuthOperations, final long maxSize,
+      @Nullable final Executor issuanceExecutor, final Ticker ticker) {
+
+    this.serverZkAuthOperations = serverZkAuthOperations;
+    this.issuanceExecutor = issuanceExecutor;
+    this.credentials = CacheBuilder.newBuilder()
+        .expireAfterWrite(CREDENTIAL_CACHE_TTL_HOURS, TimeUnit.HOURS)
+        .maximumSize(maxSize)
+        .ticker(ticker)
+        .build();
+  }
+
+  /**
+   * Returns serialized auth credentials for the given account for each redemption day from
+   * {@code startRedemptionTime} to {@code endRedemptionTime}, inclusive, in order.
+   */
+  public List<byte[]> getCredentials(final UUID uuid, final int startRedemptionTime, final int endRedemptionTime) {
+    final List<CompletableFuture<byte[]>> credentialFutures = new ArrayList<>();
+
+    for (int redemptionTime = startRedemptionTime; redemptionTime <= endRedemptionTime; redemptionTime++) {
+      final CredentialKey key = new CredentialKey(uuid, redemptionTime);
+      final byte[] cachedCredential = credentials.getIfPresent(key);
+
+      if (cachedCredential != null) {
+        CACHE_HIT_COUNTER.increment();
+        credentialFutures.add(CompletableFuture.completedFuture(cachedCredential));
+      } else {
+        CACHE_MISS_COUNTER.increment();
+
+        credentialFutures.add(issuanceExecutor != null
+            ? CompletableFuture.supplyAsync(() -> getOrIssueCredential(key), issuanceExecutor)
+            : CompletableFuture.completedFuture(getOrIssueCredential(key)));
+      }
+    }
+
+    return credentialFutures.stream()
+        .map(CompletableFuture::join)
+        .collect(Collectors.toList());
+  }
+
+  private byte[] getOrIssueCredential(final CredentialKey key) {
+    try {
+      return credentials.get(key, () -> ISSUE_CREDENTIAL_TIMER.record(() ->
+          serverZkAuthOperations.issueAuthCredential(key.uuid, key.redemptionTime).serialize()));
+    } catch (final ExecutionException | UncheckedExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static class CredentialKey {
+
+    private final UUID uuid;
+    private final int redemptionTime;
+
+    private CredentialKey(final UUID uuid, final int redemptionTime) {
+      this.uuid = uuid;
+      this.redemptionTime = redemptionTime;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final CredentialKey that = (CredentialKey) o;
+      return redemptionTime == that.redemptionTime && uuid.equals(that.uuid);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(uuid, redemptionTime);
+    }
+  }
+}
@@ -16,6 +16,7 @@ import org.whispersystems.textsecuregcm.storage.Device;
 
 import java.io.IOException;
 import java.security.InvalidKeyException;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.concurrent.TimeUnit;
 
@@ -55,4 +56,8 @@ public class CertificateGenerator {
                             .toByteArray();
   }
 
+  public Duration getExpiration() {
+    return Duration.ofDays(expiresDays);
+  }
+
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.auth;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.InvalidKeyException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.Device;
+
+/**
+ * Reuses signed delivery certificates for a fraction of their lifetime. A certificate's contents depend only on the
+ * account's UUID, identity key, and (if included) phone number and on the device ID, so a certificate signed for one
+ * request is equally valid for any later request with the same inputs. Reusing it saves a Curve25519 signature per
+ * request; in exchange, clients may receive certificates with as little as {@code 1 - reuseFraction} of a fresh
+ * certificate's lifetime remaining.
+ */
+public class DeliveryCertificateCache {
+
+  private final CertificateGenerator certificateGenerator;
+  private final Cache<CertificateKey, byte[]> certificates;
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  private static final Counter CACHE_HIT_COUNTER = Metrics.counter(name(DeliveryCertificateCache.class, "lookup"), "outcome", "hit");
+  private static final Counter CACHE_MISS_COUNTER = Metrics.counter(name(DeliveryCertificateCache.class, "lookup"), "outcome", "miss");
+  private static final Timer SIGNATURE_CPU_TIMER = Metrics.timer(name(DeliveryCertificateCache.class, "signatureCpuTime"));
+
+  public DeliveryCertificateCache(final CertificateGenerator certificateGenerator, final double reuseFraction,
+      final long maxSize) {
+
+    this(certificateGenerator, reuseFraction, maxSize, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  DeliveryCertificateCache(final CertificateGenerator certificateGenerator, final double reuseFraction,
+      final long maxSize, final Ticker ticker) {
+
+    if (reuseFraction < 0 || reuseFraction >= 1) {
+      throw new IllegalArgumentException("Reuse fraction must be at least 0 and less than 1");
+    }
+
+    this.certificateGenerator = certificateGenerator;
+    this.certificates = CacheBuilder.newBuilder()
+        .expireAfterWrite((long) (certificateGenerator.getExpiration().toMillis() * reuseFraction), TimeUnit.MILLISECONDS)
+        .maximumSize(maxSize)
+        .ticker(ticker)
+        .build();
+  }
+
+  public byte[] getCertificate(final Account account, final Device device, final boolean includeE164)
+      throws InvalidKeyException {
+
+    final CertificateKey key = new CertificateKey(account.getUuid(), device.getId(), account.getIdentityKey(),
+        includeE164 ? account.getNumber() : null);
+
+    final byte[] cachedCertificate = certificates.getIfPresent(key);
+
+    if (cachedCertificate != null) {
+      CACHE_HIT_COUNTER.increment();
+      return cachedCertificate;
+    }
+
+    CACHE_MISS_COUNTER.increment();
+
+    try {
+      // Concurrent requests for the same key wait for a single signature rather than each signing their own
+      return certificates.get(key, () -> createCertificate(account, device, includeE164));
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof InvalidKeyException) {
+        throw (InvalidKeyException) e.getCause();
+      }
+
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private byte[] createCertificate(final Account account, final Device device, final boolean includeE164)
+      throws InvalidKeyException {
+
+    final long startCpuNanos = getCpuTimeNanos();
+
+    try {
+      return certificateGenerator.createFor(account, device, includeE164);
+    } finally {
+      SIGNATURE_CPU_TIMER.record(Duration.ofNanos(getCpuTimeNanos() - startCpuNanos));
+    }
+  }
+
+  private static long getCpuTimeNanos() {
+    // Signing is CPU-bound, so wall-clock time is a reasonable stand-in where thread CPU time isn't available
+    return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+        ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+        : System.nanoTime();
+  }
+
+  private static class CertificateKey {
+
+    private final UUID uuid;
+    private final long deviceId;
+    private final String identityKey;
+    @Nullable
+    private final String number;
+
+    private CertificateKey(final UUID uuid, final long deviceId, final String identityKey,
+        @Nullable final String number) {
+
+      this.uuid = uuid;
+      this.deviceId = deviceId;
+      this.identityKey = identityKey;
+      this.number = number;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final CertificateKey that = (CertificateKey) o;
+      return deviceId == that.deviceId && uuid.equals(that.uuid) && identityKey.equals(that.identityKey)
+          && Objects.equals(number, that.number);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(uuid, deviceId, identityKey, number);
+    }
+  }
+}
@@ -5,6 +5,7 @@
 package org.whispersystems.textsecuregcm.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.Min;
 
 public class AccountDatabaseCrawlerConfiguration {
 
@@ -14,6 +15,10 @@ public class AccountDatabaseCrawlerConfiguration {
   @JsonProperty
   private long chunkIntervalMs = 8000L;
 
+  @JsonProperty
+  @Min(1)
+  private int segments = 1;
+
   public int getChunkSize() {
     return chunkSize;
   }
@@ -21,4 +26,8 @@ public class AccountDatabaseCrawlerConfiguration {
   public long getChunkIntervalMs() {
     return chunkIntervalMs;
   }
+
+  public int getSegments() {
+    return segments;
+  }
 }
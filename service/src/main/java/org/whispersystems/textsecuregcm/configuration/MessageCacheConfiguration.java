@@ -8,6 +8,7 @@ package org.whispersystems.textsecuregcm.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class MessageCacheConfiguration {
@@ -20,6 +21,10 @@ public class MessageCacheConfiguration {
   @JsonProperty
   private int persistDelayMinutes = 10;
 
+  @JsonProperty
+  @Min(1)
+  private int persistQueueConcurrency = 16;
+
   public RedisClusterConfiguration getRedisClusterConfiguration() {
     return cluster;
   }
@@ -28,4 +33,8 @@ public class MessageCacheConfiguration {
     return persistDelayMinutes;
   }
 
+  public int getPersistQueueConcurrency() {
+    return persistQueueConcurrency;
+  }
+
 }
@@ -6,7 +6,9 @@
 package org.whispersystems.textsecuregcm.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
 import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 
 public class PushConfiguration {
 
@@ -14,7 +16,19 @@ public class PushConfiguration {
   @Min(0)
   private int queueSize = 200;
 
+  /**
+   * The window within which repeated "new message" notifications to the same device are suppressed; a zero duration
+   * disables coalescing.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration notificationCoalescingWindow = Duration.ofSeconds(30);
+
   public int getQueueSize() {
     return queueSize;
   }
+
+  public Duration getNotificationCoalescingWindow() {
+    return notificationCoalescingWindow;
+  }
 }
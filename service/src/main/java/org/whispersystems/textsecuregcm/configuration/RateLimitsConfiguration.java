@@ -5,7 +5,10 @@
 package org.whispersystems.textsecuregcm.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
 import java.time.Duration;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 
 public class RateLimitsConfiguration {
 
@@ -142,11 +145,34 @@ public class RateLimitsConfiguration {
     @JsonProperty
     private double leakRatePerMinute;
 
+    /**
+     * The number of permits a server may lease from the shared bucket at once and then hand out locally without
+     * consulting Redis; zero disables local leasing.
+     */
+    @JsonProperty
+    @Min(0)
+    private int leaseSize = 0;
+
+    /**
+     * The time after which unused permits in a local lease are discarded.
+     */
+    @JsonProperty
+    @NotNull
+    private Duration leaseDuration = Duration.ofSeconds(5);
+
     public RateLimitConfiguration(int bucketSize, double leakRatePerMinute) {
       this.bucketSize        = bucketSize;
       this.leakRatePerMinute = leakRatePerMinute;
     }
 
+    @VisibleForTesting
+    public RateLimitConfiguration(int bucketSize, double leakRatePerMinute, int leaseSize, Duration leaseDuration) {
+      this(bucketSize, leakRatePerMinute);
+
+      this.leaseSize     = leaseSize;
+      this.leaseDuration = leaseDuration;
+    }
+
     public RateLimitConfiguration() {}
 
     public int getBucketSize() {
@@ -156,6 +182,14 @@ public class RateLimitsConfiguration {
     public double getLeakRatePerMinute() {
       return leakRatePerMinute;
     }
+
+    public int getLeaseSize() {
+      return leaseSize;
+    }
+
+    public Duration getLeaseDuration() {
+      return leaseDuration;
+    }
   }
 
   public static class CardinalityRateLimitConfiguration {
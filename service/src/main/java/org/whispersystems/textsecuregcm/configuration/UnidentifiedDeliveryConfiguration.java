@@ -12,6 +12,9 @@ import org.whispersystems.textsecuregcm.crypto.Curve;
 import org.whispersystems.textsecuregcm.crypto.ECPrivateKey;
 import org.whispersystems.textsecuregcm.util.ByteArrayAdapter;
 
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
@@ -33,6 +36,19 @@ public class UnidentifiedDeliveryConfiguration {
   @NotNull
   private int expiresDays;
 
+  /**
+   * The fraction of a certificate's lifetime for which a signed certificate may be served again to the same device;
+   * zero disables reuse.
+   */
+  @JsonProperty
+  @DecimalMin("0.0")
+  @DecimalMax(value = "1.0", inclusive = false)
+  private double certificateReuseFraction = 0.25;
+
+  @JsonProperty
+  @Min(1)
+  private long certificateCacheSize = 100_000;
+
   public byte[] getCertificate() {
     return certificate;
   }
@@ -44,4 +60,12 @@ public class UnidentifiedDeliveryConfiguration {
   public int getExpiresDays() {
     return expiresDays;
   }
+
+  public double getCertificateReuseFraction() {
+    return certificateReuseFraction;
+  }
+
+  public long getCertificateCacheSize() {
+    return certificateCacheSize;
+  }
 }
@@ -10,6 +10,7 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import org.whispersystems.textsecuregcm.util.ByteArrayAdapter;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class ZkConfig {
@@ -26,6 +27,18 @@ public class ZkConfig {
   @NotNull
   private byte[] serverPublic;
 
+  @JsonProperty
+  @Min(1)
+  private long authCredentialCacheSize = 100_000;
+
+  /**
+   * The number of threads used to issue auth credentials for a range of days in parallel; zero issues them on the
+   * request thread.
+   */
+  @JsonProperty
+  @Min(0)
+  private int authCredentialIssuanceThreads = 0;
+
   public byte[] getServerSecret() {
     return serverSecret;
   }
@@ -33,4 +46,12 @@ public class ZkConfig {
   public byte[] getServerPublic() {
     return serverPublic;
   }
+
+  public long getAuthCredentialCacheSize() {
+    return authCredentialCacheSize;
+  }
+
+  public int getAuthCredentialIssuanceThreads() {
+    return authCredentialIssuanceThreads;
+  }
 }
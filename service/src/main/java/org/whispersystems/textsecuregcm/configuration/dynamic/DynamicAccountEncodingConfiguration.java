@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.configuration.dynamic;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+
+public class DynamicAccountEncodingConfiguration {
+
+  /**
+   * Whether accounts written to DynamoDB and the account cache use the binary account format rather than JSON. This
+   * must only be enabled once every server can decode the binary format, and disabling it again doesn't rewrite
+   * records that have already been written in the binary format.
+   */
+  @JsonProperty
+  private boolean binaryWritesEnabled = false;
+
+  public boolean isBinaryWritesEnabled() {
+    return binaryWritesEnabled;
+  }
+
+  @VisibleForTesting
+  public void setBinaryWritesEnabled(final boolean binaryWritesEnabled) {
+    this.binaryWritesEnabled = binaryWritesEnabled;
+  }
+}
@@ -48,6 +48,14 @@ public class DynamicConfiguration {
   @Valid
   private DynamicRateLimitChallengeConfiguration rateLimitChallenge = new DynamicRateLimitChallengeConfiguration();
 
+  @JsonProperty
+  @Valid
+  private DynamicAccountNearCacheConfiguration accountNearCache = new DynamicAccountNearCacheConfiguration();
+
+  @JsonProperty
+  @Valid
+  private DynamicAccountEncodingConfiguration accountEncoding = new DynamicAccountEncodingConfiguration();
+
   public Optional<DynamicExperimentEnrollmentConfiguration> getExperimentEnrollmentConfiguration(
       final String experimentName) {
     return Optional.ofNullable(experiments.get(experimentName));
@@ -94,4 +102,12 @@ public class DynamicConfiguration {
   public DynamicRateLimitChallengeConfiguration getRateLimitChallengeConfiguration() {
     return rateLimitChallenge;
   }
+
+  public DynamicAccountNearCacheConfiguration getAccountNearCacheConfiguration() {
+    return accountNearCache;
+  }
+
+  public DynamicAccountEncodingConfiguration getAccountEncodingConfiguration() {
+    return accountEncoding;
+  }
 }
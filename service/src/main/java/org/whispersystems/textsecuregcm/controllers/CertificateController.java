@@ -22,9 +22,10 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import org.signal.zkgroup.auth.ServerZkAuthOperations;
+import org.whispersystems.textsecuregcm.auth.AuthCredentialCache;
 import org.whispersystems.textsecuregcm.auth.AuthenticatedAccount;
 import org.whispersystems.textsecuregcm.auth.CertificateGenerator;
+import org.whispersystems.textsecuregcm.auth.DeliveryCertificateCache;
 import org.whispersystems.textsecuregcm.entities.DeliveryCertificate;
 import org.whispersystems.textsecuregcm.entities.GroupCredentials;
 import org.whispersystems.textsecuregcm.util.Util;
@@ -33,15 +34,15 @@ import org.whispersystems.textsecuregcm.util.Util;
 @Path("/v1/certificate")
 public class CertificateController {
 
-  private final CertificateGenerator   certificateGenerator;
-  private final ServerZkAuthOperations serverZkAuthOperations;
+  private final DeliveryCertificateCache deliveryCertificateCache;
+  private final AuthCredentialCache      authCredentialCache;
 
   private static final String GENERATE_DELIVERY_CERTIFICATE_COUNTER_NAME = name(CertificateGenerator.class, "generateCertificate");
   private static final String INCLUDE_E164_TAG_NAME = "includeE164";
 
-  public CertificateController(CertificateGenerator certificateGenerator, ServerZkAuthOperations serverZkAuthOperations) {
-    this.certificateGenerator   = certificateGenerator;
-    this.serverZkAuthOperations = serverZkAuthOperations;
+  public CertificateController(DeliveryCertificateCache deliveryCertificateCache, AuthCredentialCache authCredentialCache) {
+    this.deliveryCertificateCache = deliveryCertificateCache;
+    this.authCredentialCache      = authCredentialCache;
   }
 
   @Timed
@@ -61,7 +62,7 @@ public class CertificateController {
         .increment();
 
     return new DeliveryCertificate(
-        certificateGenerator.createFor(auth.getAccount(), auth.getAuthenticatedDevice(), includeE164));
+        deliveryCertificateCache.getCertificate(auth.getAccount(), auth.getAuthenticatedDevice(), includeE164));
   }
 
   @Timed
@@ -82,12 +83,10 @@ public class CertificateController {
     }
 
     List<GroupCredentials.GroupCredential> credentials = new LinkedList<>();
+    List<byte[]>                           issued      = authCredentialCache.getCredentials(auth.getAccount().getUuid(), startRedemptionTime, endRedemptionTime);
 
     for (int i = startRedemptionTime; i <= endRedemptionTime; i++) {
-      credentials.add(new GroupCredentials.GroupCredential(
-          serverZkAuthOperations.issueAuthCredential(auth.getAccount().getUuid(), i)
-              .serialize(),
-          i));
+      credentials.add(new GroupCredentials.GroupCredential(issued.get(i - startRedemptionTime), i));
     }
 
     return new GroupCredentials(credentials);
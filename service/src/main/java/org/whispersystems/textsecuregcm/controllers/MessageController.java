@@ -28,16 +28,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Nonnull;
@@ -109,7 +108,6 @@ public class MessageController {
   private final Meter          identifiedMeter                  = metricRegistry.meter(name(getClass(), "delivery", "identified"  ));
   private final Meter          rejectOver256kibMessageMeter     = metricRegistry.meter(name(getClass(), "rejectOver256kibMessage"));
   private final Timer          sendMessageInternalTimer         = metricRegistry.timer(name(getClass(), "sendMessageInternal"));
-  private final Timer          sendCommonMessageInternalTimer   = metricRegistry.timer(name(getClass(), "sendCommonMessageInternal"));
   private final Histogram      outgoingMessageListSizeHistogram = metricRegistry.histogram(name(getClass(), "outgoingMessageListSize"));
 
   private final RateLimiters                rateLimiters;
@@ -128,9 +126,15 @@ public class MessageController {
   private static final String REJECT_UNSEALED_SENDER_COUNTER_NAME                = name(MessageController.class, "rejectUnsealedSenderLimit");
   private static final String CONTENT_SIZE_DISTRIBUTION_NAME                     = name(MessageController.class, "messageContentSize");
   private static final String OUTGOING_MESSAGE_LIST_SIZE_BYTES_DISTRIBUTION_NAME = name(MessageController.class, "outgoingMessageListSizeBytes");
+  private static final String MULTI_RECIPIENT_STAGE_TIMER_NAME                   = name(MessageController.class, "multiRecipientStage");
 
   private static final String EPHEMERAL_TAG_NAME      = "ephemeral";
   private static final String SENDER_TYPE_TAG_NAME    = "senderType";
+  private static final String STAGE_TAG_NAME          = "stage";
+
+  private static final io.micrometer.core.instrument.Timer RESOLVE_ACCOUNTS_STAGE_TIMER =
+      buildMultiRecipientStageTimer("resolveAccounts");
+  private static final io.micrometer.core.instrument.Timer SEND_STAGE_TIMER = buildMultiRecipientStageTimer("send");
 
   private static final long MAX_MESSAGE_SIZE = DataSize.kibibytes(256).toBytes();
 
@@ -292,16 +296,17 @@ public class MessageController {
 
     unidentifiedMeter.mark(multiRecipientMessage.getRecipients().length);
 
-    Map<UUID, Account> uuidToAccountMap = Arrays.stream(multiRecipientMessage.getRecipients())
+    final Set<UUID> recipientUuids = Arrays.stream(multiRecipientMessage.getRecipients())
         .map(Recipient::getUuid)
-        .distinct()
-        .collect(Collectors.toUnmodifiableMap(Function.identity(), uuid -> {
-          Optional<Account> account = accountsManager.get(uuid);
-          if (account.isEmpty()) {
-            throw new WebApplicationException(Status.NOT_FOUND);
-          }
-          return account.get();
-        }));
+        .collect(Collectors.toSet());
+
+    final Map<UUID, Account> uuidToAccountMap =
+        RESOLVE_ACCOUNTS_STAGE_TIMER.record(() -> accountsManager.getAll(recipientUuids));
+
+    if (uuidToAccountMap.size() != recipientUuids.size()) {
+      throw new WebApplicationException(Status.NOT_FOUND);
+    }
+
     checkAccessKeys(accessKeys, uuidToAccountMap);
 
     final Map<Account, HashSet<Pair<Long, Integer>>> accountToDeviceIdAndRegistrationIdMap =
@@ -351,29 +356,36 @@ public class MessageController {
         UserAgentTagUtil.getPlatformTag(userAgent),
         Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
         Tag.of(SENDER_TYPE_TAG_NAME, "unidentified"));
-    List<UUID> uuids404 = Collections.synchronizedList(new ArrayList<>());
     final Counter counter = Metrics.counter(SENT_MESSAGE_COUNTER_NAME, tags);
-    try {
-      multiRecipientMessageExecutor.invokeAll(Arrays.stream(multiRecipientMessage.getRecipients())
-          .map(recipient -> (Callable<Void>) () -> {
-            Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
-
-            // we asserted this must exist in validateCompleteDeviceList
-            Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
-            counter.increment();
-            try {
-              sendMessage(destinationAccount, destinationDevice, timestamp, online, recipient,
-                  multiRecipientMessage.getCommonPayload());
-            } catch (NoSuchUserException e) {
-              uuids404.add(destinationAccount.getUuid());
-            }
-            return null;
-          })
-          .collect(Collectors.toList()));
-    } catch (InterruptedException e) {
-      logger.error("interrupted while delivering multi-recipient messages", e);
-      return Response.serverError().entity("interrupted during delivery").build();
+    final long serverTimestamp = System.currentTimeMillis();
+    final Map<Pair<UUID, Long>, MessageSender.Delivery> deliveriesByDestination = new LinkedHashMap<>();
+
+    for (final Recipient recipient : multiRecipientMessage.getRecipients()) {
+      final Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
+
+      // we asserted this must exist in validateCompleteDeviceList
+      final Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
+      counter.increment();
+
+      deliveriesByDestination.putIfAbsent(new Pair<>(recipient.getUuid(), recipient.getDeviceId()),
+          new MessageSender.Delivery(destinationAccount, destinationDevice,
+              buildMultiRecipientEnvelope(timestamp, serverTimestamp, recipient, multiRecipientMessage.getCommonPayload())));
+    }
+
+    final List<MessageSender.Delivery> undeliverable = SEND_STAGE_TIMER.record(() ->
+        messageSender.sendMessages(new ArrayList<>(deliveriesByDestination.values()), online,
+            multiRecipientMessageExecutor));
+
+    final List<UUID> uuids404 = new ArrayList<>();
+
+    for (final MessageSender.Delivery delivery : undeliverable) {
+      if (delivery.getDevice().isMaster()) {
+        uuids404.add(delivery.getAccount().getUuid());
+      } else {
+        logger.debug("Not registered");
+      }
     }
+
     return Response.ok(new SendMultiRecipientMessageResponse(uuids404)).build();
   }
 
@@ -532,32 +544,28 @@ public class MessageController {
     }
   }
 
-  private void sendMessage(Account destinationAccount, Device destinationDevice, long timestamp, boolean online,
-      Recipient recipient, byte[] commonPayload) throws NoSuchUserException {
-    try (final Timer.Context ignored = sendCommonMessageInternalTimer.time()) {
-      Envelope.Builder messageBuilder = Envelope.newBuilder();
-      long serverTimestamp = System.currentTimeMillis();
-      byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
+  private static Envelope buildMultiRecipientEnvelope(long timestamp, long serverTimestamp, Recipient recipient,
+      byte[] commonPayload) {
+    byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
 
-      byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
-      payload[0] = MultiRecipientMessageProvider.VERSION;
-      System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
-      System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
+    byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
+    payload[0] = MultiRecipientMessageProvider.VERSION;
+    System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
+    System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
 
-      messageBuilder
-          .setType(Type.UNIDENTIFIED_SENDER)
-          .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
-          .setServerTimestamp(serverTimestamp)
-          .setContent(ByteString.copyFrom(payload));
+    return Envelope.newBuilder()
+        .setType(Type.UNIDENTIFIED_SENDER)
+        .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
+        .setServerTimestamp(serverTimestamp)
+        .setContent(ByteString.copyFrom(payload))
+        .build();
+  }
 
-      messageSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build(), online);
-    } catch (NotPushRegisteredException e) {
-      if (destinationDevice.isMaster()) {
-        throw new NoSuchUserException(e);
-      } else {
-        logger.debug("Not registered", e);
-      }
-    }
+  private static io.micrometer.core.instrument.Timer buildMultiRecipientStageTimer(final String stage) {
+    return io.micrometer.core.instrument.Timer.builder(MULTI_RECIPIENT_STAGE_TIMER_NAME)
+        .tag(STAGE_TAG_NAME, stage)
+        .publishPercentileHistogram()
+        .register(Metrics.globalRegistry);
   }
 
   @VisibleForTesting
@@ -5,9 +5,14 @@
 
 package org.whispersystems.textsecuregcm.limits;
 
+import io.lettuce.core.ScriptOutputType;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.List;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
 import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 
 /**
@@ -25,6 +30,8 @@ public class CardinalityRateLimiter {
   private final Duration ttl;
   private final int defaultMaxCardinality;
 
+  private final ClusterLuaScript validateScript;
+
   public CardinalityRateLimiter(final FaultTolerantRedisCluster cacheCluster, final String name, final Duration ttl, final int defaultMaxCardinality) {
     this.cacheCluster = cacheCluster;
 
@@ -32,34 +39,49 @@ public class CardinalityRateLimiter {
 
     this.ttl = ttl;
     this.defaultMaxCardinality = defaultMaxCardinality;
+
+    try {
+      this.validateScript = ClusterLuaScript.fromResource(cacheCluster, "lua/rate_limiter/validate_cardinality.lua",
+          ScriptOutputType.INTEGER);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   public void validate(final String key, final String target, final int maxCardinality) throws RateLimitExceededException {
+    executeValidateScript(List.of(getHllKey(key)), target, maxCardinality);
+  }
 
-    final boolean rateLimitExceeded = cacheCluster.withCluster(connection -> {
-      final String hllKey = getHllKey(key);
-
-      final boolean changed = connection.sync().pfadd(hllKey, target) == 1;
-      final long cardinality = connection.sync().pfcount(hllKey);
+  /**
+   * Validates an attempt to act on the given target, using the limit stored in {@code maxCardinalityKey} in place of
+   * {@code defaultMaxCardinality} if that key exists. The lookup, update, and check happen in a single round trip, so
+   * {@code maxCardinalityKey} must hash to the same slot as this limiter's key for {@code key}; including
+   * {@link #getHashTag(String)} in {@code maxCardinalityKey} guarantees that it does.
+   */
+  public void validate(final String key, final String target, final String maxCardinalityKey,
+      final int defaultMaxCardinality) throws RateLimitExceededException {
 
-      final boolean mayNeedExpiration = changed && cardinality == 1;
+    executeValidateScript(List.of(getHllKey(key), maxCardinalityKey), target, defaultMaxCardinality);
+  }
 
-      // If the set already existed, we can assume it already had an expiration time and can save a round trip by
-      // skipping the ttl check.
-      if (mayNeedExpiration && connection.sync().ttl(hllKey) == -1) {
-        connection.sync().expire(hllKey, ttl.toSeconds());
-      }
+  private void executeValidateScript(final List<String> keys, final String target, final int maxCardinality)
+      throws RateLimitExceededException {
 
-      return changed && cardinality > maxCardinality;
-    });
+    final long remainingTtl = (long) validateScript.execute(keys,
+        List.of(target, String.valueOf(maxCardinality), String.valueOf(ttl.toSeconds())));
 
-    if (rateLimitExceeded) {
-      throw new RateLimitExceededException(Duration.ofSeconds(getRemainingTtl(key)));
+    // The script returns -1 for permitted targets and a non-negative TTL otherwise
+    if (remainingTtl >= 0) {
+      throw new RateLimitExceededException(Duration.ofSeconds(remainingTtl));
     }
   }
 
+  public static String getHashTag(final String key) {
+    return "{" + key + "}";
+  }
+
   private String getHllKey(final String key) {
-    return "hll_rate_limit::" + name + "::" + key;
+    return "hll_rate_limit::" + name + "::" + getHashTag(key);
   }
 
   public Duration getInitialTtl() {
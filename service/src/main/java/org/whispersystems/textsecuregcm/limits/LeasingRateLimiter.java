@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.limits;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+/**
+ * A rate limiter that removes permits from the shared bucket in Redis in batches ("leases") and hands them out from
+ * local counters until the lease is used up or expires. Because leased permits have already been removed from the
+ * shared bucket, a leasing limiter never admits more requests than a plain {@link RateLimiter} would; the cost is that
+ * up to {@code leaseSize - 1} permits per key may go unused on each server if a lease expires before it is spent.
+ */
+public class LeasingRateLimiter extends RateLimiter {
+
+  private final int leaseSize;
+  private final Duration leaseDuration;
+
+  private final Cache<String, Lease> leasesByKey;
+
+  private final Meter leaseHitMeter;
+  private final Meter remoteMeter;
+
+  @VisibleForTesting
+  static final int MAX_LEASES = 100_000;
+
+  private static class Lease {
+
+    private final AtomicInteger permitsRemaining;
+
+    private Lease(final int permitsRemaining) {
+      this.permitsRemaining = new AtomicInteger(permitsRemaining);
+    }
+
+    private boolean tryAcquire(final int permits) {
+      int current;
+
+      do {
+        current = permitsRemaining.get();
+
+        if (current < permits) {
+          return false;
+        }
+      } while (!permitsRemaining.compareAndSet(current, current - permits));
+
+      return true;
+    }
+
+    private Lease merge(final Lease other) {
+      permitsRemaining.addAndGet(other.permitsRemaining.get());
+      return this;
+    }
+  }
+
+  public LeasingRateLimiter(final FaultTolerantRedisCluster cacheCluster, final String name, final int bucketSize,
+      final double leakRatePerMinute, final int leaseSize, final Duration leaseDuration) {
+
+    this(cacheCluster, name, bucketSize, leakRatePerMinute, leaseSize, leaseDuration, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LeasingRateLimiter(final FaultTolerantRedisCluster cacheCluster, final String name, final int bucketSize,
+      final double leakRatePerMinute, final int leaseSize, final Duration leaseDuration, final Ticker ticker) {
+
+    // Report validations and rejections under the same names as a plain RateLimiter so that enabling leasing for a
+    // limiter doesn't move it off existing dashboards
+    super(cacheCluster, name, bucketSize, leakRatePerMinute, RateLimiter.class);
+
+    if (leaseSize < 1 || leaseSize > bucketSize) {
+      throw new IllegalArgumentException("Lease size must be between 1 and the bucket size");
+    }
+
+    this.leaseSize = leaseSize;
+    this.leaseDuration = leaseDuration;
+
+    this.leasesByKey = CacheBuilder.newBuilder()
+        .maximumSize(MAX_LEASES)
+        .expireAfterWrite(leaseDuration.toNanos(), TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        .build();
+
+    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+    this.leaseHitMeter = metricRegistry.meter(name(getClass(), name, "leaseHit"));
+    this.remoteMeter = metricRegistry.meter(name(getClass(), name, "remote"));
+  }
+
+  @Override
+  public void validate(final String key, final int amount) throws RateLimitExceededException {
+    try (final Timer.Context ignored = validateTimer.time()) {
+      final Lease lease = leasesByKey.getIfPresent(key);
+
+      if (lease != null && lease.tryAcquire(amount)) {
+        leaseHitMeter.mark();
+        return;
+      }
+
+      remoteMeter.mark();
+
+      if (amount < leaseSize && tryRemove(key, leaseSize).isZero()) {
+        // Keep whatever we didn't need now; if another thread leased permits for the same key at the same time, pool
+        // them rather than discarding either lease
+        leasesByKey.asMap().merge(key, new Lease(leaseSize - amount), Lease::merge);
+        return;
+      }
+
+      final Duration timeUntilSpaceAvailable = tryRemove(key, amount);
+
+      if (!timeUntilSpaceAvailable.isZero()) {
+        meter.mark();
+        throw new RateLimitExceededException(key + " , " + amount, timeUntilSpaceAvailable);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasAvailablePermits(final String key, final int permits) {
+    final Lease lease = leasesByKey.getIfPresent(key);
+
+    if (lease != null && lease.permitsRemaining.get() >= permits) {
+      return true;
+    }
+
+    return super.hasAvailablePermits(key, permits);
+  }
+
+  @Override
+  public void clear(final String key) {
+    leasesByKey.invalidate(key);
+    super.clear(key);
+  }
+
+  @Override
+  public boolean hasConfiguration(final RateLimitConfiguration configuration) {
+    return getBucketSize() == configuration.getBucketSize()
+        && getLeakRatePerMinute() == configuration.getLeakRatePerMinute()
+        && leaseSize == configuration.getLeaseSize()
+        && leaseDuration.equals(configuration.getLeaseDuration());
+  }
+}
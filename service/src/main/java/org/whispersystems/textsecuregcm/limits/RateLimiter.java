@@ -10,54 +10,76 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lettuce.core.ScriptOutputType;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.List;
 import java.util.UUID;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import javax.annotation.Nullable;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.whispersystems.textsecuregcm.util.Constants;
-import org.whispersystems.textsecuregcm.util.SystemMapper;
 
+/**
+ * A leaky bucket rate limiter backed by Redis. Buckets are leaked, checked, and filled by a single Lua script, so each
+ * check takes one round trip and concurrent checks for the same key cannot both consume the last available permit.
+ * The script keeps buckets in the JSON format that earlier versions wrote from the JVM so that servers running either
+ * version can share them.
+ */
 public class RateLimiter {
 
-  private final Logger       logger = LoggerFactory.getLogger(RateLimiter.class);
-  private final ObjectMapper mapper = SystemMapper.getMapper();
-
-  private   final Meter                     meter;
-  private   final Timer                     validateTimer;
+  protected final Meter                     meter;
+  protected final Timer                     validateTimer;
   protected final FaultTolerantRedisCluster cacheCluster;
   protected final String                    name;
   private   final int                       bucketSize;
   private   final double                    leakRatePerMinute;
   private   final double                    leakRatePerMillis;
+  private   final long                      bucketTtlMillis;
+  private   final ClusterLuaScript          validateScript;
 
   public RateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute)
+  {
+    this(cacheCluster, name, bucketSize, leakRatePerMinute, null);
+  }
+
+  /**
+   * @param metricOwner the class under which to register this limiter's "exceeded" meter and "validate" timer, or
+   * {@code null} to register them under this limiter's own class
+   */
+  protected RateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute,
+      @Nullable Class<? extends RateLimiter> metricOwner)
   {
     MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+    Class<?>       owner          = metricOwner != null ? metricOwner : getClass();
 
-    this.meter                  = metricRegistry.meter(name(getClass(), name, "exceeded"));
-    this.validateTimer          = metricRegistry.timer(name(getClass(), name, "validate"));
+    this.meter                  = metricRegistry.meter(name(owner, name, "exceeded"));
+    this.validateTimer          = metricRegistry.timer(name(owner, name, "validate"));
     this.cacheCluster           = cacheCluster;
     this.name                   = name;
     this.bucketSize             = bucketSize;
     this.leakRatePerMinute      = leakRatePerMinute;
     this.leakRatePerMillis      = leakRatePerMinute / (60.0 * 1000.0);
+    this.bucketTtlMillis        = (long) Math.ceil(bucketSize / leakRatePerMillis);
+
+    try {
+      this.validateScript = ClusterLuaScript.fromResource(cacheCluster, "lua/rate_limiter/validate.lua",
+          ScriptOutputType.INTEGER);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   public void validate(String key, int amount) throws RateLimitExceededException {
     try (final Timer.Context ignored = validateTimer.time()) {
-      LeakyBucket bucket = getBucket(key);
+      final Duration timeUntilSpaceAvailable = executeValidateScript(key, amount, false);
 
-      if (bucket.add(amount)) {
-        setBucket(key, bucket);
-      } else {
+      if (!timeUntilSpaceAvailable.isZero()) {
         meter.mark();
-        throw new RateLimitExceededException(key + " , " + amount, bucket.getTimeUntilSpaceAvailable(amount));
+        throw new RateLimitExceededException(key + " , " + amount, timeUntilSpaceAvailable);
       }
     }
   }
@@ -81,7 +103,7 @@ public class RateLimiter {
   }
 
   public boolean hasAvailablePermits(final String key, final int permits) {
-    return getBucket(key).getTimeUntilSpaceAvailable(permits).equals(Duration.ZERO);
+    return executeValidateScript(key, permits, true).isZero();
   }
 
   public void clear(final UUID accountUuid) {
@@ -100,29 +122,36 @@ public class RateLimiter {
     return leakRatePerMinute;
   }
 
-  private void setBucket(String key, LeakyBucket bucket) {
-
-    try {
-      final String serialized = bucket.serialize(mapper);
-
-      cacheCluster.useCluster(connection -> connection.sync().setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized));
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
-    }
+  /**
+   * Attempts to remove the given amount from the given bucket without recording any metrics.
+   *
+   * @return the time until the given amount will fit in the bucket, which is zero if the amount was removed
+   */
+  protected Duration tryRemove(final String key, final int amount) {
+    return executeValidateScript(key, amount, false);
   }
 
-  private LeakyBucket getBucket(String key) {
-    try {
-      final String serialized = cacheCluster.withCluster(connection -> connection.sync().get(getBucketName(key)));
-
-      if (serialized != null) {
-        return LeakyBucket.fromSerialized(mapper, serialized);
-      }
-    } catch (IOException e) {
-      logger.warn("Deserialization error", e);
+  /**
+   * Leaks the given bucket and, unless this is a dry run, removes the given amount from it if enough space is
+   * available.
+   *
+   * @return the time until the given amount will fit in the bucket, which is zero if it fits now
+   */
+  private Duration executeValidateScript(final String key, final int amount, final boolean dryRun) {
+    final long millisUntilSpaceAvailable = (long) validateScript.execute(List.of(getBucketName(key)),
+        List.of(String.valueOf(bucketSize),
+            String.valueOf(leakRatePerMillis),
+            String.valueOf(System.currentTimeMillis()),
+            String.valueOf(amount),
+            String.valueOf(bucketTtlMillis),
+            dryRun ? "1" : "0"));
+
+    if (millisUntilSpaceAvailable > 0 && amount > bucketSize) {
+      // This shouldn't happen today but if so we should bubble this to the clients somehow
+      throw new IllegalArgumentException("Requested permits exceed maximum bucket size");
     }
 
-    return new LeakyBucket(bucketSize, leakRatePerMillis);
+    return Duration.ofMillis(millisUntilSpaceAvailable);
   }
 
   private String getBucketName(String key) {
@@ -130,6 +159,7 @@ public class RateLimiter {
   }
 
   public boolean hasConfiguration(final RateLimitConfiguration configuration) {
-    return bucketSize == configuration.getBucketSize() && leakRatePerMinute == configuration.getLeakRatePerMinute();
+    return bucketSize == configuration.getBucketSize() && leakRatePerMinute == configuration.getLeakRatePerMinute()
+        && configuration.getLeaseSize() == 0;
   }
 }
@@ -11,6 +11,7 @@ import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicRateLimitsConfiguration;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.whispersystems.textsecuregcm.storage.DynamicConfigurationManager;
 
@@ -49,35 +50,21 @@ public class RateLimiters {
   private final AtomicReference<RateLimiter> dailyPreKeysLimiter;
 
   private final FaultTolerantRedisCluster   cacheCluster;
-  private final DynamicConfigurationManager<DynamicConfiguration> dynamicConfig;
 
   public RateLimiters(RateLimitsConfiguration config, DynamicConfigurationManager<DynamicConfiguration> dynamicConfig, FaultTolerantRedisCluster cacheCluster) {
     this.cacheCluster  = cacheCluster;
-    this.dynamicConfig = dynamicConfig;
 
-    this.smsDestinationLimiter = new RateLimiter(cacheCluster, "smsDestination",
-                                                 config.getSmsDestination().getBucketSize(),
-                                                 config.getSmsDestination().getLeakRatePerMinute());
+    this.smsDestinationLimiter = createLimiter(cacheCluster, config.getSmsDestination(), "smsDestination");
 
-    this.voiceDestinationLimiter = new RateLimiter(cacheCluster, "voxDestination",
-                                                   config.getVoiceDestination().getBucketSize(),
-                                                   config.getVoiceDestination().getLeakRatePerMinute());
+    this.voiceDestinationLimiter = createLimiter(cacheCluster, config.getVoiceDestination(), "voxDestination");
 
-    this.voiceDestinationDailyLimiter = new RateLimiter(cacheCluster, "voxDestinationDaily",
-                                                        config.getVoiceDestinationDaily().getBucketSize(),
-                                                        config.getVoiceDestinationDaily().getLeakRatePerMinute());
+    this.voiceDestinationDailyLimiter = createLimiter(cacheCluster, config.getVoiceDestinationDaily(), "voxDestinationDaily");
 
-    this.smsVoiceIpLimiter = new RateLimiter(cacheCluster, "smsVoiceIp",
-                                             config.getSmsVoiceIp().getBucketSize(),
-                                             config.getSmsVoiceIp().getLeakRatePerMinute());
+    this.smsVoiceIpLimiter = createLimiter(cacheCluster, config.getSmsVoiceIp(), "smsVoiceIp");
 
-    this.smsVoicePrefixLimiter = new RateLimiter(cacheCluster, "smsVoicePrefix",
-                                                 config.getSmsVoicePrefix().getBucketSize(),
-                                                 config.getSmsVoicePrefix().getLeakRatePerMinute());
+    this.smsVoicePrefixLimiter = createLimiter(cacheCluster, config.getSmsVoicePrefix(), "smsVoicePrefix");
 
-    this.autoBlockLimiter = new RateLimiter(cacheCluster, "autoBlock",
-                                            config.getAutoBlock().getBucketSize(),
-                                            config.getAutoBlock().getLeakRatePerMinute());
+    this.autoBlockLimiter = createLimiter(cacheCluster, config.getAutoBlock(), "autoBlock");
 
     this.verifyLimiter = new LockingRateLimiter(cacheCluster, "verify",
                                                 config.getVerifyNumber().getBucketSize(),
@@ -87,45 +74,25 @@ public class RateLimiters {
                                              config.getVerifyPin().getBucketSize(),
                                              config.getVerifyPin().getLeakRatePerMinute());
 
-    this.attachmentLimiter = new RateLimiter(cacheCluster, "attachmentCreate",
-                                             config.getAttachments().getBucketSize(),
-                                             config.getAttachments().getLeakRatePerMinute());
+    this.attachmentLimiter = createLimiter(cacheCluster, config.getAttachments(), "attachmentCreate");
 
-    this.preKeysLimiter = new RateLimiter(cacheCluster, "prekeys",
-                                          config.getPreKeys().getBucketSize(),
-                                          config.getPreKeys().getLeakRatePerMinute());
+    this.preKeysLimiter = createLimiter(cacheCluster, config.getPreKeys(), "prekeys");
 
-    this.messagesLimiter = new RateLimiter(cacheCluster, "messages",
-                                           config.getMessages().getBucketSize(),
-                                           config.getMessages().getLeakRatePerMinute());
+    this.messagesLimiter = createLimiter(cacheCluster, config.getMessages(), "messages");
 
-    this.allocateDeviceLimiter = new RateLimiter(cacheCluster, "allocateDevice",
-                                                 config.getAllocateDevice().getBucketSize(),
-                                                 config.getAllocateDevice().getLeakRatePerMinute());
+    this.allocateDeviceLimiter = createLimiter(cacheCluster, config.getAllocateDevice(), "allocateDevice");
 
-    this.verifyDeviceLimiter = new RateLimiter(cacheCluster, "verifyDevice",
-                                               config.getVerifyDevice().getBucketSize(),
-                                               config.getVerifyDevice().getLeakRatePerMinute());
+    this.verifyDeviceLimiter = createLimiter(cacheCluster, config.getVerifyDevice(), "verifyDevice");
 
-    this.turnLimiter = new RateLimiter(cacheCluster, "turnAllocate",
-                                       config.getTurnAllocations().getBucketSize(),
-                                       config.getTurnAllocations().getLeakRatePerMinute());
+    this.turnLimiter = createLimiter(cacheCluster, config.getTurnAllocations(), "turnAllocate");
 
-    this.profileLimiter = new RateLimiter(cacheCluster, "profile",
-                                          config.getProfile().getBucketSize(),
-                                          config.getProfile().getLeakRatePerMinute());
+    this.profileLimiter = createLimiter(cacheCluster, config.getProfile(), "profile");
 
-    this.stickerPackLimiter = new RateLimiter(cacheCluster, "stickerPack",
-                                              config.getStickerPack().getBucketSize(),
-                                              config.getStickerPack().getLeakRatePerMinute());
+    this.stickerPackLimiter = createLimiter(cacheCluster, config.getStickerPack(), "stickerPack");
 
-    this.usernameLookupLimiter = new RateLimiter(cacheCluster, "usernameLookup",
-                                                 config.getUsernameLookup().getBucketSize(),
-                                                 config.getUsernameLookup().getLeakRatePerMinute());
+    this.usernameLookupLimiter = createLimiter(cacheCluster, config.getUsernameLookup(), "usernameLookup");
 
-    this.usernameSetLimiter = new RateLimiter(cacheCluster, "usernameSet",
-                                              config.getUsernameSet().getBucketSize(),
-                                              config.getUsernameSet().getLeakRatePerMinute());
+    this.usernameSetLimiter = createLimiter(cacheCluster, config.getUsernameSet(), "usernameSet");
 
     this.dailyPreKeysLimiter = new AtomicReference<>(createDailyPreKeysLimiter(cacheCluster, dynamicConfig.getConfiguration().getLimits().getDailyPreKeys()));
 
@@ -139,67 +106,66 @@ public class RateLimiters {
     this.recaptchaChallengeSuccessLimiter = new AtomicReference<>(createRecaptchaChallengeSuccessLimiter(cacheCluster, dynamicConfig.getConfiguration().getLimits().getRecaptchaChallengeSuccess()));
     this.pushChallengeAttemptLimiter = new AtomicReference<>(createPushChallengeAttemptLimiter(cacheCluster, dynamicConfig.getConfiguration().getLimits().getPushChallengeAttempt()));
     this.pushChallengeSuccessLimiter = new AtomicReference<>(createPushChallengeSuccessLimiter(cacheCluster, dynamicConfig.getConfiguration().getLimits().getPushChallengeSuccess()));
+
+    // Dynamically-configured limiters are rebuilt once per configuration version rather than checked on every request
+    dynamicConfig.addConfigurationListener(this::updateDynamicLimiters);
   }
 
-  public CardinalityRateLimiter getUnsealedSenderCardinalityLimiter() {
-    CardinalityRateLimitConfiguration currentConfiguration = dynamicConfig.getConfiguration().getLimits().getUnsealedSenderNumber();
+  private void updateDynamicLimiters(final DynamicConfiguration configuration) {
+    final DynamicRateLimitsConfiguration limits = configuration.getLimits();
+    final CardinalityRateLimitConfiguration unsealedSenderNumber = limits.getUnsealedSenderNumber();
 
-    return this.unsealedSenderCardinalityLimiter.updateAndGet(rateLimiter -> {
-      if (rateLimiter.hasConfiguration(currentConfiguration)) {
+    unsealedSenderCardinalityLimiter.updateAndGet(rateLimiter -> {
+      if (rateLimiter.hasConfiguration(unsealedSenderNumber)) {
         return rateLimiter;
       } else {
-        return createUnsealedSenderCardinalityLimiter(cacheCluster, currentConfiguration);
+        return createUnsealedSenderCardinalityLimiter(cacheCluster, unsealedSenderNumber);
       }
     });
+
+    updateAndGetRateLimiter(unsealedIpLimiter, limits.getUnsealedSenderIp(), this::createUnsealedIpLimiter);
+    updateAndGetRateLimiter(rateLimitResetLimiter, limits.getRateLimitReset(), this::createRateLimitResetLimiter);
+    updateAndGetRateLimiter(recaptchaChallengeAttemptLimiter, limits.getRecaptchaChallengeAttempt(),
+        this::createRecaptchaChallengeAttemptLimiter);
+    updateAndGetRateLimiter(recaptchaChallengeSuccessLimiter, limits.getRecaptchaChallengeSuccess(),
+        this::createRecaptchaChallengeSuccessLimiter);
+    updateAndGetRateLimiter(pushChallengeAttemptLimiter, limits.getPushChallengeAttempt(),
+        this::createPushChallengeAttemptLimiter);
+    updateAndGetRateLimiter(pushChallengeSuccessLimiter, limits.getPushChallengeSuccess(),
+        this::createPushChallengeSuccessLimiter);
+    updateAndGetRateLimiter(dailyPreKeysLimiter, limits.getDailyPreKeys(), this::createDailyPreKeysLimiter);
+  }
+
+  public CardinalityRateLimiter getUnsealedSenderCardinalityLimiter() {
+    return unsealedSenderCardinalityLimiter.get();
   }
 
   public RateLimiter getUnsealedIpLimiter() {
-    return updateAndGetRateLimiter(
-        unsealedIpLimiter,
-        dynamicConfig.getConfiguration().getLimits().getUnsealedSenderIp(),
-        this::createUnsealedIpLimiter);
+    return unsealedIpLimiter.get();
   }
 
   public RateLimiter getRateLimitResetLimiter() {
-    return updateAndGetRateLimiter(
-        rateLimitResetLimiter,
-        dynamicConfig.getConfiguration().getLimits().getRateLimitReset(),
-        this::createRateLimitResetLimiter);
+    return rateLimitResetLimiter.get();
   }
 
   public RateLimiter getRecaptchaChallengeAttemptLimiter() {
-    return updateAndGetRateLimiter(
-        recaptchaChallengeAttemptLimiter,
-        dynamicConfig.getConfiguration().getLimits().getRecaptchaChallengeAttempt(),
-        this::createRecaptchaChallengeAttemptLimiter);
+    return recaptchaChallengeAttemptLimiter.get();
   }
 
   public RateLimiter getRecaptchaChallengeSuccessLimiter() {
-    return updateAndGetRateLimiter(
-        recaptchaChallengeSuccessLimiter,
-        dynamicConfig.getConfiguration().getLimits().getRecaptchaChallengeSuccess(),
-        this::createRecaptchaChallengeSuccessLimiter);
+    return recaptchaChallengeSuccessLimiter.get();
   }
 
   public RateLimiter getPushChallengeAttemptLimiter() {
-    return updateAndGetRateLimiter(
-        pushChallengeAttemptLimiter,
-        dynamicConfig.getConfiguration().getLimits().getPushChallengeAttempt(),
-        this::createPushChallengeAttemptLimiter);
+    return pushChallengeAttemptLimiter.get();
   }
 
   public RateLimiter getPushChallengeSuccessLimiter() {
-    return updateAndGetRateLimiter(
-        pushChallengeSuccessLimiter,
-        dynamicConfig.getConfiguration().getLimits().getPushChallengeSuccess(),
-        this::createPushChallengeSuccessLimiter);
+    return pushChallengeSuccessLimiter.get();
   }
 
   public RateLimiter getDailyPreKeysLimiter() {
-    return updateAndGetRateLimiter(
-        dailyPreKeysLimiter,
-        dynamicConfig.getConfiguration().getLimits().getDailyPreKeys(),
-        this::createDailyPreKeysLimiter);
+    return dailyPreKeysLimiter.get();
   }
 
   private RateLimiter updateAndGetRateLimiter(final AtomicReference<RateLimiter> rateLimiter,
@@ -321,6 +287,14 @@ public class RateLimiters {
   }
 
   private RateLimiter createLimiter(FaultTolerantRedisCluster cacheCluster, RateLimitConfiguration configuration, String name) {
+    if (configuration.getLeaseSize() > 0) {
+      return new LeasingRateLimiter(cacheCluster, name,
+                                    configuration.getBucketSize(),
+                                    configuration.getLeakRatePerMinute(),
+                                    configuration.getLeaseSize(),
+                                    configuration.getLeaseDuration());
+    }
+
     return new RateLimiter(cacheCluster, name,
                            configuration.getBucketSize(),
                            configuration.getLeakRatePerMinute());
@@ -56,17 +56,11 @@ public class UnsealedSenderRateLimiter {
   }
 
   public void validate(final Account sender, final Account destination) throws RateLimitExceededException {
-    final int maxCardinality = rateLimitCluster.withCluster(connection -> {
-      final String cardinalityString = connection.sync().get(getMaxCardinalityKey(sender));
-
-      return cardinalityString != null
-          ? Integer.parseInt(cardinalityString)
-          : dynamicConfigurationManager.getConfiguration().getLimits().getUnsealedSenderDefaultCardinalityLimit();
-    });
-
     try {
-      rateLimiters.getUnsealedSenderCardinalityLimiter()
-          .validate(sender.getUuid().toString(), destination.getUuid().toString(), maxCardinality);
+      rateLimiters.getUnsealedSenderCardinalityLimiter().validate(sender.getUuid().toString(),
+          destination.getUuid().toString(),
+          getMaxCardinalityKey(sender),
+          dynamicConfigurationManager.getConfiguration().getLimits().getUnsealedSenderDefaultCardinalityLimit());
     } catch (final RateLimitExceededException e) {
 
       final boolean enforceLimit = dynamicConfigurationManager.getConfiguration()
@@ -108,7 +102,8 @@ public class UnsealedSenderRateLimiter {
     Metrics.counter(RATE_LIMIT_RESET_COUNTER_NAME).increment();
   }
 
+  // Shares a hash slot with the cardinality limiter's key so both can be read in the same script
   private static String getMaxCardinalityKey(final Account account) {
-    return "max_unsealed_sender_cardinality::" + account.getUuid();
+    return "max_unsealed_sender_cardinality::" + CardinalityRateLimiter.getHashTag(account.getUuid().toString());
   }
 }
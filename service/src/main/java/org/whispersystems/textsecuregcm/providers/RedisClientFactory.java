@@ -13,9 +13,10 @@ import org.whispersystems.textsecuregcm.redis.ReplicatedJedisPool;
 import org.whispersystems.textsecuregcm.util.Util;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -66,8 +67,8 @@ public class RedisClientFactory implements RedisPubSubConnectionFactory {
   public PubSubConnection connect() {
     while (true) {
       try {
-        Socket socket = new Socket(host, port);
-        return new PubSubConnection(socket);
+        SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        return new PubSubConnection(socketChannel);
       } catch (IOException e) {
         logger.warn("Error connecting", e);
         Util.sleep(200);
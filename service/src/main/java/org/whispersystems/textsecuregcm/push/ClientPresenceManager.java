@@ -7,6 +7,7 @@ package org.whispersystems.textsecuregcm.push;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
@@ -15,28 +16,41 @@ import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.SlotHash;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
+import org.whispersystems.textsecuregcm.redis.ClusterPubSubSubscriptionManager;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantPubSubConnection;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 /**
  * The client presence manager keeps track of which clients are actively connected and "present" to receive messages.
@@ -45,6 +59,12 @@ import org.whispersystems.textsecuregcm.util.Constants;
  * <p/>
  * The client presence manager depends on Redis keyspace notifications and requires that the Redis instance support at
  * least the following notification types: {@code K$z}.
+ * <p/>
+ * Presence changes are recorded locally right away, but their Redis operations go through a pipeline that gathers
+ * changes from many connections into batches: each batch issues its commands without waiting for one another and
+ * subscribes to (or unsubscribes from) keyspace notifications in bulk per node. Batches are processed one at a time,
+ * and a batch never contains two changes for the same device, so changes to any one device land in order. The number
+ * of pending registrations is bounded; when the pipeline is full, new registrations are rejected.
  */
 public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, String> implements Managed {
 
@@ -55,47 +75,100 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
 
   private final ClusterLuaScript clearPresenceScript;
+  private final ClusterPubSubSubscriptionManager subscriptionManager;
 
   private final ExecutorService keyspaceNotificationExecutorService;
+  private final Executor continuationExecutor;
   private final ScheduledExecutorService scheduledExecutorService;
   private ScheduledFuture<?> pruneMissingPeersFuture;
 
   private final Map<String, DisplacedPresenceListener> displacementListenersByPresenceKey = new ConcurrentHashMap<>();
 
+  private final Queue<PresenceOperation> pendingOperations = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingOperationCount = new AtomicInteger(0);
+  private final AtomicInteger pendingRegistrationCount = new AtomicInteger(0);
+  private final AtomicBoolean processingOperations = new AtomicBoolean(false);
+  private final int maxPendingRegistrations;
+
   private final Timer checkPresenceTimer;
+  private final Timer checkPresenceBatchTimer;
   private final Timer setPresenceTimer;
   private final Timer clearPresenceTimer;
   private final Timer prunePeersTimer;
   private final Meter pruneClientMeter;
   private final Meter remoteDisplacementMeter;
   private final Meter pubSubMessageMeter;
+  private final Meter rejectedRegistrationMeter;
+  private final Histogram batchSizeHistogram;
 
   private static final int PRUNE_PEERS_INTERVAL_SECONDS = (int) Duration.ofSeconds(30).toSeconds();
 
+  private static final int DEFAULT_MAX_PENDING_REGISTRATIONS = 50_000;
+  private static final int MAX_BATCH_SIZE = 1_000;
+
   static final String MANAGER_SET_KEY = "presence::managers";
 
   private static final Logger log = LoggerFactory.getLogger(ClientPresenceManager.class);
 
+  private static class PresenceOperation {
+
+    private final String presenceKey;
+    private final boolean register;
+    private final long enqueuedNanos = System.nanoTime();
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    private PresenceOperation(final String presenceKey, final boolean register) {
+      this.presenceKey = presenceKey;
+      this.register = register;
+    }
+  }
+
   public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster,
       final ScheduledExecutorService scheduledExecutorService,
       final ExecutorService keyspaceNotificationExecutorService) throws IOException {
+
+    this(presenceCluster, scheduledExecutorService, keyspaceNotificationExecutorService,
+        DEFAULT_MAX_PENDING_REGISTRATIONS);
+  }
+
+  @VisibleForTesting
+  ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster,
+      final ScheduledExecutorService scheduledExecutorService,
+      final ExecutorService keyspaceNotificationExecutorService,
+      final int maxPendingRegistrations) throws IOException {
     this.presenceCluster = presenceCluster;
     this.pubSubConnection = this.presenceCluster.createPubSubConnection();
     this.clearPresenceScript = ClusterLuaScript.fromResource(presenceCluster, "lua/clear_presence.lua",
         ScriptOutputType.INTEGER);
+    this.subscriptionManager = new ClusterPubSubSubscriptionManager(pubSubConnection, "presence");
     this.scheduledExecutorService = scheduledExecutorService;
     this.keyspaceNotificationExecutorService = keyspaceNotificationExecutorService;
+    this.maxPendingRegistrations = maxPendingRegistrations;
+
+    // Continuations must never run on Lettuce IO threads, which may not block; fall back to the completing thread only
+    // if the executor is saturated or shut down
+    this.continuationExecutor = task -> {
+      try {
+        keyspaceNotificationExecutorService.execute(task);
+      } catch (final RejectedExecutionException e) {
+        task.run();
+      }
+    };
 
     final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
     metricRegistry.gauge(name(getClass(), "localClientCount"), () -> displacementListenersByPresenceKey::size);
+    metricRegistry.gauge(name(getClass(), "pendingOperations"), () -> pendingOperationCount::get);
 
     this.checkPresenceTimer = metricRegistry.timer(name(getClass(), "checkPresence"));
+    this.checkPresenceBatchTimer = metricRegistry.timer(name(getClass(), "checkPresenceBatch"));
     this.setPresenceTimer = metricRegistry.timer(name(getClass(), "setPresence"));
     this.clearPresenceTimer = metricRegistry.timer(name(getClass(), "clearPresence"));
     this.prunePeersTimer = metricRegistry.timer(name(getClass(), "prunePeers"));
     this.pruneClientMeter = metricRegistry.meter(name(getClass(), "pruneClient"));
     this.remoteDisplacementMeter = metricRegistry.meter(name(getClass(), "remoteDisplacement"));
     this.pubSubMessageMeter = metricRegistry.meter(name(getClass(), "pubSubMessage"));
+    this.rejectedRegistrationMeter = metricRegistry.meter(name(getClass(), "rejectedRegistration"));
+    this.batchSizeHistogram = metricRegistry.histogram(name(getClass(), "batchSize"));
   }
 
   @VisibleForTesting
@@ -138,10 +211,15 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       pruneMissingPeersFuture.cancel(false);
     }
 
+    final List<CompletableFuture<Boolean>> clearFutures = new ArrayList<>();
+
     for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
-      clearPresence(presenceKey);
+      displacementListenersByPresenceKey.remove(presenceKey);
+      clearFutures.add(enqueue(presenceKey, false));
     }
 
+    RedisOperation.join(CompletableFuture.allOf(clearFutures.toArray(new CompletableFuture[0])));
+
     presenceCluster.useCluster(connection -> {
       connection.sync().srem(MANAGER_SET_KEY, managerId);
       connection.sync().del(getConnectedClientSetKey(managerId));
@@ -151,38 +229,57 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
         connection -> connection.sync().upstream().commands().unsubscribe(getManagerPresenceChannel(managerId)));
   }
 
+  /**
+   * Declares that the given device is present on this server and waits for the declaration to reach Redis.
+   *
+   * @see #setPresentAsync(UUID, long, DisplacedPresenceListener)
+   */
   public void setPresent(final UUID accountUuid, final long deviceId,
       final DisplacedPresenceListener displacementListener) {
-    try (final Timer.Context ignored = setPresenceTimer.time()) {
-      final String presenceKey = getPresenceKey(accountUuid, deviceId);
+    RedisOperation.join(setPresentAsync(accountUuid, deviceId, displacementListener));
+  }
 
-      displacePresence(presenceKey);
+  /**
+   * Declares that the given device is present on this server, displacing any other client for the same device on this
+   * server right away and on other servers once the declaration reaches Redis.
+   *
+   * @return a future that completes when the declaration has been recorded in Redis and this server is listening for
+   * remote displacement, or that fails with a {@link RejectedExecutionException} if too many registrations are already
+   * pending
+   */
+  public CompletableFuture<Void> setPresentAsync(final UUID accountUuid, final long deviceId,
+      final DisplacedPresenceListener displacementListener) {
 
-      displacementListenersByPresenceKey.put(presenceKey, displacementListener);
+    if (pendingRegistrationCount.incrementAndGet() > maxPendingRegistrations) {
+      pendingRegistrationCount.decrementAndGet();
+      rejectedRegistrationMeter.mark();
 
-      presenceCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Too many pending presence registrations"));
+    }
 
-        commands.sadd(connectedClientSetKey, presenceKey);
-        commands.set(presenceKey, managerId);
-      });
+    final String presenceKey = getPresenceKey(accountUuid, deviceId);
+    final DisplacedPresenceListener displacedListener =
+        displacementListenersByPresenceKey.put(presenceKey, displacementListener);
 
-      subscribeForRemotePresenceChanges(presenceKey);
+    if (displacedListener != null) {
+      displacedListener.handleDisplacement();
     }
+
+    return enqueue(presenceKey, true).thenApply(ignored -> null);
   }
 
   public void displacePresence(final UUID accountUuid, final long deviceId) {
-    displacePresence(getPresenceKey(accountUuid, deviceId));
+    RedisOperation.join(displacePresence(getPresenceKey(accountUuid, deviceId)));
   }
 
-  private void displacePresence(final String presenceKey) {
-    final DisplacedPresenceListener displacementListener = displacementListenersByPresenceKey.get(presenceKey);
+  private CompletableFuture<Boolean> displacePresence(final String presenceKey) {
+    final DisplacedPresenceListener displacementListener = displacementListenersByPresenceKey.remove(presenceKey);
 
     if (displacementListener != null) {
       displacementListener.handleDisplacement();
     }
 
-    clearPresence(presenceKey);
+    return enqueue(presenceKey, false);
   }
 
   public boolean isPresent(final UUID accountUuid, final long deviceId) {
@@ -192,44 +289,196 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     }
   }
 
+  /**
+   * Checks whether each of the given devices is present on any server. All presence checks are issued before waiting
+   * for any of them to complete, so checking many devices costs roughly one round trip per cluster node rather than
+   * one round trip per device.
+   *
+   * @param accountUuidsAndDeviceIds the (account UUID, device ID) pairs for which to check presence
+   *
+   * @return a list of presence flags in the same order as the given devices
+   */
+  public List<Boolean> isPresent(final List<Pair<UUID, Long>> accountUuidsAndDeviceIds) {
+    try (final Timer.Context ignored = checkPresenceBatchTimer.time()) {
+      return RedisOperation.join(presenceCluster.withClusterAsync(connection -> {
+        final List<CompletableFuture<Long>> existsFutures = accountUuidsAndDeviceIds.stream()
+            .map(accountUuidAndDeviceId -> connection.async()
+                .exists(getPresenceKey(accountUuidAndDeviceId.first(), accountUuidAndDeviceId.second()))
+                .toCompletableFuture())
+            .collect(Collectors.toList());
+
+        return CompletableFuture.allOf(existsFutures.toArray(new CompletableFuture[0]))
+            .thenApply(ignored2 -> existsFutures.stream()
+                .map(existsFuture -> existsFuture.join() == 1)
+                .collect(Collectors.toList()));
+      }));
+    }
+  }
+
   public boolean isLocallyPresent(final UUID accountUuid, final long deviceId) {
     return displacementListenersByPresenceKey.containsKey(getPresenceKey(accountUuid, deviceId));
   }
 
   public boolean clearPresence(final UUID accountUuid, final long deviceId) {
-    return clearPresence(getPresenceKey(accountUuid, deviceId));
+    final String presenceKey = getPresenceKey(accountUuid, deviceId);
+
+    displacementListenersByPresenceKey.remove(presenceKey);
+    return RedisOperation.join(enqueue(presenceKey, false));
   }
 
-  private boolean clearPresence(final String presenceKey) {
-    try (final Timer.Context ignored = clearPresenceTimer.time()) {
-      displacementListenersByPresenceKey.remove(presenceKey);
-      unsubscribeFromRemotePresenceChanges(presenceKey);
+  /**
+   * Clears the given device's presence if, and only if, the given listener still represents the device on this server;
+   * if another client for the same device has since connected (displacing the given listener), this method does
+   * nothing.
+   *
+   * @return a future that yields {@code true} if the device's presence was removed from Redis
+   */
+  public CompletableFuture<Boolean> clearPresenceAsync(final UUID accountUuid, final long deviceId,
+      final DisplacedPresenceListener displacementListener) {
 
-      final boolean removed = clearPresenceScript.execute(List.of(presenceKey), List.of(managerId)) != null;
-      presenceCluster.useCluster(connection -> connection.sync().srem(connectedClientSetKey, presenceKey));
+    final String presenceKey = getPresenceKey(accountUuid, deviceId);
 
-      return removed;
+    if (displacementListenersByPresenceKey.remove(presenceKey, displacementListener)) {
+      return enqueue(presenceKey, false);
+    } else {
+      return CompletableFuture.completedFuture(false);
     }
   }
 
-  private void subscribeForRemotePresenceChanges(final String presenceKey) {
-    final int slot = SlotHash.getSlot(presenceKey);
+  private CompletableFuture<Boolean> enqueue(final String presenceKey, final boolean register) {
+    final PresenceOperation operation = new PresenceOperation(presenceKey, register);
 
-    pubSubConnection.usePubSubConnection(
-        connection -> connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
-            .commands()
-            .subscribe(getKeyspaceNotificationChannel(presenceKey)));
+    pendingOperationCount.incrementAndGet();
+    pendingOperations.add(operation);
+
+    if (processingOperations.compareAndSet(false, true)) {
+      processPendingOperations();
+    }
+
+    return operation.future;
   }
 
-  private void resubscribeAll() {
-    for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
-      subscribeForRemotePresenceChanges(presenceKey);
+  /**
+   * Sends the next batch of pending operations to Redis. Callers must hold the {@code processingOperations} flag, which
+   * is released when the batch is complete.
+   */
+  private void processPendingOperations() {
+    final List<PresenceOperation> registrations = new ArrayList<>();
+    final List<PresenceOperation> clears = new ArrayList<>();
+    final Set<String> presenceKeysInBatch = new HashSet<>();
+
+    PresenceOperation operation;
+
+    while (registrations.size() + clears.size() < MAX_BATCH_SIZE
+        && (operation = pendingOperations.peek()) != null
+        && presenceKeysInBatch.add(operation.presenceKey)) {
+
+      pendingOperations.poll();
+      (operation.register ? registrations : clears).add(operation);
+    }
+
+    if (presenceKeysInBatch.isEmpty()) {
+      processingOperations.set(false);
+
+      // Another caller may have enqueued an operation after we checked the queue but before we released the flag
+      if (!pendingOperations.isEmpty() && processingOperations.compareAndSet(false, true)) {
+        processPendingOperations();
+      }
+
+      return;
+    }
+
+    batchSizeHistogram.update(presenceKeysInBatch.size());
+
+    CompletableFuture<Void> batchFuture;
+
+    try {
+      batchFuture = CompletableFuture.allOf(register(registrations), clear(clears));
+    } catch (final RuntimeException e) {
+      batchFuture = CompletableFuture.failedFuture(e);
     }
+
+    batchFuture.whenCompleteAsync((ignored, cause) -> processPendingOperations(), continuationExecutor);
   }
 
-  private void unsubscribeFromRemotePresenceChanges(final String presenceKey) {
-    pubSubConnection.usePubSubConnection(
-        connection -> connection.sync().upstream().commands().unsubscribe(getKeyspaceNotificationChannel(presenceKey)));
+  private CompletableFuture<Void> register(final List<PresenceOperation> registrations) {
+    if (registrations.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final String[] presenceKeys = registrations.stream().map(operation -> operation.presenceKey).toArray(String[]::new);
+
+    final String[] keyspaceChannels = registrations.stream()
+        .map(operation -> getKeyspaceNotificationChannel(operation.presenceKey))
+        .toArray(String[]::new);
+
+    return presenceCluster.withClusterAsync(connection -> {
+          final RedisAdvancedClusterAsyncCommands<String, String> commands = connection.async();
+          final List<CompletableFuture<?>> futures = new ArrayList<>(presenceKeys.length + 1);
+
+          futures.add(commands.sadd(connectedClientSetKey, presenceKeys).toCompletableFuture());
+
+          for (final String presenceKey : presenceKeys) {
+            futures.add(commands.set(presenceKey, managerId).toCompletableFuture());
+          }
+
+          return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        })
+        // Only subscribe once our own writes have landed so we don't mistake them for remote displacements
+        .thenComposeAsync(ignored -> subscriptionManager.subscribe(keyspaceChannels), continuationExecutor)
+        .whenComplete((ignored, cause) -> registrations.forEach(registration -> {
+          pendingRegistrationCount.decrementAndGet();
+          complete(registration, setPresenceTimer, cause, true);
+        }));
+  }
+
+  private CompletableFuture<Void> clear(final List<PresenceOperation> clears) {
+    if (clears.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final String[] presenceKeys = clears.stream().map(operation -> operation.presenceKey).toArray(String[]::new);
+
+    subscriptionManager.unsubscribe(clears.stream()
+        .map(operation -> getKeyspaceNotificationChannel(operation.presenceKey))
+        .toArray(String[]::new));
+
+    final List<CompletableFuture<Object>> scriptFutures = new ArrayList<>(clears.size());
+
+    for (final String presenceKey : presenceKeys) {
+      scriptFutures.add(clearPresenceScript.executeAsync(List.of(presenceKey), List.of(managerId)));
+    }
+
+    final CompletableFuture<Long> sremFuture = presenceCluster.withClusterAsync(connection ->
+        connection.async().srem(connectedClientSetKey, presenceKeys));
+
+    return CompletableFuture.allOf(sremFuture, CompletableFuture.allOf(scriptFutures.toArray(new CompletableFuture[0])))
+        .whenComplete((ignored, cause) -> {
+          for (int i = 0; i < clears.size(); i++) {
+            complete(clears.get(i), clearPresenceTimer, cause, cause == null && scriptFutures.get(i).join() != null);
+          }
+        });
+  }
+
+  private void complete(final PresenceOperation operation, final Timer timer, final Throwable cause,
+      final boolean result) {
+
+    pendingOperationCount.decrementAndGet();
+    timer.update(System.nanoTime() - operation.enqueuedNanos, TimeUnit.NANOSECONDS);
+
+    if (cause == null) {
+      operation.future.complete(result);
+    } else {
+      operation.future.completeExceptionally(cause);
+    }
+  }
+
+  private void resubscribeAll() {
+    subscriptionManager.resubscribeAll().whenComplete((ignored, cause) -> {
+      if (cause != null) {
+        log.warn("Failed to resubscribe to some presence keyspace notifications", cause);
+      }
+    });
   }
 
   void pruneMissingPeers() {
@@ -269,13 +518,28 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     pubSubMessageMeter.mark();
 
     if ("set".equals(message) && channel.startsWith("__keyspace@0__:presence::{")) {
-      // Another process has overwritten this presence key, which means the client has connected to another host.
-      // At this point, we're on a Lettuce IO thread and need to dispatch to a separate thread before making
-      // synchronous Lettuce calls to avoid deadlocking.
+      // Another process may have overwritten this presence key, which means the client has connected to another host.
+      // A client reconnecting to this host also rewrites the key while we're still subscribed, so check who owns the
+      // key now before displacing anybody. At this point, we're on a Lettuce IO thread and need to dispatch to a
+      // separate thread before touching Lettuce to avoid deadlocking.
+      final String presenceKey = channel.substring("__keyspace@0__:".length());
+
       keyspaceNotificationExecutorService.execute(() -> {
         try {
-          displacePresence(channel.substring("__keyspace@0__:".length()));
-          remoteDisplacementMeter.mark();
+          presenceCluster.withClusterAsync(connection -> connection.async().get(presenceKey))
+              .thenComposeAsync(owner -> {
+                if (managerId.equals(owner)) {
+                  return CompletableFuture.completedFuture(false);
+                }
+
+                remoteDisplacementMeter.mark();
+                return displacePresence(presenceKey);
+              }, continuationExecutor)
+              .whenComplete((ignored, cause) -> {
+                if (cause != null) {
+                  log.warn("Error displacing presence", cause);
+                }
+              });
         } catch (final Exception e) {
           log.warn("Error displacing presence", e);
         }
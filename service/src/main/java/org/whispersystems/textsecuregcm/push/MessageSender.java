@@ -8,16 +8,32 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 
 import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.metrics.PushLatencyManager;
 import org.whispersystems.textsecuregcm.push.ApnMessage.Type;
 import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
+import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.util.Util;
 
 /**
@@ -28,6 +44,10 @@ import org.whispersystems.textsecuregcm.util.Util;
  * MessageSender will send a push notification to the destination device if possible. Some messages may be designated
  * for "online" delivery only and will not be delivered (and clients will not be notified) if the destination device
  * isn't actively connected to a Signal server.
+ * <p/>
+ * Messages are always stored in the destination device's queue. If the destination device is connected to this very
+ * server, the MessageSender skips the remote presence check and tells the device's connection about the new message
+ * directly instead of waiting for the queue's keyspace notification to arrive from Redis.
  *
  * @see ClientPresenceManager
  * @see org.whispersystems.textsecuregcm.storage.MessageAvailabilityListener
@@ -41,18 +61,35 @@ public class MessageSender implements Managed {
   private final GCMSender                  gcmSender;
   private final APNSender                  apnSender;
   private final PushLatencyManager         pushLatencyManager;
+  private final PushNotificationCoalescer  pushNotificationCoalescer;
 
   private static final String SEND_COUNTER_NAME      = name(MessageSender.class, "sendMessage");
   private static final String CHANNEL_TAG_NAME       = "channel";
   private static final String EPHEMERAL_TAG_NAME     = "ephemeral";
   private static final String CLIENT_ONLINE_TAG_NAME = "clientOnline";
+  private static final String LOCAL_DELIVERY_TAG_NAME = "localDelivery";
+
+  private static final String SEND_TIMER_NAME = name(MessageSender.class, "sendMessageDuration");
+
+  private static final String BATCH_STAGE_TIMER_NAME = name(MessageSender.class, "batchStage");
+  private static final String STAGE_TAG_NAME         = "stage";
+
+  private static final Timer INSERT_STAGE_TIMER   = buildBatchStageTimer("insert");
+  private static final Timer PRESENCE_STAGE_TIMER = buildBatchStageTimer("presence");
+  private static final Timer NOTIFY_STAGE_TIMER   = buildBatchStageTimer("notify");
+
+  private static final Counter BATCH_DELIVERY_FAILED_COUNTER =
+      Metrics.counter(name(MessageSender.class, "batchDeliveryFailed"));
+
+  private static final Logger logger = LoggerFactory.getLogger(MessageSender.class);
 
   public MessageSender(ApnFallbackManager    apnFallbackManager,
                        ClientPresenceManager clientPresenceManager,
                        MessagesManager       messagesManager,
                        GCMSender             gcmSender,
                        APNSender             apnSender,
-                       PushLatencyManager    pushLatencyManager)
+                       PushLatencyManager    pushLatencyManager,
+                       PushNotificationCoalescer pushNotificationCoalescer)
   {
     this.apnFallbackManager    = apnFallbackManager;
     this.clientPresenceManager = clientPresenceManager;
@@ -60,42 +97,40 @@ public class MessageSender implements Managed {
     this.gcmSender             = gcmSender;
     this.apnSender             = apnSender;
     this.pushLatencyManager    = pushLatencyManager;
+    this.pushNotificationCoalescer = pushNotificationCoalescer;
   }
 
   public void sendMessage(final Account account, final Device device, final Envelope message, boolean online)
       throws NotPushRegisteredException
   {
-    if (device.getGcmId() == null && device.getApnId() == null && !device.getFetchesMessages()) {
-      throw new NotPushRegisteredException("No delivery possible!");
-    }
+    final String channel = getChannel(device)
+        .orElseThrow(() -> new NotPushRegisteredException("No delivery possible!"));
 
-    final String channel;
-
-    if (device.getGcmId() != null) {
-      channel = "gcm";
-    } else if (device.getApnId() != null) {
-      channel = "apn";
-    } else if (device.getFetchesMessages()) {
-      channel = "websocket";
-    } else {
-      throw new AssertionError();
-    }
+    final Timer.Sample sample = Timer.start();
 
     final boolean clientPresent;
+    final boolean deliveredLocally;
 
     if (online) {
-      clientPresent = clientPresenceManager.isPresent(account.getUuid(), device.getId());
+      final boolean locallyPresent = clientPresenceManager.isLocallyPresent(account.getUuid(), device.getId());
+      clientPresent = locallyPresent || clientPresenceManager.isPresent(account.getUuid(), device.getId());
 
       if (clientPresent) {
         messagesManager.insert(account.getUuid(), device.getId(), message.toBuilder().setEphemeral(true).build());
       }
+
+      deliveredLocally = locallyPresent
+          && messagesManager.notifyLocalMessageAvailabilityListener(account.getUuid(), device.getId());
     } else {
       messagesManager.insert(account.getUuid(), device.getId(), message);
 
       // We check for client presence after inserting the message to take a conservative view of notifications. If the
       // client wasn't present at the time of insertion but is now, they'll retrieve the message. If they were present
       // but disconnected before the message was delivered, we should send a notification.
-      clientPresent = clientPresenceManager.isPresent(account.getUuid(), device.getId());
+      deliveredLocally = clientPresenceManager.isLocallyPresent(account.getUuid(), device.getId())
+          && messagesManager.notifyLocalMessageAvailabilityListener(account.getUuid(), device.getId());
+
+      clientPresent = deliveredLocally || clientPresenceManager.isPresent(account.getUuid(), device.getId());
 
       if (!clientPresent) {
         sendNewMessageNotification(account, device);
@@ -105,16 +140,203 @@ public class MessageSender implements Managed {
     final List<Tag> tags = List.of(
             Tag.of(CHANNEL_TAG_NAME, channel),
             Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
-            Tag.of(CLIENT_ONLINE_TAG_NAME, String.valueOf(clientPresent)));
+            Tag.of(CLIENT_ONLINE_TAG_NAME, String.valueOf(clientPresent)),
+            Tag.of(LOCAL_DELIVERY_TAG_NAME, String.valueOf(deliveredLocally)));
 
     Metrics.counter(SEND_COUNTER_NAME, tags).increment();
+    sample.stop(Metrics.timer(SEND_TIMER_NAME, EPHEMERAL_TAG_NAME, String.valueOf(online),
+        LOCAL_DELIVERY_TAG_NAME, String.valueOf(deliveredLocally)));
+  }
+
+  /**
+   * Sends messages to many devices at once. Rather than delivering each message in turn, this method performs each step
+   * of delivery (storing messages, checking presence, and sending notifications) for all messages before moving on to
+   * the next step, so the cost of each step is a handful of pipelined round trips rather than one round trip per
+   * destination device.
+   * <p/>
+   * Each message is delivered independently of the others. If a message can't be stored, the failure is logged and
+   * counted and delivery of the remaining messages continues; messages that were stored are never rolled back.
+   *
+   * @param deliveries the messages to send and the devices to which to send them; each device may appear at most once
+   * @param online whether the messages should only be delivered to devices that are currently connected
+   * @param notificationExecutor the executor on which to send push notifications to devices that are not connected
+   *
+   * @return the deliveries that could not be attempted because their destination devices have no means of receiving
+   * messages
+   */
+  public List<Delivery> sendMessages(final List<Delivery> deliveries, final boolean online,
+      final Executor notificationExecutor) {
+
+    final List<Delivery> deliverable = new ArrayList<>(deliveries.size());
+    final List<Delivery> undeliverable = new ArrayList<>();
+
+    for (final Delivery delivery : deliveries) {
+      if (getChannel(delivery.getDevice()).isPresent()) {
+        deliverable.add(delivery);
+      } else {
+        undeliverable.add(delivery);
+      }
+    }
+
+    final List<Boolean> locallyPresent = deliverable.stream()
+        .map(delivery -> clientPresenceManager.isLocallyPresent(delivery.getAccount().getUuid(),
+            delivery.getDevice().getId()))
+        .collect(Collectors.toList());
+
+    final List<Boolean> clientPresent;
+    final Set<Pair<UUID, Long>> failedDestinations;
+
+    if (online) {
+      clientPresent = checkPresence(deliverable, locallyPresent);
+
+      final Map<Pair<UUID, Long>, Envelope> ephemeralMessagesByDestination = new HashMap<>();
+
+      for (int i = 0; i < deliverable.size(); i++) {
+        if (clientPresent.get(i)) {
+          final Delivery delivery = deliverable.get(i);
+
+          ephemeralMessagesByDestination.put(delivery.getDestination(),
+              delivery.getMessage().toBuilder().setEphemeral(true).build());
+        }
+      }
+
+      failedDestinations = insert(ephemeralMessagesByDestination);
+    } else {
+      failedDestinations =
+          insert(deliverable.stream().collect(Collectors.toMap(Delivery::getDestination, Delivery::getMessage)));
+
+      // As with single messages, we check for client presence after inserting messages to take a conservative view of
+      // notifications.
+      clientPresent = checkPresence(deliverable, locallyPresent);
+
+      final List<CompletableFuture<Void>> notificationFutures = new ArrayList<>();
+
+      for (int i = 0; i < deliverable.size(); i++) {
+        final Delivery delivery = deliverable.get(i);
+
+        if (!clientPresent.get(i) && !failedDestinations.contains(delivery.getDestination())) {
+          notificationFutures.add(CompletableFuture.runAsync(
+              () -> sendNewMessageNotification(delivery.getAccount(), delivery.getDevice()), notificationExecutor));
+        }
+      }
+
+      if (!notificationFutures.isEmpty()) {
+        final Timer.Sample sample = Timer.start();
+
+        try {
+          CompletableFuture.allOf(notificationFutures.toArray(new CompletableFuture[0])).join();
+        } catch (final CompletionException e) {
+          logger.warn("Failed to send new message notifications", e);
+        } finally {
+          sample.stop(NOTIFY_STAGE_TIMER);
+        }
+      }
+    }
+
+    for (int i = 0; i < deliverable.size(); i++) {
+      final Delivery delivery = deliverable.get(i);
+
+      if (failedDestinations.contains(delivery.getDestination())) {
+        BATCH_DELIVERY_FAILED_COUNTER.increment();
+        continue;
+      }
+
+      // A client that disconnects before it fetches the message will be notified when its connection closes
+      final boolean deliveredLocally = locallyPresent.get(i) && messagesManager.notifyLocalMessageAvailabilityListener(
+          delivery.getAccount().getUuid(), delivery.getDevice().getId());
+
+      final List<Tag> tags = List.of(
+          Tag.of(CHANNEL_TAG_NAME, getChannel(delivery.getDevice()).orElseThrow()),
+          Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
+          Tag.of(CLIENT_ONLINE_TAG_NAME, String.valueOf(clientPresent.get(i))),
+          Tag.of(LOCAL_DELIVERY_TAG_NAME, String.valueOf(deliveredLocally)));
+
+      Metrics.counter(SEND_COUNTER_NAME, tags).increment();
+    }
+
+    if (!failedDestinations.isEmpty()) {
+      logger.warn("Failed to store {} of {} messages in batch", failedDestinations.size(), deliverable.size());
+    }
+
+    return undeliverable;
+  }
+
+  /**
+   * Checks whether each of the given devices is present. Devices known to be connected to this server are taken as
+   * present without asking Redis. If remote presence can't be determined, remote devices are taken as absent so that
+   * they'll be notified of any stored messages.
+   */
+  private List<Boolean> checkPresence(final List<Delivery> deliveries, final List<Boolean> locallyPresent) {
+    final List<Pair<UUID, Long>> remoteDestinations = new ArrayList<>();
+
+    for (int i = 0; i < deliveries.size(); i++) {
+      if (!locallyPresent.get(i)) {
+        remoteDestinations.add(deliveries.get(i).getDestination());
+      }
+    }
+
+    if (remoteDestinations.isEmpty()) {
+      return locallyPresent;
+    }
+
+    List<Boolean> remotePresenceList;
+
+    try {
+      remotePresenceList = PRESENCE_STAGE_TIMER.record(() -> clientPresenceManager.isPresent(remoteDestinations));
+    } catch (final RuntimeException e) {
+      logger.warn("Failed to check presence for batch", e);
+      remotePresenceList = Collections.nCopies(remoteDestinations.size(), false);
+    }
+
+    final Iterator<Boolean> remotePresence = remotePresenceList.iterator();
+
+    return locallyPresent.stream()
+        .map(present -> present || remotePresence.next())
+        .collect(Collectors.toList());
+  }
+
+  private Set<Pair<UUID, Long>> insert(final Map<Pair<UUID, Long>, Envelope> messagesByDestination) {
+    if (messagesByDestination.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    return INSERT_STAGE_TIMER.record(() -> messagesManager.insert(messagesByDestination));
+  }
+
+  private static Timer buildBatchStageTimer(final String stage) {
+    return Timer.builder(BATCH_STAGE_TIMER_NAME)
+        .tag(STAGE_TAG_NAME, stage)
+        .publishPercentileHistogram()
+        .register(Metrics.globalRegistry);
   }
 
+  private static Optional<String> getChannel(final Device device) {
+    if (device.getGcmId() != null) {
+      return Optional.of("gcm");
+    } else if (device.getApnId() != null) {
+      return Optional.of("apn");
+    } else if (device.getFetchesMessages()) {
+      return Optional.of("websocket");
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Sends a push notification prompting the given device to retrieve new messages unless the device has already been
+   * notified within the coalescing window.
+   *
+   * @see PushNotificationCoalescer
+   */
   public void sendNewMessageNotification(final Account account, final Device device) {
     if (!Util.isEmpty(device.getGcmId())) {
-      sendGcmNotification(account, device);
+      if (pushNotificationCoalescer.shouldSendNotification(account.getUuid(), device.getId(), "gcm")) {
+        sendGcmNotification(account, device);
+      }
     } else if (!Util.isEmpty(device.getApnId()) || !Util.isEmpty(device.getVoipApnId())) {
-      sendApnNotification(account, device);
+      if (pushNotificationCoalescer.shouldSendNotification(account.getUuid(), device.getId(), "apn")) {
+        sendApnNotification(account, device);
+      }
     }
   }
 
@@ -142,6 +364,40 @@ public class MessageSender implements Managed {
     RedisOperation.unchecked(() -> pushLatencyManager.recordPushSent(account.getUuid(), device.getId()));
   }
 
+  /**
+   * A message to be sent to a specific device as part of a batch.
+   *
+   * @see #sendMessages(List, boolean, Executor)
+   */
+  public static class Delivery {
+
+    private final Account account;
+    private final Device device;
+    private final Envelope message;
+
+    public Delivery(final Account account, final Device device, final Envelope message) {
+      this.account = account;
+      this.device = device;
+      this.message = message;
+    }
+
+    public Account getAccount() {
+      return account;
+    }
+
+    public Device getDevice() {
+      return device;
+    }
+
+    public Envelope getMessage() {
+      return message;
+    }
+
+    private Pair<UUID, Long> getDestination() {
+      return new Pair<>(account.getUuid(), device.getId());
+    }
+  }
+
   @Override
   public void start() {
     apnSender.start();
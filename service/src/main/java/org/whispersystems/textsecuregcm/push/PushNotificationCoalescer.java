@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.push;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.SetArgs;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import java.time.Duration;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+
+/**
+ * Suppresses duplicate "new message" push notifications to the same device. A burst of messages to a device that isn't
+ * connected would otherwise produce one wake-up notification per message even though the first one is enough to
+ * prompt the device to connect and drain its whole queue.
+ * <p/>
+ * When a notification is about to be sent, the coalescer tries to claim a per-device Redis key that expires after the
+ * coalescing window; if the key already exists, some server has already notified the device within the window and the
+ * notification is suppressed. The key is cleared when the device connects so that messages left in its queue when it
+ * disconnects again will trigger a fresh notification. Redis failures never suppress notifications.
+ */
+public class PushNotificationCoalescer {
+
+  private final FaultTolerantRedisCluster redisCluster;
+  private final Duration window;
+
+  private static final String NOTIFICATION_COUNTER_NAME = name(PushNotificationCoalescer.class, "newMessageNotification");
+  private static final String CHANNEL_TAG_NAME = "channel";
+  private static final String OUTCOME_TAG_NAME = "outcome";
+
+  private static final Logger logger = LoggerFactory.getLogger(PushNotificationCoalescer.class);
+
+  public PushNotificationCoalescer(final FaultTolerantRedisCluster redisCluster, final Duration window) {
+    this.redisCluster = redisCluster;
+    this.window = window;
+  }
+
+  /**
+   * Checks whether a new message notification should be sent to the given device and, if so, records that one has been
+   * sent.
+   *
+   * @param accountUuid the UUID of the account that owns the destination device
+   * @param deviceId the ID of the destination device
+   * @param channel the channel (e.g. "gcm" or "apn") through which the notification would be sent
+   *
+   * @return {@code true} if the notification should be sent or {@code false} if it should be suppressed because the
+   * device has already been notified within the coalescing window
+   */
+  public boolean shouldSendNotification(final UUID accountUuid, final long deviceId, final String channel) {
+    boolean shouldSend = true;
+
+    if (!window.isZero() && !window.isNegative()) {
+      try {
+        shouldSend = "OK".equals(redisCluster.withCluster(connection -> connection.sync()
+            .set(getCoalescingKey(accountUuid, deviceId), "1", SetArgs.Builder.nx().px(window.toMillis()))));
+      } catch (final RedisException e) {
+        logger.warn("Failed to check notification coalescing state", e);
+      }
+    }
+
+    Metrics.counter(NOTIFICATION_COUNTER_NAME,
+        Tags.of(CHANNEL_TAG_NAME, channel, OUTCOME_TAG_NAME, shouldSend ? "sent" : "suppressed")).increment();
+
+    return shouldSend;
+  }
+
+  /**
+   * Clears coalescing state for the given device so the next new message notification will be sent immediately.
+   */
+  public void clear(final UUID accountUuid, final long deviceId) {
+    redisCluster.useCluster(connection -> connection.async().del(getCoalescingKey(accountUuid, deviceId)));
+  }
+
+  private static String getCoalescingKey(final UUID accountUuid, final long deviceId) {
+    return "push_coalesce::" + accountUuid.toString() + "::" + deviceId;
+  }
+}
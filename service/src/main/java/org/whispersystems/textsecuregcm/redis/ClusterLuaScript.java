@@ -15,6 +15,9 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -79,6 +82,16 @@ public class ClusterLuaScript {
         execute(connection, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY)));
   }
 
+  public CompletableFuture<Object> executeAsync(final List<String> keys, final List<String> args) {
+    return redisCluster.withClusterAsync(connection ->
+        executeAsync(connection, keys.toArray(STRING_ARRAY), args.toArray(STRING_ARRAY)));
+  }
+
+  public CompletableFuture<Object> executeBinaryAsync(final List<byte[]> keys, final List<byte[]> args) {
+    return redisCluster.withBinaryClusterAsync(connection ->
+        executeAsync(connection, keys.toArray(BYTE_ARRAY_ARRAY), args.toArray(BYTE_ARRAY_ARRAY)));
+  }
+
   private <T> Object execute(final StatefulRedisClusterConnection<T, T> connection, final T[] keys, final T[] args) {
     try {
       try {
@@ -91,4 +104,32 @@ public class ClusterLuaScript {
       throw e;
     }
   }
+
+  private <T> CompletionStage<Object> executeAsync(final StatefulRedisClusterConnection<T, T> connection,
+      final T[] keys,
+      final T[] args) {
+
+    return connection.async().<Object>evalsha(sha, scriptOutputType, keys, args)
+        .<CompletionStage<Object>>handle((result, cause) -> {
+          if (cause == null) {
+            return CompletableFuture.completedFuture(result);
+          }
+
+          final Throwable unwrapped = cause instanceof CompletionException && cause.getCause() != null
+              ? cause.getCause()
+              : cause;
+
+          if (unwrapped instanceof RedisNoScriptException) {
+            return connection.async().<Object>eval(script, scriptOutputType, keys, args);
+          }
+
+          return CompletableFuture.failedFuture(unwrapped);
+        })
+        .thenCompose(stage -> stage)
+        .whenComplete((ignored, cause) -> {
+          if (cause != null) {
+            log.warn("Failed to execute script", cause);
+          }
+        });
+  }
 }
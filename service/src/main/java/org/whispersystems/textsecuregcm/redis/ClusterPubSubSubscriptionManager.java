@@ -0,0 +1,306 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.redis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages subscriptions to pub/sub channels that belong to a specific cluster slot, like keyspace notification
+ * channels. Each channel must contain a hash tag; the manager subscribes to the channel on the upstream node that
+ * serves the hash tag's slot.
+ * <p/>
+ * Callers declare which channels they want, and the manager reconciles that against the subscriptions it actually
+ * holds. Changes requested while a previous batch is being sent are gathered into the next batch and sent as a single
+ * {@code SUBSCRIBE} or {@code UNSUBSCRIBE} command per node, so a burst of new subscriptions (like a wave of clients
+ * reconnecting after a deploy) costs a handful of commands rather than one round trip per channel. After a topology
+ * change, {@link #resubscribeAll()} moves only those channels whose slots have changed owners, again in per-node batches.
+ */
+public class ClusterPubSubSubscriptionManager {
+
+  private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
+  private final String name;
+
+  private final Set<String> desiredChannels = ConcurrentHashMap.newKeySet();
+  private final Map<String, Subscription> subscriptionsByChannel = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> subscriptionCountsByNodeId = new ConcurrentHashMap<>();
+
+  private final Queue<PendingChange> pendingChanges = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+  private static final String SUBSCRIPTIONS_GAUGE_NAME = name(ClusterPubSubSubscriptionManager.class, "subscriptions");
+  private static final String SUBSCRIBE_TIMER_NAME = name(ClusterPubSubSubscriptionManager.class, "subscribe");
+  private static final String BATCH_SIZE_DISTRIBUTION_NAME = name(ClusterPubSubSubscriptionManager.class, "batchSize");
+
+  private static final String NAME_TAG = "name";
+  private static final String NODE_TAG = "node";
+
+  private static final Logger logger = LoggerFactory.getLogger(ClusterPubSubSubscriptionManager.class);
+
+  private static class Subscription {
+
+    private final String nodeId;
+    private final CompletableFuture<Void> acknowledged;
+
+    private Subscription(final String nodeId, final CompletableFuture<Void> acknowledged) {
+      this.nodeId = nodeId;
+      this.acknowledged = acknowledged;
+    }
+  }
+
+  private static class PendingChange {
+
+    private final String[] channels;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private PendingChange(final String[] channels) {
+      this.channels = channels;
+    }
+  }
+
+  /**
+   * @param pubSubConnection the connection through which to subscribe; callers are responsible for adding listeners
+   * @param name a name for this manager's metrics
+   */
+  public ClusterPubSubSubscriptionManager(final FaultTolerantPubSubConnection<String, String> pubSubConnection,
+      final String name) {
+
+    this.pubSubConnection = pubSubConnection;
+    this.name = name;
+  }
+
+  /**
+   * Subscribes to the given channels.
+   *
+   * @return a future that completes when the owning nodes have acknowledged subscriptions to all of the given channels
+   */
+  public CompletableFuture<Void> subscribe(final String... channels) {
+    for (final String channel : channels) {
+      desiredChannels.add(channel);
+    }
+
+    return enqueue(channels);
+  }
+
+  /**
+   * Unsubscribes from the given channels. Unsubscription happens in the background, and subscribers may continue to
+   * receive messages from the given channels for a short time.
+   */
+  public void unsubscribe(final String... channels) {
+    for (final String channel : channels) {
+      desiredChannels.remove(channel);
+    }
+
+    enqueue(channels);
+  }
+
+  /**
+   * Moves any subscriptions whose slots are now served by a different node than the one on which they were
+   * established.
+   *
+   * @return a future that completes when all subscriptions have been acknowledged by their current owners
+   */
+  public CompletableFuture<Void> resubscribeAll() {
+    return enqueue(desiredChannels.toArray(new String[0]));
+  }
+
+  public int getSubscriptionCount() {
+    return subscriptionsByChannel.size();
+  }
+
+  private CompletableFuture<Void> enqueue(final String[] channels) {
+    final PendingChange pendingChange = new PendingChange(channels);
+
+    pendingChanges.add(pendingChange);
+    flushPendingChanges();
+
+    return pendingChange.future;
+  }
+
+  private void flushPendingChanges() {
+    // Whichever caller gets here first sends every change queued so far (including other callers' changes); callers
+    // that arrive while a batch is being sent leave their changes for the next batch.
+    while (!pendingChanges.isEmpty() && flushing.compareAndSet(false, true)) {
+      final List<PendingChange> batch = new ArrayList<>();
+
+      try {
+        PendingChange pendingChange;
+
+        while ((pendingChange = pendingChanges.poll()) != null) {
+          batch.add(pendingChange);
+        }
+
+        pubSubConnection.usePubSubConnection(connection -> sendBatch(connection, batch));
+      } catch (final RedisException e) {
+        logger.warn("Failed to update subscriptions", e);
+        batch.forEach(change -> change.future.completeExceptionally(e));
+      } finally {
+        flushing.set(false);
+      }
+    }
+  }
+
+  private void sendBatch(final StatefulRedisClusterPubSubConnection<String, String> connection,
+      final List<PendingChange> batch) {
+
+    final Partitions partitions = connection.getPartitions();
+
+    final Map<String, List<String>> subscribeChannelsByNodeId = new HashMap<>();
+    final Map<String, List<String>> unsubscribeChannelsByNodeId = new HashMap<>();
+    final Map<String, CompletableFuture<Void>> acknowledgementsByNodeId = new HashMap<>();
+
+    for (final PendingChange change : batch) {
+      for (final String channel : change.channels) {
+        final Subscription current = subscriptionsByChannel.get(channel);
+        final String currentNodeId = current != null ? current.nodeId : null;
+        final String ownerNodeId;
+
+        if (desiredChannels.contains(channel)) {
+          final RedisClusterNode owner = partitions.getPartitionBySlot(SlotHash.getSlot(channel));
+
+          if (owner == null) {
+            logger.warn("No node serves the slot for channel {}", channel);
+            continue;
+          }
+
+          ownerNodeId = owner.getNodeId();
+        } else {
+          ownerNodeId = null;
+        }
+
+        if (currentNodeId != null && currentNodeId.equals(ownerNodeId)) {
+          continue;
+        }
+
+        if (currentNodeId != null) {
+          subscriptionsByChannel.remove(channel);
+          getSubscriptionCount(currentNodeId, partitions).decrementAndGet();
+
+          unsubscribeChannelsByNodeId.computeIfAbsent(currentNodeId, ignored -> new ArrayList<>()).add(channel);
+        }
+
+        if (ownerNodeId != null) {
+          subscriptionsByChannel.put(channel, new Subscription(ownerNodeId,
+              acknowledgementsByNodeId.computeIfAbsent(ownerNodeId, ignored -> new CompletableFuture<>())));
+          getSubscriptionCount(ownerNodeId, partitions).incrementAndGet();
+
+          subscribeChannelsByNodeId.computeIfAbsent(ownerNodeId, ignored -> new ArrayList<>()).add(channel);
+        }
+      }
+    }
+
+    unsubscribeChannelsByNodeId.forEach((nodeId, channels) -> {
+      if (partitions.getPartitionByNodeId(nodeId) == null) {
+        // The node has left the cluster, and its subscriptions went with it
+        return;
+      }
+
+      try {
+        connection.getConnection(nodeId).async().unsubscribe(channels.toArray(new String[0]))
+            .whenComplete((ignored, cause) -> {
+              if (cause != null) {
+                logger.warn("Failed to unsubscribe from {} channels", channels.size(), cause);
+              }
+            });
+      } catch (final RedisException e) {
+        logger.warn("Failed to unsubscribe from {} channels", channels.size(), e);
+      }
+    });
+
+    subscribeChannelsByNodeId.forEach((nodeId, channels) -> {
+      final CompletableFuture<Void> acknowledged = acknowledgementsByNodeId.get(nodeId);
+      final Tags tags = Tags.of(NAME_TAG, name, NODE_TAG, getNodeAddress(partitions.getPartitionByNodeId(nodeId)));
+      final Timer.Sample sample = Timer.start();
+
+      Metrics.summary(BATCH_SIZE_DISTRIBUTION_NAME, tags).record(channels.size());
+
+      try {
+        connection.getConnection(nodeId).async().subscribe(channels.toArray(new String[0]))
+            .whenComplete((ignored, cause) -> {
+              sample.stop(Metrics.timer(SUBSCRIBE_TIMER_NAME, tags));
+
+              if (cause == null) {
+                acknowledged.complete(null);
+              } else {
+                handleSubscribeFailure(nodeId, channels, acknowledged, cause);
+              }
+            });
+      } catch (final RedisException e) {
+        handleSubscribeFailure(nodeId, channels, acknowledged, e);
+      }
+    });
+
+    for (final PendingChange change : batch) {
+      final List<CompletableFuture<Void>> acknowledgements = new ArrayList<>(change.channels.length);
+
+      for (final String channel : change.channels) {
+        final Subscription subscription = desiredChannels.contains(channel) ? subscriptionsByChannel.get(channel) : null;
+
+        if (subscription != null) {
+          acknowledgements.add(subscription.acknowledged);
+        }
+      }
+
+      CompletableFuture.allOf(acknowledgements.toArray(new CompletableFuture[0])).whenComplete((ignored, cause) -> {
+        if (cause == null) {
+          change.future.complete(null);
+        } else {
+          change.future.completeExceptionally(cause);
+        }
+      });
+    }
+  }
+
+  private void handleSubscribeFailure(final String nodeId, final List<String> channels,
+      final CompletableFuture<Void> acknowledged, final Throwable cause) {
+
+    logger.warn("Failed to subscribe to {} channels", channels.size(), cause);
+
+    for (final String channel : channels) {
+      final Subscription subscription = subscriptionsByChannel.get(channel);
+
+      // Forget failed subscriptions so the next change or topology event for these channels tries again
+      if (subscription != null && subscription.acknowledged == acknowledged
+          && subscriptionsByChannel.remove(channel, subscription)) {
+
+        subscriptionCountsByNodeId.get(nodeId).decrementAndGet();
+      }
+    }
+
+    acknowledged.completeExceptionally(cause);
+  }
+
+  private AtomicInteger getSubscriptionCount(final String nodeId, final Partitions partitions) {
+    return subscriptionCountsByNodeId.computeIfAbsent(nodeId, ignored -> Metrics.gauge(SUBSCRIPTIONS_GAUGE_NAME,
+        Tags.of(NAME_TAG, name, NODE_TAG, getNodeAddress(partitions.getPartitionByNodeId(nodeId))),
+        new AtomicInteger()));
+  }
+
+  private static String getNodeAddress(final RedisClusterNode node) {
+    return node != null ? node.getUri().getHost() + ":" + node.getUri().getPort() : "unknown";
+  }
+}
@@ -22,6 +22,11 @@ import io.lettuce.core.resource.ClientResources;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import org.whispersystems.textsecuregcm.configuration.CircuitBreakerConfiguration;
@@ -45,8 +50,9 @@ public class FaultTolerantRedisCluster {
 
     private final List<StatefulRedisClusterPubSubConnection<?, ?>> pubSubConnections = new ArrayList<>();
 
-    private final CircuitBreaker circuitBreaker;
-    private final Retry          retry;
+    private final CircuitBreaker           circuitBreaker;
+    private final Retry                    retry;
+    private final ScheduledExecutorService retryExecutor;
 
     public FaultTolerantRedisCluster(final String name, final RedisClusterConfiguration clusterConfiguration, final ClientResources clientResources) {
         this(name,
@@ -75,6 +81,7 @@ public class FaultTolerantRedisCluster {
 
         this.circuitBreaker = CircuitBreaker.of(name + "-breaker", circuitBreakerConfiguration.toCircuitBreakerConfig());
         this.retry          = Retry.of(name + "-retry", retryConfiguration.toRetryConfigBuilder().retryOnException(exception -> exception instanceof RedisCommandTimeoutException).build());
+        this.retryExecutor  = Executors.newSingleThreadScheduledExecutor();
 
         CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), circuitBreaker, FaultTolerantRedisCluster.class);
         CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), retry, FaultTolerantRedisCluster.class);
@@ -89,6 +96,7 @@ public class FaultTolerantRedisCluster {
         }
 
         clusterClient.shutdown();
+        retryExecutor.shutdown();
     }
 
     public String getName() {
@@ -111,6 +119,30 @@ public class FaultTolerantRedisCluster {
         return withConnection(binaryConnection, function);
     }
 
+    /**
+     * Applies the given function to the cluster's string connection without blocking the calling thread. The function
+     * should issue its commands through {@link StatefulRedisClusterConnection#async()} and return the resulting stage.
+     * The returned stage is protected by the same circuit breaker and retry policy as {@link #withCluster(Function)};
+     * retries are scheduled rather than performed on the calling thread.
+     *
+     * @param function a function that issues asynchronous commands against the cluster
+     * @param <T> the type of value produced by the function
+     *
+     * @return a future that completes with the result of the function, or exceptionally with a {@link RedisException}
+     */
+    public <T> CompletableFuture<T> withClusterAsync(final Function<StatefulRedisClusterConnection<String, String>, CompletionStage<T>> function) {
+        return withConnectionAsync(stringConnection, function);
+    }
+
+    /**
+     * Applies the given function to the cluster's binary connection without blocking the calling thread.
+     *
+     * @see #withClusterAsync(Function)
+     */
+    public <T> CompletableFuture<T> withBinaryClusterAsync(final Function<StatefulRedisClusterConnection<byte[], byte[]>, CompletionStage<T>> function) {
+        return withConnectionAsync(binaryConnection, function);
+    }
+
     private <K, V> void useConnection(final StatefulRedisClusterConnection<K, V> connection, final Consumer<StatefulRedisClusterConnection<K, V>> consumer) {
         try {
             circuitBreaker.executeCheckedRunnable(() -> retry.executeRunnable(() -> consumer.accept(connection)));
@@ -135,6 +167,55 @@ public class FaultTolerantRedisCluster {
         }
     }
 
+    private <T, K, V> CompletableFuture<T> withConnectionAsync(final StatefulRedisClusterConnection<K, V> connection, final Function<StatefulRedisClusterConnection<K, V>, CompletionStage<T>> function) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            circuitBreaker.executeCompletionStage(() -> retry.executeCompletionStage(retryExecutor, () -> applyAsync(connection, function)))
+                .whenComplete((result, cause) -> {
+                    if (cause == null) {
+                        future.complete(result);
+                    } else {
+                        final Throwable unwrapped = unwrap(cause);
+                        future.completeExceptionally(unwrapped instanceof RedisException ? unwrapped : new RedisException(unwrapped));
+                    }
+                });
+        } catch (final Throwable t) {
+            future.completeExceptionally(t instanceof RedisException ? t : new RedisException(t));
+        }
+
+        return future;
+    }
+
+    private static <T, K, V> CompletionStage<T> applyAsync(final StatefulRedisClusterConnection<K, V> connection, final Function<StatefulRedisClusterConnection<K, V>, CompletionStage<T>> function) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            // The retry policy inspects the failure itself, so make sure it never sees a CompletionException wrapper
+            function.apply(connection).whenComplete((result, cause) -> {
+                if (cause == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(unwrap(cause));
+                }
+            });
+        } catch (final Throwable t) {
+            future.completeExceptionally(t);
+        }
+
+        return future;
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        Throwable unwrapped = throwable;
+
+        while (unwrapped instanceof CompletionException && unwrapped.getCause() != null) {
+            unwrapped = unwrapped.getCause();
+        }
+
+        return unwrapped;
+    }
+
     public FaultTolerantPubSubConnection<String, String> createPubSubConnection() {
         final StatefulRedisClusterPubSubConnection<String, String> pubSubConnection = clusterClient.connectPubSub();
         pubSubConnections.add(pubSubConnection);
@@ -6,6 +6,8 @@
 package org.whispersystems.textsecuregcm.redis;
 
 import io.lettuce.core.RedisException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,4 +28,27 @@ public class RedisOperation {
       logger.warn("Redis failure", e);
     }
   }
+
+  /**
+   * Waits for the given asynchronous Redis operation to complete and returns its result. Unlike
+   * {@link CompletableFuture#join()}, this method throws any {@link RedisException} that caused the operation to fail
+   * directly rather than wrapping it in a {@link CompletionException}, so callers can handle failures the same way they
+   * would for a synchronous operation.
+   *
+   * @param future the Redis operation for which to wait
+   * @param <T> the type of value produced by the operation
+   *
+   * @return the result of the operation
+   */
+  public static <T> T join(final CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RedisException) {
+        throw (RedisException) e.getCause();
+      }
+
+      throw e;
+    }
+  }
 }
@@ -21,8 +21,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
@@ -33,11 +38,16 @@ public class AbstractDynamoDbStore {
   private final Timer batchWriteItemsFirstPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "true");
   private final Timer batchWriteItemsRetryPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "false");
   private final Counter batchWriteItemsUnprocessed = counter(name(getClass(), "batchWriteItemsUnprocessed"));
+  private final Timer batchGetItemsFirstPass = timer(name(getClass(), "batchGetItems"), "firstAttempt", "true");
+  private final Timer batchGetItemsRetryPass = timer(name(getClass(), "batchGetItems"), "firstAttempt", "false");
+  private final Counter batchGetItemsUnprocessed = counter(name(getClass(), "batchGetItemsUnprocessed"));
 
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
   private static final int MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE = 25;  // This was arbitrarily chosen and may be entirely too high.
+  private static final int MAX_ATTEMPTS_TO_COMPLETE_BATCH_GET = 5;  // Keys still unprocessed after this many attempts are fetched individually.
   public static final int DYNAMO_DB_MAX_BATCH_SIZE = 25;  // This limit comes from Amazon Dynamo DB itself. It will reject batch writes larger than this.
+  public static final int DYNAMO_DB_MAX_BATCH_GET_SIZE = 100;  // This limit also comes from Amazon Dynamo DB itself, but applies to batch reads.
   public static final int RESULT_SET_CHUNK_SIZE = 100;
 
   public AbstractDynamoDbStore(final DynamoDbClient dynamoDbClient) {
@@ -68,6 +78,62 @@ public class AbstractDynamoDbStore {
     }
   }
 
+  /**
+   * Fetches the items with the given keys from the given table, retrying any keys DynamoDB leaves unprocessed. Keys that
+   * remain unprocessed after repeated batch attempts are fetched individually, so the result always reflects every
+   * requested key; keys that do not identify an item are simply absent from the result.
+   *
+   * @param tableName the name of the table from which to fetch items
+   * @param keysAndAttributes the keys (no more than {@link #DYNAMO_DB_MAX_BATCH_GET_SIZE}) and read options for the
+   * items to fetch
+   *
+   * @return the fetched items, in no particular order
+   */
+  protected List<Map<String, AttributeValue>> executeTableGetItemsUntilComplete(final String tableName,
+      final KeysAndAttributes keysAndAttributes) {
+
+    final List<Map<String, AttributeValue>> items = new ArrayList<>();
+    AtomicReference<BatchGetItemResponse> outcome = new AtomicReference<>();
+
+    batchGetItemsFirstPass.record(() -> outcome.set(dynamoDbClient.batchGetItem(BatchGetItemRequest.builder()
+        .requestItems(Map.of(tableName, keysAndAttributes))
+        .build())));
+
+    items.addAll(outcome.get().responses().getOrDefault(tableName, List.of()));
+
+    int attemptCount = 0;
+    while (outcome.get().unprocessedKeys().containsKey(tableName) && attemptCount < MAX_ATTEMPTS_TO_COMPLETE_BATCH_GET) {
+      batchGetItemsRetryPass.record(() -> outcome.set(dynamoDbClient.batchGetItem(BatchGetItemRequest.builder()
+          .requestItems(outcome.get().unprocessedKeys())
+          .build())));
+
+      items.addAll(outcome.get().responses().getOrDefault(tableName, List.of()));
+      ++attemptCount;
+    }
+
+    if (outcome.get().unprocessedKeys().containsKey(tableName)) {
+      final List<Map<String, AttributeValue>> unprocessedKeys = outcome.get().unprocessedKeys().get(tableName).keys();
+
+      logger.warn("Attempt count ({}) reached max ({}) before fetching all batch reads from dynamo. {} unprocessed keys will be fetched individually.",
+          attemptCount, MAX_ATTEMPTS_TO_COMPLETE_BATCH_GET, unprocessedKeys.size());
+      batchGetItemsUnprocessed.increment(unprocessedKeys.size());
+
+      for (final Map<String, AttributeValue> key : unprocessedKeys) {
+        final GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+            .tableName(tableName)
+            .key(key)
+            .consistentRead(keysAndAttributes.consistentRead())
+            .build());
+
+        if (response.hasItem() && !response.item().isEmpty()) {
+          items.add(response.item());
+        }
+      }
+    }
+
+    return items;
+  }
+
   protected List<Map<String, AttributeValue>> scan(ScanRequest scanRequest, int max) {
 
     return db().scanPaginator(scanRequest)
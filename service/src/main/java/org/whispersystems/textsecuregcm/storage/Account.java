@@ -329,6 +329,18 @@ public class Account {
     return new StoredRegistrationLock(Optional.ofNullable(registrationLock), Optional.ofNullable(registrationLockSalt), getLastSeen());
   }
 
+  String getRegistrationLockHash() {
+    requireNotStale();
+
+    return registrationLock;
+  }
+
+  String getRegistrationLockSalt() {
+    requireNotStale();
+
+    return registrationLockSalt;
+  }
+
   public Optional<byte[]> getUnidentifiedAccessKey() {
     requireNotStale();
 
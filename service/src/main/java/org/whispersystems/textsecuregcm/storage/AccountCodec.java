@@ -0,0 +1,377 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicAccountEncodingConfiguration;
+import org.whispersystems.textsecuregcm.entities.SignedPreKey;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+/**
+ * Encodes and decodes accounts in a compact binary format for storage in the account cache and in DynamoDB.
+ * <p/>
+ * Encoded records begin with a format version byte, followed by the account's fields in a fixed order. Integers are
+ * written as unsigned LEB128 varints and strings and byte arrays are written with a varint length prefix (where a
+ * length of zero indicates {@code null} and any other value is one more than the actual length). Records written in
+ * the legacy JSON format always begin with <code>'{'</code>, which is never a valid format version, and are decoded
+ * with the {@link SystemMapper} so that existing records remain readable.
+ * <p/>
+ * Servers that predate the binary format can only read JSON, so accounts written to shared storage are encoded with
+ * {@link #encode(Account, DynamicAccountEncodingConfiguration)}, which writes JSON unless binary writes are enabled via
+ * {@link DynamicAccountEncodingConfiguration}. Binary writes must not be enabled until every server can decode both
+ * formats.
+ * <p/>
+ * As with the JSON format, an account's UUID is not part of the encoded record and must be set by the caller.
+ */
+public final class AccountCodec {
+
+  static final byte FORMAT_VERSION = 1;
+
+  private static final byte JSON_OBJECT_START = '{';
+
+  private static final int ACCOUNT_FLAG_UNRESTRICTED_UNIDENTIFIED_ACCESS = 1;
+  private static final int ACCOUNT_FLAG_DISCOVERABLE_BY_PHONE_NUMBER = 1 << 1;
+
+  private static final int DEVICE_FLAG_FETCHES_MESSAGES = 1;
+  private static final int DEVICE_FLAG_HAS_SIGNED_PRE_KEY = 1 << 1;
+  private static final int DEVICE_FLAG_HAS_CAPABILITIES = 1 << 2;
+
+  private static final int CAPABILITY_GV2 = 1;
+  private static final int CAPABILITY_GV2_2 = 1 << 1;
+  private static final int CAPABILITY_GV2_3 = 1 << 2;
+  private static final int CAPABILITY_STORAGE = 1 << 3;
+  private static final int CAPABILITY_TRANSFER = 1 << 4;
+  private static final int CAPABILITY_GV1_MIGRATION = 1 << 5;
+  private static final int CAPABILITY_SENDER_KEY = 1 << 6;
+  private static final int CAPABILITY_ANNOUNCEMENT_GROUP = 1 << 7;
+  private static final int CAPABILITY_CHANGE_NUMBER = 1 << 8;
+
+  private AccountCodec() {
+  }
+
+  public static byte[] encode(final Account account) {
+    final Writer writer = new Writer();
+
+    writer.writeByte(FORMAT_VERSION);
+    writer.writeString(account.getNumber());
+    writer.writeString(account.getIdentityKey());
+    writer.writeString(account.getCurrentProfileVersion().orElse(null));
+    writer.writeString(account.getProfileName());
+    writer.writeString(account.getAvatar());
+    writer.writeString(account.getRegistrationLockHash());
+    writer.writeString(account.getRegistrationLockSalt());
+    writer.writeBytes(account.getUnidentifiedAccessKey().orElse(null));
+    writer.writeVarLong((account.isUnrestrictedUnidentifiedAccess() ? ACCOUNT_FLAG_UNRESTRICTED_UNIDENTIFIED_ACCESS : 0)
+        | (account.isDiscoverableByPhoneNumber() ? ACCOUNT_FLAG_DISCOVERABLE_BY_PHONE_NUMBER : 0));
+    writer.writeVarLong(account.getVersion());
+
+    writer.writeVarLong(account.getDevices().size());
+
+    for (final Device device : account.getDevices()) {
+      writeDevice(writer, device);
+    }
+
+    return writer.toByteArray();
+  }
+
+  /**
+   * Encodes an account for shared storage in whichever format the given configuration calls for. Every writer to shared
+   * storage should go through this method so that the account cache and DynamoDB always switch formats together.
+   */
+  public static byte[] encode(final Account account, final DynamicAccountEncodingConfiguration encodingConfiguration) {
+    return encodingConfiguration.isBinaryWritesEnabled() ? encode(account) : encodeJson(account);
+  }
+
+  /**
+   * Encodes an account in the legacy JSON format, which servers that predate the binary format can also read.
+   */
+  public static byte[] encodeJson(final Account account) {
+    try {
+      return SystemMapper.getMapper().writeValueAsBytes(account);
+    } catch (final JsonProcessingException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Decodes an account from either the binary format or the legacy JSON format.
+   *
+   * @throws IOException if the given bytes are not a valid account record in either format
+   */
+  public static Account decode(final byte[] bytes) throws IOException {
+    if (bytes.length > 0 && bytes[0] == JSON_OBJECT_START) {
+      return SystemMapper.getMapper().readValue(bytes, Account.class);
+    }
+
+    final Reader reader = new Reader(bytes);
+    final byte formatVersion = reader.readByte();
+
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported account format version: " + formatVersion);
+    }
+
+    final Account account = new Account();
+
+    account.setNumber(reader.readString());
+    account.setIdentityKey(reader.readString());
+    account.setCurrentProfileVersion(reader.readString());
+    account.setProfileName(reader.readString());
+    account.setAvatar(reader.readString());
+    account.setRegistrationLock(reader.readString(), reader.readString());
+    account.setUnidentifiedAccessKey(reader.readBytes());
+
+    final long flags = reader.readVarLong();
+    account.setUnrestrictedUnidentifiedAccess((flags & ACCOUNT_FLAG_UNRESTRICTED_UNIDENTIFIED_ACCESS) != 0);
+    account.setDiscoverableByPhoneNumber((flags & ACCOUNT_FLAG_DISCOVERABLE_BY_PHONE_NUMBER) != 0);
+    account.setVersion((int) reader.readVarLong());
+
+    final long deviceCount = reader.readVarLong();
+
+    for (long i = 0; i < deviceCount; i++) {
+      account.addDevice(readDevice(reader));
+    }
+
+    if (reader.hasRemaining()) {
+      throw new IOException("Unexpected trailing bytes in account record");
+    }
+
+    return account;
+  }
+
+  /**
+   * Returns a deep copy of the given account, including its UUID.
+   */
+  public static Account copy(final Account account) {
+    try {
+      final Account copy = decode(encode(account));
+      copy.setUuid(account.getUuid());
+
+      return copy;
+    } catch (final IOException e) {
+      // We just encoded this record ourselves, so this should never happen
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void writeDevice(final Writer writer, final Device device) {
+    final AuthenticationCredentials credentials = device.getAuthenticationCredentials();
+    final SignedPreKey signedPreKey = device.getSignedPreKey();
+    final Device.DeviceCapabilities capabilities = device.getCapabilities();
+
+    writer.writeVarLong(device.getId());
+    writer.writeString(device.getName());
+    writer.writeString(credentials.getHashedAuthenticationToken());
+    writer.writeString(credentials.getSalt());
+    writer.writeString(device.getGcmId());
+    writer.writeString(device.getApnId());
+    writer.writeString(device.getVoipApnId());
+    writer.writeVarLong(device.getPushTimestamp());
+    writer.writeVarLong(device.getUninstalledFeedbackTimestamp());
+    writer.writeVarLong(device.getRegistrationId());
+    writer.writeVarLong(device.getLastSeen());
+    writer.writeVarLong(device.getCreated());
+    writer.writeString(device.getUserAgent());
+    writer.writeVarLong((device.getFetchesMessages() ? DEVICE_FLAG_FETCHES_MESSAGES : 0)
+        | (signedPreKey != null ? DEVICE_FLAG_HAS_SIGNED_PRE_KEY : 0)
+        | (capabilities != null ? DEVICE_FLAG_HAS_CAPABILITIES : 0));
+
+    if (signedPreKey != null) {
+      writer.writeVarLong(signedPreKey.getKeyId());
+      writer.writeString(signedPreKey.getPublicKey());
+      writer.writeString(signedPreKey.getSignature());
+    }
+
+    if (capabilities != null) {
+      writer.writeVarLong((capabilities.isGv2() ? CAPABILITY_GV2 : 0)
+          | (capabilities.isGv2_2() ? CAPABILITY_GV2_2 : 0)
+          | (capabilities.isGv2_3() ? CAPABILITY_GV2_3 : 0)
+          | (capabilities.isStorage() ? CAPABILITY_STORAGE : 0)
+          | (capabilities.isTransfer() ? CAPABILITY_TRANSFER : 0)
+          | (capabilities.isGv1Migration() ? CAPABILITY_GV1_MIGRATION : 0)
+          | (capabilities.isSenderKey() ? CAPABILITY_SENDER_KEY : 0)
+          | (capabilities.isAnnouncementGroup() ? CAPABILITY_ANNOUNCEMENT_GROUP : 0)
+          | (capabilities.isChangeNumber() ? CAPABILITY_CHANGE_NUMBER : 0));
+    }
+  }
+
+  private static Device readDevice(final Reader reader) throws IOException {
+    final long id = reader.readVarLong();
+    final String name = reader.readString();
+    final String authToken = reader.readString();
+    final String salt = reader.readString();
+    final String gcmId = reader.readString();
+    final String apnId = reader.readString();
+    final String voipApnId = reader.readString();
+    final long pushTimestamp = reader.readVarLong();
+    final long uninstalledFeedback = reader.readVarLong();
+    final int registrationId = (int) reader.readVarLong();
+    final long lastSeen = reader.readVarLong();
+    final long created = reader.readVarLong();
+    final String userAgent = reader.readString();
+    final long flags = reader.readVarLong();
+
+    final SignedPreKey signedPreKey;
+
+    if ((flags & DEVICE_FLAG_HAS_SIGNED_PRE_KEY) != 0) {
+      signedPreKey = new SignedPreKey(reader.readVarLong(), reader.readString(), reader.readString());
+    } else {
+      signedPreKey = null;
+    }
+
+    final Device.DeviceCapabilities capabilities;
+
+    if ((flags & DEVICE_FLAG_HAS_CAPABILITIES) != 0) {
+      final long capabilityFlags = reader.readVarLong();
+
+      capabilities = new Device.DeviceCapabilities(
+          (capabilityFlags & CAPABILITY_GV2) != 0,
+          (capabilityFlags & CAPABILITY_GV2_2) != 0,
+          (capabilityFlags & CAPABILITY_GV2_3) != 0,
+          (capabilityFlags & CAPABILITY_STORAGE) != 0,
+          (capabilityFlags & CAPABILITY_TRANSFER) != 0,
+          (capabilityFlags & CAPABILITY_GV1_MIGRATION) != 0,
+          (capabilityFlags & CAPABILITY_SENDER_KEY) != 0,
+          (capabilityFlags & CAPABILITY_ANNOUNCEMENT_GROUP) != 0,
+          (capabilityFlags & CAPABILITY_CHANGE_NUMBER) != 0);
+    } else {
+      capabilities = null;
+    }
+
+    final Device device = new Device(id, name, authToken, salt, gcmId, apnId, voipApnId,
+        (flags & DEVICE_FLAG_FETCHES_MESSAGES) != 0, registrationId, signedPreKey, lastSeen, created, userAgent,
+        uninstalledFeedback, capabilities);
+
+    device.setPushTimestamp(pushTimestamp);
+
+    return device;
+  }
+
+  private static class Writer {
+
+    private byte[] buffer = new byte[512];
+    private int position = 0;
+
+    private void ensureCapacity(final int additionalBytes) {
+      if (position + additionalBytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additionalBytes));
+      }
+    }
+
+    void writeByte(final byte b) {
+      ensureCapacity(1);
+      buffer[position++] = b;
+    }
+
+    void writeVarLong(long value) {
+      ensureCapacity(10);
+
+      while ((value & ~0x7FL) != 0) {
+        buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+
+      buffer[position++] = (byte) value;
+    }
+
+    void writeBytes(@Nullable final byte[] bytes) {
+      if (bytes == null) {
+        writeVarLong(0);
+      } else {
+        writeVarLong(bytes.length + 1L);
+        ensureCapacity(bytes.length);
+
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+      }
+    }
+
+    void writeString(@Nullable final String string) {
+      writeBytes(string != null ? string.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, position);
+    }
+  }
+
+  private static class Reader {
+
+    private final byte[] buffer;
+    private int position = 0;
+
+    Reader(final byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    private void require(final long bytes) throws IOException {
+      if (bytes < 0 || bytes > buffer.length - position) {
+        throw new IOException("Truncated account record");
+      }
+    }
+
+    boolean hasRemaining() {
+      return position < buffer.length;
+    }
+
+    byte readByte() throws IOException {
+      require(1);
+      return buffer[position++];
+    }
+
+    long readVarLong() throws IOException {
+      long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        final byte b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+
+      throw new IOException("Malformed varint in account record");
+    }
+
+    @Nullable
+    byte[] readBytes() throws IOException {
+      final long lengthPlusOne = readVarLong();
+
+      if (lengthPlusOne == 0) {
+        return null;
+      }
+
+      require(lengthPlusOne - 1);
+
+      final byte[] bytes = Arrays.copyOfRange(buffer, position, position + (int) (lengthPlusOne - 1));
+      position += bytes.length;
+
+      return bytes;
+    }
+
+    @Nullable
+    String readString() throws IOException {
+      final long lengthPlusOne = readVarLong();
+
+      if (lengthPlusOne == 0) {
+        return null;
+      }
+
+      require(lengthPlusOne - 1);
+
+      final int length = (int) (lengthPlusOne - 1);
+      final String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+
+      return string;
+    }
+  }
+}
@@ -11,10 +11,14 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Clock;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.util.Constants;
@@ -31,15 +35,25 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
   private static final Timer processChunkTimer = metricRegistry.timer(
       name(AccountDatabaseCrawler.class, "processChunk"));
 
+  private static final String PROCESSED_ACCOUNTS_COUNTER_NAME = name(AccountDatabaseCrawler.class, "processedAccounts");
+  private static final String COMPLETED_SEGMENTS_COUNTER_NAME = name(AccountDatabaseCrawler.class, "completedSegments");
+  private static final String ESTIMATED_SECONDS_REMAINING_GAUGE_NAME = name(AccountDatabaseCrawler.class, "estimatedSecondsRemaining");
+  private static final String CRAWL_PROGRESS_GAUGE_NAME = name(AccountDatabaseCrawler.class, "crawlProgressPercent");
+
   private static final long WORKER_TTL_MS = 120_000L;
   private static final long ACCELERATED_CHUNK_INTERVAL = 10L;
 
   private final AccountsManager accounts;
   private final int chunkSize;
   private final long chunkIntervalMs;
+  private final int totalSegments;
   private final String workerId;
   private final AccountDatabaseCrawlerCache cache;
   private final List<AccountDatabaseCrawlerListener> listeners;
+  private final Clock clock;
+
+  private final AtomicLong estimatedSecondsRemaining = new AtomicLong();
+  private final AtomicLong crawlProgressPercent = new AtomicLong();
 
   private AtomicBoolean running = new AtomicBoolean(false);
   private boolean finished;
@@ -49,13 +63,33 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
       List<AccountDatabaseCrawlerListener> listeners,
       int chunkSize,
       long chunkIntervalMs) {
+    this(accounts, cache, listeners, chunkSize, chunkIntervalMs, 1, Clock.systemUTC());
+  }
+
+  /**
+   * Creates a crawler that divides the accounts table into {@code totalSegments} parallel scan segments. With more than
+   * one segment, each crawler instance in the fleet claims whichever segment is free for each chunk, so up to
+   * {@code totalSegments} instances can crawl at the same time; listeners receive {@code onCrawlStart} from the
+   * instance that starts a crawl and {@code onCrawlEnd} from the instance that finishes its last segment.
+   */
+  public AccountDatabaseCrawler(AccountsManager accounts,
+      AccountDatabaseCrawlerCache cache,
+      List<AccountDatabaseCrawlerListener> listeners,
+      int chunkSize,
+      long chunkIntervalMs,
+      int totalSegments,
+      Clock clock) {
     this.accounts = accounts;
     this.chunkSize = chunkSize;
     this.chunkIntervalMs = chunkIntervalMs;
+    this.totalSegments = totalSegments;
     this.workerId = UUID.randomUUID().toString();
     this.cache = cache;
     this.listeners = listeners;
+    this.clock = clock;
 
+    Metrics.gauge(ESTIMATED_SECONDS_REMAINING_GAUGE_NAME, estimatedSecondsRemaining);
+    Metrics.gauge(CRAWL_PROGRESS_GAUGE_NAME, crawlProgressPercent);
   }
 
   @Override
@@ -95,6 +129,10 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
 
   @VisibleForTesting
   public boolean doPeriodicWork() {
+    if (totalSegments > 1) {
+      return doSegmentedWork();
+    }
+
     if (cache.claimActiveWork(workerId, WORKER_TTL_MS)) {
 
       try {
@@ -149,6 +187,133 @@ public class AccountDatabaseCrawler implements Managed, Runnable {
     }
   }
 
+  private boolean doSegmentedWork() {
+    final AccountDatabaseCrawlerCache.SegmentedCrawlState initialState = cache.getSegmentedCrawlState();
+
+    // Start from a random segment so that workers spread themselves across segments rather than racing for the first
+    final int offset = ThreadLocalRandom.current().nextInt(totalSegments);
+
+    for (int i = 0; i < totalSegments; i++) {
+      final int segment = (offset + i) % totalSegments;
+
+      if (initialState.isComplete(segment) || !cache.claimSegment(segment, workerId, WORKER_TTL_MS)) {
+        continue;
+      }
+
+      try {
+        final long startTimeMs = clock.millis();
+
+        if (!processSegmentChunk(segment)) {
+          // Another worker completed this segment between our first look at the crawl state and our claim
+          continue;
+        }
+
+        if (cache.isAccelerated()) {
+          return true;
+        }
+
+        final long sleepIntervalMs = chunkIntervalMs - (clock.millis() - startTimeMs);
+        if (sleepIntervalMs > 0) {
+          logger.debug("Sleeping {}ms", sleepIntervalMs);
+          sleepWhileRunning(sleepIntervalMs);
+        }
+
+        return false;
+      } finally {
+        cache.releaseSegment(segment, workerId);
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Processes the next chunk of a claimed segment.
+   *
+   * @return {@code false} if the segment was already complete and no work was done
+   */
+  private boolean processSegmentChunk(final int segment) {
+    try (Timer.Context timer = processChunkTimer.time()) {
+      AccountDatabaseCrawlerCache.SegmentedCrawlState state = cache.getSegmentedCrawlState();
+
+      if (state.getGeneration().isEmpty()) {
+        if (cache.startSegmentedCrawl(clock.millis(), accounts.getApproximateAccountCount())) {
+          logger.info("Started segmented crawl with {} segments", totalSegments);
+          listeners.forEach(AccountDatabaseCrawlerListener::onCrawlStart);
+        }
+
+        state = cache.getSegmentedCrawlState();
+      }
+
+      final String generation = state.getGeneration().orElseThrow();
+
+      if (state.isComplete(segment)) {
+        return false;
+      }
+
+      final Optional<UUID> fromUuid = state.getCursor(segment);
+      final AccountCrawlChunk chunkAccounts;
+
+      try (Timer.Context readTimer = readChunkTimer.time()) {
+        chunkAccounts = accounts.getAllFromDynamo(fromUuid, chunkSize, segment, totalSegments);
+      }
+
+      if (chunkAccounts.getAccounts().isEmpty()) {
+        logger.info("Finished segment {} of {} after {} accounts", segment, totalSegments, state.getProcessed(segment));
+        Metrics.counter(COMPLETED_SEGMENTS_COUNTER_NAME).increment();
+
+        if (cache.completeSegment(generation, segment, totalSegments)) {
+          logger.info("Finished segmented crawl");
+          listeners.forEach(listener -> listener.onCrawlEnd(fromUuid));
+          cache.setAccelerated(false);
+        }
+      } else {
+        logger.debug("Processing chunk for segment {}", segment);
+        try {
+          for (AccountDatabaseCrawlerListener listener : listeners) {
+            listener.timeAndProcessCrawlChunk(fromUuid, chunkAccounts.getAccounts());
+          }
+
+          if (cache.advanceSegment(generation, segment, chunkAccounts.getLastUuid().orElseThrow(),
+              chunkAccounts.getAccounts().size())) {
+
+            Metrics.counter(PROCESSED_ACCOUNTS_COUNTER_NAME, "segment", String.valueOf(segment))
+                .increment(chunkAccounts.getAccounts().size());
+
+            updateProgress(cache.getSegmentedCrawlState());
+          }
+        } catch (AccountDatabaseCrawlerRestartException e) {
+          cache.clearSegmentedCrawl();
+          cache.setAccelerated(false);
+        }
+      }
+
+      return true;
+    }
+  }
+
+  @VisibleForTesting
+  void updateProgress(final AccountDatabaseCrawlerCache.SegmentedCrawlState state) {
+    if (state.getGeneration().isEmpty() || state.getEstimatedTotal() <= 0) {
+      return;
+    }
+
+    final long processed = state.getTotalProcessed();
+    final long elapsedMs = clock.millis() - state.getStartTimeMs();
+
+    crawlProgressPercent.set(Math.min(100, processed * 100 / state.getEstimatedTotal()));
+
+    if (processed > 0 && elapsedMs > 0) {
+      final long remaining = Math.max(0, state.getEstimatedTotal() - processed);
+      estimatedSecondsRemaining.set(remaining * elapsedMs / processed / 1000);
+    }
+  }
+
+  @VisibleForTesting
+  long getEstimatedSecondsRemaining() {
+    return estimatedSecondsRemaining.get();
+  }
+
   private AccountCrawlChunk readChunk(Optional<UUID> fromUuid, int chunkSize) {
     return readChunk(fromUuid, chunkSize, readChunkTimer);
   }
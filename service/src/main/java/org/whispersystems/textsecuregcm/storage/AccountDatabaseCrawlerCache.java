@@ -4,10 +4,12 @@
  */
 package org.whispersystems.textsecuregcm.storage;
 
+import com.google.common.annotations.VisibleForTesting;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.SetArgs;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
@@ -22,15 +24,31 @@ public class AccountDatabaseCrawlerCache {
 
   private static final String LAST_UUID_DYNAMO_KEY = "account_database_crawler_cache_last_uuid_dynamo";
 
+  // All segmented crawl state shares a hash slot so the segment scripts can see every segment at once
+  private static final String SEGMENT_WORKER_KEY_PREFIX = "account_database_crawler_cache_segment_worker::{account_database_crawler_segments}::";
+  private static final String SEGMENT_STATE_KEY = "account_database_crawler_cache_segment_state::{account_database_crawler_segments}";
+
+  private static final String STARTED_FIELD = "started";
+  private static final String ESTIMATED_TOTAL_FIELD = "estimatedTotal";
+  private static final String CURSOR_FIELD_PREFIX = "cursor:";
+  private static final String PROCESSED_FIELD_PREFIX = "processed:";
+  private static final String COMPLETE_FIELD_PREFIX = "complete:";
+
   private static final long LAST_NUMBER_TTL_MS = 86400_000L;
 
   private final FaultTolerantRedisCluster cacheCluster;
   private final ClusterLuaScript unlockClusterScript;
+  private final ClusterLuaScript advanceSegmentScript;
+  private final ClusterLuaScript completeSegmentScript;
 
   public AccountDatabaseCrawlerCache(FaultTolerantRedisCluster cacheCluster) throws IOException {
     this.cacheCluster = cacheCluster;
     this.unlockClusterScript = ClusterLuaScript.fromResource(cacheCluster, "lua/account_database_crawler/unlock.lua",
         ScriptOutputType.INTEGER);
+    this.advanceSegmentScript = ClusterLuaScript.fromResource(cacheCluster,
+        "lua/account_database_crawler/advance_segment.lua", ScriptOutputType.INTEGER);
+    this.completeSegmentScript = ClusterLuaScript.fromResource(cacheCluster,
+        "lua/account_database_crawler/complete_segment.lua", ScriptOutputType.INTEGER);
   }
 
   public void setAccelerated(final boolean accelerated) {
@@ -94,4 +112,111 @@ public class AccountDatabaseCrawlerCache {
       cacheCluster.useCluster(connection -> connection.sync().del(LAST_UUID_DYNAMO_KEY));
     }
   }
+
+  public boolean claimSegment(int segment, String workerId, long ttlMs) {
+    return "OK".equals(cacheCluster.withCluster(connection -> connection.sync()
+        .set(SEGMENT_WORKER_KEY_PREFIX + segment, workerId, SetArgs.Builder.nx().px(ttlMs))));
+  }
+
+  public void releaseSegment(int segment, String workerId) {
+    unlockClusterScript.execute(List.of(SEGMENT_WORKER_KEY_PREFIX + segment), List.of(workerId));
+  }
+
+  public SegmentedCrawlState getSegmentedCrawlState() {
+    return new SegmentedCrawlState(cacheCluster.withCluster(connection -> connection.sync().hgetall(SEGMENT_STATE_KEY)));
+  }
+
+  /**
+   * Starts a new segmented crawl if none is in progress.
+   *
+   * @return {@code true} if this call started a new crawl or {@code false} if another worker already had
+   */
+  public boolean startSegmentedCrawl(long startTimeMs, long estimatedTotal) {
+    return cacheCluster.withCluster(connection -> {
+      final boolean started = connection.sync().hsetnx(SEGMENT_STATE_KEY, STARTED_FIELD, String.valueOf(startTimeMs));
+
+      if (started) {
+        connection.sync().hset(SEGMENT_STATE_KEY, ESTIMATED_TOTAL_FIELD, String.valueOf(estimatedTotal));
+        connection.sync().pexpire(SEGMENT_STATE_KEY, LAST_NUMBER_TTL_MS);
+      }
+
+      return started;
+    });
+  }
+
+  /**
+   * Records progress through a segment, unless the crawl identified by {@code generation} has since ended or been
+   * restarted.
+   *
+   * @return {@code true} if the progress was recorded
+   */
+  public boolean advanceSegment(String generation, int segment, UUID lastUuid, int processedCount) {
+    return (long) advanceSegmentScript.execute(List.of(SEGMENT_STATE_KEY),
+        List.of(generation, String.valueOf(segment), lastUuid.toString(), String.valueOf(processedCount),
+            String.valueOf(LAST_NUMBER_TTL_MS))) == 1;
+  }
+
+  /**
+   * Marks a segment as complete and ends the crawl if it was the last incomplete segment.
+   *
+   * @return {@code true} if this call completed the last segment and so ended the crawl
+   */
+  public boolean completeSegment(String generation, int segment, int totalSegments) {
+    return (long) completeSegmentScript.execute(List.of(SEGMENT_STATE_KEY),
+        List.of(generation, String.valueOf(segment), String.valueOf(totalSegments))) == 1;
+  }
+
+  public void clearSegmentedCrawl() {
+    cacheCluster.useCluster(connection -> connection.sync().del(SEGMENT_STATE_KEY));
+  }
+
+  public static class SegmentedCrawlState {
+
+    private final Map<String, String> fields;
+
+    @VisibleForTesting
+    public SegmentedCrawlState(final Map<String, String> fields) {
+      this.fields = fields;
+    }
+
+    /**
+     * Returns an identifier for the crawl in progress, if any; progress may only be recorded against the crawl that was
+     * in progress when it was read.
+     */
+    public Optional<String> getGeneration() {
+      return Optional.ofNullable(fields.get(STARTED_FIELD));
+    }
+
+    public long getStartTimeMs() {
+      return getLong(STARTED_FIELD);
+    }
+
+    public long getEstimatedTotal() {
+      return getLong(ESTIMATED_TOTAL_FIELD);
+    }
+
+    public Optional<UUID> getCursor(int segment) {
+      return Optional.ofNullable(fields.get(CURSOR_FIELD_PREFIX + segment)).map(UUID::fromString);
+    }
+
+    public long getProcessed(int segment) {
+      return getLong(PROCESSED_FIELD_PREFIX + segment);
+    }
+
+    public long getTotalProcessed() {
+      return fields.entrySet().stream()
+          .filter(entry -> entry.getKey().startsWith(PROCESSED_FIELD_PREFIX))
+          .mapToLong(entry -> Long.parseLong(entry.getValue()))
+          .sum();
+    }
+
+    public boolean isComplete(int segment) {
+      return fields.containsKey(COMPLETE_FIELD_PREFIX + segment);
+    }
+
+    private long getLong(final String field) {
+      final String value = fields.get(field);
+      return value == null ? 0 : Long.parseLong(value);
+    }
+  }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantPubSubConnection;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+
+/**
+ * An in-process, size-bounded cache of recently-used accounts that sits in front of the account cache in Redis.
+ * <p/>
+ * Cached accounts are held as encoded snapshots (see {@link AccountCodec}), and every read returns a new copy, so
+ * callers may modify (or mark stale) the accounts they receive without affecting other readers. Whenever an account
+ * is written, the writer
+ * publishes an invalidation to every server via a Redis pub/sub channel. Invalidations carry the version of the
+ * account that was written; servers drop cached snapshots older than that version and refuse to cache older versions
+ * for the lifetime of a cache entry, so a read that races with an update cannot repopulate the cache with stale data.
+ * Entries also expire after a short time, which bounds staleness if an invalidation is lost.
+ * <p/>
+ * The near cache can be turned off at runtime via {@link DynamicConfiguration#getAccountNearCacheConfiguration()};
+ * invalidations are still processed while it is disabled, but reads always miss and nothing is cached.
+ */
+public class AccountNearCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
+
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
+  private final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
+  private final Ticker ticker;
+
+  private final Cache<UUID, CachedAccount> accountsByUuid;
+  private final Cache<UUID, Integer> minimumVersionsByUuid;
+
+  @VisibleForTesting
+  static final String INVALIDATION_CHANNEL = "account_near_cache::invalidations";
+
+  public static final int DEFAULT_MAX_SIZE = 100_000;
+  public static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+
+  private static final String GET_COUNTER_NAME = name(AccountNearCache.class, "get");
+  private static final String EVICTION_COUNTER_NAME = name(AccountNearCache.class, "eviction");
+  private static final String INVALIDATION_COUNTER_NAME = name(AccountNearCache.class, "invalidation");
+
+  private static final Counter HIT_COUNTER = Metrics.counter(GET_COUNTER_NAME, "outcome", "hit");
+  private static final Counter MISS_COUNTER = Metrics.counter(GET_COUNTER_NAME, "outcome", "miss");
+  private static final Counter REJECTED_STALE_PUT_COUNTER =
+      Metrics.counter(name(AccountNearCache.class, "rejectedStalePut"));
+  private static final Timer HIT_AGE_TIMER = Timer.builder(name(AccountNearCache.class, "hitAge"))
+      .publishPercentileHistogram()
+      .register(Metrics.globalRegistry);
+
+  private static final Logger logger = LoggerFactory.getLogger(AccountNearCache.class);
+
+  private static class CachedAccount {
+
+    private final int version;
+    private final byte[] snapshot;
+    private final long cachedAtNanos;
+
+    private CachedAccount(final int version, final byte[] snapshot, final long cachedAtNanos) {
+      this.version = version;
+      this.snapshot = snapshot;
+      this.cachedAtNanos = cachedAtNanos;
+    }
+  }
+
+  public AccountNearCache(final FaultTolerantRedisCluster cacheCluster,
+      final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager) {
+
+    this(cacheCluster, dynamicConfigurationManager, DEFAULT_MAX_SIZE, DEFAULT_TTL, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  AccountNearCache(final FaultTolerantRedisCluster cacheCluster,
+      final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager,
+      final int maxSize,
+      final Duration ttl,
+      final Ticker ticker) {
+
+    this.cacheCluster = cacheCluster;
+    this.pubSubConnection = cacheCluster.createPubSubConnection();
+    this.dynamicConfigurationManager = dynamicConfigurationManager;
+    this.ticker = ticker;
+
+    this.accountsByUuid = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        .removalListener(AccountNearCache::recordRemoval)
+        .build();
+
+    this.minimumVersionsByUuid = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        .build();
+
+    Metrics.gauge(name(AccountNearCache.class, "size"), this, nearCache -> nearCache.accountsByUuid.size());
+  }
+
+  @Override
+  public void start() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.addListener(this);
+      connection.getResources().eventBus().get()
+          .filter(event -> event instanceof ClusterTopologyChangedEvent)
+          .subscribe(event -> {
+            // We may have missed invalidations while the subscription moved
+            accountsByUuid.invalidateAll();
+            subscribe();
+          });
+    });
+
+    subscribe();
+  }
+
+  @Override
+  public void stop() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.removeListener(this);
+      connection.sync().upstream().commands().unsubscribe(INVALIDATION_CHANNEL);
+    });
+  }
+
+  private void subscribe() {
+    final int slot = SlotHash.getSlot(INVALIDATION_CHANNEL);
+
+    pubSubConnection.usePubSubConnection(connection ->
+        connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
+            .commands()
+            .subscribe(INVALIDATION_CHANNEL));
+  }
+
+  /**
+   * Returns a private copy of the cached account with the given UUID, if present.
+   */
+  public Optional<Account> get(final UUID uuid) {
+    if (!isEnabled()) {
+      if (accountsByUuid.size() > 0) {
+        accountsByUuid.invalidateAll();
+      }
+
+      return Optional.empty();
+    }
+
+    final CachedAccount cachedAccount = accountsByUuid.getIfPresent(uuid);
+
+    if (cachedAccount == null) {
+      MISS_COUNTER.increment();
+      return Optional.empty();
+    }
+
+    try {
+      final Account account = AccountCodec.decode(cachedAccount.snapshot);
+      account.setUuid(uuid);
+
+      HIT_COUNTER.increment();
+      HIT_AGE_TIMER.record(ticker.read() - cachedAccount.cachedAtNanos, TimeUnit.NANOSECONDS);
+
+      return Optional.of(account);
+    } catch (final IOException e) {
+      logger.warn("Deserialization error", e);
+      accountsByUuid.invalidate(uuid);
+
+      MISS_COUNTER.increment();
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Caches a snapshot of the given account unless a newer version of the same account is already cached or has been
+   * announced by an invalidation.
+   */
+  public void put(final Account account) {
+    if (!isEnabled()) {
+      return;
+    }
+
+    final Integer minimumVersion = minimumVersionsByUuid.getIfPresent(account.getUuid());
+
+    if (minimumVersion != null && account.getVersion() < minimumVersion) {
+      REJECTED_STALE_PUT_COUNTER.increment();
+      return;
+    }
+
+    accountsByUuid.asMap().merge(account.getUuid(),
+        new CachedAccount(account.getVersion(), AccountCodec.encode(account), ticker.read()),
+        (existing, replacement) -> existing.version > replacement.version ? existing : replacement);
+  }
+
+  /**
+   * Discards cached copies of the given account that are older than the given version on this and every other server.
+   * Publication failures are logged, but not thrown, since the account has already been written by the time this
+   * method is called.
+   */
+  public void invalidate(final UUID uuid, final int version) {
+    invalidateLocally(uuid, version);
+    publishInvalidation(uuid + ":" + version);
+
+    Metrics.counter(INVALIDATION_COUNTER_NAME, "source", "local").increment();
+  }
+
+  /**
+   * Discards every cached copy of the given account on this and every other server, regardless of version.
+   */
+  public void invalidate(final UUID uuid) {
+    invalidateLocally(uuid, null);
+    publishInvalidation(uuid.toString());
+
+    Metrics.counter(INVALIDATION_COUNTER_NAME, "source", "local").increment();
+  }
+
+  private void invalidateLocally(final UUID uuid, @Nullable final Integer version) {
+    if (version == null) {
+      accountsByUuid.invalidate(uuid);
+    } else {
+      minimumVersionsByUuid.asMap().merge(uuid, version, Math::max);
+      accountsByUuid.asMap().computeIfPresent(uuid,
+          (ignored, cachedAccount) -> cachedAccount.version < version ? null : cachedAccount);
+    }
+  }
+
+  private void publishInvalidation(final String message) {
+    cacheCluster.withClusterAsync(connection -> connection.async().publish(INVALIDATION_CHANNEL, message)
+        .toCompletableFuture())
+        .whenComplete((ignored, throwable) -> {
+          if (throwable != null) {
+            logger.warn("Failed to publish account invalidation", throwable);
+          }
+        });
+  }
+
+  @Override
+  public void message(final RedisClusterNode node, final String channel, final String message) {
+    if (!INVALIDATION_CHANNEL.equals(channel)) {
+      return;
+    }
+
+    try {
+      final int separatorIndex = message.indexOf(':');
+
+      if (separatorIndex == -1) {
+        invalidateLocally(UUID.fromString(message), null);
+      } else {
+        invalidateLocally(UUID.fromString(message.substring(0, separatorIndex)),
+            Integer.parseInt(message.substring(separatorIndex + 1)));
+      }
+
+      Metrics.counter(INVALIDATION_COUNTER_NAME, "source", "remote").increment();
+    } catch (final IllegalArgumentException e) {
+      logger.warn("Unexpected account invalidation message: {}", message);
+    }
+  }
+
+  private boolean isEnabled() {
+    return dynamicConfigurationManager.getConfiguration().getAccountNearCacheConfiguration().isEnabled();
+  }
+
+  private static void recordRemoval(final RemovalNotification<UUID, CachedAccount> notification) {
+    if (notification.wasEvicted()) {
+      Metrics.counter(EVICTION_COUNTER_NAME, "cause", notification.getCause().name().toLowerCase()).increment();
+    }
+  }
+}
@@ -6,28 +6,31 @@ package org.whispersystems.textsecuregcm.storage;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.util.AttributeValues;
-import org.whispersystems.textsecuregcm.util.SystemMapper;
 import org.whispersystems.textsecuregcm.util.UUIDUtil;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.Delete;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
 import software.amazon.awssdk.services.dynamodb.model.Put;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValuesOnConditionCheckFailure;
@@ -46,7 +49,7 @@ public class Accounts extends AbstractDynamoDbStore {
   static final String KEY_ACCOUNT_UUID = "U";
   // phone number
   static final String ATTR_ACCOUNT_E164 = "P";
-  // account, serialized to JSON
+  // account, serialized to JSON or with AccountCodec
   static final String ATTR_ACCOUNT_DATA = "D";
   // internal version for optimistic locking
   static final String ATTR_VERSION = "V";
@@ -60,18 +63,21 @@ public class Accounts extends AbstractDynamoDbStore {
 
   private final int scanPageSize;
 
+  private final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
+
   private static final Timer CREATE_TIMER = Metrics.timer(name(Accounts.class, "create"));
   private static final Timer CHANGE_NUMBER_TIMER = Metrics.timer(name(Accounts.class, "changeNumber"));
   private static final Timer UPDATE_TIMER = Metrics.timer(name(Accounts.class, "update"));
   private static final Timer GET_BY_NUMBER_TIMER = Metrics.timer(name(Accounts.class, "getByNumber"));
   private static final Timer GET_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getByUuid"));
+  private static final Timer GET_ALL_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getAllByUuid"));
   private static final Timer GET_ALL_FROM_START_TIMER = Metrics.timer(name(Accounts.class, "getAllFrom"));
   private static final Timer GET_ALL_FROM_OFFSET_TIMER = Metrics.timer(name(Accounts.class, "getAllFromOffset"));
   private static final Timer DELETE_TIMER = Metrics.timer(name(Accounts.class, "delete"));
 
 
   public Accounts(DynamoDbClient client, String accountsTableName, String phoneNumbersTableName,
-      final int scanPageSize) {
+      final int scanPageSize, final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager) {
 
     super(client);
 
@@ -79,71 +85,68 @@ public class Accounts extends AbstractDynamoDbStore {
     this.phoneNumbersTableName = phoneNumbersTableName;
     this.accountsTableName = accountsTableName;
     this.scanPageSize = scanPageSize;
+    this.dynamicConfigurationManager = dynamicConfigurationManager;
   }
 
   public boolean create(Account account) {
     return CREATE_TIMER.record(() -> {
 
-      try {
-        TransactWriteItem phoneNumberConstraintPut = buildPutWriteItemForPhoneNumberConstraint(account, account.getUuid());
-        TransactWriteItem accountPut = buildPutWriteItemForAccount(account, account.getUuid(), Put.builder()
-            .conditionExpression("attribute_not_exists(#number) OR #number = :number")
-            .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_E164))
-            .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getNumber()))));
-
-        final TransactWriteItemsRequest request = TransactWriteItemsRequest.builder()
-            .transactItems(phoneNumberConstraintPut, accountPut)
-            .build();
+      TransactWriteItem phoneNumberConstraintPut = buildPutWriteItemForPhoneNumberConstraint(account, account.getUuid());
+      TransactWriteItem accountPut = buildPutWriteItemForAccount(account, account.getUuid(), Put.builder()
+          .conditionExpression("attribute_not_exists(#number) OR #number = :number")
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_E164))
+          .expressionAttributeValues(Map.of(":number", AttributeValues.fromString(account.getNumber()))));
 
-        try {
-          client.transactWriteItems(request);
-        } catch (TransactionCanceledException e) {
+      final TransactWriteItemsRequest request = TransactWriteItemsRequest.builder()
+          .transactItems(phoneNumberConstraintPut, accountPut)
+          .build();
 
-          final CancellationReason accountCancellationReason = e.cancellationReasons().get(1);
+      try {
+        client.transactWriteItems(request);
+      } catch (TransactionCanceledException e) {
 
-          if ("ConditionalCheckFailed".equals(accountCancellationReason.code())) {
-            throw new IllegalArgumentException("uuid present with different phone number");
-          }
+        final CancellationReason accountCancellationReason = e.cancellationReasons().get(1);
 
-          final CancellationReason phoneNumberConstraintCancellationReason = e.cancellationReasons().get(0);
+        if ("ConditionalCheckFailed".equals(accountCancellationReason.code())) {
+          throw new IllegalArgumentException("uuid present with different phone number");
+        }
 
-          if ("ConditionalCheckFailed".equals(phoneNumberConstraintCancellationReason.code())) {
+        final CancellationReason phoneNumberConstraintCancellationReason = e.cancellationReasons().get(0);
 
-            ByteBuffer actualAccountUuid = phoneNumberConstraintCancellationReason.item().get(KEY_ACCOUNT_UUID).b().asByteBuffer();
-            account.setUuid(UUIDUtil.fromByteBuffer(actualAccountUuid));
+        if ("ConditionalCheckFailed".equals(phoneNumberConstraintCancellationReason.code())) {
 
-            final int version = get(account.getUuid()).get().getVersion();
-            account.setVersion(version);
+          ByteBuffer actualAccountUuid = phoneNumberConstraintCancellationReason.item().get(KEY_ACCOUNT_UUID).b().asByteBuffer();
+          account.setUuid(UUIDUtil.fromByteBuffer(actualAccountUuid));
 
-            update(account);
+          final int version = get(account.getUuid()).get().getVersion();
+          account.setVersion(version);
 
-            return false;
-          }
+          update(account);
 
-          if ("TransactionConflict".equals(accountCancellationReason.code())) {
-            // this should only happen if two clients manage to make concurrent create() calls
-            throw new ContestedOptimisticLockException();
-          }
+          return false;
+        }
 
-          // this shouldn't happen
-          throw new RuntimeException("could not create account: " + extractCancellationReasonCodes(e));
+        if ("TransactionConflict".equals(accountCancellationReason.code())) {
+          // this should only happen if two clients manage to make concurrent create() calls
+          throw new ContestedOptimisticLockException();
         }
-      } catch (JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
+
+        // this shouldn't happen
+        throw new RuntimeException("could not create account: " + extractCancellationReasonCodes(e));
       }
 
       return true;
     });
   }
 
-  private TransactWriteItem buildPutWriteItemForAccount(Account account, UUID uuid, Put.Builder putBuilder) throws JsonProcessingException {
+  private TransactWriteItem buildPutWriteItemForAccount(Account account, UUID uuid, Put.Builder putBuilder) {
     return TransactWriteItem.builder()
         .put(putBuilder
             .tableName(accountsTableName)
             .item(Map.of(
                 KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid),
                 ATTR_ACCOUNT_E164, AttributeValues.fromString(account.getNumber()),
-                ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
+                ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(encode(account)),
                 ATTR_VERSION, AttributeValues.fromInt(account.getVersion()),
                 ATTR_CANONICALLY_DISCOVERABLE, AttributeValues.fromBool(account.shouldBeVisibleInDirectory())))
             .build())
@@ -223,7 +226,7 @@ public class Accounts extends AbstractDynamoDbStore {
                         "#cds", ATTR_CANONICALLY_DISCOVERABLE,
                         "#version", ATTR_VERSION))
                     .expressionAttributeValues(Map.of(
-                        ":data", AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
+                        ":data", AttributeValues.fromByteArray(encode(account)),
                         ":number", AttributeValues.fromString(number),
                         ":cds", AttributeValues.fromBool(account.shouldBeVisibleInDirectory()),
                         ":version", AttributeValues.fromInt(account.getVersion()),
@@ -239,8 +242,6 @@ public class Accounts extends AbstractDynamoDbStore {
 
         account.setVersion(account.getVersion() + 1);
         succeeded = true;
-      } catch (final JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
       } finally {
         if (!succeeded) {
           account.setNumber(originalNumber);
@@ -251,28 +252,23 @@ public class Accounts extends AbstractDynamoDbStore {
 
   public void update(Account account) throws ContestedOptimisticLockException {
     UPDATE_TIMER.record(() -> {
-      UpdateItemRequest updateItemRequest;
-      try {
-        updateItemRequest = UpdateItemRequest.builder()
-            .tableName(accountsTableName)
-            .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
-            .updateExpression("SET #data = :data, #cds = :cds ADD #version :version_increment")
-            .conditionExpression("attribute_exists(#number) AND #version = :version")
-            .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_E164,
-                "#data", ATTR_ACCOUNT_DATA,
-                "#cds", ATTR_CANONICALLY_DISCOVERABLE,
-                "#version", ATTR_VERSION))
-            .expressionAttributeValues(Map.of(
-                ":data", AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
-                ":cds", AttributeValues.fromBool(account.shouldBeVisibleInDirectory()),
-                ":version", AttributeValues.fromInt(account.getVersion()),
-                ":version_increment", AttributeValues.fromInt(1)))
-            .returnValues(ReturnValue.UPDATED_NEW)
-            .build();
+      final UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+          .tableName(accountsTableName)
+          .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+          .updateExpression("SET #data = :data, #cds = :cds ADD #version :version_increment")
+          .conditionExpression("attribute_exists(#number) AND #version = :version")
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_E164,
+              "#data", ATTR_ACCOUNT_DATA,
+              "#cds", ATTR_CANONICALLY_DISCOVERABLE,
+              "#version", ATTR_VERSION))
+          .expressionAttributeValues(Map.of(
+              ":data", AttributeValues.fromByteArray(encode(account)),
+              ":cds", AttributeValues.fromBool(account.shouldBeVisibleInDirectory()),
+              ":version", AttributeValues.fromInt(account.getVersion()),
+              ":version_increment", AttributeValues.fromInt(1)))
+          .returnValues(ReturnValue.UPDATED_NEW)
+          .build();
 
-      } catch (JsonProcessingException e) {
-        throw new IllegalArgumentException(e);
-      }
 
       try {
         UpdateItemResponse response = client.updateItem(updateItemRequest);
@@ -321,6 +317,34 @@ public class Accounts extends AbstractDynamoDbStore {
             .map(Accounts::fromItem));
   }
 
+  /**
+   * Retrieves the accounts with the given UUIDs using as few batched, strongly-consistent reads as possible.
+   *
+   * @param uuids the UUIDs of the accounts to retrieve
+   *
+   * @return the accounts that exist, in no particular order
+   */
+  public List<Account> getAll(final Collection<UUID> uuids) {
+    return GET_ALL_BY_UUID_TIMER.record(() -> {
+      final List<Account> accounts = new ArrayList<>(uuids.size());
+
+      final List<Map<String, AttributeValue>> keys = uuids.stream()
+          .distinct()
+          .map(uuid -> Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+          .collect(Collectors.toList());
+
+      for (final List<Map<String, AttributeValue>> batch : Lists.partition(keys, DYNAMO_DB_MAX_BATCH_GET_SIZE)) {
+        executeTableGetItemsUntilComplete(accountsTableName, KeysAndAttributes.builder()
+            .keys(batch)
+            .consistentRead(true)
+            .build())
+            .forEach(item -> accounts.add(fromItem(item)));
+      }
+
+      return accounts;
+    });
+  }
+
   public void delete(UUID uuid) {
     DELETE_TIMER.record(() -> {
 
@@ -365,6 +389,35 @@ public class Accounts extends AbstractDynamoDbStore {
     return scanForChunk(scanRequestBuilder, maxCount, GET_ALL_FROM_START_TIMER);
   }
 
+  /**
+   * Reads a chunk of accounts from one segment of a parallel scan of the accounts table. The cursor for a segment must
+   * be the last account returned by a previous call for the same segment and segment count.
+   */
+  public AccountCrawlChunk getAllFrom(final Optional<UUID> from, final int maxCount, final int segment,
+      final int totalSegments) {
+
+    final ScanRequest.Builder scanRequestBuilder = ScanRequest.builder()
+        .limit(scanPageSize)
+        .segment(segment)
+        .totalSegments(totalSegments);
+
+    from.ifPresent(uuid -> scanRequestBuilder.exclusiveStartKey(
+        Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid))));
+
+    return scanForChunk(scanRequestBuilder, maxCount,
+        from.isPresent() ? GET_ALL_FROM_OFFSET_TIMER : GET_ALL_FROM_START_TIMER);
+  }
+
+  /**
+   * Returns DynamoDB's estimate of the number of accounts; the estimate is refreshed by DynamoDB roughly every six
+   * hours.
+   */
+  public long getApproximateCount() {
+    return client.describeTable(DescribeTableRequest.builder().tableName(accountsTableName).build())
+        .table()
+        .itemCount();
+  }
+
   private AccountCrawlChunk scanForChunk(final ScanRequest.Builder scanRequestBuilder, final int maxCount, final Timer timer) {
 
     scanRequestBuilder.tableName(accountsTableName);
@@ -383,6 +436,11 @@ public class Accounts extends AbstractDynamoDbStore {
         .collect(Collectors.joining(", "));
   }
 
+  private byte[] encode(final Account account) {
+    return AccountCodec.encode(account,
+        dynamicConfigurationManager.getConfiguration().getAccountEncodingConfiguration());
+  }
+
   @VisibleForTesting
   static Account fromItem(Map<String, AttributeValue> item) {
     if (!item.containsKey(ATTR_ACCOUNT_DATA) ||
@@ -392,7 +450,7 @@ public class Accounts extends AbstractDynamoDbStore {
       throw new RuntimeException("item missing values");
     }
     try {
-      Account account = SystemMapper.getMapper().readValue(item.get(ATTR_ACCOUNT_DATA).b().asByteArray(), Account.class);
+      Account account = AccountCodec.decode(item.get(ATTR_ACCOUNT_DATA).b().asByteArray());
       account.setNumber(item.get(ATTR_ACCOUNT_E164).s());
       account.setUuid(UUIDUtil.fromByteBuffer(item.get(KEY_ACCOUNT_UUID).b().asByteBuffer()));
       account.setVersion(Integer.parseInt(item.get(ATTR_VERSION).n()));
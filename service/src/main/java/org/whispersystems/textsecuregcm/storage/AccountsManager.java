@@ -10,13 +10,18 @@ import static com.codahale.metrics.MetricRegistry.name;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lettuce.core.KeyValue;
 import io.lettuce.core.RedisException;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.SlotHash;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -24,9 +29,11 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.entities.AccountAttributes;
 import org.whispersystems.textsecuregcm.push.ClientPresenceManager;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
@@ -34,7 +41,6 @@ import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.securebackup.SecureBackupClient;
 import org.whispersystems.textsecuregcm.securestorage.SecureStorageClient;
 import org.whispersystems.textsecuregcm.util.Constants;
-import org.whispersystems.textsecuregcm.util.SystemMapper;
 import org.whispersystems.textsecuregcm.util.Util;
 
 public class AccountsManager {
@@ -44,11 +50,13 @@ public class AccountsManager {
   private static final Timer          updateTimer      = metricRegistry.timer(name(AccountsManager.class, "update"     ));
   private static final Timer          getByNumberTimer = metricRegistry.timer(name(AccountsManager.class, "getByNumber"));
   private static final Timer          getByUuidTimer   = metricRegistry.timer(name(AccountsManager.class, "getByUuid"  ));
+  private static final Timer          getAllByUuidTimer = metricRegistry.timer(name(AccountsManager.class, "getAllByUuid"));
   private static final Timer          deleteTimer      = metricRegistry.timer(name(AccountsManager.class, "delete"));
 
   private static final Timer redisSetTimer       = metricRegistry.timer(name(AccountsManager.class, "redisSet"      ));
   private static final Timer redisNumberGetTimer = metricRegistry.timer(name(AccountsManager.class, "redisNumberGet"));
   private static final Timer redisUuidGetTimer   = metricRegistry.timer(name(AccountsManager.class, "redisUuidGet"  ));
+  private static final Timer redisUuidGetAllTimer = metricRegistry.timer(name(AccountsManager.class, "redisUuidGetAll"));
   private static final Timer redisDeleteTimer    = metricRegistry.timer(name(AccountsManager.class, "redisDelete"   ));
 
   private static final String CREATE_COUNTER_NAME       = name(AccountsManager.class, "createCounter");
@@ -59,6 +67,7 @@ public class AccountsManager {
 
   private final Accounts accounts;
   private final FaultTolerantRedisCluster cacheCluster;
+  private final AccountNearCache accountNearCache;
   private final DeletedAccountsManager deletedAccountsManager;
   private final KeysDynamoDb              keysDynamoDb;
   private final MessagesManager messagesManager;
@@ -68,7 +77,7 @@ public class AccountsManager {
   private final SecureStorageClient       secureStorageClient;
   private final SecureBackupClient        secureBackupClient;
   private final ClientPresenceManager clientPresenceManager;
-  private final ObjectMapper              mapper;
+  private final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
 
   public enum DeletionReason {
     ADMIN_DELETED("admin"),
@@ -83,6 +92,7 @@ public class AccountsManager {
   }
 
   public AccountsManager(Accounts accounts, FaultTolerantRedisCluster cacheCluster,
+      final AccountNearCache accountNearCache,
       final DeletedAccountsManager deletedAccountsManager,
       final KeysDynamoDb keysDynamoDb, final MessagesManager messagesManager,
       final UsernamesManager usernamesManager,
@@ -90,9 +100,11 @@ public class AccountsManager {
       final StoredVerificationCodeManager pendingAccounts,
       final SecureStorageClient secureStorageClient,
       final SecureBackupClient secureBackupClient,
-      final ClientPresenceManager clientPresenceManager) {
+      final ClientPresenceManager clientPresenceManager,
+      final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager) {
     this.accounts = accounts;
     this.cacheCluster = cacheCluster;
+    this.accountNearCache = accountNearCache;
     this.deletedAccountsManager = deletedAccountsManager;
     this.keysDynamoDb = keysDynamoDb;
     this.messagesManager = messagesManager;
@@ -102,7 +114,7 @@ public class AccountsManager {
     this.secureStorageClient = secureStorageClient;
     this.secureBackupClient  = secureBackupClient;
     this.clientPresenceManager = clientPresenceManager;
-    this.mapper              = SystemMapper.getMapper();
+    this.dynamicConfigurationManager = dynamicConfigurationManager;
   }
 
   public Account create(final String number,
@@ -141,6 +153,11 @@ public class AccountsManager {
         // for metrics, we want secondary to run with the same original UUID
         final UUID actualUuid = account.getUuid();
 
+        if (!freshUser) {
+          // Re-registration overwrites the stored account without changing its version
+          accountNearCache.invalidate(actualUuid);
+        }
+
         redisSet(account);
 
         pendingAccounts.remove(number);
@@ -211,6 +228,7 @@ public class AccountsManager {
           () -> dynamoGet(uuid).orElseThrow());
 
       updatedAccount.set(numberChangedAccount);
+      accountNearCache.invalidate(uuid, numberChangedAccount.getVersion());
 
       return displacedUuid;
     });
@@ -264,6 +282,7 @@ public class AccountsManager {
 
       final UUID uuid = account.getUuid();
       final String originalNumber = account.getNumber();
+      final int originalVersion = account.getVersion();
 
       updatedAccount = updateWithRetries(account, updater, this::dynamoUpdate, () -> dynamoGet(uuid).get());
 
@@ -275,6 +294,10 @@ public class AccountsManager {
       }
 
       redisSet(updatedAccount);
+
+      if (updatedAccount.getVersion() != originalVersion) {
+        accountNearCache.invalidate(uuid, updatedAccount.getVersion());
+      }
     }
 
     return updatedAccount;
@@ -295,14 +318,7 @@ public class AccountsManager {
       try {
         persister.accept(account);
 
-        final Account updatedAccount;
-        try {
-          updatedAccount = mapper.readValue(mapper.writeValueAsBytes(account), Account.class);
-          updatedAccount.setUuid(account.getUuid());
-        } catch (final IOException e) {
-          // this should really, truly, never happen
-          throw new IllegalArgumentException(e);
-        }
+        final Account updatedAccount = AccountCodec.copy(account);
 
         account.markStale();
 
@@ -354,6 +370,35 @@ public class AccountsManager {
     }
   }
 
+  /**
+   * Retrieves the accounts with the given UUIDs. Cached accounts are fetched from Redis with one {@code MGET} per
+   * cluster slot, all issued concurrently; accounts missing from the cache are then fetched from the backing store in
+   * batches.
+   *
+   * @param uuids the UUIDs of the accounts to retrieve
+   *
+   * @return a map of UUIDs to accounts; UUIDs that do not identify an existing account are absent from the map
+   */
+  public Map<UUID, Account> getAll(final Collection<UUID> uuids) {
+    try (Timer.Context ignored = getAllByUuidTimer.time()) {
+      final Map<UUID, Account> accountsByUuid = new HashMap<>(redisGetAll(uuids));
+
+      final List<UUID> uncachedUuids = uuids.stream()
+          .filter(uuid -> !accountsByUuid.containsKey(uuid))
+          .distinct()
+          .collect(Collectors.toList());
+
+      if (!uncachedUuids.isEmpty()) {
+        for (final Account account : dynamoGetAll(uncachedUuids)) {
+          redisSet(account);
+          accountsByUuid.put(account.getUuid(), account);
+        }
+      }
+
+      return accountsByUuid;
+    }
+  }
+
   public AccountCrawlChunk getAllFromDynamo(int length) {
     return accounts.getAllFromStart(length);
   }
@@ -362,6 +407,14 @@ public class AccountsManager {
     return accounts.getAllFrom(uuid, length);
   }
 
+  public AccountCrawlChunk getAllFromDynamo(Optional<UUID> uuid, int length, int segment, int totalSegments) {
+    return accounts.getAllFrom(uuid, length, segment, totalSegments);
+  }
+
+  public long getApproximateAccountCount() {
+    return accounts.getApproximateCount();
+  }
+
   public void delete(final Account account, final DeletionReason deletionReason) throws InterruptedException {
     try (final Timer.Context ignored = deleteTimer.time()) {
       deletedAccountsManager.lockAndPut(account.getNumber(), () -> {
@@ -393,6 +446,7 @@ public class AccountsManager {
 
     redisDelete(account);
     dynamoDelete(account);
+    accountNearCache.invalidate(account.getUuid());
 
     RedisOperation.unchecked(() ->
         account.getDevices().forEach(device ->
@@ -407,18 +461,22 @@ public class AccountsManager {
     return "Account3::" + uuid.toString();
   }
 
+  private byte[] getAccountEntityKeyBytes(UUID uuid) {
+    return getAccountEntityKey(uuid).getBytes(StandardCharsets.UTF_8);
+  }
+
   private void redisSet(Account account) {
     try (Timer.Context ignored = redisSetTimer.time()) {
-      final String accountJson = mapper.writeValueAsString(account);
+      final byte[] encodedAccount = AccountCodec.encode(account,
+          dynamicConfigurationManager.getConfiguration().getAccountEncodingConfiguration());
 
-      cacheCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+      cacheCluster.useCluster(connection ->
+          connection.sync().set(getAccountMapKey(account.getNumber()), account.getUuid().toString()));
 
-        commands.set(getAccountMapKey(account.getNumber()), account.getUuid().toString());
-        commands.set(getAccountEntityKey(account.getUuid()), accountJson);
-      });
-    } catch (JsonProcessingException e) {
-      throw new IllegalStateException(e);
+      cacheCluster.useBinaryCluster(connection ->
+          connection.sync().set(getAccountEntityKeyBytes(account.getUuid()), encodedAccount));
+
+      accountNearCache.put(account);
     }
   }
 
@@ -438,13 +496,22 @@ public class AccountsManager {
   }
 
   private Optional<Account> redisGet(UUID uuid) {
+    final Optional<Account> maybeNearCachedAccount = accountNearCache.get(uuid);
+
+    if (maybeNearCachedAccount.isPresent()) {
+      return maybeNearCachedAccount;
+    }
+
     try (Timer.Context ignored = redisUuidGetTimer.time()) {
-      final String json = cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid)));
+      final byte[] encodedAccount =
+          cacheCluster.withBinaryCluster(connection -> connection.sync().get(getAccountEntityKeyBytes(uuid)));
 
-      if (json != null) {
-        Account account = mapper.readValue(json, Account.class);
+      if (encodedAccount != null) {
+        Account account = AccountCodec.decode(encodedAccount);
         account.setUuid(uuid);
 
+        accountNearCache.put(account);
+
         return Optional.of(account);
       }
 
@@ -458,6 +525,66 @@ public class AccountsManager {
     }
   }
 
+  private Map<UUID, Account> redisGetAll(final Collection<UUID> uuids) {
+    final Map<Integer, List<UUID>> uuidsBySlot = uuids.stream()
+        .distinct()
+        .collect(Collectors.groupingBy(uuid -> SlotHash.getSlot(getAccountEntityKey(uuid))));
+
+    if (uuidsBySlot.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    try (Timer.Context ignored = redisUuidGetAllTimer.time()) {
+      return RedisOperation.join(cacheCluster.withBinaryClusterAsync(connection -> {
+        final List<CompletableFuture<Map<UUID, Account>>> slotFutures = uuidsBySlot.values().stream()
+            .map(slotUuids -> connection.async()
+                .mget(slotUuids.stream().map(this::getAccountEntityKeyBytes).toArray(byte[][]::new))
+                .toCompletableFuture()
+                .thenApply(keyValues -> parseCachedAccounts(slotUuids, keyValues))
+                .exceptionally(throwable -> {
+                  // A failure for one slot shouldn't prevent us from using results for the others
+                  logger.warn("Redis failure", throwable);
+                  return Collections.emptyMap();
+                }))
+            .collect(Collectors.toList());
+
+        return CompletableFuture.allOf(slotFutures.toArray(new CompletableFuture[0]))
+            .thenApply(ignored2 -> {
+              final Map<UUID, Account> accountsByUuid = new HashMap<>();
+              slotFutures.forEach(slotFuture -> accountsByUuid.putAll(slotFuture.join()));
+
+              return accountsByUuid;
+            });
+      }));
+    } catch (RedisException e) {
+      logger.warn("Redis failure", e);
+      return Collections.emptyMap();
+    }
+  }
+
+  private Map<UUID, Account> parseCachedAccounts(final List<UUID> uuids, final List<KeyValue<byte[], byte[]>> keyValues) {
+    final Map<UUID, Account> accountsByUuid = new HashMap<>();
+
+    for (int i = 0; i < uuids.size(); i++) {
+      final KeyValue<byte[], byte[]> keyValue = keyValues.get(i);
+
+      if (keyValue.hasValue()) {
+        final UUID uuid = uuids.get(i);
+
+        try {
+          final Account account = AccountCodec.decode(keyValue.getValue());
+          account.setUuid(uuid);
+
+          accountsByUuid.put(uuid, account);
+        } catch (final IOException e) {
+          logger.warn("Deserialization error", e);
+        }
+      }
+    }
+
+    return accountsByUuid;
+  }
+
   private void redisDelete(final Account account) {
     try (final Timer.Context ignored = redisDeleteTimer.time()) {
       cacheCluster.useCluster(connection -> connection.sync()
@@ -465,6 +592,10 @@ public class AccountsManager {
     }
   }
 
+  private List<Account> dynamoGetAll(Collection<UUID> uuids) {
+    return accounts.getAll(uuids);
+  }
+
   private Optional<Account> dynamoGet(String number) {
     return accounts.get(number);
   }
@@ -6,12 +6,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
 import javax.validation.Validator;
@@ -35,12 +40,13 @@ public class DynamicConfigurationManager<T> {
 
   private final Class<T> configurationClass;
 
+  // Readers take the published snapshot without locking; only publication and listener registration synchronize
   private final AtomicReference<T> configuration = new AtomicReference<>();
+  private final CountDownLatch initialized = new CountDownLatch(1);
+  private final List<Consumer<T>> listeners = new CopyOnWriteArrayList<>();
 
   private GetConfigurationResponse lastConfigResult;
 
-  private boolean initialized = false;
-
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper(new YAMLFactory())
       .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
       .registerModule(new JavaTimeModule());
@@ -79,36 +85,56 @@ public class DynamicConfigurationManager<T> {
     this.clientId = null;
     this.configurationClass = null;
     this.configuration.set(dynamicConfigOverride);
-    this.initialized = true;
+    this.initialized.countDown();
   }
 
+  /**
+   * Returns the current configuration snapshot, blocking only until the first configuration has been retrieved. The
+   * returned object must be treated as immutable; callers that derive state from it should register a listener with
+   * {@link #addConfigurationListener(Consumer)} rather than recomputing that state on every call.
+   */
   public T getConfiguration() {
-    synchronized (this) {
-      while (!initialized) {
-        Util.wait(this);
-      }
+    final T currentConfiguration = configuration.get();
+
+    if (currentConfiguration != null) {
+      return currentConfiguration;
     }
 
+    Uninterruptibles.awaitUninterruptibly(initialized);
     return configuration.get();
   }
 
-  public void start() {
-    configuration.set(retrieveInitialDynamicConfiguration());
+  /**
+   * Registers a listener to be called with each new configuration version. If a configuration is already available, the
+   * listener is called with it before this method returns. Listeners are called on the thread that publishes the new
+   * configuration and must not block.
+   */
+  public void addConfigurationListener(final Consumer<T> listener) {
+    synchronized (listeners) {
+      listeners.add(listener);
+
+      final T currentConfiguration = configuration.get();
 
-    synchronized (this) {
-      this.initialized = true;
-      this.notifyAll();
+      if (currentConfiguration != null) {
+        notifyListener(listener, currentConfiguration);
+      }
     }
+  }
+
+  public void start() {
+    publishConfiguration(retrieveInitialDynamicConfiguration());
+    initialized.countDown();
 
     final Thread workerThread = new Thread(() -> {
       while (true) {
+        // The initial configuration was just retrieved, so wait before polling for changes
+        Util.sleep(5000);
+
         try {
-          retrieveDynamicConfiguration().ifPresent(configuration::set);
+          updateConfiguration();
         } catch (Throwable t) {
           logger.warn("Error retrieving dynamic configuration", t);
         }
-
-        Util.sleep(5000);
       }
     }, "DynamicConfigurationManagerWorker");
 
@@ -116,6 +142,26 @@ public class DynamicConfigurationManager<T> {
     workerThread.start();
   }
 
+  @VisibleForTesting
+  void updateConfiguration() throws JsonProcessingException {
+    retrieveDynamicConfiguration().ifPresent(this::publishConfiguration);
+  }
+
+  private void publishConfiguration(final T newConfiguration) {
+    synchronized (listeners) {
+      configuration.set(newConfiguration);
+      listeners.forEach(listener -> notifyListener(listener, newConfiguration));
+    }
+  }
+
+  private void notifyListener(final Consumer<T> listener, final T newConfiguration) {
+    try {
+      listener.accept(newConfiguration);
+    } catch (final Exception e) {
+      logger.warn("Dynamic configuration listener failed", e);
+    }
+  }
+
   private Optional<T> retrieveDynamicConfiguration() throws JsonProcessingException {
     final String previousVersion = lastConfigResult != null ? lastConfigResult.configurationVersion() : null;
 
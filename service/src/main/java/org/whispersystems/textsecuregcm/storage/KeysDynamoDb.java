@@ -18,39 +18,71 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.Nullable;
 import org.whispersystems.textsecuregcm.entities.PreKey;
 import org.whispersystems.textsecuregcm.util.AttributeValues;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.Select;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
+/**
+ * Stores one-time pre-keys for each of an account's devices.
+ * <p/>
+ * Alongside each device's keys, the table holds a counter item with the number of keys the device has left, so counting
+ * keys is a single read rather than a query over the device's whole key range. Counters are maintained as keys are
+ * stored, claimed, and deleted, but those updates aren't transactional with the key changes themselves; counters may
+ * drift from the true count, and {@link #reconcileCount(UUID, long)} repairs them. Counter items have a sort key that
+ * begins with {@code 0xFF}, which no device's key prefix can match since device IDs are non-negative.
+ */
 public class KeysDynamoDb extends AbstractDynamoDbStore {
 
+  private final DynamoDbAsyncClient asyncClient;
   private final String tableName;
 
   static final String KEY_ACCOUNT_UUID = "U";
   static final String KEY_DEVICE_ID_KEY_ID = "DK";
   static final String KEY_PUBLIC_KEY = "P";
+  static final String KEY_COUNT = "C";
+
+  private static final byte COUNTER_SORT_KEY_MARKER = (byte) 0xFF;
 
   private static final Timer               STORE_KEYS_TIMER              = Metrics.timer(name(KeysDynamoDb.class, "storeKeys"));
   private static final Timer               TAKE_KEY_FOR_DEVICE_TIMER     = Metrics.timer(name(KeysDynamoDb.class, "takeKeyForDevice"));
-  private static final Timer               TAKE_KEYS_FOR_ACCOUNT_TIMER   = Metrics.timer(name(KeysDynamoDb.class, "takeKeyForAccount"));
   private static final Timer               GET_KEY_COUNT_TIMER           = Metrics.timer(name(KeysDynamoDb.class, "getKeyCount"));
   private static final Timer               DELETE_KEYS_FOR_DEVICE_TIMER  = Metrics.timer(name(KeysDynamoDb.class, "deleteKeysForDevice"));
   private static final Timer               DELETE_KEYS_FOR_ACCOUNT_TIMER = Metrics.timer(name(KeysDynamoDb.class, "deleteKeysForAccount"));
   private static final DistributionSummary CONTESTED_KEY_DISTRIBUTION    = Metrics.summary(name(KeysDynamoDb.class, "contestedKeys"));
   private static final DistributionSummary KEY_COUNT_DISTRIBUTION        = Metrics.summary(name(KeysDynamoDb.class, "keyCount"));
 
-  public KeysDynamoDb(final DynamoDbClient dynamoDB, final String tableName) {
+  private static final String TAKE_KEYS_FOR_ACCOUNT_TIMER_NAME = name(KeysDynamoDb.class, "takeKeyForAccount");
+  private static final String CONTESTED_KEYS_FOR_ACCOUNT_DISTRIBUTION_NAME =
+      name(KeysDynamoDb.class, "contestedKeysForAccount");
+  private static final String DEVICE_COUNT_TAG_NAME = "deviceCount";
+
+  private static final String GET_KEY_COUNT_COUNTER_NAME = name(KeysDynamoDb.class, "getKeyCountSource");
+  private static final String SOURCE_TAG_NAME = "source";
+
+  public KeysDynamoDb(final DynamoDbClient dynamoDB, final DynamoDbAsyncClient asyncClient, final String tableName) {
     super(dynamoDB);
+    this.asyncClient = asyncClient;
     this.tableName = tableName;
   }
 
@@ -69,6 +101,12 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
         }
         executeTableWriteItemsUntilComplete(Map.of(tableName, items));
       });
+
+      db().putItem(PutItemRequest.builder()
+          .tableName(tableName)
+          .item(getCounterItem(account.getUuid(), deviceId,
+              keys.stream().mapToLong(PreKey::getKeyId).distinct().count()))
+          .build());
     });
   }
 
@@ -100,6 +138,12 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
               .build();
           DeleteItemResponse deleteItemResponse = db().deleteItem(deleteItemRequest);
           if (deleteItemResponse.hasAttributes()) {
+            try {
+              db().updateItem(getDecrementCountRequest(partitionKey, deviceId));
+            } catch (final ConditionalCheckFailedException ignored) {
+              // No counter to maintain; the next count will rebuild it
+            }
+
             return Optional.of(getPreKeyFromItem(deleteItemResponse.attributes()));
           }
 
@@ -113,45 +157,250 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
     });
   }
 
+  /**
+   * Claims one pre-key for each of the given account's devices. Claims for all devices proceed in parallel, and each
+   * claim tries the candidate keys for its device starting from a random position so that concurrent claimers (e.g.
+   * several senders starting sessions with the same account at once) are unlikely to contend for the same key. If every
+   * candidate in a page of query results has already been claimed, the claim moves on to the next page.
+   *
+   * @return the claimed pre-keys by device ID; devices with no remaining pre-keys are absent
+   */
   public Map<Long, PreKey> take(final Account account) {
-    return TAKE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
+    final Timer.Sample sample = Timer.start();
+    final AtomicInteger contestedKeys = new AtomicInteger(0);
+    final Map<Long, CompletableFuture<Optional<PreKey>>> takeFuturesByDeviceId = new HashMap<>();
+
+    for (final Device device : account.getDevices()) {
+      takeFuturesByDeviceId.put(device.getId(), takeAsync(account.getUuid(), device.getId(), contestedKeys));
+    }
+
+    final String deviceCount = String.valueOf(takeFuturesByDeviceId.size());
+
+    try {
+      CompletableFuture.allOf(takeFuturesByDeviceId.values().toArray(new CompletableFuture[0])).join();
+
       final Map<Long, PreKey> preKeysByDeviceId = new HashMap<>();
 
-      for (final Device device : account.getDevices()) {
-        take(account, device.getId()).ifPresent(preKey -> preKeysByDeviceId.put(device.getId(), preKey));
-      }
+      takeFuturesByDeviceId.forEach((deviceId, takeFuture) ->
+          takeFuture.join().ifPresent(preKey -> preKeysByDeviceId.put(deviceId, preKey)));
 
       return preKeysByDeviceId;
+    } catch (final CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw e;
+    } finally {
+      sample.stop(Metrics.timer(TAKE_KEYS_FOR_ACCOUNT_TIMER_NAME, DEVICE_COUNT_TAG_NAME, deviceCount));
+      Metrics.summary(CONTESTED_KEYS_FOR_ACCOUNT_DISTRIBUTION_NAME, DEVICE_COUNT_TAG_NAME, deviceCount)
+          .record(contestedKeys.get());
+    }
+  }
+
+  private CompletableFuture<Optional<PreKey>> takeAsync(final UUID accountUuid, final long deviceId,
+      final AtomicInteger contestedKeys) {
+
+    return takeAsync(getPartitionKey(accountUuid), deviceId, null, contestedKeys);
+  }
+
+  /**
+   * Tries to claim one of the candidates in the page of keys starting after the given key (or the first page if the
+   * given key is {@code null}), moving on to the next page if every candidate in this one has already been claimed.
+   */
+  private CompletableFuture<Optional<PreKey>> takeAsync(final AttributeValue partitionKey, final long deviceId,
+      @Nullable final Map<String, AttributeValue> exclusiveStartKey, final AtomicInteger contestedKeys) {
+
+    final QueryRequest queryRequest = QueryRequest.builder()
+        .tableName(tableName)
+        .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
+        .expressionAttributeValues(Map.of(
+            ":uuid", partitionKey,
+            ":sortprefix", getSortKeyPrefix(deviceId)))
+        .projectionExpression(KEY_DEVICE_ID_KEY_ID)
+        .exclusiveStartKey(exclusiveStartKey)
+        .consistentRead(false)
+        .build();
+
+    return asyncClient.query(queryRequest).thenCompose(response -> {
+      final List<Map<String, AttributeValue>> candidates = response.items();
+
+      final CompletableFuture<Optional<PreKey>> claimFuture = candidates.isEmpty()
+          ? CompletableFuture.completedFuture(Optional.empty())
+          : claim(partitionKey, deviceId, candidates, ThreadLocalRandom.current().nextInt(candidates.size()), 0,
+              contestedKeys);
+
+      return claimFuture.thenCompose(maybePreKey -> {
+        if (maybePreKey.isEmpty() && response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()) {
+          return takeAsync(partitionKey, deviceId, response.lastEvaluatedKey(), contestedKeys);
+        }
+
+        return CompletableFuture.completedFuture(maybePreKey);
+      });
     });
   }
 
+  /**
+   * Tries to claim the candidate at the given offset from the first candidate, moving on to the next candidate (and
+   * wrapping around) if somebody else has already claimed it.
+   */
+  private CompletableFuture<Optional<PreKey>> claim(final AttributeValue partitionKey, final long deviceId,
+      final List<Map<String, AttributeValue>> candidates, final int firstCandidate, final int attempt,
+      final AtomicInteger contestedKeys) {
+
+    if (attempt >= candidates.size()) {
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    final Map<String, AttributeValue> candidate = candidates.get((firstCandidate + attempt) % candidates.size());
+
+    final DeleteItemRequest deleteItemRequest = DeleteItemRequest.builder()
+        .tableName(tableName)
+        .key(Map.of(
+            KEY_ACCOUNT_UUID, partitionKey,
+            KEY_DEVICE_ID_KEY_ID, candidate.get(KEY_DEVICE_ID_KEY_ID)))
+        .conditionExpression("attribute_exists(#uuid)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID))
+        .returnValues(ReturnValue.ALL_OLD)
+        .build();
+
+    return asyncClient.deleteItem(deleteItemRequest)
+        .handle((response, cause) -> {
+          if (cause == null) {
+            final Optional<PreKey> preKey = Optional.of(getPreKeyFromItem(response.attributes()));
+
+            // A missing counter fails the update's condition; either way, the claim itself has succeeded
+            return asyncClient.updateItem(getDecrementCountRequest(partitionKey, deviceId))
+                .handle((ignored, updateCause) -> preKey);
+          }
+
+          final Throwable unwrapped = cause instanceof CompletionException && cause.getCause() != null
+              ? cause.getCause()
+              : cause;
+
+          if (unwrapped instanceof ConditionalCheckFailedException) {
+            contestedKeys.incrementAndGet();
+            return claim(partitionKey, deviceId, candidates, firstCandidate, attempt + 1, contestedKeys);
+          }
+
+          return CompletableFuture.<Optional<PreKey>>failedFuture(unwrapped);
+        })
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Returns the number of pre-keys the given device has left. Counts come from the device's counter item; if the device
+   * has no counter item yet, this method counts the device's keys and creates one.
+   */
   public int getCount(final Account account, final long deviceId) {
     return GET_KEY_COUNT_TIMER.record(() -> {
-      QueryRequest queryRequest = QueryRequest.builder()
-          .tableName(tableName)
-          .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
-          .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
-          .expressionAttributeValues(Map.of(
-              ":uuid", getPartitionKey(account.getUuid()),
-              ":sortprefix", getSortKeyPrefix(deviceId)))
-          .select(Select.COUNT)
-          .consistentRead(false)
-          .build();
+      final Optional<Long> maybeCount = getStoredCount(account.getUuid(), deviceId, false);
+
+      final int keyCount;
 
-      int keyCount = 0;
-      // This is very confusing, but does appear to be the intended behavior. See:
-      //
-      // - https://github.com/aws/aws-sdk-java/issues/693
-      // - https://github.com/aws/aws-sdk-java/issues/915
-      // - https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Query.html#Query.Count
-      for (final QueryResponse page : db().queryPaginator(queryRequest)) {
-        keyCount += page.count();
+      if (maybeCount.isPresent()) {
+        keyCount = (int) Math.max(0, maybeCount.get());
+        Metrics.counter(GET_KEY_COUNT_COUNTER_NAME, SOURCE_TAG_NAME, "counter").increment();
+      } else {
+        keyCount = countKeys(account.getUuid(), deviceId, false);
+        Metrics.counter(GET_KEY_COUNT_COUNTER_NAME, SOURCE_TAG_NAME, "query").increment();
+
+        try {
+          db().putItem(PutItemRequest.builder()
+              .tableName(tableName)
+              .item(getCounterItem(account.getUuid(), deviceId, keyCount))
+              .conditionExpression("attribute_not_exists(#uuid)")
+              .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID))
+              .build());
+        } catch (final ConditionalCheckFailedException ignored) {
+          // Somebody else created the counter first, which is fine
+        }
       }
+
       KEY_COUNT_DISTRIBUTION.record(keyCount);
       return keyCount;
     });
   }
 
+  /**
+   * Compares the given device's counter item with its actual number of keys and repairs the counter if they differ. The
+   * repair only happens if the counter hasn't changed since it was read; a counter that changes in the meantime is left
+   * for the next reconciliation.
+   *
+   * @return the difference between the stored count and the actual count (positive if the counter was too high), or 0
+   * if the counter was missing
+   */
+  public long reconcileCount(final UUID accountUuid, final long deviceId) {
+    // Both reads are strongly consistent; an eventually-consistent count could miss recent writes and "repair" an
+    // accurate counter with a stale value
+    final Optional<Long> maybeStoredCount = getStoredCount(accountUuid, deviceId, true);
+    final int actualCount = countKeys(accountUuid, deviceId, true);
+
+    if (maybeStoredCount.isPresent() && maybeStoredCount.get() == actualCount) {
+      return 0;
+    }
+
+    final PutItemRequest.Builder putItemRequestBuilder = PutItemRequest.builder()
+        .tableName(tableName)
+        .item(getCounterItem(accountUuid, deviceId, actualCount));
+
+    if (maybeStoredCount.isPresent()) {
+      putItemRequestBuilder.conditionExpression("#count = :count")
+          .expressionAttributeNames(Map.of("#count", KEY_COUNT))
+          .expressionAttributeValues(Map.of(":count", AttributeValues.fromLong(maybeStoredCount.get())));
+    } else {
+      putItemRequestBuilder.conditionExpression("attribute_not_exists(#uuid)")
+          .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID));
+    }
+
+    try {
+      db().putItem(putItemRequestBuilder.build());
+    } catch (final ConditionalCheckFailedException ignored) {
+      // The counter changed while we were counting; leave it for the next pass
+    }
+
+    return maybeStoredCount.map(storedCount -> storedCount - actualCount).orElse(0L);
+  }
+
+  private Optional<Long> getStoredCount(final UUID accountUuid, final long deviceId, final boolean consistentRead) {
+    final Map<String, AttributeValue> item = db().getItem(GetItemRequest.builder()
+        .tableName(tableName)
+        .key(getCounterKey(accountUuid, deviceId))
+        .consistentRead(consistentRead)
+        .build())
+        .item();
+
+    return item != null && item.containsKey(KEY_COUNT)
+        ? Optional.of(AttributeValues.getLong(item, KEY_COUNT, 0))
+        : Optional.empty();
+  }
+
+  private int countKeys(final UUID accountUuid, final long deviceId, final boolean consistentRead) {
+    QueryRequest queryRequest = QueryRequest.builder()
+        .tableName(tableName)
+        .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
+        .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
+        .expressionAttributeValues(Map.of(
+            ":uuid", getPartitionKey(accountUuid),
+            ":sortprefix", getSortKeyPrefix(deviceId)))
+        .select(Select.COUNT)
+        .consistentRead(consistentRead)
+        .build();
+
+    int keyCount = 0;
+    // This is very confusing, but does appear to be the intended behavior. See:
+    //
+    // - https://github.com/aws/aws-sdk-java/issues/693
+    // - https://github.com/aws/aws-sdk-java/issues/915
+    // - https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Query.html#Query.Count
+    for (final QueryResponse page : db().queryPaginator(queryRequest)) {
+      keyCount += page.count();
+    }
+
+    return keyCount;
+  }
+
   public void delete(final UUID accountUuid) {
     DELETE_KEYS_FOR_ACCOUNT_TIMER.record(() -> {
       final QueryRequest queryRequest = QueryRequest.builder()
@@ -182,6 +431,11 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
           .build();
 
       deleteItemsForAccountMatchingQuery(accountUuid, queryRequest);
+
+      db().deleteItem(DeleteItemRequest.builder()
+          .tableName(tableName)
+          .key(getCounterKey(accountUuid, deviceId))
+          .build());
     });
   }
 
@@ -221,6 +475,41 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
     return AttributeValues.fromByteBuffer(byteBuffer.flip());
   }
 
+  private static AttributeValue getCounterSortKey(final long deviceId) {
+    final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[9]);
+    byteBuffer.put(COUNTER_SORT_KEY_MARKER);
+    byteBuffer.putLong(deviceId);
+    return AttributeValues.fromByteBuffer(byteBuffer.flip());
+  }
+
+  private static Map<String, AttributeValue> getCounterKey(final UUID accountUuid, final long deviceId) {
+    return Map.of(
+        KEY_ACCOUNT_UUID, getPartitionKey(accountUuid),
+        KEY_DEVICE_ID_KEY_ID, getCounterSortKey(deviceId));
+  }
+
+  private static Map<String, AttributeValue> getCounterItem(final UUID accountUuid, final long deviceId,
+      final long count) {
+
+    final Map<String, AttributeValue> item = new HashMap<>(getCounterKey(accountUuid, deviceId));
+    item.put(KEY_COUNT, AttributeValues.fromLong(count));
+
+    return item;
+  }
+
+  private UpdateItemRequest getDecrementCountRequest(final AttributeValue partitionKey, final long deviceId) {
+    return UpdateItemRequest.builder()
+        .tableName(tableName)
+        .key(Map.of(
+            KEY_ACCOUNT_UUID, partitionKey,
+            KEY_DEVICE_ID_KEY_ID, getCounterSortKey(deviceId)))
+        .updateExpression("ADD #count :minusOne")
+        .conditionExpression("attribute_exists(#uuid)")
+        .expressionAttributeNames(Map.of("#count", KEY_COUNT, "#uuid", KEY_ACCOUNT_UUID))
+        .expressionAttributeValues(Map.of(":minusOne", AttributeValues.fromLong(-1)))
+        .build();
+  }
+
   private Map<String, AttributeValue> getItemFromPreKey(final UUID accountUuid, final long deviceId, final PreKey preKey) {
     return Map.of(
         KEY_ACCOUNT_UUID, getPartitionKey(accountUuid),
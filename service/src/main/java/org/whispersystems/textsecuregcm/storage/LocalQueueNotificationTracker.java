@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * Decides which "new message" signals for a single queue with a listener on this server can be dropped because another
+ * signal already covers them. A signal covers every message inserted before it was dispatched, since the listener reads
+ * the whole queue when signalled.
+ * <p>
+ * Without this, a listener would be signalled twice for each message this server inserts into its queue: once directly
+ * when the insertion completes and once more when the queue's keyspace notification arrives from Redis. Keyspace
+ * notifications for a queue arrive in the order their insertions ran, so:
+ * <ul>
+ *   <li>a keyspace notification that arrives while one of this server's insertions is in progress is covered by the
+ *   signal sent when that insertion completes, and</li>
+ *   <li>if no keyspace notification has arrived between the start of an insertion and its direct signal, the next
+ *   notification to arrive is either the insertion's own or an earlier one, and is covered by the direct signal.</li>
+ * </ul>
+ * All methods are synchronized; contention is limited to senders and the pub/sub thread working on the same queue.
+ */
+class LocalQueueNotificationTracker {
+
+  // If a keyspace notification we expect never arrives (e.g. because the pub/sub connection dropped), don't let the
+  // expectation swallow an unrelated notification much later
+  @VisibleForTesting
+  static final Duration EXPECTED_NOTIFICATION_TTL = Duration.ofSeconds(5);
+
+  private final Clock clock;
+
+  private int insertionsInProgress;
+  private int unsignalledInsertions;
+  private boolean notificationSuppressedDuringInsertion;
+  private boolean signalledOnCompletion;
+
+  private long keyspaceNotifications;
+  private long keyspaceNotificationsAtFirstInsertion;
+
+  private int expectedNotifications;
+  private long expectedNotificationsExpiration;
+
+  LocalQueueNotificationTracker() {
+    this(Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  LocalQueueNotificationTracker(final Clock clock) {
+    this.clock = clock;
+  }
+
+  synchronized void handleInsertionStarted() {
+    if (unsignalledInsertions == 0) {
+      keyspaceNotificationsAtFirstInsertion = keyspaceNotifications;
+    }
+
+    insertionsInProgress++;
+    unsignalledInsertions++;
+  }
+
+  /**
+   * @return {@code true} if a keyspace notification was dropped while the insertion was in progress, in which case the
+   * caller must signal the queue's listener now
+   */
+  synchronized boolean handleInsertionCompleted() {
+    insertionsInProgress = Math.max(0, insertionsInProgress - 1);
+
+    if (notificationSuppressedDuringInsertion) {
+      notificationSuppressedDuringInsertion = false;
+      signalledOnCompletion = true;
+
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * @return {@code true} if the caller should signal the queue's listener, or {@code false} if the signal sent when an
+   * insertion completed already covers the caller's message
+   */
+  synchronized boolean handleLocalNotification() {
+    final boolean trackedInsertion = unsignalledInsertions > 0;
+    unsignalledInsertions = Math.max(0, unsignalledInsertions - 1);
+
+    if (signalledOnCompletion) {
+      signalledOnCompletion = false;
+      return false;
+    }
+
+    if (trackedInsertion && keyspaceNotifications == keyspaceNotificationsAtFirstInsertion) {
+      expectedNotifications++;
+      expectedNotificationsExpiration = clock.millis() + EXPECTED_NOTIFICATION_TTL.toMillis();
+    }
+
+    return true;
+  }
+
+  /**
+   * @return {@code true} if the caller should pass the keyspace notification on to the queue's listener
+   */
+  synchronized boolean handleKeyspaceNotification() {
+    keyspaceNotifications++;
+
+    if (insertionsInProgress > 0) {
+      notificationSuppressedDuringInsertion = true;
+      return false;
+    }
+
+    if (expectedNotifications > 0) {
+      if (clock.millis() < expectedNotificationsExpiration) {
+        expectedNotifications--;
+        return false;
+      }
+
+      expectedNotifications = 0;
+    }
+
+    return true;
+  }
+}
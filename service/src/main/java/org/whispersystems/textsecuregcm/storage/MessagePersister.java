@@ -13,12 +13,22 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.ScoredValue;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
@@ -26,6 +36,14 @@ import org.whispersystems.textsecuregcm.entities.MessageProtos;
 import org.whispersystems.textsecuregcm.util.Constants;
 import org.whispersystems.textsecuregcm.util.Util;
 
+/**
+ * Moves messages that have been in the message cache for longer than the persistence delay to DynamoDB.
+ * <p/>
+ * A small number of worker threads each claim one cache slot at a time and hand the eligible queues in that slot to a
+ * shared, fixed-size pool, so many queues are persisted concurrently. Within a queue, each page of messages is written
+ * to DynamoDB and then removed from the cache asynchronously while the next page is written. Queues that fail to
+ * persist are rescheduled individually with exponential backoff instead of pausing the worker that found them.
+ */
 public class MessagePersister implements Managed {
 
     private final MessagesCache               messagesCache;
@@ -34,12 +52,19 @@ public class MessagePersister implements Managed {
 
     private final Duration        persistDelay;
 
-    private final    Thread[]     workerThreads = new Thread[WORKER_THREAD_COUNT];
-    private volatile boolean      running;
+    private final    Thread[]        workerThreads = new Thread[WORKER_THREAD_COUNT];
+    private final    ExecutorService persistQueueExecutor;
+    private volatile boolean         running;
+
+    private final Cache<String, Integer> consecutiveFailuresByQueue = CacheBuilder.newBuilder()
+        .maximumSize(100_000)
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .build();
 
     private final MetricRegistry metricRegistry             = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
     private final Timer          getQueuesTimer             = metricRegistry.timer(name(MessagePersister.class, "getQueues"));
     private final Timer          persistQueueTimer          = metricRegistry.timer(name(MessagePersister.class, "persistQueue"));
+    private final Timer          oldestQueueLagTimer        = metricRegistry.timer(name(MessagePersister.class, "oldestQueueLag"));
     private final Meter          persistQueueExceptionMeter = metricRegistry.meter(name(MessagePersister.class, "persistQueueException"));
     private final Histogram      queueCountHistogram        = metricRegistry.histogram(name(MessagePersister.class, "queueCount"));
     private final Histogram      queueSizeHistogram         = metricRegistry.histogram(name(MessagePersister.class, "queueSize"));
@@ -47,18 +72,23 @@ public class MessagePersister implements Managed {
     static final int QUEUE_BATCH_LIMIT   = 100;
     static final int MESSAGE_BATCH_LIMIT = 100;
 
-    private static final long EXCEPTION_PAUSE_MILLIS = Duration.ofSeconds(3).toMillis();
+    static final Duration INITIAL_RETRY_BACKOFF = Duration.ofSeconds(3);
+    static final Duration MAX_RETRY_BACKOFF     = Duration.ofMinutes(5);
+
+    private static final long UNEXPECTED_EXCEPTION_PAUSE_MILLIS = Duration.ofSeconds(3).toMillis();
 
     private static final String DISABLE_PERSISTER_FEATURE_FLAG = "DISABLE_MESSAGE_PERSISTER";
     private static final int WORKER_THREAD_COUNT = 4;
 
     private static final Logger logger = LoggerFactory.getLogger(MessagePersister.class);
 
-    public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager, final Duration persistDelay) {
+    public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager, final Duration persistDelay, final int persistQueueConcurrency) {
         this.messagesCache               = messagesCache;
         this.messagesManager             = messagesManager;
         this.accountsManager             = accountsManager;
         this.persistDelay                = persistDelay;
+        this.persistQueueExecutor        = Executors.newFixedThreadPool(persistQueueConcurrency,
+            new ThreadFactoryBuilder().setNameFormat("MessagePersisterQueue-%d").build());
 
         for (int i = 0; i < workerThreads.length; i++) {
             workerThreads[i] = new Thread(() -> {
@@ -75,7 +105,7 @@ public class MessagePersister implements Managed {
                             }
                         } catch (final Throwable t) {
                             logger.warn("Failed to persist queues", t);
-                            Util.sleep(EXCEPTION_PAUSE_MILLIS);
+                            Util.sleep(UNEXPECTED_EXCEPTION_PAUSE_MILLIS);
                         }
                     }
                 }
@@ -108,12 +138,19 @@ public class MessagePersister implements Managed {
                 logger.warn("Interrupted while waiting for worker thread to complete current operation");
             }
         }
+
+        persistQueueExecutor.shutdown();
     }
 
     @VisibleForTesting
     int persistNextQueues(final Instant currentTime) {
         final int slot = messagesCache.getNextSlotToPersist();
 
+        messagesCache.getOldestQueueToPersistTime(slot).ifPresent(oldestQueueTime -> {
+            final Duration lag = Duration.between(oldestQueueTime.plus(persistDelay), currentTime);
+            oldestQueueLagTimer.update(lag.isNegative() ? 0 : lag.toMillis(), TimeUnit.MILLISECONDS);
+        });
+
         List<String> queuesToPersist;
         int queuesPersisted = 0;
 
@@ -122,21 +159,11 @@ public class MessagePersister implements Managed {
                 queuesToPersist = messagesCache.getQueuesToPersist(slot, currentTime.minus(persistDelay), QUEUE_BATCH_LIMIT);
             }
 
-            for (final String queue : queuesToPersist) {
-                final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
-                final long deviceId    = MessagesCache.getDeviceIdFromQueueName(queue);
-
-                try {
-                    persistQueue(accountUuid, deviceId);
-                } catch (final Exception e) {
-                    persistQueueExceptionMeter.mark();
-                    logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
+            final CompletableFuture<?>[] persistFutures = queuesToPersist.stream()
+                .map(queue -> CompletableFuture.runAsync(() -> persistQueueOrReschedule(queue), persistQueueExecutor))
+                .toArray(CompletableFuture[]::new);
 
-                    messagesCache.addQueueToPersist(accountUuid, deviceId);
-
-                    Util.sleep(EXCEPTION_PAUSE_MILLIS);
-                }
-            }
+            CompletableFuture.allOf(persistFutures).join();
 
             queuesPersisted += queuesToPersist.size();
         } while (queuesToPersist.size() >= QUEUE_BATCH_LIMIT);
@@ -144,6 +171,33 @@ public class MessagePersister implements Managed {
         return queuesPersisted;
     }
 
+    private void persistQueueOrReschedule(final String queue) {
+        final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
+        final long deviceId    = MessagesCache.getDeviceIdFromQueueName(queue);
+
+        try {
+            persistQueue(accountUuid, deviceId);
+            consecutiveFailuresByQueue.invalidate(queue);
+        } catch (final Exception e) {
+            persistQueueExceptionMeter.mark();
+
+            final Duration backoff = getRetryBackoff(consecutiveFailuresByQueue.asMap().merge(queue, 1, Integer::sum));
+
+            logger.warn("Failed to persist queue {}::{}; will retry in {}", accountUuid, deviceId, backoff, e);
+
+            // Make the queue eligible for persistence again after the backoff period rather than the full persist delay
+            messagesCache.addQueueToPersist(accountUuid, deviceId, Instant.now().minus(persistDelay).plus(backoff));
+        }
+    }
+
+    @VisibleForTesting
+    static Duration getRetryBackoff(final int consecutiveFailures) {
+        final int exponent = Math.min(Math.max(consecutiveFailures - 1, 0), 16);
+        final Duration backoff = INITIAL_RETRY_BACKOFF.multipliedBy(1L << exponent);
+
+        return backoff.compareTo(MAX_RETRY_BACKOFF) > 0 ? MAX_RETRY_BACKOFF : backoff;
+    }
+
     @VisibleForTesting
     void persistQueue(final UUID accountUuid, final long deviceId) {
         final Optional<Account> maybeAccount = accountsManager.get(accountUuid);
@@ -156,22 +210,33 @@ public class MessagePersister implements Managed {
         try (final Timer.Context ignored = persistQueueTimer.time()) {
             messagesCache.lockQueueForPersistence(accountUuid, deviceId);
 
+            final List<CompletableFuture<Void>> removalFutures = new ArrayList<>();
+
             try {
               int messageCount = 0;
-              List<MessageProtos.Envelope> messages;
+              long lastMessageId = -1;
+              List<ScoredValue<MessageProtos.Envelope>> messages;
 
               do {
-                messages = messagesCache.getMessagesToPersist(accountUuid, deviceId, MESSAGE_BATCH_LIMIT);
-
-                messagesManager.persistMessages(accountUuid, deviceId, messages);
-                messageCount += messages.size();
+                messages = messagesCache.getMessagesToPersist(accountUuid, deviceId, lastMessageId, MESSAGE_BATCH_LIMIT);
 
+                if (!messages.isEmpty()) {
+                  // Removing this page from the cache overlaps with writing the next page to DynamoDB
+                  removalFutures.add(messagesManager.persistMessages(accountUuid, deviceId,
+                      messages.stream().map(ScoredValue::getValue).collect(Collectors.toList())));
 
+                  messageCount += messages.size();
+                  lastMessageId = (long) messages.get(messages.size() - 1).getScore();
+                }
               } while (!messages.isEmpty());
 
               queueSizeHistogram.update(messageCount);
             } finally {
-              messagesCache.unlockQueueForPersistence(accountUuid, deviceId);
+              try {
+                CompletableFuture.allOf(removalFutures.toArray(new CompletableFuture[0])).join();
+              } finally {
+                messagesCache.unlockQueueForPersistence(accountUuid, deviceId);
+              }
             }
         }
     }
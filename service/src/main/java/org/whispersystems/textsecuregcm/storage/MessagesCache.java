@@ -10,6 +10,8 @@ import static com.codahale.metrics.MetricRegistry.name;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
 import io.lettuce.core.ScoredValue;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.ZAddArgs;
@@ -26,14 +28,12 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
@@ -41,8 +41,10 @@ import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.MessageProtos;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
+import org.whispersystems.textsecuregcm.redis.ClusterPubSubSubscriptionManager;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantPubSubConnection;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.util.RedisClusterUtil;
 
 public class MessagesCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
@@ -58,8 +60,11 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private final ClusterLuaScript removeQueueScript;
   private final ClusterLuaScript getQueuesToPersistScript;
 
-  private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new HashMap<>();
-  private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new IdentityHashMap<>();
+  private final ClusterPubSubSubscriptionManager subscriptionManager;
+
+  private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new ConcurrentHashMap<>();
+  private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new ConcurrentHashMap<>();
+  private final Map<String, LocalQueueNotificationTracker> notificationTrackersByQueueName = new ConcurrentHashMap<>();
 
   private final Timer insertTimer = Metrics.timer(name(MessagesCache.class, "insert"));
   private final Timer getMessagesTimer = Metrics.timer(name(MessagesCache.class, "get"));
@@ -68,6 +73,10 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private final Counter pubSubMessageCounter = Metrics.counter(name(MessagesCache.class, "pubSubMessage"));
   private final Counter newMessageNotificationCounter = Metrics.counter(
       name(MessagesCache.class, "newMessageNotification"));
+  private final Counter localNewMessageNotificationCounter = Metrics.counter(
+      name(MessagesCache.class, "localNewMessageNotification"));
+  private final Counter redundantNewMessageNotificationCounter = Metrics.counter(
+      name(MessagesCache.class, "redundantNewMessageNotification"));
   private final Counter queuePersistedNotificationCounter = Metrics.counter(
       name(MessagesCache.class, "queuePersisted"));
   private final Counter staleEphemeralMessagesCounter = Metrics.counter(
@@ -93,6 +102,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
     this.readDeleteCluster = readDeleteCluster;
     this.pubSubConnection = readDeleteCluster.createPubSubConnection();
+    this.subscriptionManager = new ClusterPubSubSubscriptionManager(pubSubConnection, "messages");
 
     this.notificationExecutorService = notificationExecutorService;
 
@@ -124,27 +134,73 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private void resubscribeAll() {
     logger.info("Got topology change event, resubscribing all keyspace notifications");
 
-    final Set<String> queueNames;
-
-    synchronized (messageListenersByQueueName) {
-      queueNames = new HashSet<>(messageListenersByQueueName.keySet());
-    }
+    subscriptionManager.resubscribeAll().whenComplete((ignored, cause) -> {
+      if (cause != null) {
+        logger.warn("Failed to resubscribe to some keyspace notifications", cause);
+      }
+    });
+  }
 
-    for (final String queueName : queueNames) {
-      subscribeForKeyspaceNotifications(queueName);
+  public long insert(final UUID guid, final UUID destinationUuid, final long destinationDevice,
+      final MessageProtos.Envelope message) {
+    final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
+    final String queueName = getQueueName(destinationUuid, destinationDevice);
+    final Optional<LocalQueueNotificationTracker> maybeTracker = startTrackingInsertion(queueName);
+
+    try {
+      return (long) insertTimer.record(() ->
+          insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+                  getMessageQueueMetadataKey(destinationUuid, destinationDevice),
+                  getQueueIndexKey(destinationUuid, destinationDevice)),
+              List.of(messageWithGuid.toByteArray(),
+                  String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
+                  guid.toString().getBytes(StandardCharsets.UTF_8))));
+    } finally {
+      maybeTracker.ifPresent(tracker -> finishTrackingInsertion(queueName, tracker));
     }
   }
 
-  public long insert(final UUID guid, final UUID destinationUuid, final long destinationDevice,
+  /**
+   * Inserts a message into a queue without blocking the calling thread. Callers inserting many messages at once may
+   * issue several insertions before waiting for any of them, in which case the insertions share round trips to each
+   * cluster node.
+   *
+   * @return a future that yields the ID of the inserted message within its queue
+   */
+  public CompletableFuture<Long> insertAsync(final UUID guid, final UUID destinationUuid, final long destinationDevice,
       final MessageProtos.Envelope message) {
     final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
-    return (long) insertTimer.record(() ->
-        insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+    final String queueName = getQueueName(destinationUuid, destinationDevice);
+    final Optional<LocalQueueNotificationTracker> maybeTracker = startTrackingInsertion(queueName);
+    final Timer.Sample sample = Timer.start();
+
+    return insertScript.executeBinaryAsync(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
                 getMessageQueueMetadataKey(destinationUuid, destinationDevice),
                 getQueueIndexKey(destinationUuid, destinationDevice)),
             List.of(messageWithGuid.toByteArray(),
                 String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
-                guid.toString().getBytes(StandardCharsets.UTF_8))));
+                guid.toString().getBytes(StandardCharsets.UTF_8)))
+        .thenApply(messageId -> (long) messageId)
+        .whenComplete((ignored, cause) -> {
+          sample.stop(insertTimer);
+          maybeTracker.ifPresent(tracker -> finishTrackingInsertion(queueName, tracker));
+        });
+  }
+
+  private Optional<LocalQueueNotificationTracker> startTrackingInsertion(final String queueName) {
+    final Optional<LocalQueueNotificationTracker> maybeTracker =
+        Optional.ofNullable(notificationTrackersByQueueName.get(queueName));
+
+    maybeTracker.ifPresent(LocalQueueNotificationTracker::handleInsertionStarted);
+
+    return maybeTracker;
+  }
+
+  private void finishTrackingInsertion(final String queueName, final LocalQueueNotificationTracker tracker) {
+    if (tracker.handleInsertionCompleted()) {
+      // A keyspace notification was held back while the insertion was in progress; deliver it now
+      dispatchNewMessagesAvailable(queueName);
+    }
   }
 
   public Optional<OutgoingMessageEntity> remove(final UUID destinationUuid, final long destinationDevice,
@@ -176,18 +232,46 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     return removedMessages;
   }
 
+  /**
+   * Removes the messages with the given GUIDs from the given queue without waiting for or parsing the removed messages.
+   */
+  CompletableFuture<Void> removeAsync(final UUID destinationUuid, final long destinationDevice,
+      final List<UUID> messageGuids) {
+
+    return removeByGuidScript.executeBinaryAsync(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+                getMessageQueueMetadataKey(destinationUuid, destinationDevice),
+                getQueueIndexKey(destinationUuid, destinationDevice)),
+            messageGuids.stream().map(guid -> guid.toString().getBytes(StandardCharsets.UTF_8))
+                .collect(Collectors.toList()))
+        .thenAccept(ignored -> {});
+  }
+
   public boolean hasMessages(final UUID destinationUuid, final long destinationDevice) {
     return readDeleteCluster.withBinaryCluster(
         connection -> connection.sync().zcard(getMessageQueueKey(destinationUuid, destinationDevice)) > 0);
   }
 
-  @SuppressWarnings("unchecked")
   public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit) {
+    return get(destinationUuid, destinationDevice, limit, Optional.empty());
+  }
+
+  /**
+   * Returns up to {@code limit} messages from the given queue, starting after the message with the given ID (as
+   * returned by {@link OutgoingMessageEntity#getId()}) if present or at the head of the queue otherwise.
+   */
+  @SuppressWarnings({"unchecked", "OptionalUsedAsFieldOrParameterType"})
+  public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit,
+      final Optional<Long> afterMessageId) {
+
     return getMessagesTimer.record(() -> {
+      final List<byte[]> args = new ArrayList<>(2);
+      args.add(String.valueOf(limit).getBytes(StandardCharsets.UTF_8));
+      afterMessageId.ifPresent(id -> args.add(String.valueOf(id).getBytes(StandardCharsets.UTF_8)));
+
       final List<byte[]> queueItems = (List<byte[]>) getItemsScript.executeBinary(
           List.of(getMessageQueueKey(destinationUuid, destinationDevice),
               getPersistInProgressKey(destinationUuid, destinationDevice)),
-          List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8)));
+          args);
 
       final long earliestAllowableEphemeralTimestamp =
           System.currentTimeMillis() - MAX_EPHEMERAL_MESSAGE_DELAY.toMillis();
@@ -229,18 +313,27 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     });
   }
 
-  @VisibleForTesting
-  List<MessageProtos.Envelope> getMessagesToPersist(final UUID accountUuid, final long destinationDevice,
-      final int limit) {
+  /**
+   * Returns up to {@code limit} messages from the given queue with message IDs (scores) strictly greater than
+   * {@code afterMessageId}, along with their message IDs, so callers can page through a queue while earlier pages are
+   * still being removed.
+   */
+  List<ScoredValue<MessageProtos.Envelope>> getMessagesToPersist(final UUID accountUuid, final long destinationDevice,
+      final long afterMessageId, final int limit) {
+
     return getMessagesTimer.record(() -> {
       final List<ScoredValue<byte[]>> scoredMessages = readDeleteCluster.withBinaryCluster(
           connection -> connection.sync()
-              .zrangeWithScores(getMessageQueueKey(accountUuid, destinationDevice), 0, limit));
-      final List<MessageProtos.Envelope> envelopes = new ArrayList<>(scoredMessages.size());
+              .zrangebyscoreWithScores(getMessageQueueKey(accountUuid, destinationDevice),
+                  Range.create(afterMessageId, Double.POSITIVE_INFINITY).gt(afterMessageId),
+                  Limit.create(0, limit)));
+
+      final List<ScoredValue<MessageProtos.Envelope>> envelopes = new ArrayList<>(scoredMessages.size());
 
       for (final ScoredValue<byte[]> scoredMessage : scoredMessages) {
         try {
-          envelopes.add(MessageProtos.Envelope.parseFrom(scoredMessage.getValue()));
+          envelopes.add(ScoredValue.just(scoredMessage.getScore(),
+              MessageProtos.Envelope.parseFrom(scoredMessage.getValue())));
         } catch (InvalidProtocolBufferException e) {
           logger.warn("Failed to parse envelope", e);
         }
@@ -281,11 +374,31 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   void addQueueToPersist(final UUID accountUuid, final long deviceId) {
+    addQueueToPersist(accountUuid, deviceId, Instant.now());
+  }
+
+  /**
+   * Adds the given queue to the persistence index as if its oldest unpersisted message had arrived at the given time;
+   * the queue becomes eligible for persistence once the persistence delay has elapsed after that time.
+   */
+  void addQueueToPersist(final UUID accountUuid, final long deviceId, final Instant queueTime) {
     readDeleteCluster.useBinaryCluster(connection -> connection.sync()
-        .zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), System.currentTimeMillis(),
+        .zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), queueTime.toEpochMilli(),
             getMessageQueueKey(accountUuid, deviceId)));
   }
 
+  /**
+   * Returns the time at which the oldest queue in the given slot's persistence index was added to the index, if any.
+   */
+  Optional<Instant> getOldestQueueToPersistTime(final int slot) {
+    final List<ScoredValue<byte[]>> oldestQueues = readDeleteCluster.withBinaryCluster(connection ->
+        connection.sync().zrangeWithScores(getQueueIndexKey(slot), 0, 0));
+
+    return oldestQueues.stream()
+        .findFirst()
+        .map(scoredValue -> Instant.ofEpochMilli((long) scoredValue.getScore()));
+  }
+
   void lockQueueForPersistence(final UUID accountUuid, final long deviceId) {
     readDeleteCluster.useBinaryCluster(
         connection -> connection.sync().setex(getPersistInProgressKey(accountUuid, deviceId), 30, LOCK_VALUE));
@@ -300,39 +413,57 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
       final MessageAvailabilityListener listener) {
     final String queueName = getQueueName(destinationUuid, deviceId);
 
-    synchronized (messageListenersByQueueName) {
-      messageListenersByQueueName.put(queueName, listener);
-      queueNamesByMessageListener.put(listener, queueName);
-    }
+    queueNamesByMessageListener.put(listener, queueName);
+    notificationTrackersByQueueName.put(queueName, new LocalQueueNotificationTracker());
+    messageListenersByQueueName.put(queueName, listener);
 
-    subscribeForKeyspaceNotifications(queueName);
+    // Wait for the subscription so callers don't miss messages that arrive as soon as this method returns
+    RedisOperation.join(subscriptionManager.subscribe(getKeyspaceChannels(queueName)));
   }
 
   public void removeMessageAvailabilityListener(final MessageAvailabilityListener listener) {
     final String queueName = queueNamesByMessageListener.remove(listener);
 
-    unsubscribeFromKeyspaceNotifications(queueName);
-
-    synchronized (messageListenersByQueueName) {
-      if (queueName != null) {
-        messageListenersByQueueName.remove(queueName);
-      }
+    // A newer listener (e.g. from a client that reconnected) may have replaced this one; leave its subscription alone
+    if (queueName != null && messageListenersByQueueName.remove(queueName, listener)) {
+      notificationTrackersByQueueName.remove(queueName);
+      subscriptionManager.unsubscribe(getKeyspaceChannels(queueName));
     }
   }
 
-  private void subscribeForKeyspaceNotifications(final String queueName) {
-    final int slot = SlotHash.getSlot(queueName);
+  /**
+   * Tells the listener registered on this server for the given queue, if any, that new messages are available without
+   * waiting for the keyspace notification for the insertion to make its way back from Redis. That notification is
+   * dropped when this signal is known to cover it; listeners must still tolerate the occasional redundant notification.
+   *
+   * @return {@code true} if a listener for the given queue is registered on this server and has been notified
+   */
+  public boolean notifyLocalListener(final UUID destinationUuid, final long deviceId) {
+    final String queueName = getQueueName(destinationUuid, deviceId);
+    final MessageAvailabilityListener listener = messageListenersByQueueName.get(queueName);
 
-    pubSubConnection.usePubSubConnection(
-        connection -> connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
-            .commands()
-            .subscribe(getKeyspaceChannels(queueName)));
-  }
+    if (listener == null) {
+      return false;
+    }
 
-  private void unsubscribeFromKeyspaceNotifications(final String queueName) {
-    pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream()
-        .commands()
-        .unsubscribe(getKeyspaceChannels(queueName)));
+    localNewMessageNotificationCounter.increment();
+
+    final LocalQueueNotificationTracker tracker = notificationTrackersByQueueName.get(queueName);
+
+    if (tracker != null && !tracker.handleLocalNotification()) {
+      redundantNewMessageNotificationCounter.increment();
+      return true;
+    }
+
+    notificationExecutorService.execute(() -> {
+      try {
+        listener.handleNewMessagesAvailable();
+      } catch (final Exception e) {
+        logger.warn("Unexpected error handling new message", e);
+      }
+    });
+
+    return true;
   }
 
   private static String[] getKeyspaceChannels(final String queueName) {
@@ -348,13 +479,16 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
     if (channel.startsWith(QUEUE_KEYSPACE_PREFIX) && "zadd".equals(message)) {
       newMessageNotificationCounter.increment();
-      notificationExecutorService.execute(() -> {
-        try {
-          findListener(channel).ifPresent(MessageAvailabilityListener::handleNewMessagesAvailable);
-        } catch (final Exception e) {
-          logger.warn("Unexpected error handling new message", e);
-        }
-      });
+
+      final String queueName = getQueueNameFromKeyspaceChannel(channel);
+      final LocalQueueNotificationTracker tracker = notificationTrackersByQueueName.get(queueName);
+
+      if (tracker != null && !tracker.handleKeyspaceNotification()) {
+        redundantNewMessageNotificationCounter.increment();
+        return;
+      }
+
+      dispatchNewMessagesAvailable(queueName);
     } else if (channel.startsWith(PERSISTING_KEYSPACE_PREFIX) && "del".equals(message)) {
       queuePersistedNotificationCounter.increment();
       notificationExecutorService.execute(() -> {
@@ -367,12 +501,19 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     }
   }
 
-  private Optional<MessageAvailabilityListener> findListener(final String keyspaceChannel) {
-    final String queueName = getQueueNameFromKeyspaceChannel(keyspaceChannel);
+  private void dispatchNewMessagesAvailable(final String queueName) {
+    notificationExecutorService.execute(() -> {
+      try {
+        Optional.ofNullable(messageListenersByQueueName.get(queueName))
+            .ifPresent(MessageAvailabilityListener::handleNewMessagesAvailable);
+      } catch (final Exception e) {
+        logger.warn("Unexpected error handling new message", e);
+      }
+    });
+  }
 
-    synchronized (messageListenersByQueueName) {
-      return Optional.ofNullable(messageListenersByQueueName.get(queueName));
-    }
+  private Optional<MessageAvailabilityListener> findListener(final String keyspaceChannel) {
+    return Optional.ofNullable(messageListenersByQueueName.get(getQueueNameFromKeyspaceChannel(keyspaceChannel)));
   }
 
   @VisibleForTesting
@@ -413,7 +554,14 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   }
 
   private static byte[] getQueueIndexKey(final UUID accountUuid, final long deviceId) {
-    return getQueueIndexKey(SlotHash.getSlot(accountUuid.toString() + "::" + deviceId));
+    return getQueueIndexKey(getQueueSlot(accountUuid, deviceId));
+  }
+
+  /**
+   * Returns the cluster slot that holds all of the keys for the given destination's message queue.
+   */
+  static int getQueueSlot(final UUID accountUuid, final long deviceId) {
+    return SlotHash.getSlot(accountUuid.toString() + "::" + deviceId);
   }
 
   private static byte[] getQueueIndexKey(final int slot) {
@@ -53,6 +53,7 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
   private final Timer storeTimer = timer(name(getClass(), "store"));
   private final Timer loadTimer = timer(name(getClass(), "load"));
   private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
+  private final Timer deleteBatch = timer(name(getClass(), "delete", "batch"));
   private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
   private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
 
@@ -113,10 +114,19 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
   }
 
   public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+    return load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch, Optional.empty());
+  }
+
+  /**
+   * Loads messages for the given device, starting after the given previously-loaded message if present.
+   */
+  @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+  public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId,
+      final int requestedNumberOfMessagesToFetch, final Optional<OutgoingMessageEntity> afterMessage) {
     return loadTimer.record(() -> {
       final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-      final QueryRequest queryRequest = QueryRequest.builder()
+      final QueryRequest.Builder queryRequestBuilder = QueryRequest.builder()
           .tableName(tableName)
           .consistentRead(true)
           .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
@@ -126,8 +136,13 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
           .expressionAttributeValues(Map.of(
               ":part", partitionKey,
               ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
-          .limit(numberOfMessagesToFetch)
-          .build();
+          .limit(numberOfMessagesToFetch);
+
+      afterMessage.ifPresent(message -> queryRequestBuilder.exclusiveStartKey(Map.of(
+          KEY_PARTITION, partitionKey,
+          KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), message.getGuid()))));
+
+      final QueryRequest queryRequest = queryRequestBuilder.build();
       List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
       for (Map<String, AttributeValue> message : db().queryPaginator(queryRequest).items()) {
         messageEntities.add(convertItemToOutgoingMessageEntity(message));
@@ -162,6 +177,31 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
     });
   }
 
+  /**
+   * Deletes the given messages for a single destination device with batched writes. Unlike
+   * {@link #deleteMessageByDestinationAndGuid(UUID, UUID)}, this does not need to query the message UUID index because
+   * the sort key can be reconstructed from the device ID, server timestamp and GUID of each message.
+   */
+  public void deleteMessages(final UUID destinationAccountUuid, final long destinationDeviceId,
+      final List<OutgoingMessageEntity> messages) {
+    deleteBatch.record(() -> {
+      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
+
+      writeInBatches(messages, messageBatch -> {
+        final List<WriteRequest> deletes = messageBatch.stream()
+            .map(message -> WriteRequest.builder()
+                .deleteRequest(DeleteRequest.builder().key(Map.of(
+                    KEY_PARTITION, partitionKey,
+                    KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), message.getGuid())))
+                    .build())
+                .build())
+            .collect(Collectors.toList());
+
+        executeTableWriteItemsUntilComplete(Map.of(tableName, deletes));
+      });
+    });
+  }
+
   @Nonnull
   private Optional<OutgoingMessageEntity> deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(AttributeValue partitionKey, QueryRequest queryRequest) {
     Optional<OutgoingMessageEntity> result = Optional.empty();
@@ -10,20 +10,29 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.whispersystems.textsecuregcm.metrics.PushLatencyManager;
 import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 public class MessagesManager {
 
-  private static final int RESULT_SET_CHUNK_SIZE = 100;
+  public static final int RESULT_SET_CHUNK_SIZE = 100;
 
   private static final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private static final Meter cacheHitByGuidMeter = metricRegistry.meter(name(MessagesManager.class, "cacheHitByGuid"));
@@ -31,6 +40,8 @@ public class MessagesManager {
       name(MessagesManager.class, "cacheMissByGuid"));
   private static final Meter persistMessageMeter = metricRegistry.meter(name(MessagesManager.class, "persistMessage"));
 
+  private static final Logger logger = LoggerFactory.getLogger(MessagesManager.class);
+
   private final MessagesDynamoDb messagesDynamoDb;
   private final MessagesCache messagesCache;
   private final PushLatencyManager pushLatencyManager;
@@ -57,21 +68,82 @@ public class MessagesManager {
     }
   }
 
+  /**
+   * Inserts a batch of messages, each destined for a different device, without waiting for each insertion to complete
+   * before issuing the next. Insertions are issued in cluster slot order so that insertions bound for the same cluster
+   * node are written to its connection back-to-back and share round trips. Each insertion succeeds or fails on its own;
+   * a failed insertion does not prevent or undo any other insertion in the batch.
+   *
+   * @param messagesByDestination a map of (account UUID, device ID) pairs to the message to insert for that device
+   *
+   * @return the destinations for which insertion failed
+   */
+  public Set<Pair<UUID, Long>> insert(final Map<Pair<UUID, Long>, Envelope> messagesByDestination) {
+    final List<Pair<UUID, Long>> destinations = new ArrayList<>(messagesByDestination.keySet());
+    destinations.sort(Comparator.comparingInt(destination ->
+        MessagesCache.getQueueSlot(destination.first(), destination.second())));
+
+    final Map<Pair<UUID, Long>, UUID> messageGuidsByDestination = new HashMap<>();
+    final Map<Pair<UUID, Long>, CompletableFuture<Long>> insertFuturesByDestination = new HashMap<>();
+
+    for (final Pair<UUID, Long> destination : destinations) {
+      final UUID messageGuid = UUID.randomUUID();
+      messageGuidsByDestination.put(destination, messageGuid);
+
+      insertFuturesByDestination.put(destination, messagesCache.insertAsync(messageGuid, destination.first(),
+          destination.second(), messagesByDestination.get(destination)));
+    }
+
+    final Set<Pair<UUID, Long>> failedDestinations = new HashSet<>();
+
+    insertFuturesByDestination.forEach((destination, insertFuture) -> {
+      try {
+        RedisOperation.join(insertFuture);
+      } catch (final RuntimeException e) {
+        logger.warn("Failed to insert message", e);
+        failedDestinations.add(destination);
+        return;
+      }
+
+      final Envelope message = messagesByDestination.get(destination);
+
+      if (message.hasSource() && !destination.first().toString().equals(message.getSourceUuid())) {
+        reportMessageManager.store(message.getSource(), messageGuidsByDestination.get(destination));
+      }
+    });
+
+    return failedDestinations;
+  }
+
   public boolean hasCachedMessages(final UUID destinationUuid, final long destinationDevice) {
     return messagesCache.hasMessages(destinationUuid, destinationDevice);
   }
 
   public OutgoingMessageEntityList getMessagesForDevice(UUID destinationUuid, long destinationDevice, final String userAgent, final boolean cachedMessagesOnly) {
+    return getMessagesForDevice(destinationUuid, destinationDevice, userAgent, cachedMessagesOnly, Optional.empty());
+  }
+
+  /**
+   * Returns the next page of messages for the given device, starting after the given message (the last message of a
+   * previous page) if present. Persisted messages always come before cached messages, so a page that ends with a
+   * cached message means there are no more persisted messages to fetch.
+   */
+  @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+  public OutgoingMessageEntityList getMessagesForDevice(UUID destinationUuid, long destinationDevice,
+      final String userAgent, final boolean cachedMessagesOnly, final Optional<OutgoingMessageEntity> afterMessage) {
     RedisOperation.unchecked(() -> pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent));
 
     List<OutgoingMessageEntity> messageList = new ArrayList<>();
 
-    if (!cachedMessagesOnly) {
-      messageList.addAll(messagesDynamoDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE));
+    final Optional<OutgoingMessageEntity> afterCachedMessage = afterMessage.filter(OutgoingMessageEntity::isCached);
+
+    if (!cachedMessagesOnly && afterCachedMessage.isEmpty()) {
+      messageList.addAll(messagesDynamoDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE, afterMessage));
     }
 
     if (messageList.size() < RESULT_SET_CHUNK_SIZE) {
-      messageList.addAll(messagesCache.get(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - messageList.size()));
+      messageList.addAll(messagesCache.get(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE - messageList.size(),
+          afterCachedMessage.map(OutgoingMessageEntity::getId)));
     }
 
     return new OutgoingMessageEntityList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE);
@@ -100,7 +172,41 @@ public class MessagesManager {
     return removed;
   }
 
-  public void persistMessages(
+  /**
+   * Removes a batch of messages, all destined for the same device, with a single cache operation and a single
+   * DynamoDB batch write for any messages that were no longer in the cache.
+   */
+  public void delete(final UUID destinationUuid, final long destinationDeviceId,
+      final List<OutgoingMessageEntity> messages) {
+
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    final Set<UUID> removedFromCache = messagesCache.remove(destinationUuid, destinationDeviceId,
+            messages.stream().map(OutgoingMessageEntity::getGuid).collect(Collectors.toList()))
+        .stream()
+        .map(OutgoingMessageEntity::getGuid)
+        .collect(Collectors.toSet());
+
+    final List<OutgoingMessageEntity> persistedMessages = messages.stream()
+        .filter(message -> !removedFromCache.contains(message.getGuid()))
+        .collect(Collectors.toList());
+
+    if (!persistedMessages.isEmpty()) {
+      messagesDynamoDb.deleteMessages(destinationUuid, destinationDeviceId, persistedMessages);
+    }
+
+    cacheHitByGuidMeter.mark(messages.size() - persistedMessages.size());
+    cacheMissByGuidMeter.mark(persistedMessages.size());
+  }
+
+  /**
+   * Writes the given messages to DynamoDB and then removes them from the message cache. The write to DynamoDB
+   * completes before this method returns, but the removal from the cache happens asynchronously; the returned future
+   * completes when the messages have been removed from the cache.
+   */
+  public CompletableFuture<Void> persistMessages(
       final UUID destinationUuid,
       final long destinationDeviceId,
       final List<Envelope> messages) {
@@ -110,10 +216,10 @@ public class MessagesManager {
         .collect(Collectors.toList());
 
     messagesDynamoDb.store(nonEphemeralMessages, destinationUuid, destinationDeviceId);
-    messagesCache.remove(destinationUuid, destinationDeviceId,
-        messages.stream().map(message -> UUID.fromString(message.getServerGuid())).collect(Collectors.toList()));
-
     persistMessageMeter.mark(nonEphemeralMessages.size());
+
+    return messagesCache.removeAsync(destinationUuid, destinationDeviceId,
+        messages.stream().map(message -> UUID.fromString(message.getServerGuid())).collect(Collectors.toList()));
   }
 
   public void addMessageAvailabilityListener(
@@ -126,4 +232,11 @@ public class MessagesManager {
   public void removeMessageAvailabilityListener(final MessageAvailabilityListener listener) {
     messagesCache.removeMessageAvailabilityListener(listener);
   }
+
+  /**
+   * @see MessagesCache#notifyLocalListener(UUID, long)
+   */
+  public boolean notifyLocalMessageAvailabilityListener(final UUID destinationUuid, final long destinationDeviceId) {
+    return messagesCache.notifyLocalListener(destinationUuid, destinationDeviceId);
+  }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Repairs drift between each device's stored pre-key counter and its actual number of pre-keys as the account crawler
+ * passes over it.
+ *
+ * @see KeysDynamoDb#reconcileCount(UUID, long)
+ */
+public class PreKeyCountReconciler extends AccountDatabaseCrawlerListener {
+
+  private final KeysDynamoDb keysDynamoDb;
+
+  private static final Counter RECONCILED_DEVICE_COUNTER = Metrics.counter(
+      name(PreKeyCountReconciler.class, "reconciledDevices"));
+  private static final Counter DRIFTED_DEVICE_COUNTER = Metrics.counter(
+      name(PreKeyCountReconciler.class, "driftedDevices"));
+  private static final DistributionSummary DRIFT_DISTRIBUTION = Metrics.summary(
+      name(PreKeyCountReconciler.class, "drift"));
+
+  private static final Logger log = LoggerFactory.getLogger(PreKeyCountReconciler.class);
+
+  public PreKeyCountReconciler(final KeysDynamoDb keysDynamoDb) {
+    this.keysDynamoDb = keysDynamoDb;
+  }
+
+  @Override
+  public void onCrawlStart() {
+  }
+
+  @Override
+  public void onCrawlEnd(final Optional<UUID> fromUuid) {
+  }
+
+  @Override
+  protected void onCrawlChunk(final Optional<UUID> fromUuid, final List<Account> chunkAccounts) {
+    for (final Account account : chunkAccounts) {
+      for (final Device device : account.getDevices()) {
+        try {
+          final long drift = keysDynamoDb.reconcileCount(account.getUuid(), device.getId());
+
+          RECONCILED_DEVICE_COUNTER.increment();
+
+          if (drift != 0) {
+            DRIFTED_DEVICE_COUNTER.increment();
+            DRIFT_DISTRIBUTION.record(Math.abs(drift));
+          }
+        } catch (final Exception e) {
+          log.warn("Failed to reconcile pre-key count for {}.{}", account.getUuid(), device.getId(), e);
+        }
+      }
+    }
+  }
+}
@@ -34,6 +34,23 @@ public class DynamoDbFromConfig {
     return builder.build();
   }
 
+  public static DynamoDbAsyncClient asyncClient(DynamoDbConfiguration config,
+      AwsCredentialsProvider credentialsProvider) {
+    DynamoDbAsyncClientBuilder builder = DynamoDbAsyncClient.builder()
+        .region(Region.of(config.getRegion()))
+        .overrideConfiguration(ClientOverrideConfiguration.builder()
+            .apiCallTimeout(config.getClientExecutionTimeout())
+            .apiCallAttemptTimeout(config.getClientRequestTimeout())
+            .build());
+    final String endpoint = System.getenv("AWS_ENDPOINT_OVERRIDE");
+    if (endpoint != null && !endpoint.isEmpty()) {
+      builder.endpointOverride(URI.create(endpoint));
+    } else {
+      builder.credentialsProvider(credentialsProvider);
+    }
+    return builder.build();
+  }
+
   public static DynamoDbAsyncClient asyncClient(
       DynamoDbClientConfiguration config,
       AwsCredentialsProvider credentialsProvider) {
@@ -18,11 +18,13 @@ import org.whispersystems.textsecuregcm.auth.AuthenticatedAccount;
 import org.whispersystems.textsecuregcm.push.ApnFallbackManager;
 import org.whispersystems.textsecuregcm.push.ClientPresenceManager;
 import org.whispersystems.textsecuregcm.push.MessageSender;
+import org.whispersystems.textsecuregcm.push.PushNotificationCoalescer;
 import org.whispersystems.textsecuregcm.push.ReceiptSender;
 import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
 import org.whispersystems.textsecuregcm.util.Constants;
+import org.whispersystems.websocket.configuration.WebSocketConfiguration;
 import org.whispersystems.websocket.session.WebSocketSessionContext;
 import org.whispersystems.websocket.setup.WebSocketConnectListener;
 
@@ -40,20 +42,26 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
   private final MessageSender         messageSender;
   private final ApnFallbackManager    apnFallbackManager;
   private final ClientPresenceManager clientPresenceManager;
+  private final PushNotificationCoalescer pushNotificationCoalescer;
   private final ScheduledExecutorService retrySchedulingExecutor;
+  private final WebSocketConfiguration webSocketConfiguration;
 
   public AuthenticatedConnectListener(ReceiptSender receiptSender,
       MessagesManager messagesManager,
       final MessageSender messageSender, ApnFallbackManager apnFallbackManager,
       ClientPresenceManager clientPresenceManager,
-      ScheduledExecutorService retrySchedulingExecutor)
+      PushNotificationCoalescer pushNotificationCoalescer,
+      ScheduledExecutorService retrySchedulingExecutor,
+      WebSocketConfiguration webSocketConfiguration)
   {
     this.receiptSender         = receiptSender;
     this.messagesManager       = messagesManager;
     this.messageSender         = messageSender;
     this.apnFallbackManager    = apnFallbackManager;
     this.clientPresenceManager = clientPresenceManager;
+    this.pushNotificationCoalescer = pushNotificationCoalescer;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.webSocketConfiguration = webSocketConfiguration;
   }
 
   @Override
@@ -65,10 +73,12 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
       final WebSocketConnection connection = new WebSocketConnection(receiptSender,
           messagesManager, auth, device,
           context.getClient(),
-          retrySchedulingExecutor);
+          retrySchedulingExecutor,
+          platform -> webSocketConfiguration.getMaxInFlightMessages(platform.map(Enum::name)));
 
       openWebsocketCounter.inc();
       RedisOperation.unchecked(() -> apnFallbackManager.cancel(auth.getAccount(), device));
+      RedisOperation.unchecked(() -> pushNotificationCoalescer.clear(auth.getAccount().getUuid(), device.getId()));
 
       context.addListener(new WebSocketSessionContext.WebSocketEventListener() {
         @Override
@@ -78,8 +88,13 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
 
           connection.stop();
 
-          RedisOperation.unchecked(
-              () -> clientPresenceManager.clearPresence(auth.getAccount().getUuid(), device.getId()));
+          clientPresenceManager.clearPresenceAsync(auth.getAccount().getUuid(), device.getId(), connection)
+              .whenComplete((ignored, cause) -> {
+                if (cause != null) {
+                  log.warn("Failed to clear presence", cause);
+                }
+              });
+
           RedisOperation.unchecked(() -> {
             messagesManager.removeMessageAvailabilityListener(connection);
 
@@ -92,8 +107,15 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
 
       try {
         connection.start();
-        clientPresenceManager.setPresent(auth.getAccount().getUuid(), device.getId(), connection);
         messagesManager.addMessageAvailabilityListener(auth.getAccount().getUuid(), device.getId(), connection);
+
+        clientPresenceManager.setPresentAsync(auth.getAccount().getUuid(), device.getId(), connection)
+            .whenComplete((ignored, cause) -> {
+              if (cause != null) {
+                log.warn("Failed to register presence", cause);
+                context.getClient().close(1011, "Unexpected error initializing connection");
+              }
+            });
       } catch (final Exception e) {
         log.warn("Failed to initialize websocket", e);
         context.getClient().close(1011, "Unexpected error initializing connection");
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.websocket;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.auth.AuthenticatedAccount;
+import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
+import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.MessagesManager;
+
+/**
+ * Coalesces client acknowledgements for stored messages so that acknowledged messages can be removed from the message
+ * cache and from DynamoDB in one round trip per batch instead of one round trip per message. Acknowledgements are
+ * flushed when a batch fills up, when the oldest pending acknowledgement has waited for the maximum delay, or when
+ * {@link #flush()} is called explicitly (e.g. at the end of a page of messages).
+ */
+class MessageAcknowledgementBatcher {
+
+  private final MessagesManager messagesManager;
+  private final AuthenticatedAccount auth;
+  private final Device device;
+  private final ScheduledExecutorService scheduledExecutorService;
+  private final int maxBatchSize;
+  private final Duration maxDelay;
+
+  private final Object flushLock = new Object();
+
+  private final Map<UUID, OutgoingMessageEntity> pendingAcknowledgements = new LinkedHashMap<>();
+  private ScheduledFuture<?> scheduledFlushFuture;
+
+  private static final DistributionSummary BATCH_SIZE_DISTRIBUTION =
+      Metrics.summary(name(MessageAcknowledgementBatcher.class, "batchSize"));
+  private static final Timer FLUSH_TIMER = Metrics.timer(name(MessageAcknowledgementBatcher.class, "flush"));
+
+  private static final Logger logger = LoggerFactory.getLogger(MessageAcknowledgementBatcher.class);
+
+  MessageAcknowledgementBatcher(final MessagesManager messagesManager,
+      final AuthenticatedAccount auth,
+      final Device device,
+      final ScheduledExecutorService scheduledExecutorService,
+      final int maxBatchSize,
+      final Duration maxDelay) {
+
+    this.messagesManager = messagesManager;
+    this.auth = auth;
+    this.device = device;
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * Marks the given stored message as acknowledged. The message will be removed from storage no later than the next
+   * call to {@link #flush()}.
+   */
+  void acknowledge(final OutgoingMessageEntity message) {
+    final boolean shouldFlush;
+
+    synchronized (pendingAcknowledgements) {
+      pendingAcknowledgements.put(message.getGuid(), message);
+      shouldFlush = pendingAcknowledgements.size() >= maxBatchSize;
+
+      if (!shouldFlush && scheduledFlushFuture == null) {
+        scheduledFlushFuture = scheduledExecutorService.schedule(this::flushQuietly, maxDelay.toMillis(),
+            TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (shouldFlush) {
+      flush();
+    }
+  }
+
+  /**
+   * Removes all pending acknowledged messages from storage. When this method returns, every message acknowledged
+   * before the call has been removed, including messages in a batch that was being flushed concurrently.
+   */
+  void flush() {
+    synchronized (flushLock) {
+      final List<OutgoingMessageEntity> batch;
+
+      synchronized (pendingAcknowledgements) {
+        batch = new ArrayList<>(pendingAcknowledgements.values());
+        pendingAcknowledgements.clear();
+
+        if (scheduledFlushFuture != null) {
+          scheduledFlushFuture.cancel(false);
+          scheduledFlushFuture = null;
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        BATCH_SIZE_DISTRIBUTION.record(batch.size());
+        FLUSH_TIMER.record(() -> messagesManager.delete(auth.getAccount().getUuid(), device.getId(), batch));
+      }
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (final Exception e) {
+      logger.warn("Failed to flush message acknowledgements", e);
+    }
+  }
+}
@@ -16,6 +16,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -32,6 +33,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import javax.ws.rs.WebApplicationException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -68,6 +70,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final Meter          bytesSentMeter                 = metricRegistry.meter(name(WebSocketConnection.class, "bytes_sent"));
   private static final Meter          sendFailuresMeter              = metricRegistry.meter(name(WebSocketConnection.class, "send_failures"));
   private static final Meter          discardedMessagesMeter         = metricRegistry.meter(name(WebSocketConnection.class, "discardedMessages"));
+  private static final Meter          outboundBackpressureMeter      = metricRegistry.meter(name(WebSocketConnection.class, "outboundBackpressure"));
 
   private static final String INITIAL_QUEUE_LENGTH_DISTRIBUTION_NAME = name(WebSocketConnection.class, "initialQueueLength");
   private static final String INITIAL_QUEUE_DRAIN_TIMER_NAME         = name(WebSocketConnection.class, "drainInitialQueue");
@@ -88,6 +91,9 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final long RETRY_DELAY_MILLIS = 1_000;
   private static final int RETRY_DELAY_JITTER_MILLIS = 500;
 
+  private static final int MAX_ACKNOWLEDGEMENT_BATCH_SIZE = 100;
+  private static final Duration MAX_ACKNOWLEDGEMENT_DELAY = Duration.ofMillis(250);
+
   private static final Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
 
   private final ReceiptSender receiptSender;
@@ -97,8 +103,10 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private final Device device;
   private final WebSocketClient client;
   private final ScheduledExecutorService retrySchedulingExecutor;
+  private final MessageAcknowledgementBatcher acknowledgementBatcher;
 
   private final boolean isDesktopClient;
+  private final int maxInFlightMessages;
 
   private final Semaphore processStoredMessagesSemaphore = new Semaphore(1);
   private final AtomicReference<StoredMessageState> storedMessageState = new AtomicReference<>(
@@ -117,18 +125,33 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     PERSISTED_NEW_MESSAGES_AVAILABLE
   }
 
-  public WebSocketConnection(ReceiptSender receiptSender,
+  @VisibleForTesting
+  WebSocketConnection(ReceiptSender receiptSender,
       MessagesManager messagesManager,
       AuthenticatedAccount auth,
       Device device,
       WebSocketClient client,
       ScheduledExecutorService retrySchedulingExecutor) {
+
+    this(receiptSender, messagesManager, auth, device, client, retrySchedulingExecutor,
+        ignored -> MessagesManager.RESULT_SET_CHUNK_SIZE);
+  }
+
+  public WebSocketConnection(ReceiptSender receiptSender,
+      MessagesManager messagesManager,
+      AuthenticatedAccount auth,
+      Device device,
+      WebSocketClient client,
+      ScheduledExecutorService retrySchedulingExecutor,
+      Function<Optional<ClientPlatform>, Integer> maxInFlightMessagesByPlatform) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.auth = auth;
     this.device = device;
     this.client = client;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.acknowledgementBatcher = new MessageAcknowledgementBatcher(messagesManager, auth, device,
+        retrySchedulingExecutor, MAX_ACKNOWLEDGEMENT_BATCH_SIZE, MAX_ACKNOWLEDGEMENT_DELAY);
 
     Optional<ClientPlatform> maybePlatform;
 
@@ -139,6 +162,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
 
     this.isDesktopClient = maybePlatform.map(platform -> platform == ClientPlatform.DESKTOP).orElse(false);
+    this.maxInFlightMessages = maxInFlightMessagesByPlatform.apply(maybePlatform);
   }
 
   public void start() {
@@ -153,10 +177,16 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       future.cancel(false);
     }
 
+    try {
+      acknowledgementBatcher.flush();
+    } catch (final Exception e) {
+      logger.debug("Failed to flush message acknowledgements", e);
+    }
+
     client.close(1000, "OK");
   }
 
-  private CompletableFuture<WebSocketResponseMessage> sendMessage(final Envelope message, final Optional<StoredMessageInfo> storedMessageInfo) {
+  private CompletableFuture<WebSocketResponseMessage> sendMessage(final Envelope message, final Optional<OutgoingMessageEntity> storedMessage) {
     // clear ephemeral field from the envelope
     final Optional<byte[]> body = Optional.ofNullable(message.toBuilder().clearEphemeral().build().toByteArray());
 
@@ -168,9 +198,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     return client.sendRequest("PUT", "/api/v1/message", List.of("X-Signal-Key: false", TimestampHeaderUtil.getTimestampHeader()), body).whenComplete((response, throwable) -> {
           if (throwable == null) {
             if (isSuccessResponse(response)) {
-              if (storedMessageInfo.isPresent()) {
-                messagesManager.delete(auth.getAccount().getUuid(), device.getId(), storedMessageInfo.get().getGuid());
-              }
+              storedMessage.ifPresent(acknowledgementBatcher::acknowledge);
 
               if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
                 recordMessageDeliveryDuration(message.getTimestamp(), device);
@@ -226,7 +254,13 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       final StoredMessageState      state              = storedMessageState.getAndSet(StoredMessageState.EMPTY);
       final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
 
-      sendNextMessagePage(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture);
+      final boolean cachedMessagesOnly = state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE;
+
+      if (maxInFlightMessages > MessagesManager.RESULT_SET_CHUNK_SIZE) {
+        new WindowedMessageDrain(cachedMessagesOnly, queueClearedFuture).start();
+      } else {
+        sendNextMessagePage(cachedMessagesOnly, queueClearedFuture);
+      }
 
       queueClearedFuture.whenComplete((v, cause) -> {
         if (cause == null) {
@@ -287,59 +321,207 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       final CompletableFuture<?>[] sendFutures = new CompletableFuture[messages.getMessages().size()];
 
       for (int i = 0; i < messages.getMessages().size(); i++) {
-        final OutgoingMessageEntity message = messages.getMessages().get(i);
-        final Envelope.Builder builder = Envelope.newBuilder()
-            .setType(Envelope.Type.valueOf(message.getType()))
-            .setTimestamp(message.getTimestamp())
-            .setServerTimestamp(message.getServerTimestamp());
-
-        if (!Util.isEmpty(message.getSource())) {
-          builder.setSource(message.getSource())
-              .setSourceDevice(message.getSourceDevice());
-          if (message.getSourceUuid() != null) {
-            builder.setSourceUuid(message.getSourceUuid().toString());
-          }
-        }
+        sendFutures[i] = sendStoredMessage(messages.getMessages().get(i));
+      }
 
-        if (message.getMessage() != null) {
-          builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+      CompletableFuture.allOf(sendFutures).whenComplete((v, cause) -> {
+        try {
+          // Acknowledged messages must be gone before we fetch the next page, or we'd send them again
+          acknowledgementBatcher.flush();
+        } catch (final Exception e) {
+          queueClearedFuture.completeExceptionally(e);
+          return;
         }
 
-        if (message.getContent() != null) {
-          builder.setContent(ByteString.copyFrom(message.getContent()));
+        if (cause == null) {
+          if (messages.hasMore()) {
+            if (!client.isWritable()) {
+              outboundBackpressureMeter.mark();
+            }
+
+            client.awaitWritable().thenRun(() -> sendNextMessagePage(cachedMessagesOnly, queueClearedFuture));
+          } else {
+            queueClearedFuture.complete(null);
+          }
+        } else {
+          queueClearedFuture.completeExceptionally(cause);
         }
+      });
+    } catch (final Exception e) {
+      queueClearedFuture.completeExceptionally(e);
+    }
+  }
 
-        if (message.getRelay() != null && !message.getRelay().isEmpty()) {
-          builder.setRelay(message.getRelay());
+  private CompletableFuture<?> sendStoredMessage(final OutgoingMessageEntity message) {
+    final Envelope.Builder builder = Envelope.newBuilder()
+        .setType(Envelope.Type.valueOf(message.getType()))
+        .setTimestamp(message.getTimestamp())
+        .setServerTimestamp(message.getServerTimestamp());
+
+    if (!Util.isEmpty(message.getSource())) {
+      builder.setSource(message.getSource())
+          .setSourceDevice(message.getSourceDevice());
+      if (message.getSourceUuid() != null) {
+        builder.setSourceUuid(message.getSourceUuid().toString());
+      }
+    }
+
+    if (message.getMessage() != null) {
+      builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+    }
+
+    if (message.getContent() != null) {
+      builder.setContent(ByteString.copyFrom(message.getContent()));
+    }
+
+    if (message.getRelay() != null && !message.getRelay().isEmpty()) {
+      builder.setRelay(message.getRelay());
+    }
+
+    builder.setServerGuid(message.getGuid().toString());
+
+    final Envelope envelope = builder.build();
+
+    if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
+      acknowledgementBatcher.acknowledge(message);
+      discardedMessagesMeter.mark();
+
+      return CompletableFuture.completedFuture(null);
+    } else {
+      return sendMessage(envelope, Optional.of(message));
+    }
+  }
+
+  /**
+   * Drains stored messages without waiting for a whole page to be acknowledged before fetching the next one. The next
+   * page (starting after the last message already sent) is fetched as soon as there is room for a full page in the
+   * in-flight window, so clients with large backlogs aren't held up by the slowest acknowledgement in each page.
+   */
+  private class WindowedMessageDrain {
+
+    private final boolean cachedMessagesOnly;
+    private final CompletableFuture<Void> queueClearedFuture;
+
+    private Optional<OutgoingMessageEntity> lastMessage = Optional.empty();
+    private int messagesInFlight = 0;
+    private boolean fetchInProgress = false;
+    private boolean hasMore = true;
+    private boolean finished = false;
+    private boolean awaitingWritable = false;
+    private Throwable failure;
+
+    private WindowedMessageDrain(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
+      this.cachedMessagesOnly = cachedMessagesOnly;
+      this.queueClearedFuture = queueClearedFuture;
+    }
+
+    void start() {
+      synchronized (this) {
+        fetchInProgress = true;
+      }
+
+      sendNextPage();
+    }
+
+    private void sendNextPage() {
+      final List<OutgoingMessageEntity> messages;
+
+      try {
+        final OutgoingMessageEntityList page = messagesManager.getMessagesForDevice(auth.getAccount().getUuid(),
+            device.getId(), client.getUserAgent(), cachedMessagesOnly, lastMessage);
+
+        messages = page.getMessages();
+
+        synchronized (this) {
+          hasMore = page.hasMore() && !messages.isEmpty();
+          messagesInFlight += messages.size();
+
+          if (!messages.isEmpty()) {
+            lastMessage = Optional.of(messages.get(messages.size() - 1));
+          }
+        }
+      } catch (final Exception e) {
+        synchronized (this) {
+          fetchInProgress = false;
+          failure = e;
         }
 
-        builder.setServerGuid(message.getGuid().toString());
+        continueDrain();
+        return;
+      }
 
-        final Envelope envelope = builder.build();
+      for (final OutgoingMessageEntity message : messages) {
+        sendStoredMessage(message).whenComplete((ignored, cause) -> {
+          synchronized (this) {
+            messagesInFlight--;
 
-        if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
-          messagesManager.delete(auth.getAccount().getUuid(), device.getId(), message.getGuid());
-          discardedMessagesMeter.mark();
+            if (cause != null && failure == null) {
+              failure = cause;
+            }
+          }
 
-          sendFutures[i] = CompletableFuture.completedFuture(null);
-        } else {
-          sendFutures[i] = sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getGuid())));
+          continueDrain();
+        });
+      }
+
+      synchronized (this) {
+        fetchInProgress = false;
+      }
+
+      continueDrain();
+    }
+
+    private void continueDrain() {
+      final boolean shouldSendNextPage;
+      final boolean shouldAwaitWritable;
+      final boolean shouldFinish;
+
+      synchronized (this) {
+        if (fetchInProgress || awaitingWritable || finished) {
+          return;
         }
+
+        final boolean windowOpen = failure == null && hasMore
+            && messagesInFlight + MessagesManager.RESULT_SET_CHUNK_SIZE <= maxInFlightMessages;
+
+        // Even with room in the window, don't fetch more messages while the client's outbound buffers are full
+        final boolean writable = windowOpen && client.isWritable();
+
+        shouldSendNextPage = windowOpen && writable;
+        shouldAwaitWritable = windowOpen && !writable;
+        shouldFinish = !windowOpen && messagesInFlight == 0 && (failure != null || !hasMore);
+
+        fetchInProgress = shouldSendNextPage;
+        awaitingWritable = shouldAwaitWritable;
+        finished = shouldFinish;
       }
 
-      CompletableFuture.allOf(sendFutures).whenComplete((v, cause) -> {
-        if (cause == null) {
-          if (messages.hasMore()) {
-            sendNextMessagePage(cachedMessagesOnly, queueClearedFuture);
-          } else {
-            queueClearedFuture.complete(null);
+      if (shouldSendNextPage) {
+        sendNextPage();
+      } else if (shouldAwaitWritable) {
+        outboundBackpressureMeter.mark();
+
+        client.awaitWritable().thenRun(() -> {
+          synchronized (this) {
+            awaitingWritable = false;
           }
+
+          continueDrain();
+        });
+      } else if (shouldFinish) {
+        try {
+          acknowledgementBatcher.flush();
+        } catch (final Exception e) {
+          queueClearedFuture.completeExceptionally(e);
+          return;
+        }
+
+        if (failure == null) {
+          queueClearedFuture.complete(null);
         } else {
-          queueClearedFuture.completeExceptionally(cause);
+          queueClearedFuture.completeExceptionally(failure);
         }
-      });
-    } catch (final Exception e) {
-      queueClearedFuture.completeExceptionally(e);
+      }
     }
   }
 
@@ -365,16 +547,4 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
 
     client.hardDisconnectQuietly();
   }
-
-  private static class StoredMessageInfo {
-    private final UUID guid;
-
-    public StoredMessageInfo(UUID guid) {
-      this.guid = guid;
-    }
-
-    public UUID getGuid() {
-      return guid;
-    }
-  }
 }
@@ -0,0 +1,12 @@
+-- keys: segment_state_key
+-- argv: generation, segment, last_uuid, processed_count, ttl_ms
+
+if redis.call("HGET", KEYS[1], "started") ~= ARGV[1] then
+    return 0
+end
+
+redis.call("HSET", KEYS[1], "cursor:" .. ARGV[2], ARGV[3])
+redis.call("HINCRBY", KEYS[1], "processed:" .. ARGV[2], ARGV[4])
+redis.call("PEXPIRE", KEYS[1], ARGV[5])
+
+return 1
@@ -0,0 +1,19 @@
+-- keys: segment_state_key
+-- argv: generation, segment, total_segments
+-- returns -1 if the crawl generation has changed, 1 if this was the last incomplete segment, or 0 otherwise
+
+if redis.call("HGET", KEYS[1], "started") ~= ARGV[1] then
+    return -1
+end
+
+redis.call("HSET", KEYS[1], "complete:" .. ARGV[2], "1")
+
+for segment = 0, tonumber(ARGV[3]) - 1 do
+    if redis.call("HEXISTS", KEYS[1], "complete:" .. segment) == 0 then
+        return 0
+    end
+end
+
+redis.call("DEL", KEYS[1])
+
+return 1
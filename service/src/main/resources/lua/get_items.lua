@@ -1,6 +1,7 @@
-local queueKey     = KEYS[1]
-local queueLockKey = KEYS[2]
-local limit        = ARGV[1]
+local queueKey       = KEYS[1]
+local queueLockKey   = KEYS[2]
+local limit          = ARGV[1]
+local afterMessageId = ARGV[2]
 
 local locked = redis.call("GET", queueLockKey)
 
@@ -8,4 +9,8 @@ if locked then
     return {}
 end
 
+if afterMessageId then
+    return redis.call("ZRANGEBYSCORE", queueKey, "(" .. afterMessageId, "+inf", "WITHSCORES", "LIMIT", 0, limit)
+end
+
 return redis.call("ZRANGE", queueKey, 0, limit, "WITHSCORES")
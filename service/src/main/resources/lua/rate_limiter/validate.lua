@@ -0,0 +1,44 @@
+-- Atomically leaks and (optionally) fills a leaky bucket. Buckets are stored as JSON strings with the same fields that
+-- earlier versions of RateLimiter read and wrote from the JVM, so servers running either version can share buckets
+-- during a rolling deploy or a rollback. Returns 0 if the requested amount fits in the bucket or the number of
+-- milliseconds until it will fit otherwise.
+local bucketKey = KEYS[1]
+
+local bucketSize = tonumber(ARGV[1])
+local leakRatePerMillis = tonumber(ARGV[2])
+local nowMillis = tonumber(ARGV[3])
+local amount = tonumber(ARGV[4])
+local ttlMillis = tonumber(ARGV[5])
+local dryRun = ARGV[6] == "1"
+
+local spaceRemaining = bucketSize
+local lastUpdateTimeMillis = nowMillis
+
+local serializedBucket = redis.call("GET", bucketKey)
+
+if serializedBucket then
+    local ok, bucket = pcall(cjson.decode, serializedBucket)
+
+    if ok and type(bucket) == "table" and bucket["spaceRemaining"] and bucket["lastUpdateTimeMillis"] then
+        spaceRemaining = bucket["spaceRemaining"]
+        lastUpdateTimeMillis = bucket["lastUpdateTimeMillis"]
+    end
+end
+
+local elapsedMillis = math.max(0, nowMillis - lastUpdateTimeMillis)
+spaceRemaining = math.min(bucketSize, math.floor(spaceRemaining + elapsedMillis * leakRatePerMillis))
+
+if spaceRemaining >= amount then
+    if not dryRun then
+        redis.call("SET", bucketKey, cjson.encode({
+            bucketSize = bucketSize,
+            leakRatePerMillis = leakRatePerMillis,
+            spaceRemaining = spaceRemaining - amount,
+            lastUpdateTimeMillis = nowMillis
+        }), "PX", ttlMillis)
+    end
+
+    return 0
+end
+
+return math.max(1, math.ceil((amount - spaceRemaining) / leakRatePerMillis))
@@ -0,0 +1,32 @@
+-- Adds a target to an actor's hyper-log-log of targets and checks the estimated target count against a limit. If a
+-- second key is given and holds a value, that value replaces the default limit; both keys must share a hash slot.
+-- Returns -1 if the target is permitted or, otherwise, the (non-negative) number of seconds until the set of targets
+-- expires. A set with no expiration time yields 0 rather than TTL's -1 so that an exceeded limit can't read as permitted.
+local hllKey = KEYS[1]
+local maxCardinalityKey = KEYS[2]
+
+local target = ARGV[1]
+local maxCardinality = tonumber(ARGV[2])
+local ttlSeconds = tonumber(ARGV[3])
+
+if maxCardinalityKey then
+    local customMaxCardinality = redis.call("GET", maxCardinalityKey)
+
+    if customMaxCardinality then
+        maxCardinality = tonumber(customMaxCardinality)
+    end
+end
+
+local changed = redis.call("PFADD", hllKey, target) == 1
+local cardinality = redis.call("PFCOUNT", hllKey)
+
+-- If the set already existed, it already has an expiration time
+if changed and cardinality == 1 and redis.call("TTL", hllKey) == -1 then
+    redis.call("EXPIRE", hllKey, ttlSeconds)
+end
+
+if changed and cardinality > maxCardinality then
+    return math.max(redis.call("TTL", hllKey), 0)
+end
+
+return -1
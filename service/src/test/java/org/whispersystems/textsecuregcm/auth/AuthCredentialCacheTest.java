@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.signal.zkgroup.ServerSecretParams;
+import org.signal.zkgroup.auth.AuthCredentialResponse;
+import org.signal.zkgroup.auth.ClientZkAuthOperations;
+import org.signal.zkgroup.auth.ServerZkAuthOperations;
+
+class AuthCredentialCacheTest {
+
+  private static final ServerSecretParams SERVER_SECRET_PARAMS = ServerSecretParams.generate();
+
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  };
+
+  private ServerZkAuthOperations serverZkAuthOperations;
+  private ExecutorService issuanceExecutor;
+
+  @BeforeEach
+  void setUp() {
+    serverZkAuthOperations = spy(new ServerZkAuthOperations(SERVER_SECRET_PARAMS));
+    issuanceExecutor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    issuanceExecutor.shutdown();
+    issuanceExecutor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void testGetCredentials() throws Exception {
+    final AuthCredentialCache authCredentialCache =
+        new AuthCredentialCache(serverZkAuthOperations, 1_000, issuanceExecutor, ticker);
+
+    final UUID uuid = UUID.randomUUID();
+    final int today = 18_000;
+
+    final List<byte[]> credentials = authCredentialCache.getCredentials(uuid, today, today + 7);
+    assertEquals(8, credentials.size());
+
+    final ClientZkAuthOperations clientZkAuthOperations =
+        new ClientZkAuthOperations(SERVER_SECRET_PARAMS.getPublicParams());
+
+    for (int i = 0; i < credentials.size(); i++) {
+      // Throws if the credential isn't valid for this account and day
+      clientZkAuthOperations.receiveAuthCredential(uuid, today + i, new AuthCredentialResponse(credentials.get(i)));
+    }
+
+    // An overlapping range reuses the days already issued and issues only the new one
+    final List<byte[]> nextDayCredentials = authCredentialCache.getCredentials(uuid, today + 1, today + 8);
+
+    for (int i = 0; i < 7; i++) {
+      assertSame(credentials.get(i + 1), nextDayCredentials.get(i));
+    }
+
+    verify(serverZkAuthOperations, times(9)).issueAuthCredential(any(), anyInt());
+    verify(serverZkAuthOperations).issueAuthCredential(uuid, today + 8);
+  }
+
+  @Test
+  void testGetCredentialsSequential() throws Exception {
+    final AuthCredentialCache authCredentialCache =
+        new AuthCredentialCache(serverZkAuthOperations, 1_000, null, ticker);
+
+    final UUID uuid = UUID.randomUUID();
+    final int today = 18_000;
+
+    final List<byte[]> credentials = authCredentialCache.getCredentials(uuid, today, today + 2);
+    assertEquals(3, credentials.size());
+
+    final ClientZkAuthOperations clientZkAuthOperations =
+        new ClientZkAuthOperations(SERVER_SECRET_PARAMS.getPublicParams());
+
+    for (int i = 0; i < credentials.size(); i++) {
+      clientZkAuthOperations.receiveAuthCredential(uuid, today + i, new AuthCredentialResponse(credentials.get(i)));
+    }
+
+    // Credentials are cached per account
+    authCredentialCache.getCredentials(UUID.randomUUID(), today, today);
+    verify(serverZkAuthOperations, times(4)).issueAuthCredential(any(), anyInt());
+  }
+
+  @Test
+  void testCredentialsExpire() {
+    final AuthCredentialCache authCredentialCache =
+        new AuthCredentialCache(serverZkAuthOperations, 1_000, issuanceExecutor, ticker);
+
+    final UUID uuid = UUID.randomUUID();
+    final int today = 18_000;
+
+    final byte[] credential = authCredentialCache.getCredentials(uuid, today, today).get(0);
+
+    nanos.addAndGet(Duration.ofHours(23).toNanos());
+    assertSame(credential, authCredentialCache.getCredentials(uuid, today, today).get(0));
+
+    nanos.addAndGet(Duration.ofHours(2).toNanos());
+    assertNotSame(credential, authCredentialCache.getCredentials(uuid, today, today).get(0));
+
+    verify(serverZkAuthOperations, times(2)).issueAuthCredential(eq(uuid), eq(today));
+  }
+}
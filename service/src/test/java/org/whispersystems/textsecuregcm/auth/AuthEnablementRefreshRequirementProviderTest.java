@@ -58,6 +58,7 @@ import javax.ws.rs.core.Response;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
@@ -361,9 +362,9 @@ class AuthEnablementRefreshRequirementProviderTest {
     private SubProtocol.WebSocketResponseMessage verifyAndGetResponse(final RemoteEndpoint remoteEndpoint)
         throws InvalidProtocolBufferException {
       ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
-      verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+      verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
-      return SubProtocol.WebSocketMessage.parseFrom(responseBytesCaptor.getValue().array()).getResponse();
+      return SubProtocol.WebSocketMessage.parseFrom(responseBytesCaptor.getValue()).getResponse();
     }
   }
 
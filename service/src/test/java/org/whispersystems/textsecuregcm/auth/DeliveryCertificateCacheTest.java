@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.auth;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.whispersystems.textsecuregcm.crypto.Curve;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.Device;
+
+class DeliveryCertificateCacheTest {
+
+  private static final String SIGNING_CERTIFICATE = "CiUIDBIhBbTz4h1My+tt+vw+TVscgUe/DeHS0W02tPWAWbTO2xc3EkD+go4bJnU0AcnFfbOLKoiBfCzouZtDYMOVi69rE7r4U9cXREEqOkUmU2WJBjykAxWPCcSTmVTYHDw7hkSp/puG";
+  private static final String SIGNING_KEY = "ABOxG29xrfq4E7IrW11Eg7+HBbtba9iiS0500YoBjn4=";
+  private static final String IDENTITY_KEY = "BcxxDU9FGMda70E7+Uvm7pnQcEdXQ64aJCpPUeRSfcFo";
+  private static final String OTHER_IDENTITY_KEY = "BdFpLlhK9QUYY+lAhzDT6Y5mr5ssUyMbF3V8nsa5ryok";
+
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  };
+
+  private CertificateGenerator certificateGenerator;
+  private DeliveryCertificateCache deliveryCertificateCache;
+
+  private Account account;
+  private Device device;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    certificateGenerator = spy(new CertificateGenerator(Base64.getDecoder().decode(SIGNING_CERTIFICATE),
+        Curve.decodePrivatePoint(Base64.getDecoder().decode(SIGNING_KEY)), 4));
+
+    deliveryCertificateCache = new DeliveryCertificateCache(certificateGenerator, 0.25, 1_000, ticker);
+
+    account = mock(Account.class);
+    device = mock(Device.class);
+
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(account.getNumber()).thenReturn("+18005551234");
+    when(account.getIdentityKey()).thenReturn(IDENTITY_KEY);
+    when(device.getId()).thenReturn(1L);
+  }
+
+  @Test
+  void testReuseWithinReuseWindow() throws Exception {
+    final byte[] certificate = deliveryCertificateCache.getCertificate(account, device, true);
+
+    // A quarter of a four-day lifetime is one day
+    nanos.addAndGet(Duration.ofHours(23).toNanos());
+    assertSame(certificate, deliveryCertificateCache.getCertificate(account, device, true));
+
+    nanos.addAndGet(Duration.ofHours(2).toNanos());
+    final byte[] renewedCertificate = deliveryCertificateCache.getCertificate(account, device, true);
+    assertNotSame(certificate, renewedCertificate);
+
+    verify(certificateGenerator, times(2)).createFor(any(), any(), anyBoolean());
+  }
+
+  @Test
+  void testKeyComponents() throws Exception {
+    final byte[] withE164 = deliveryCertificateCache.getCertificate(account, device, true);
+    final byte[] withoutE164 = deliveryCertificateCache.getCertificate(account, device, false);
+    assertNotSame(withE164, withoutE164);
+
+    final Device otherDevice = mock(Device.class);
+    when(otherDevice.getId()).thenReturn(2L);
+    assertNotSame(withE164, deliveryCertificateCache.getCertificate(account, otherDevice, true));
+
+    when(account.getNumber()).thenReturn("+18005554321");
+    final byte[] newNumber = deliveryCertificateCache.getCertificate(account, device, true);
+    assertNotSame(withE164, newNumber);
+
+    // The phone number is not part of a certificate that omits it
+    assertSame(withoutE164, deliveryCertificateCache.getCertificate(account, device, false));
+
+    when(account.getIdentityKey()).thenReturn(OTHER_IDENTITY_KEY);
+    assertNotSame(newNumber, deliveryCertificateCache.getCertificate(account, device, true));
+
+    verify(certificateGenerator, times(5)).createFor(any(), any(), anyBoolean());
+  }
+
+  @Test
+  void testReuseDisabled() throws Exception {
+    final DeliveryCertificateCache uncachedDeliveryCertificates =
+        new DeliveryCertificateCache(certificateGenerator, 0, 1_000, ticker);
+
+    final byte[] certificate = uncachedDeliveryCertificates.getCertificate(account, device, true);
+    final byte[] secondCertificate = uncachedDeliveryCertificates.getCertificate(account, device, true);
+
+    assertNotSame(certificate, secondCertificate);
+    verify(certificateGenerator, times(2)).createFor(any(), any(), anyBoolean());
+  }
+}
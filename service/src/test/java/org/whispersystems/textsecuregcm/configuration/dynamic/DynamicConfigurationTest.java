@@ -374,4 +374,50 @@ class DynamicConfigurationTest {
       assertThat(rateLimitChallengeConfiguration.isUnsealedSenderLimitEnforced()).isFalse();
     }
   }
+
+  @Test
+  void testParseAccountNearCacheConfiguration() throws JsonProcessingException {
+    {
+      final String emptyConfigYaml = "test: true";
+      final DynamicConfiguration emptyConfig =
+          DynamicConfigurationManager.parseConfiguration(emptyConfigYaml, DynamicConfiguration.class).orElseThrow();
+
+      assertThat(emptyConfig.getAccountNearCacheConfiguration().isEnabled()).isFalse();
+    }
+
+    {
+      final String accountNearCacheConfig =
+          "accountNearCache:\n"
+              + "  enabled: true";
+
+      final DynamicAccountNearCacheConfiguration config =
+          DynamicConfigurationManager.parseConfiguration(accountNearCacheConfig, DynamicConfiguration.class).orElseThrow()
+              .getAccountNearCacheConfiguration();
+
+      assertThat(config.isEnabled()).isTrue();
+    }
+  }
+
+  @Test
+  void testParseAccountEncodingConfiguration() throws JsonProcessingException {
+    {
+      final String emptyConfigYaml = "test: true";
+      final DynamicConfiguration emptyConfig =
+          DynamicConfigurationManager.parseConfiguration(emptyConfigYaml, DynamicConfiguration.class).orElseThrow();
+
+      assertThat(emptyConfig.getAccountEncodingConfiguration().isBinaryWritesEnabled()).isFalse();
+    }
+
+    {
+      final String accountEncodingConfig =
+          "accountEncoding:\n"
+              + "  binaryWritesEnabled: true";
+
+      final DynamicAccountEncodingConfiguration config =
+          DynamicConfigurationManager.parseConfiguration(accountEncodingConfig, DynamicConfiguration.class).orElseThrow()
+              .getAccountEncodingConfiguration();
+
+      assertThat(config.isBinaryWritesEnabled()).isTrue();
+    }
+  }
 }
@@ -5,6 +5,8 @@
 
 package org.whispersystems.textsecuregcm.limits;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -51,4 +53,54 @@ class CardinalityRateLimiterTest {
     }
   }
 
+  @Test
+  void testValidateWithMaxCardinalityKey() throws RateLimitExceededException {
+    final CardinalityRateLimiter rateLimiter =
+        new CardinalityRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", Duration.ofDays(1), 1);
+
+    final String source = "+18005551234";
+    final String maxCardinalityKey = "max_cardinality::" + CardinalityRateLimiter.getHashTag(source);
+
+    rateLimiter.validate(source, "first", maxCardinalityKey, 1);
+
+    // Repeated targets never count against the limit
+    rateLimiter.validate(source, "first", maxCardinalityKey, 1);
+
+    final RateLimitExceededException exception = assertThrows(RateLimitExceededException.class,
+        () -> rateLimiter.validate(source, "second", maxCardinalityKey, 1));
+
+    final long remainingTtl = rateLimiter.getRemainingTtl(source);
+    assertTrue(remainingTtl > 0 && remainingTtl <= Duration.ofDays(1).toSeconds());
+    assertEquals(Duration.ofSeconds(remainingTtl), exception.getRetryDuration());
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> connection.sync().set(maxCardinalityKey, "3"));
+
+    rateLimiter.validate(source, "third", maxCardinalityKey, 1);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(source, "fourth", maxCardinalityKey, 1));
+
+    // The default limit still applies when no custom limit has been stored
+    final String secondSource = "+18005554321";
+    rateLimiter.validate(secondSource, "first", "max_cardinality::" + CardinalityRateLimiter.getHashTag(secondSource), 1);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(secondSource, "second",
+        "max_cardinality::" + CardinalityRateLimiter.getHashTag(secondSource), 1));
+  }
+
+  @Test
+  void testValidateWithoutExpiration() throws RateLimitExceededException {
+    final CardinalityRateLimiter rateLimiter =
+        new CardinalityRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", Duration.ofDays(1), 1);
+
+    final String source = "+18005551234";
+
+    rateLimiter.validate(source, "first", 1);
+
+    // A set that has lost its expiration time must still enforce the limit
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection ->
+        connection.sync().persist("hll_rate_limit::test::" + CardinalityRateLimiter.getHashTag(source)));
+
+    final RateLimitExceededException exception =
+        assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(source, "second", 1));
+
+    assertEquals(Duration.ZERO, exception.getRetryDuration());
+  }
 }
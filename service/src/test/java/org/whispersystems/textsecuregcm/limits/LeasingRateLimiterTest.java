@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.limits;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+import org.whispersystems.textsecuregcm.util.Constants;
+
+class LeasingRateLimiterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private AtomicLong tickerNanos;
+  private Ticker ticker;
+
+  private static final String KEY = "+18005551234";
+  private static final Duration LEASE_DURATION = Duration.ofSeconds(5);
+
+  @BeforeEach
+  void setUp() {
+    tickerNanos = new AtomicLong();
+    ticker = new Ticker() {
+      @Override
+      public long read() {
+        return tickerNanos.get();
+      }
+    };
+  }
+
+  private LeasingRateLimiter buildRateLimiter(final int bucketSize, final int leaseSize) {
+    // A very slow leak rate means no permits should be replenished over the course of a test
+    return new LeasingRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", bucketSize, 0.001, leaseSize,
+        LEASE_DURATION, ticker);
+  }
+
+  @Test
+  void testMetricNames() throws RateLimitExceededException {
+    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+    final LeasingRateLimiter rateLimiter = new LeasingRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
+        "leasingMetrics", 2, 0.001, 2, LEASE_DURATION, ticker);
+
+    final long validateCount = metricRegistry.timer(name(RateLimiter.class, "leasingMetrics", "validate")).getCount();
+    final long exceededCount = metricRegistry.meter(name(RateLimiter.class, "leasingMetrics", "exceeded")).getCount();
+
+    rateLimiter.validate(KEY);
+    rateLimiter.validate(KEY);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+
+    assertEquals(validateCount + 3,
+        metricRegistry.timer(name(RateLimiter.class, "leasingMetrics", "validate")).getCount());
+    assertEquals(exceededCount + 1,
+        metricRegistry.meter(name(RateLimiter.class, "leasingMetrics", "exceeded")).getCount());
+
+    assertFalse(metricRegistry.getNames().contains(name(LeasingRateLimiter.class, "leasingMetrics", "validate")));
+    assertFalse(metricRegistry.getNames().contains(name(LeasingRateLimiter.class, "leasingMetrics", "exceeded")));
+  }
+
+  @Test
+  void testValidateFromLease() throws RateLimitExceededException {
+    final LeasingRateLimiter rateLimiter = buildRateLimiter(10, 4);
+    final RateLimiter remoteRateLimiter =
+        new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 10, 0.001);
+
+    rateLimiter.validate(KEY);
+
+    // The first call should have leased four permits from the shared bucket
+    assertTrue(remoteRateLimiter.hasAvailablePermits(KEY, 6));
+    assertFalse(remoteRateLimiter.hasAvailablePermits(KEY, 7));
+
+    // ...and the next three should be served locally without touching the shared bucket
+    rateLimiter.validate(KEY);
+    rateLimiter.validate(KEY, 2);
+    assertTrue(remoteRateLimiter.hasAvailablePermits(KEY, 6));
+    assertFalse(remoteRateLimiter.hasAvailablePermits(KEY, 7));
+
+    rateLimiter.validate(KEY);
+    assertTrue(remoteRateLimiter.hasAvailablePermits(KEY, 2));
+    assertFalse(remoteRateLimiter.hasAvailablePermits(KEY, 3));
+  }
+
+  @Test
+  void testValidateNearlyEmptyBucket() throws RateLimitExceededException {
+    final LeasingRateLimiter rateLimiter = buildRateLimiter(5, 4);
+
+    rateLimiter.validate(KEY);
+    rateLimiter.validate(KEY, 3);
+
+    // Only one permit remains in the shared bucket, which isn't enough for a lease, but is enough for a single request
+    rateLimiter.validate(KEY);
+
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+  }
+
+  @Test
+  void testLeaseExpiration() throws RateLimitExceededException {
+    final LeasingRateLimiter rateLimiter = buildRateLimiter(4, 4);
+
+    rateLimiter.validate(KEY);
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 3));
+
+    tickerNanos.addAndGet(LEASE_DURATION.toNanos() + 1);
+
+    // Unused leased permits are lost when the lease expires
+    assertFalse(rateLimiter.hasAvailablePermits(KEY, 1));
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+  }
+
+  @Test
+  void testClear() throws RateLimitExceededException {
+    final LeasingRateLimiter rateLimiter = buildRateLimiter(4, 4);
+
+    rateLimiter.validate(KEY, 4);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+
+    rateLimiter.clear(KEY);
+
+    rateLimiter.validate(KEY, 4);
+  }
+
+  @Test
+  void testHasConfiguration() {
+    final LeasingRateLimiter rateLimiter = buildRateLimiter(10, 4);
+
+    assertTrue(rateLimiter.hasConfiguration(new RateLimitConfiguration(10, 0.001, 4, LEASE_DURATION)));
+    assertFalse(rateLimiter.hasConfiguration(new RateLimitConfiguration(10, 0.001, 2, LEASE_DURATION)));
+    assertFalse(rateLimiter.hasConfiguration(new RateLimitConfiguration(10, 0.001)));
+
+    assertFalse(new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 10, 0.001)
+        .hasConfiguration(new RateLimitConfiguration(10, 0.001, 4, LEASE_DURATION)));
+  }
+
+  @Test
+  void testNoOverAdmissionAcrossServers() throws Exception {
+    final int bucketSize = 100;
+    final int threadCount = 16;
+    final int attemptsPerThread = 25;
+
+    // Each limiter stands in for a different server sharing the same bucket
+    final List<LeasingRateLimiter> rateLimiters = List.of(
+        buildRateLimiter(bucketSize, 8),
+        buildRateLimiter(bucketSize, 8),
+        buildRateLimiter(bucketSize, 8),
+        buildRateLimiter(bucketSize, 8));
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final AtomicInteger permitted = new AtomicInteger();
+
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+
+      for (int i = 0; i < threadCount; i++) {
+        final RateLimiter rateLimiter = rateLimiters.get(i % rateLimiters.size());
+
+        futures.add(executor.submit(() -> {
+          startLatch.await();
+
+          for (int j = 0; j < attemptsPerThread; j++) {
+            try {
+              rateLimiter.validate(KEY);
+              permitted.incrementAndGet();
+            } catch (final RateLimitExceededException ignored) {
+            }
+          }
+
+          return null;
+        }));
+      }
+
+      startLatch.countDown();
+
+      for (final Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertTrue(permitted.get() <= bucketSize);
+
+    // At most (leaseSize - 1) permits per server can be stranded in leases
+    assertTrue(permitted.get() >= bucketSize - rateLimiters.size() * 7, "Permitted: " + permitted.get());
+
+    final AtomicInteger stranded = new AtomicInteger();
+
+    for (final LeasingRateLimiter rateLimiter : rateLimiters) {
+      while (true) {
+        try {
+          rateLimiter.validate(KEY);
+          stranded.incrementAndGet();
+        } catch (final RateLimitExceededException e) {
+          break;
+        }
+      }
+    }
+
+    assertEquals(bucketSize, permitted.get() + stranded.get());
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.limits;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+class RateLimiterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private static final String KEY = "+18005551234";
+
+  @Test
+  void testValidate() throws RateLimitExceededException {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 3, 1);
+
+    rateLimiter.validate(KEY);
+    rateLimiter.validate(KEY, 2);
+
+    final RateLimitExceededException exception =
+        assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+
+    assertTrue(exception.getRetryDuration().compareTo(Duration.ZERO) > 0);
+    assertTrue(exception.getRetryDuration().compareTo(Duration.ofMinutes(1)) <= 0);
+
+    rateLimiter.validate("+18005554321", 3);
+  }
+
+  @Test
+  void testHasAvailablePermits() throws RateLimitExceededException {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 2, 1);
+
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 2));
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 2), "Checking for permits should not consume them");
+
+    rateLimiter.validate(KEY);
+
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 1));
+    assertFalse(rateLimiter.hasAvailablePermits(KEY, 2));
+    assertThrows(IllegalArgumentException.class, () -> rateLimiter.hasAvailablePermits(KEY, 3));
+  }
+
+  @Test
+  void testClear() throws RateLimitExceededException {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 1, 1);
+
+    rateLimiter.validate(KEY);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+
+    rateLimiter.clear(KEY);
+    rateLimiter.validate(KEY);
+  }
+
+  @Test
+  void testLeak() throws RateLimitExceededException, InterruptedException {
+    // 600 permits per minute leak one permit every 100ms
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 1, 600);
+
+    rateLimiter.validate(KEY);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+
+    Thread.sleep(250);
+
+    rateLimiter.validate(KEY);
+  }
+
+  @Test
+  void testLegacyBucket() throws Exception {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 10, 1);
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> connection.sync()
+        .setex("leaky_bucket::test::" + KEY, 600,
+            "{\"bucketSize\":10,\"leakRatePerMillis\":1.6666666666666667E-5,\"spaceRemaining\":2,"
+                + "\"lastUpdateTimeMillis\":" + System.currentTimeMillis() + "}"));
+
+    assertTrue(rateLimiter.hasAvailablePermits(KEY, 2));
+    assertFalse(rateLimiter.hasAvailablePermits(KEY, 3));
+
+    rateLimiter.validate(KEY);
+
+    // Servers that predate the Lua script must still be able to read buckets written by it
+    final String serializedBucket = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+        connection.sync().get("leaky_bucket::test::" + KEY));
+
+    final JsonNode bucket = SystemMapper.getMapper().readTree(serializedBucket);
+
+    assertEquals(10, bucket.get("bucketSize").asInt());
+    assertEquals(1.0 / 60_000, bucket.get("leakRatePerMillis").asDouble(), 1e-12);
+    assertEquals(1, bucket.get("spaceRemaining").asInt());
+    assertTrue(bucket.get("lastUpdateTimeMillis").isIntegralNumber());
+
+    rateLimiter.validate(KEY);
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(KEY));
+  }
+
+  @Test
+  void testValidateUnderContention() throws Exception {
+    final int bucketSize = 50;
+    final int threadCount = 16;
+    final int attemptsPerThread = 25;
+
+    // A very slow leak rate means no permits should be replenished over the course of the test
+    final RateLimiter rateLimiter =
+        new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", bucketSize, 0.001);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final AtomicInteger permitted = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(executor.submit(() -> {
+          startLatch.await();
+
+          for (int j = 0; j < attemptsPerThread; j++) {
+            try {
+              rateLimiter.validate(KEY);
+              permitted.incrementAndGet();
+            } catch (final RateLimitExceededException e) {
+              rejected.incrementAndGet();
+            }
+          }
+
+          return null;
+        }));
+      }
+
+      startLatch.countDown();
+
+      for (final Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(bucketSize, permitted.get());
+    assertEquals(threadCount * attemptsPerThread - bucketSize, rejected.get());
+  }
+}
@@ -38,6 +38,7 @@ import javax.ws.rs.Path;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerRequest;
 import org.glassfish.jersey.server.ContainerResponse;
@@ -155,7 +156,7 @@ class MetricsRequestEventListenerTest {
         provider.onWebSocketBinary(message, 0, message.length);
 
         ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
-        verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+        verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
         SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -213,7 +214,7 @@ class MetricsRequestEventListenerTest {
         provider.onWebSocketBinary(message, 0, message.length);
 
         ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
-        verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+        verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
         SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -325,7 +326,7 @@ class MetricsRequestEventListenerTest {
     }
 
     private static SubProtocol.WebSocketResponseMessage getResponse(ArgumentCaptor<ByteBuffer> responseCaptor) throws InvalidProtocolBufferException {
-        return SubProtocol.WebSocketMessage.parseFrom(responseCaptor.getValue().array()).getResponse();
+        return SubProtocol.WebSocketMessage.parseFrom(responseCaptor.getValue()).getResponse();
     }
 
     public static class TestPrincipal implements Principal {
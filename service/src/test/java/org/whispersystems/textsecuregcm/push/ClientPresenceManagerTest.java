@@ -7,12 +7,18 @@ package org.whispersystems.textsecuregcm.push;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -21,6 +27,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.whispersystems.textsecuregcm.redis.AbstractRedisClusterTest;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
 
@@ -63,6 +70,21 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
         assertTrue(clientPresenceManager.isPresent(accountUuid, deviceId));
     }
 
+    @Test
+    public void testIsPresentBatch() {
+        final UUID presentAccountUuid = UUID.randomUUID();
+        final UUID absentAccountUuid  = UUID.randomUUID();
+
+        clientPresenceManager.setPresent(presentAccountUuid, 1, NO_OP);
+
+        assertEquals(List.of(true, false, false),
+                clientPresenceManager.isPresent(List.of(new Pair<>(presentAccountUuid, 1L),
+                        new Pair<>(presentAccountUuid, 2L),
+                        new Pair<>(absentAccountUuid, 1L))));
+
+        assertEquals(List.of(), clientPresenceManager.isPresent(List.of()));
+    }
+
     @Test
     public void testIsLocallyPresent() {
         final UUID accountUuid = UUID.randomUUID();
@@ -172,6 +194,69 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
         assertFalse(clientPresenceManager.clearPresence(accountUuid, deviceId));
     }
 
+    @Test
+    public void testClearPresenceIgnoresDisplacedListener() {
+        final UUID accountUuid = UUID.randomUUID();
+        final long deviceId    = 1;
+
+        final DisplacedPresenceListener displacedListener = () -> {};
+        final DisplacedPresenceListener currentListener   = () -> {};
+
+        clientPresenceManager.setPresent(accountUuid, deviceId, displacedListener);
+        clientPresenceManager.setPresent(accountUuid, deviceId, currentListener);
+
+        assertFalse(clientPresenceManager.clearPresenceAsync(accountUuid, deviceId, displacedListener).join());
+        assertTrue(clientPresenceManager.isLocallyPresent(accountUuid, deviceId));
+        assertTrue(clientPresenceManager.isPresent(accountUuid, deviceId));
+
+        assertTrue(clientPresenceManager.clearPresenceAsync(accountUuid, deviceId, currentListener).join());
+        assertFalse(clientPresenceManager.isLocallyPresent(accountUuid, deviceId));
+        assertFalse(clientPresenceManager.isPresent(accountUuid, deviceId));
+    }
+
+    @Test
+    public void testSetPresentAsyncConcurrent() throws InterruptedException {
+        final int                           clientCount     = 500;
+        final ExecutorService               executorService = Executors.newFixedThreadPool(16);
+        final List<UUID>                    accountUuids    = new ArrayList<>(clientCount);
+        final List<CompletableFuture<Void>> futures         = new ArrayList<>(clientCount);
+
+        try {
+            for (int i = 0; i < clientCount; i++) {
+                final UUID accountUuid = UUID.randomUUID();
+
+                accountUuids.add(accountUuid);
+                futures.add(CompletableFuture.supplyAsync(() -> clientPresenceManager.setPresentAsync(accountUuid, 1, NO_OP), executorService)
+                        .thenCompose(future -> future));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            executorService.shutdown();
+            executorService.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        for (final UUID accountUuid : accountUuids) {
+            assertTrue(clientPresenceManager.isPresent(accountUuid, 1));
+        }
+    }
+
+    @Test
+    public void testSetPresentAsyncRejectedWhenBacklogFull() throws Exception {
+        final ClientPresenceManager saturatedPresenceManager =
+                new ClientPresenceManager(getRedisCluster(), presenceRenewalExecutorService, presenceRenewalExecutorService, 0);
+
+        final UUID accountUuid = UUID.randomUUID();
+        final long deviceId    = 1;
+
+        final CompletionException completionException = assertThrows(CompletionException.class,
+                () -> saturatedPresenceManager.setPresentAsync(accountUuid, deviceId, NO_OP).join());
+
+        assertTrue(completionException.getCause() instanceof RejectedExecutionException);
+        assertFalse(saturatedPresenceManager.isLocallyPresent(accountUuid, deviceId));
+        assertFalse(saturatedPresenceManager.isPresent(accountUuid, deviceId));
+    }
+
     @Test
     public void testPruneMissingPeers() {
         final String presentPeerId = UUID.randomUUID().toString();
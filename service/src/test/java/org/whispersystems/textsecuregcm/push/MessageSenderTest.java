@@ -10,6 +10,7 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -18,6 +19,10 @@ import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.protobuf.ByteString;
+import io.lettuce.core.RedisException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.BeforeEach;
@@ -28,6 +33,7 @@ import org.whispersystems.textsecuregcm.metrics.PushLatencyManager;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 class MessageSenderTest {
 
@@ -39,6 +45,7 @@ class MessageSenderTest {
   private MessagesManager messagesManager;
   private GCMSender gcmSender;
   private APNSender apnSender;
+  private PushNotificationCoalescer pushNotificationCoalescer;
   private MessageSender messageSender;
 
   private static final UUID ACCOUNT_UUID = UUID.randomUUID();
@@ -55,12 +62,16 @@ class MessageSenderTest {
     messagesManager = mock(MessagesManager.class);
     gcmSender = mock(GCMSender.class);
     apnSender = mock(APNSender.class);
+    pushNotificationCoalescer = mock(PushNotificationCoalescer.class);
     messageSender = new MessageSender(mock(ApnFallbackManager.class),
         clientPresenceManager,
         messagesManager,
         gcmSender,
         apnSender,
-        mock(PushLatencyManager.class));
+        mock(PushLatencyManager.class),
+        pushNotificationCoalescer);
+
+    when(pushNotificationCoalescer.shouldSendNotification(any(), anyLong(), anyString())).thenReturn(true);
 
     when(account.getUuid()).thenReturn(ACCOUNT_UUID);
     when(device.getId()).thenReturn(DEVICE_ID);
@@ -114,6 +125,36 @@ class MessageSenderTest {
     verifyNoInteractions(apnSender);
   }
 
+  @Test
+  void testSendMessageClientLocallyPresent() throws Exception {
+    when(clientPresenceManager.isLocallyPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(messagesManager.notifyLocalMessageAvailabilityListener(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    messageSender.sendMessage(account, device, message, false);
+
+    verify(messagesManager).insert(ACCOUNT_UUID, DEVICE_ID, message);
+    verify(messagesManager).notifyLocalMessageAvailabilityListener(ACCOUNT_UUID, DEVICE_ID);
+    verify(clientPresenceManager, never()).isPresent(any(), anyLong());
+    verifyNoInteractions(gcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  void testSendOnlineMessageClientLocallyPresent() throws Exception {
+    when(clientPresenceManager.isLocallyPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(messagesManager.notifyLocalMessageAvailabilityListener(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    messageSender.sendMessage(account, device, message, true);
+
+    verify(messagesManager).insert(ACCOUNT_UUID, DEVICE_ID, message.toBuilder().setEphemeral(true).build());
+    verify(messagesManager).notifyLocalMessageAvailabilityListener(ACCOUNT_UUID, DEVICE_ID);
+    verify(clientPresenceManager, never()).isPresent(any(), anyLong());
+    verifyNoInteractions(gcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
   @Test
   void testSendMessageGcmClientNotPresent() throws Exception {
     when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(false);
@@ -138,6 +179,19 @@ class MessageSenderTest {
     verify(apnSender).sendMessage(any());
   }
 
+  @Test
+  void testSendMessageNotificationCoalesced() throws Exception {
+    when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(false);
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(pushNotificationCoalescer.shouldSendNotification(ACCOUNT_UUID, DEVICE_ID, "gcm")).thenReturn(false);
+
+    messageSender.sendMessage(account, device, message, false);
+
+    verify(messagesManager).insert(ACCOUNT_UUID, DEVICE_ID, message);
+    verifyNoInteractions(gcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
   @Test
   void testSendMessageFetchClientNotPresent() throws Exception {
     when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(false);
@@ -150,6 +204,133 @@ class MessageSenderTest {
     verifyNoInteractions(apnSender);
   }
 
+  @Test
+  void testSendMessages() {
+    final Account secondAccount = mock(Account.class);
+    final Device secondDevice = mock(Device.class);
+    final Device unregisteredDevice = mock(Device.class);
+    final UUID secondAccountUuid = UUID.randomUUID();
+
+    when(secondAccount.getUuid()).thenReturn(secondAccountUuid);
+    when(secondDevice.getId()).thenReturn(DEVICE_ID);
+    when(unregisteredDevice.getId()).thenReturn(2L);
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(secondDevice.getApnId()).thenReturn("apn-id");
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID),
+        new Pair<>(secondAccountUuid, DEVICE_ID)))).thenReturn(List.of(false, true));
+
+    final MessageSender.Delivery unregisteredDelivery = new MessageSender.Delivery(account, unregisteredDevice, message);
+
+    final List<MessageSender.Delivery> undeliverable = messageSender.sendMessages(List.of(
+        new MessageSender.Delivery(account, device, message),
+        unregisteredDelivery,
+        new MessageSender.Delivery(secondAccount, secondDevice, message)), false, Runnable::run);
+
+    assertEquals(List.of(unregisteredDelivery), undeliverable);
+
+    verify(messagesManager).insert(Map.of(
+        new Pair<>(ACCOUNT_UUID, DEVICE_ID), message,
+        new Pair<>(secondAccountUuid, DEVICE_ID), message));
+
+    verify(gcmSender).sendMessage(any());
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  void testSendOnlineMessages() {
+    final Account secondAccount = mock(Account.class);
+    final Device secondDevice = mock(Device.class);
+    final UUID secondAccountUuid = UUID.randomUUID();
+
+    when(secondAccount.getUuid()).thenReturn(secondAccountUuid);
+    when(secondDevice.getId()).thenReturn(DEVICE_ID);
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(secondDevice.getGcmId()).thenReturn("gcm-id");
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID),
+        new Pair<>(secondAccountUuid, DEVICE_ID)))).thenReturn(List.of(false, true));
+
+    assertTrue(messageSender.sendMessages(List.of(
+        new MessageSender.Delivery(account, device, message),
+        new MessageSender.Delivery(secondAccount, secondDevice, message)), true, Runnable::run).isEmpty());
+
+    verify(messagesManager).insert(Map.of(
+        new Pair<>(secondAccountUuid, DEVICE_ID), message.toBuilder().setEphemeral(true).build()));
+
+    verifyNoInteractions(gcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  void testSendMessagesClientLocallyPresent() {
+    final Account secondAccount = mock(Account.class);
+    final Device secondDevice = mock(Device.class);
+    final UUID secondAccountUuid = UUID.randomUUID();
+
+    when(secondAccount.getUuid()).thenReturn(secondAccountUuid);
+    when(secondDevice.getId()).thenReturn(DEVICE_ID);
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(secondDevice.getGcmId()).thenReturn("gcm-id");
+
+    when(clientPresenceManager.isLocallyPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(messagesManager.notifyLocalMessageAvailabilityListener(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(secondAccountUuid, DEVICE_ID)))).thenReturn(List.of(false));
+
+    assertTrue(messageSender.sendMessages(List.of(
+        new MessageSender.Delivery(account, device, message),
+        new MessageSender.Delivery(secondAccount, secondDevice, message)), false, Runnable::run).isEmpty());
+
+    verify(messagesManager).insert(Map.of(
+        new Pair<>(ACCOUNT_UUID, DEVICE_ID), message,
+        new Pair<>(secondAccountUuid, DEVICE_ID), message));
+
+    verify(messagesManager).notifyLocalMessageAvailabilityListener(ACCOUNT_UUID, DEVICE_ID);
+    verify(messagesManager, never()).notifyLocalMessageAvailabilityListener(secondAccountUuid, DEVICE_ID);
+    verify(gcmSender).sendMessage(any());
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  void testSendMessagesPartialFailure() {
+    final Account secondAccount = mock(Account.class);
+    final Device secondDevice = mock(Device.class);
+    final UUID secondAccountUuid = UUID.randomUUID();
+
+    when(secondAccount.getUuid()).thenReturn(secondAccountUuid);
+    when(secondDevice.getId()).thenReturn(DEVICE_ID);
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(secondDevice.getApnId()).thenReturn("apn-id");
+
+    when(messagesManager.insert(Map.of(
+        new Pair<>(ACCOUNT_UUID, DEVICE_ID), message,
+        new Pair<>(secondAccountUuid, DEVICE_ID), message))).thenReturn(Set.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID)));
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID),
+        new Pair<>(secondAccountUuid, DEVICE_ID)))).thenReturn(List.of(false, false));
+
+    assertTrue(messageSender.sendMessages(List.of(
+        new MessageSender.Delivery(account, device, message),
+        new MessageSender.Delivery(secondAccount, secondDevice, message)), false, Runnable::run).isEmpty());
+
+    // The message that couldn't be stored shouldn't prompt a notification, but the other message should still be sent
+    verifyNoInteractions(gcmSender);
+    verify(apnSender).sendMessage(any());
+  }
+
+  @Test
+  void testSendMessagesPresenceFailure() {
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenThrow(new RedisException("OH NO"));
+
+    assertTrue(messageSender.sendMessages(List.of(new MessageSender.Delivery(account, device, message)), false,
+        Runnable::run).isEmpty());
+
+    verify(messagesManager).insert(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), message));
+    verify(gcmSender).sendMessage(any());
+  }
+
   private MessageProtos.Envelope generateRandomMessage() {
     return MessageProtos.Envelope.newBuilder()
         .setTimestamp(System.currentTimeMillis())
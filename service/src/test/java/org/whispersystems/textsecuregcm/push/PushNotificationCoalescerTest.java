@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.push;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+
+class PushNotificationCoalescerTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  @Test
+  void testShouldSendNotification() {
+    final PushNotificationCoalescer coalescer =
+        new PushNotificationCoalescer(REDIS_CLUSTER_EXTENSION.getRedisCluster(), Duration.ofMinutes(1));
+
+    final UUID accountUuid = UUID.randomUUID();
+
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+    assertFalse(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+
+    // Other devices are coalesced independently
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 2, "apn"));
+    assertTrue(coalescer.shouldSendNotification(UUID.randomUUID(), 1, "gcm"));
+
+    coalescer.clear(accountUuid, 1);
+
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+  }
+
+  @Test
+  void testWindowExpires() throws InterruptedException {
+    final PushNotificationCoalescer coalescer =
+        new PushNotificationCoalescer(REDIS_CLUSTER_EXTENSION.getRedisCluster(), Duration.ofMillis(100));
+
+    final UUID accountUuid = UUID.randomUUID();
+
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+    assertFalse(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+
+    Thread.sleep(200);
+
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+  }
+
+  @Test
+  void testCoalescingDisabled() {
+    final PushNotificationCoalescer coalescer =
+        new PushNotificationCoalescer(REDIS_CLUSTER_EXTENSION.getRedisCluster(), Duration.ZERO);
+
+    final UUID accountUuid = UUID.randomUUID();
+
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+    assertTrue(coalescer.shouldSendNotification(accountUuid, 1, "gcm"));
+  }
+}
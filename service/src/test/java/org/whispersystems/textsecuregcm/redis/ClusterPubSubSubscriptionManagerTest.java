@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+class ClusterPubSubSubscriptionManagerTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private FaultTolerantPubSubConnection<String, String> pubSubConnection;
+  private ClusterPubSubSubscriptionManager subscriptionManager;
+  private ExecutorService executorService;
+
+  private final Set<String> receivedChannels = ConcurrentHashMap.newKeySet();
+
+  @BeforeEach
+  void setUp() {
+    pubSubConnection = REDIS_CLUSTER_EXTENSION.getRedisCluster().createPubSubConnection();
+    pubSubConnection.usePubSubConnection(connection -> connection.addListener(new RedisClusterPubSubAdapter<>() {
+      @Override
+      public void message(final RedisClusterNode node, final String channel, final String message) {
+        receivedChannels.add(channel);
+      }
+    }));
+
+    subscriptionManager = new ClusterPubSubSubscriptionManager(pubSubConnection, "test");
+    executorService = Executors.newFixedThreadPool(16);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    executorService.shutdown();
+    executorService.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void testSubscribeUnsubscribe() {
+    final List<String> channels = new ArrayList<>();
+
+    for (int i = 0; i < 500; i++) {
+      channels.add("channel::{" + i + "}");
+    }
+
+    final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+    for (final String channel : channels) {
+      futures.add(CompletableFuture.supplyAsync(() -> subscriptionManager.subscribe(channel), executorService)
+          .thenCompose(future -> future));
+    }
+
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+    assertEquals(channels.size(), subscriptionManager.getSubscriptionCount());
+
+    for (final String channel : channels) {
+      assertEquals(1, getSubscriberCount(channel), "Each channel should be subscribed on exactly one node");
+    }
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> channels.forEach(channel ->
+        connection.sync().publish(channel, "hello")));
+
+    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+      while (receivedChannels.size() < channels.size()) {
+        Thread.sleep(10);
+      }
+    });
+
+    channels.forEach(subscriptionManager::unsubscribe);
+
+    assertEquals(0, subscriptionManager.getSubscriptionCount());
+
+    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+      for (final String channel : channels) {
+        while (getSubscriberCount(channel) > 0) {
+          Thread.sleep(10);
+        }
+      }
+    });
+  }
+
+  @Test
+  void testResubscribeAll() {
+    subscriptionManager.subscribe("first::{1}", "second::{2}").join();
+    subscriptionManager.resubscribeAll().join();
+
+    assertEquals(2, subscriptionManager.getSubscriptionCount());
+    assertEquals(1, getSubscriberCount("first::{1}"));
+    assertEquals(1, getSubscriberCount("second::{2}"));
+  }
+
+  @Test
+  void testResubscribeAfterUnsubscribe() throws InterruptedException {
+    final CountDownLatch subscribed = new CountDownLatch(1);
+
+    subscriptionManager.subscribe("channel::{1}").thenRun(subscribed::countDown);
+    subscriptionManager.unsubscribe("channel::{1}");
+    subscriptionManager.subscribe("channel::{1}").join();
+
+    assertTrue(subscribed.await(1, TimeUnit.SECONDS));
+    assertEquals(1, subscriptionManager.getSubscriptionCount());
+    assertEquals(1, getSubscriberCount("channel::{1}"));
+  }
+
+  private long getSubscriberCount(final String channel) {
+    return REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+        connection.sync().upstream().commands().pubsubNumsub(channel).asMap().values().stream()
+            .map(Map::values)
+            .flatMap(Collection::stream)
+            .mapToLong(Long::longValue)
+            .sum());
+  }
+}
@@ -21,6 +21,9 @@ import org.whispersystems.textsecuregcm.configuration.RetryConfiguration;
 import reactor.core.publisher.Flux;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -57,7 +60,8 @@ public class FaultTolerantRedisClusterTest {
 
         final RetryConfiguration retryConfiguration = new RetryConfiguration();
         retryConfiguration.setMaxAttempts(3);
-        retryConfiguration.setWaitDuration(0);
+        // Asynchronous retries treat a zero wait duration as "don't retry," so use the smallest allowed value instead
+        retryConfiguration.setWaitDuration(1);
 
         faultTolerantCluster = new FaultTolerantRedisCluster("test", clusterClient, Duration.ofSeconds(2), breakerConfiguration, retryConfiguration);
     }
@@ -96,4 +100,41 @@ public class FaultTolerantRedisClusterTest {
 
         assertThrows(RedisCommandTimeoutException.class, () -> faultTolerantCluster.withCluster(connection -> connection.sync().get("key")));
     }
+
+    @Test
+    public void testBreakerAsync() throws Exception {
+        assertEquals("value", faultTolerantCluster.withClusterAsync(connection -> CompletableFuture.completedFuture("value")).get());
+
+        final ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> faultTolerantCluster.withClusterAsync(connection -> CompletableFuture.failedFuture(new RuntimeException("Badness has ensued."))).get());
+
+        assertTrue(failure.getCause() instanceof RedisException);
+
+        final ExecutionException rejection = assertThrows(ExecutionException.class,
+                () -> faultTolerantCluster.withClusterAsync(connection -> CompletableFuture.completedFuture("value")).get());
+
+        assertTrue(rejection.getCause() instanceof RedisException);
+        assertTrue(rejection.getCause().getCause() instanceof CallNotPermittedException);
+    }
+
+    @Test
+    public void testRetryAsync() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("value", faultTolerantCluster.withClusterAsync(connection -> attempts.incrementAndGet() < 3
+                ? CompletableFuture.failedFuture(new RedisCommandTimeoutException())
+                : CompletableFuture.completedFuture("value")).get());
+
+        assertEquals(3, attempts.get());
+
+        attempts.set(0);
+
+        final ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> faultTolerantCluster.withClusterAsync(connection -> attempts.incrementAndGet() < 4
+                        ? CompletableFuture.failedFuture(new RedisCommandTimeoutException())
+                        : CompletableFuture.completedFuture("value")).get());
+
+        assertTrue(failure.getCause() instanceof RedisCommandTimeoutException);
+        assertEquals(3, attempts.get());
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicAccountEncodingConfiguration;
+import org.whispersystems.textsecuregcm.entities.SignedPreKey;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+class AccountCodecTest {
+
+  private static Account buildAccount() {
+    final Device masterDevice = new Device(Device.MASTER_ID, "master", "authToken", "salt", "gcmId", null, null,
+        false, 1234, new SignedPreKey(17, "publicKey", "signature"), 1_600_000_000_000L, 1_500_000_000_000L,
+        "Signal-Android/5.0.0", 0,
+        new Device.DeviceCapabilities(true, false, true, false, true, false, true, false, true));
+
+    masterDevice.setPushTimestamp(1_600_000_000_123L);
+
+    final Device linkedDevice = new Device(2, null, "authToken2", "salt2", null, "apnId", "voipApnId",
+        true, -1, null, 1_600_000_000_000L, 1_500_000_000_000L, null, 1_550_000_000_000L, null);
+
+    final Set<Device> devices = new HashSet<>();
+    devices.add(masterDevice);
+    devices.add(linkedDevice);
+
+    final Account account = new Account("+18005551234", UUID.randomUUID(), devices, new byte[]{1, 2, 3});
+    account.setIdentityKey("identityKey");
+    account.setCurrentProfileVersion("cpv");
+    account.setProfileName("πρόφιλ");
+    account.setAvatar("avatar");
+    account.setRegistrationLock("lock", "lockSalt");
+    account.setUnrestrictedUnidentifiedAccess(true);
+    account.setDiscoverableByPhoneNumber(false);
+    account.setVersion(42);
+
+    return account;
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    final Account account = buildAccount();
+    final Account decoded = AccountCodec.decode(AccountCodec.encode(account));
+
+    assertAccountsEqual(account, decoded);
+    assertNull(decoded.getUuid());
+  }
+
+  @Test
+  void testRoundTripEmptyAccount() throws IOException {
+    final Account account = new Account();
+    final Account decoded = AccountCodec.decode(AccountCodec.encode(account));
+
+    assertNull(decoded.getNumber());
+    assertTrue(decoded.getDevices().isEmpty());
+    assertFalse(decoded.getUnidentifiedAccessKey().isPresent());
+    assertTrue(decoded.isDiscoverableByPhoneNumber());
+  }
+
+  @Test
+  void testDecodeLegacyJson() throws IOException {
+    final Account account = buildAccount();
+    final Account decoded = AccountCodec.decode(SystemMapper.getMapper().writeValueAsBytes(account));
+
+    assertAccountsEqual(account, decoded);
+  }
+
+  @Test
+  void testEncodeWithConfiguration() throws IOException {
+    final Account account = buildAccount();
+    final DynamicAccountEncodingConfiguration encodingConfiguration = new DynamicAccountEncodingConfiguration();
+
+    final byte[] json = AccountCodec.encode(account, encodingConfiguration);
+    assertEquals('{', json[0]);
+    assertAccountsEqual(account, AccountCodec.decode(json));
+
+    encodingConfiguration.setBinaryWritesEnabled(true);
+
+    final byte[] binary = AccountCodec.encode(account, encodingConfiguration);
+    assertEquals(AccountCodec.FORMAT_VERSION, binary[0]);
+    assertAccountsEqual(account, AccountCodec.decode(binary));
+  }
+
+  @Test
+  void testEncodedSmallerThanJson() throws IOException {
+    final Account account = buildAccount();
+
+    assertTrue(AccountCodec.encode(account).length < SystemMapper.getMapper().writeValueAsBytes(account).length);
+  }
+
+  @Test
+  void testCopy() {
+    final Account account = buildAccount();
+    final Account copy = AccountCodec.copy(account);
+
+    assertNotSame(account, copy);
+    assertEquals(account.getUuid(), copy.getUuid());
+    assertAccountsEqual(account, copy);
+
+    copy.getMasterDevice().orElseThrow().setLastSeen(0);
+    assertEquals(1_600_000_000_000L, account.getMasterDevice().orElseThrow().getLastSeen());
+  }
+
+  @Test
+  void testDecodeMalformed() {
+    final byte[] encoded = AccountCodec.encode(buildAccount());
+
+    assertThrows(IOException.class, () -> AccountCodec.decode(Arrays.copyOf(encoded, encoded.length - 1)));
+    assertThrows(IOException.class, () -> AccountCodec.decode(Arrays.copyOf(encoded, encoded.length + 1)));
+    assertThrows(IOException.class, () -> AccountCodec.decode(new byte[0]));
+
+    final byte[] unknownVersion = encoded.clone();
+    unknownVersion[0] = AccountCodec.FORMAT_VERSION + 1;
+
+    assertThrows(IOException.class, () -> AccountCodec.decode(unknownVersion));
+  }
+
+  private static void assertAccountsEqual(final Account expected, final Account actual) {
+    assertEquals(expected.getNumber(), actual.getNumber());
+    assertEquals(expected.getIdentityKey(), actual.getIdentityKey());
+    assertEquals(expected.getCurrentProfileVersion(), actual.getCurrentProfileVersion());
+    assertEquals(expected.getProfileName(), actual.getProfileName());
+    assertEquals(expected.getAvatar(), actual.getAvatar());
+    assertEquals(expected.getRegistrationLockHash(), actual.getRegistrationLockHash());
+    assertEquals(expected.getRegistrationLockSalt(), actual.getRegistrationLockSalt());
+    assertArrayEquals(expected.getUnidentifiedAccessKey().orElseThrow(), actual.getUnidentifiedAccessKey().orElseThrow());
+    assertEquals(expected.isUnrestrictedUnidentifiedAccess(), actual.isUnrestrictedUnidentifiedAccess());
+    assertEquals(expected.isDiscoverableByPhoneNumber(), actual.isDiscoverableByPhoneNumber());
+    assertEquals(expected.getVersion(), actual.getVersion());
+    assertEquals(expected.getDevices().size(), actual.getDevices().size());
+
+    for (final Device expectedDevice : expected.getDevices()) {
+      final Device actualDevice = actual.getDevice(expectedDevice.getId()).orElseThrow();
+
+      assertEquals(expectedDevice.getName(), actualDevice.getName());
+      assertEquals(expectedDevice.getAuthenticationCredentials().getHashedAuthenticationToken(),
+          actualDevice.getAuthenticationCredentials().getHashedAuthenticationToken());
+      assertEquals(expectedDevice.getAuthenticationCredentials().getSalt(),
+          actualDevice.getAuthenticationCredentials().getSalt());
+      assertEquals(expectedDevice.getGcmId(), actualDevice.getGcmId());
+      assertEquals(expectedDevice.getApnId(), actualDevice.getApnId());
+      assertEquals(expectedDevice.getVoipApnId(), actualDevice.getVoipApnId());
+      assertEquals(expectedDevice.getPushTimestamp(), actualDevice.getPushTimestamp());
+      assertEquals(expectedDevice.getUninstalledFeedbackTimestamp(), actualDevice.getUninstalledFeedbackTimestamp());
+      assertEquals(expectedDevice.getFetchesMessages(), actualDevice.getFetchesMessages());
+      assertEquals(expectedDevice.getRegistrationId(), actualDevice.getRegistrationId());
+      assertEquals(expectedDevice.getSignedPreKey(), actualDevice.getSignedPreKey());
+      assertEquals(expectedDevice.getLastSeen(), actualDevice.getLastSeen());
+      assertEquals(expectedDevice.getCreated(), actualDevice.getCreated());
+      assertEquals(expectedDevice.getUserAgent(), actualDevice.getUserAgent());
+
+      if (expectedDevice.getCapabilities() == null) {
+        assertNull(actualDevice.getCapabilities());
+      } else {
+        final Device.DeviceCapabilities expectedCapabilities = expectedDevice.getCapabilities();
+        final Device.DeviceCapabilities actualCapabilities = actualDevice.getCapabilities();
+
+        assertEquals(expectedCapabilities.isGv2(), actualCapabilities.isGv2());
+        assertEquals(expectedCapabilities.isGv2_2(), actualCapabilities.isGv2_2());
+        assertEquals(expectedCapabilities.isGv2_3(), actualCapabilities.isGv2_3());
+        assertEquals(expectedCapabilities.isStorage(), actualCapabilities.isStorage());
+        assertEquals(expectedCapabilities.isTransfer(), actualCapabilities.isTransfer());
+        assertEquals(expectedCapabilities.isGv1Migration(), actualCapabilities.isGv1Migration());
+        assertEquals(expectedCapabilities.isSenderKey(), actualCapabilities.isSenderKey());
+        assertEquals(expectedCapabilities.isAnnouncementGroup(), actualCapabilities.isAnnouncementGroup());
+        assertEquals(expectedCapabilities.isChangeNumber(), actualCapabilities.isChangeNumber());
+      }
+    }
+  }
+}
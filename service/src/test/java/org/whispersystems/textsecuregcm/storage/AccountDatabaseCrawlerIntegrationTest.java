@@ -5,17 +5,25 @@
 
 package org.whispersystems.textsecuregcm.storage;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import org.junit.Before;
@@ -97,4 +105,67 @@ public class AccountDatabaseCrawlerIntegrationTest extends AbstractRedisClusterT
     verify(listener).timeAndProcessCrawlChunk(Optional.of(FIRST_UUID), List.of(secondAccount));
     verify(listener).onCrawlEnd(Optional.of(SECOND_UUID));
   }
+
+  @Test
+  public void testSegmentedCrawl() throws Exception {
+    final int totalSegments = 2;
+
+    when(accountsManager.getApproximateAccountCount()).thenReturn(2L);
+    when(accountsManager.getAllFromDynamo(Optional.empty(), CHUNK_SIZE, 0, totalSegments))
+        .thenReturn(new AccountCrawlChunk(List.of(firstAccount), FIRST_UUID));
+    when(accountsManager.getAllFromDynamo(Optional.of(FIRST_UUID), CHUNK_SIZE, 0, totalSegments))
+        .thenReturn(new AccountCrawlChunk(Collections.emptyList(), null));
+    when(accountsManager.getAllFromDynamo(Optional.empty(), CHUNK_SIZE, 1, totalSegments))
+        .thenReturn(new AccountCrawlChunk(List.of(secondAccount), SECOND_UUID));
+    when(accountsManager.getAllFromDynamo(Optional.of(SECOND_UUID), CHUNK_SIZE, 1, totalSegments))
+        .thenReturn(new AccountCrawlChunk(Collections.emptyList(), null));
+
+    final AccountDatabaseCrawlerCache crawlerCache = new AccountDatabaseCrawlerCache(getRedisCluster());
+    final AccountDatabaseCrawler firstCrawler = new AccountDatabaseCrawler(accountsManager, crawlerCache,
+        List.of(listener), CHUNK_SIZE, CHUNK_INTERVAL_MS, totalSegments, Clock.systemUTC());
+    final AccountDatabaseCrawler secondCrawler = new AccountDatabaseCrawler(accountsManager, crawlerCache,
+        List.of(listener), CHUNK_SIZE, CHUNK_INTERVAL_MS, totalSegments, Clock.systemUTC());
+
+    // Hold segment 0 on behalf of another worker; both crawlers should make progress on segment 1 in the meantime
+    assertTrue(crawlerCache.claimSegment(0, "other-worker", 60_000));
+
+    assertFalse(firstCrawler.doPeriodicWork());
+    assertFalse(secondCrawler.doPeriodicWork());
+
+    verify(listener).onCrawlStart();
+    verify(listener).timeAndProcessCrawlChunk(Optional.empty(), List.of(secondAccount));
+    verify(accountsManager, never()).getAllFromDynamo(any(Optional.class), anyInt(), eq(0), anyInt());
+    verify(listener, never()).onCrawlEnd(any());
+
+    final AccountDatabaseCrawlerCache.SegmentedCrawlState state = crawlerCache.getSegmentedCrawlState();
+    assertTrue(state.isComplete(1));
+    assertEquals(1, state.getTotalProcessed());
+    assertEquals(2, state.getEstimatedTotal());
+
+    crawlerCache.releaseSegment(0, "other-worker");
+
+    assertFalse(firstCrawler.doPeriodicWork());
+    assertFalse(secondCrawler.doPeriodicWork());
+
+    verify(listener).onCrawlStart();
+    verify(listener).timeAndProcessCrawlChunk(Optional.empty(), List.of(firstAccount));
+    verify(listener).onCrawlEnd(Optional.of(FIRST_UUID));
+    assertTrue(crawlerCache.getSegmentedCrawlState().getGeneration().isEmpty());
+  }
+
+  @Test
+  public void testSegmentedCrawlEstimatedTimeRemaining() {
+    final Clock clock = Clock.fixed(Instant.ofEpochMilli(10_000), ZoneId.systemDefault());
+    final AccountDatabaseCrawler segmentedCrawler = new AccountDatabaseCrawler(accountsManager,
+        mock(AccountDatabaseCrawlerCache.class), List.of(listener), CHUNK_SIZE, CHUNK_INTERVAL_MS, 4, clock);
+
+    // 250 of 1,000 accounts in 10 seconds leaves 750 accounts, or 30 seconds, to go
+    segmentedCrawler.updateProgress(new AccountDatabaseCrawlerCache.SegmentedCrawlState(Map.of(
+        "started", "0",
+        "estimatedTotal", "1000",
+        "processed:0", "100",
+        "processed:3", "150")));
+
+    assertEquals(30, segmentedCrawler.getEstimatedSecondsRemaining());
+  }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+
+class AccountNearCacheTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private DynamicConfiguration dynamicConfiguration;
+  private AtomicLong tickerNanos;
+
+  private AccountNearCache accountNearCache;
+
+  private static final Duration TTL = Duration.ofSeconds(30);
+
+  @BeforeEach
+  void setUp() {
+    dynamicConfiguration = new DynamicConfiguration();
+    dynamicConfiguration.getAccountNearCacheConfiguration().setEnabled(true);
+
+    tickerNanos = new AtomicLong();
+
+    accountNearCache = buildAccountNearCache();
+    accountNearCache.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    accountNearCache.stop();
+  }
+
+  private AccountNearCache buildAccountNearCache() {
+    @SuppressWarnings("unchecked") final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager =
+        mock(DynamicConfigurationManager.class);
+
+    when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
+
+    return new AccountNearCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), dynamicConfigurationManager, 100, TTL,
+        new Ticker() {
+          @Override
+          public long read() {
+            return tickerNanos.get();
+          }
+        });
+  }
+
+  private static Account buildAccount(final UUID uuid, final int version) {
+    final Device device = new Device();
+    device.setId(Device.MASTER_ID);
+
+    final Set<Device> devices = new HashSet<>();
+    devices.add(device);
+
+    final Account account = new Account("+18005551234", uuid, devices, new byte[16]);
+    account.setVersion(version);
+
+    return account;
+  }
+
+  @Test
+  void testGetReturnsCopies() {
+    final UUID uuid = UUID.randomUUID();
+    accountNearCache.put(buildAccount(uuid, 1));
+
+    final Account first = accountNearCache.get(uuid).orElseThrow();
+    final Account second = accountNearCache.get(uuid).orElseThrow();
+
+    assertNotSame(first, second);
+    assertEquals(uuid, first.getUuid());
+    assertEquals("+18005551234", first.getNumber());
+    assertTrue(first.getMasterDevice().isPresent());
+
+    first.setNumber("+18005559999");
+    first.markStale();
+
+    assertEquals("+18005551234", accountNearCache.get(uuid).orElseThrow().getNumber());
+  }
+
+  @Test
+  void testPutKeepsNewestVersion() {
+    final UUID uuid = UUID.randomUUID();
+
+    accountNearCache.put(buildAccount(uuid, 2));
+    accountNearCache.put(buildAccount(uuid, 1));
+
+    assertEquals(2, accountNearCache.get(uuid).orElseThrow().getVersion());
+
+    accountNearCache.put(buildAccount(uuid, 3));
+
+    assertEquals(3, accountNearCache.get(uuid).orElseThrow().getVersion());
+  }
+
+  @Test
+  void testVersionedInvalidation() {
+    final UUID uuid = UUID.randomUUID();
+
+    accountNearCache.put(buildAccount(uuid, 1));
+    accountNearCache.invalidate(uuid, 2);
+
+    assertFalse(accountNearCache.get(uuid).isPresent());
+
+    // A read that started before the update must not repopulate the cache with the old version
+    accountNearCache.put(buildAccount(uuid, 1));
+    assertFalse(accountNearCache.get(uuid).isPresent());
+
+    accountNearCache.put(buildAccount(uuid, 2));
+    assertEquals(2, accountNearCache.get(uuid).orElseThrow().getVersion());
+
+    accountNearCache.invalidate(uuid, 2);
+    assertTrue(accountNearCache.get(uuid).isPresent());
+
+    accountNearCache.invalidate(uuid);
+    assertFalse(accountNearCache.get(uuid).isPresent());
+  }
+
+  @Test
+  void testRemoteInvalidation() throws InterruptedException {
+    final AccountNearCache remoteAccountNearCache = buildAccountNearCache();
+    remoteAccountNearCache.start();
+
+    try {
+      final UUID uuid = UUID.randomUUID();
+
+      accountNearCache.put(buildAccount(uuid, 1));
+      remoteAccountNearCache.invalidate(uuid, 2);
+
+      for (int i = 0; i < 50 && accountNearCache.get(uuid).isPresent(); i++) {
+        Thread.sleep(100);
+      }
+
+      assertFalse(accountNearCache.get(uuid).isPresent());
+
+      accountNearCache.put(buildAccount(uuid, 1));
+      assertFalse(accountNearCache.get(uuid).isPresent());
+    } finally {
+      remoteAccountNearCache.stop();
+    }
+  }
+
+  @Test
+  void testExpiration() {
+    final UUID uuid = UUID.randomUUID();
+    accountNearCache.put(buildAccount(uuid, 1));
+
+    tickerNanos.addAndGet(TTL.toNanos() / 2);
+    assertTrue(accountNearCache.get(uuid).isPresent());
+
+    tickerNanos.addAndGet(TTL.toNanos());
+    assertFalse(accountNearCache.get(uuid).isPresent());
+  }
+
+  @Test
+  void testDisabled() {
+    final UUID uuid = UUID.randomUUID();
+    accountNearCache.put(buildAccount(uuid, 1));
+
+    dynamicConfiguration.getAccountNearCacheConfiguration().setEnabled(false);
+
+    assertFalse(accountNearCache.get(uuid).isPresent());
+
+    accountNearCache.put(buildAccount(uuid, 1));
+
+    dynamicConfiguration.getAccountNearCacheConfiguration().setEnabled(true);
+
+    assertFalse(accountNearCache.get(uuid).isPresent());
+  }
+}
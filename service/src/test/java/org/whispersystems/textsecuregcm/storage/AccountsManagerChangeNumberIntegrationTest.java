@@ -101,17 +101,20 @@ class AccountsManagerChangeNumberIntegrationTest {
       ACCOUNTS_DYNAMO_EXTENSION.getDynamoDbClient().createTable(createNumbersTableRequest);
     }
 
+    @SuppressWarnings("unchecked") final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager =
+        mock(DynamicConfigurationManager.class);
+
+    DynamicConfiguration dynamicConfiguration = new DynamicConfiguration();
+    when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
+
     final Accounts accounts = new Accounts(
         ACCOUNTS_DYNAMO_EXTENSION.getDynamoDbClient(),
         ACCOUNTS_DYNAMO_EXTENSION.getTableName(),
         NUMBERS_TABLE_NAME,
-        SCAN_PAGE_SIZE);
+        SCAN_PAGE_SIZE,
+        dynamicConfigurationManager);
 
     {
-      final DynamicConfigurationManager dynamicConfigurationManager = mock(DynamicConfigurationManager.class);
-
-      DynamicConfiguration dynamicConfiguration = new DynamicConfiguration();
-      when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
 
       deletedAccounts = new DeletedAccounts(DELETED_ACCOUNTS_DYNAMO_EXTENSION.getDynamoDbClient(),
           DELETED_ACCOUNTS_DYNAMO_EXTENSION.getTableName());
@@ -131,6 +134,7 @@ class AccountsManagerChangeNumberIntegrationTest {
       accountsManager = new AccountsManager(
           accounts,
           CACHE_CLUSTER_EXTENSION.getRedisCluster(),
+          mock(AccountNearCache.class),
           deletedAccountsManager,
           mock(KeysDynamoDb.class),
           mock(MessagesManager.class),
@@ -139,7 +143,8 @@ class AccountsManagerChangeNumberIntegrationTest {
           mock(StoredVerificationCodeManager.class),
           secureStorageClient,
           secureBackupClient,
-          clientPresenceManager);
+          clientPresenceManager,
+          dynamicConfigurationManager);
     }
   }
 
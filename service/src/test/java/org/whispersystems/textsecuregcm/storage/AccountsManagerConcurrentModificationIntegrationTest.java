@@ -15,6 +15,7 @@ import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import java.io.IOException;
@@ -34,12 +35,12 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.auth.AuthenticationCredentials;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.entities.AccountAttributes;
 import org.whispersystems.textsecuregcm.entities.SignedPreKey;
 import org.whispersystems.textsecuregcm.push.ClientPresenceManager;
 import org.whispersystems.textsecuregcm.securebackup.SecureBackupClient;
 import org.whispersystems.textsecuregcm.securestorage.SecureStorageClient;
-import org.whispersystems.textsecuregcm.tests.util.JsonHelpers;
 import org.whispersystems.textsecuregcm.tests.util.RedisClusterHelper;
 import org.whispersystems.textsecuregcm.util.Pair;
 import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
@@ -70,6 +71,7 @@ class AccountsManagerConcurrentModificationIntegrationTest {
   private AccountsManager accountsManager;
 
   private RedisAdvancedClusterCommands<String, String> commands;
+  private RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands;
 
   private Executor mutationExecutor = new ThreadPoolExecutor(20, 20, 5, TimeUnit.SECONDS, new LinkedBlockingDeque<>(20));
 
@@ -93,16 +95,25 @@ class AccountsManagerConcurrentModificationIntegrationTest {
       dynamoDbExtension.getDynamoDbClient().createTable(createNumbersTableRequest);
     }
 
+    @SuppressWarnings("unchecked") final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager =
+        mock(DynamicConfigurationManager.class);
+
+    when(dynamicConfigurationManager.getConfiguration()).thenReturn(new DynamicConfiguration());
+
     accounts = new Accounts(
         dynamoDbExtension.getDynamoDbClient(),
         dynamoDbExtension.getTableName(),
         NUMBERS_TABLE_NAME,
-        SCAN_PAGE_SIZE);
+        SCAN_PAGE_SIZE,
+        dynamicConfigurationManager);
 
     {
       //noinspection unchecked
       commands = mock(RedisAdvancedClusterCommands.class);
 
+      //noinspection unchecked
+      binaryCommands = mock(RedisAdvancedClusterCommands.class);
+
       final DeletedAccountsManager deletedAccountsManager = mock(DeletedAccountsManager.class);
 
       doAnswer(invocation -> {
@@ -113,7 +124,8 @@ class AccountsManagerConcurrentModificationIntegrationTest {
 
       accountsManager = new AccountsManager(
           accounts,
-          RedisClusterHelper.buildMockRedisCluster(commands),
+          RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands),
+          mock(AccountNearCache.class),
           deletedAccountsManager,
           mock(KeysDynamoDb.class),
           mock(MessagesManager.class),
@@ -122,7 +134,8 @@ class AccountsManagerConcurrentModificationIntegrationTest {
           mock(StoredVerificationCodeManager.class),
           mock(SecureStorageClient.class),
           mock(SecureBackupClient.class),
-          mock(ClientPresenceManager.class)
+          mock(ClientPresenceManager.class),
+          dynamicConfigurationManager
       );
     }
   }
@@ -183,7 +196,7 @@ class AccountsManagerConcurrentModificationIntegrationTest {
     final Account managerAccount = accountsManager.get(uuid).orElseThrow();
     final Account dynamoAccount = accounts.get(uuid).orElseThrow();
 
-    final Account redisAccount = getLastAccountFromRedisMock(commands);
+    final Account redisAccount = getLastAccountFromRedisMock(binaryCommands);
 
     Stream.of(
         new Pair<>("manager", managerAccount),
@@ -195,12 +208,12 @@ class AccountsManagerConcurrentModificationIntegrationTest {
             unrestrictedUnidentifiedAccess, lastSeen));
   }
 
-  private Account getLastAccountFromRedisMock(RedisAdvancedClusterCommands<String, String> commands) throws IOException {
-    ArgumentCaptor<String> redisSetArgumentCapture = ArgumentCaptor.forClass(String.class);
+  private Account getLastAccountFromRedisMock(RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands) throws IOException {
+    ArgumentCaptor<byte[]> redisSetArgumentCapture = ArgumentCaptor.forClass(byte[].class);
 
-    verify(commands, atLeast(20)).set(anyString(), redisSetArgumentCapture.capture());
+    verify(binaryCommands, atLeast(10)).set(any(), redisSetArgumentCapture.capture());
 
-    return JsonHelpers.fromJson(redisSetArgumentCapture.getValue(), Account.class);
+    return AccountCodec.decode(redisSetArgumentCapture.getValue());
   }
 
   private void verifyAccount(final String name, final Account account, final String profileName, final String avatar, final boolean discoverableByPhoneNumber, final String currentProfileVersion, final String identityKey, final byte[] unidentifiedAccessKey, final String pin, final String clientRegistrationLock, final boolean unrestrictedUnidentifiedAcces, final long lastSeen) {
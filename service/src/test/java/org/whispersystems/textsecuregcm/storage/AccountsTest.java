@@ -18,6 +18,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +37,7 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.whispersystems.textsecuregcm.configuration.CircuitBreakerConfiguration;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.entities.SignedPreKey;
 import org.whispersystems.textsecuregcm.util.AttributeValues;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
@@ -69,6 +71,8 @@ class AccountsTest {
           .build())
       .build();
 
+  private DynamicConfiguration dynamicConfiguration;
+  private DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
   private Accounts accounts;
 
   @BeforeEach
@@ -88,11 +92,18 @@ class AccountsTest {
 
     dynamoDbExtension.getDynamoDbClient().createTable(createNumbersTableRequest);
 
+    dynamicConfiguration = new DynamicConfiguration();
+
+    //noinspection unchecked
+    dynamicConfigurationManager = mock(DynamicConfigurationManager.class);
+    when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
+
     this.accounts = new Accounts(
         dynamoDbExtension.getDynamoDbClient(),
         dynamoDbExtension.getTableName(),
         NUMBERS_TABLE_NAME,
-        SCAN_PAGE_SIZE);
+        SCAN_PAGE_SIZE,
+        dynamicConfigurationManager);
   }
 
   @Test
@@ -111,6 +122,29 @@ class AccountsTest {
 
   }
 
+  @Test
+  void testStoreAccountEncoding() {
+    final Account jsonAccount = generateAccount("+14151112222", UUID.randomUUID());
+    accounts.create(jsonAccount);
+
+    assertThat(getStoredAccountData(jsonAccount.getUuid())[0]).isEqualTo((byte) '{');
+    verifyStoredState("+14151112222", jsonAccount.getUuid(), jsonAccount, true);
+
+    dynamicConfiguration.getAccountEncodingConfiguration().setBinaryWritesEnabled(true);
+
+    final Account binaryAccount = generateAccount("+14151113333", UUID.randomUUID());
+    accounts.create(binaryAccount);
+
+    assertThat(getStoredAccountData(binaryAccount.getUuid())[0]).isEqualTo(AccountCodec.FORMAT_VERSION);
+    verifyStoredState("+14151113333", binaryAccount.getUuid(), binaryAccount, true);
+
+    // Records written as JSON remain readable and are rewritten in the binary format when next updated
+    accounts.update(jsonAccount);
+
+    assertThat(getStoredAccountData(jsonAccount.getUuid())[0]).isEqualTo(AccountCodec.FORMAT_VERSION);
+    verifyStoredState("+14151112222", jsonAccount.getUuid(), jsonAccount, true);
+  }
+
   @Test
   void testStoreMulti() {
     Set<Device> devices = new HashSet<>();
@@ -242,7 +276,7 @@ class AccountsTest {
 
     final DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
     accounts = new Accounts(dynamoDbClient,
-        dynamoDbExtension.getTableName(), NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE);
+        dynamoDbExtension.getTableName(), NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE, dynamicConfigurationManager);
 
     when(dynamoDbClient.updateItem(any(UpdateItemRequest.class)))
         .thenThrow(TransactionConflictException.class);
@@ -302,6 +336,33 @@ class AccountsTest {
     assertThat(users).isEmpty();
   }
 
+  @Test
+  void testRetrieveFromSegments() {
+    final int totalSegments = 4;
+    final Set<UUID> expectedUuids = new HashSet<>();
+
+    for (int i = 0; i < 20; i++) {
+      final Account account = generateAccount("+1" + String.format("%03d", i), UUID.randomUUID());
+      accounts.create(account);
+      expectedUuids.add(account.getUuid());
+    }
+
+    final List<UUID> retrievedUuids = new ArrayList<>();
+
+    for (int segment = 0; segment < totalSegments; segment++) {
+      AccountCrawlChunk retrieved = accounts.getAllFrom(Optional.empty(), 2, segment, totalSegments);
+
+      while (!retrieved.getAccounts().isEmpty()) {
+        retrieved.getAccounts().forEach(account -> retrievedUuids.add(account.getUuid()));
+        retrieved = accounts.getAllFrom(retrieved.getLastUuid(), 2, segment, totalSegments);
+      }
+    }
+
+    assertThat(retrievedUuids).hasSize(expectedUuids.size());
+    assertThat(new HashSet<>(retrievedUuids)).isEqualTo(expectedUuids);
+    assertThat(accounts.getApproximateCount()).isGreaterThanOrEqualTo(0);
+  }
+
   @Test
   void testDelete() {
     final Device deletedDevice = generateDevice(1);
@@ -351,6 +412,39 @@ class AccountsTest {
     assertThat(retrieved.isPresent()).isFalse();
   }
 
+  @Test
+  void testGetAll() {
+    final List<Account> created = new ArrayList<>();
+
+    // Spans more than one BatchGetItem request
+    for (int i = 0; i < 120; i++) {
+      final Account account = generateAccount(String.format("+1415%07d", i), UUID.randomUUID(),
+          Collections.singleton(generateDevice(1)));
+
+      accounts.create(account);
+      created.add(account);
+    }
+
+    final List<UUID> uuids = new ArrayList<>();
+    created.forEach(account -> uuids.add(account.getUuid()));
+    uuids.add(UUID.randomUUID());
+    uuids.add(created.get(0).getUuid());
+
+    final List<Account> retrieved = accounts.getAll(uuids);
+
+    assertThat(retrieved).hasSize(created.size());
+
+    final Map<UUID, Account> retrievedByUuid = new HashMap<>();
+    retrieved.forEach(account -> retrievedByUuid.put(account.getUuid(), account));
+
+    for (final Account account : created) {
+      assertThat(retrievedByUuid).containsKey(account.getUuid());
+      verifyStoredState(account.getNumber(), account.getUuid(), retrievedByUuid.get(account.getUuid()), account);
+    }
+
+    assertThat(accounts.getAll(Collections.emptyList())).isEmpty();
+  }
+
   @Test
   @Disabled("Need fault tolerant dynamodb")
   void testBreaker() throws InterruptedException {
@@ -369,7 +463,8 @@ class AccountsTest {
     when(client.updateItem(any(UpdateItemRequest.class)))
         .thenThrow(RuntimeException.class);
 
-    Accounts accounts = new Accounts(client, ACCOUNTS_TABLE_NAME, NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE);
+    Accounts accounts = new Accounts(client, ACCOUNTS_TABLE_NAME, NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE,
+        dynamicConfigurationManager);
     Account account = generateAccount("+14151112222", UUID.randomUUID());
 
     try {
@@ -486,6 +581,15 @@ class AccountsTest {
     return new Account(number, uuid, devices, unidentifiedAccessKey);
   }
 
+  private byte[] getStoredAccountData(final UUID uuid) {
+    return dynamoDbExtension.getDynamoDbClient().getItem(GetItemRequest.builder()
+            .tableName(dynamoDbExtension.getTableName())
+            .key(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+            .consistentRead(true)
+            .build())
+        .item().get(Accounts.ATTR_ACCOUNT_DATA).b().asByteArray();
+  }
+
   private void verifyStoredState(String number, UUID uuid, Account expecting, boolean canonicallyDiscoverable) {
     final DynamoDbClient db = dynamoDbExtension.getDynamoDbClient();
 
@@ -1,9 +1,14 @@
 package org.whispersystems.textsecuregcm.storage;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -39,4 +44,54 @@ public class DynamicConfigurationManagerTest {
 
     assertThat(dynamicConfigurationManager.getConfiguration()).isNotNull();
   }
+
+  @Test
+  public void testConfigurationListener() throws Exception {
+    when(appConfig.getConfiguration(any(GetConfigurationRequest.class)))
+        .thenReturn(GetConfigurationResponse.builder()
+            .content(SdkBytes.fromByteArray("test: true".getBytes())).configurationVersion("1").build())
+        .thenReturn(GetConfigurationResponse.builder()
+            .content(SdkBytes.fromByteArray("test: true".getBytes())).configurationVersion("1").build())
+        .thenReturn(GetConfigurationResponse.builder()
+            .content(SdkBytes.fromByteArray("test: false".getBytes())).configurationVersion("2").build());
+
+    final List<DynamicConfiguration> earlyListenerConfigurations = new CopyOnWriteArrayList<>();
+    final List<DynamicConfiguration> lateListenerConfigurations = new CopyOnWriteArrayList<>();
+
+    dynamicConfigurationManager.addConfigurationListener(earlyListenerConfigurations::add);
+    dynamicConfigurationManager.start();
+
+    final DynamicConfiguration initialConfiguration = dynamicConfigurationManager.getConfiguration();
+    assertThat(earlyListenerConfigurations).containsExactly(initialConfiguration);
+
+    dynamicConfigurationManager.addConfigurationListener(lateListenerConfigurations::add);
+    assertThat(lateListenerConfigurations).containsExactly(initialConfiguration);
+
+    // An unchanged version is not published again
+    dynamicConfigurationManager.updateConfiguration();
+    assertThat(earlyListenerConfigurations).hasSize(1);
+
+    dynamicConfigurationManager.updateConfiguration();
+
+    final DynamicConfiguration updatedConfiguration = dynamicConfigurationManager.getConfiguration();
+    assertThat(updatedConfiguration).isNotSameAs(initialConfiguration);
+    assertThat(earlyListenerConfigurations).containsExactly(initialConfiguration, updatedConfiguration);
+    assertThat(lateListenerConfigurations).containsExactly(initialConfiguration, updatedConfiguration);
+  }
+
+  @Test
+  public void testGetConfigurationWaitsForInitialConfiguration() throws Exception {
+    when(appConfig.getConfiguration(any(GetConfigurationRequest.class))).thenReturn(
+        GetConfigurationResponse.builder().content(SdkBytes.fromByteArray("test: true".getBytes())).configurationVersion("1").build());
+
+    final CompletableFuture<DynamicConfiguration> configurationFuture =
+        CompletableFuture.supplyAsync(dynamicConfigurationManager::getConfiguration);
+
+    Thread.sleep(100);
+    assertThat(configurationFuture).isNotDone();
+
+    dynamicConfigurationManager.start();
+
+    assertThat(configurationFuture.get(1, TimeUnit.SECONDS)).isSameAs(dynamicConfigurationManager.getConfiguration());
+  }
 }
@@ -9,17 +9,35 @@ import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.whispersystems.textsecuregcm.entities.PreKey;
+import org.whispersystems.textsecuregcm.util.AttributeValues;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
-
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -36,7 +54,8 @@ public class KeysDynamoDbTest {
 
     @Before
     public void setup() {
-        keysDynamoDb = new KeysDynamoDb(dynamoDbRule.getDynamoDbClient(), KeysDynamoDbRule.TABLE_NAME);
+        keysDynamoDb = new KeysDynamoDb(dynamoDbRule.getDynamoDbClient(), dynamoDbRule.getDynamoDbAsyncClient(),
+                KeysDynamoDbRule.TABLE_NAME);
 
         account = mock(Account.class);
         when(account.getNumber()).thenReturn(ACCOUNT_NUMBER);
@@ -89,6 +108,98 @@ public class KeysDynamoDbTest {
         assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID + 1));
     }
 
+    @Test
+    public void testTakeAccountPagesPastContestedKeys() {
+        final DynamoDbAsyncClient asyncClient = mock(DynamoDbAsyncClient.class);
+        final KeysDynamoDb pagingKeysDynamoDb =
+            new KeysDynamoDb(dynamoDbRule.getDynamoDbClient(), asyncClient, KeysDynamoDbRule.TABLE_NAME);
+
+        final Device device = mock(Device.class);
+        when(device.getId()).thenReturn(DEVICE_ID);
+        when(account.getDevices()).thenReturn(Set.of(device));
+
+        final AttributeValue contestedSortKey = getSortKey(DEVICE_ID, 1);
+        final AttributeValue availableSortKey = getSortKey(DEVICE_ID, 2);
+        final Map<String, AttributeValue> lastEvaluatedKey = Map.of(KeysDynamoDb.KEY_DEVICE_ID_KEY_ID, contestedSortKey);
+
+        when(asyncClient.query(any(QueryRequest.class))).thenAnswer(invocation -> {
+            final QueryRequest request = invocation.getArgument(0);
+
+            return CompletableFuture.completedFuture(request.hasExclusiveStartKey()
+                ? QueryResponse.builder()
+                    .items(List.of(Map.of(KeysDynamoDb.KEY_DEVICE_ID_KEY_ID, availableSortKey)))
+                    .build()
+                : QueryResponse.builder()
+                    .items(List.of(Map.of(KeysDynamoDb.KEY_DEVICE_ID_KEY_ID, contestedSortKey)))
+                    .lastEvaluatedKey(lastEvaluatedKey)
+                    .build());
+        });
+
+        when(asyncClient.deleteItem(any(DeleteItemRequest.class))).thenAnswer(invocation -> {
+            final DeleteItemRequest request = invocation.getArgument(0);
+
+            return request.key().get(KeysDynamoDb.KEY_DEVICE_ID_KEY_ID).equals(contestedSortKey)
+                ? CompletableFuture.failedFuture(ConditionalCheckFailedException.builder().build())
+                : CompletableFuture.completedFuture(DeleteItemResponse.builder()
+                    .attributes(Map.of(
+                        KeysDynamoDb.KEY_DEVICE_ID_KEY_ID, availableSortKey,
+                        KeysDynamoDb.KEY_PUBLIC_KEY, AttributeValues.fromString("public-key")))
+                    .build());
+        });
+
+        when(asyncClient.updateItem(any(UpdateItemRequest.class)))
+            .thenReturn(CompletableFuture.completedFuture(UpdateItemResponse.builder().build()));
+
+        assertEquals(Map.of(DEVICE_ID, new PreKey(2, "public-key")), pagingKeysDynamoDb.take(account));
+    }
+
+    private static AttributeValue getSortKey(final long deviceId, final long keyId) {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[16]);
+        byteBuffer.putLong(deviceId);
+        byteBuffer.putLong(keyId);
+        return AttributeValues.fromByteBuffer(byteBuffer.flip());
+    }
+
+    @Test
+    public void testTakeAccountConcurrent() throws InterruptedException {
+        final Device firstDevice = mock(Device.class);
+        final Device secondDevice = mock(Device.class);
+
+        when(firstDevice.getId()).thenReturn(DEVICE_ID);
+        when(secondDevice.getId()).thenReturn(DEVICE_ID + 1);
+        when(account.getDevices()).thenReturn(Set.of(firstDevice, secondDevice));
+
+        final int keyCount = 20;
+        final List<PreKey> firstDevicePreKeys = new ArrayList<>();
+        final List<PreKey> secondDevicePreKeys = new ArrayList<>();
+
+        for (int i = 0; i < keyCount; i++) {
+            firstDevicePreKeys.add(new PreKey(i, "first-device-key-" + i));
+            secondDevicePreKeys.add(new PreKey(i, "second-device-key-" + i));
+        }
+
+        keysDynamoDb.store(account, DEVICE_ID, firstDevicePreKeys);
+        keysDynamoDb.store(account, DEVICE_ID + 1, secondDevicePreKeys);
+
+        final List<Map<Long, PreKey>> claimedKeys = Collections.synchronizedList(new ArrayList<>());
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        for (int i = 0; i < keyCount; i++) {
+            executorService.execute(() -> claimedKeys.add(keysDynamoDb.take(account)));
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(keyCount, claimedKeys.size());
+        assertEquals("Each key should be claimed exactly once", Set.copyOf(firstDevicePreKeys),
+                claimedKeys.stream().map(keys -> keys.get(DEVICE_ID)).collect(Collectors.toSet()));
+        assertEquals("Each key should be claimed exactly once", Set.copyOf(secondDevicePreKeys),
+                claimedKeys.stream().map(keys -> keys.get(DEVICE_ID + 1)).collect(Collectors.toSet()));
+
+        assertEquals(Collections.emptyMap(), keysDynamoDb.take(account));
+    }
+
     @Test
     public void testTakeAccountAndDeviceId() {
         assertEquals(Optional.empty(), keysDynamoDb.take(account, DEVICE_ID));
@@ -108,6 +219,51 @@ public class KeysDynamoDbTest {
         assertEquals(1, keysDynamoDb.getCount(account, DEVICE_ID));
     }
 
+    @Test
+    public void testGetCountMaintained() {
+        keysDynamoDb.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key"), new PreKey(2, "different-public-key"),
+                new PreKey(3, "third-public-key")));
+
+        assertEquals(3, keysDynamoDb.getCount(account, DEVICE_ID));
+
+        keysDynamoDb.take(account, DEVICE_ID);
+        assertEquals(2, keysDynamoDb.getCount(account, DEVICE_ID));
+
+        final Device device = mock(Device.class);
+        when(device.getId()).thenReturn(DEVICE_ID);
+        when(account.getDevices()).thenReturn(Set.of(device));
+
+        keysDynamoDb.take(account);
+        assertEquals(1, keysDynamoDb.getCount(account, DEVICE_ID));
+
+        keysDynamoDb.delete(account.getUuid(), DEVICE_ID);
+        assertEquals(0, keysDynamoDb.getCount(account, DEVICE_ID));
+    }
+
+    @Test
+    public void testReconcileCount() {
+        keysDynamoDb.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key"), new PreKey(2, "different-public-key"),
+                new PreKey(3, "third-public-key")));
+
+        assertEquals(0, keysDynamoDb.reconcileCount(account.getUuid(), DEVICE_ID));
+
+        // Remove a key behind the counter's back
+        final ByteBuffer sortKey = ByteBuffer.allocate(16);
+        sortKey.putLong(DEVICE_ID);
+        sortKey.putLong(2);
+
+        dynamoDbRule.getDynamoDbClient().deleteItem(DeleteItemRequest.builder()
+                .tableName(KeysDynamoDbRule.TABLE_NAME)
+                .key(Map.of(KeysDynamoDb.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid()),
+                        KeysDynamoDb.KEY_DEVICE_ID_KEY_ID, AttributeValues.fromByteBuffer(sortKey.flip())))
+                .build());
+
+        assertEquals(3, keysDynamoDb.getCount(account, DEVICE_ID));
+        assertEquals(1, keysDynamoDb.reconcileCount(account.getUuid(), DEVICE_ID));
+        assertEquals(2, keysDynamoDb.getCount(account, DEVICE_ID));
+        assertEquals(0, keysDynamoDb.reconcileCount(account.getUuid(), DEVICE_ID));
+    }
+
     @Test
     public void testDeleteByAccount() {
         keysDynamoDb.store(account, DEVICE_ID, List.of(new PreKey(1, "public-key"), new PreKey(2, "different-public-key")));
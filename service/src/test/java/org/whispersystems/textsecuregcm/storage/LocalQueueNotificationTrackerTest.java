@@ -0,0 +1,90 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LocalQueueNotificationTrackerTest {
+
+  private Clock clock;
+  private LocalQueueNotificationTracker tracker;
+
+  @BeforeEach
+  void setUp() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    tracker = new LocalQueueNotificationTracker(clock);
+  }
+
+  @Test
+  void testKeyspaceNotificationWithoutLocalInsertion() {
+    assertTrue(tracker.handleKeyspaceNotification());
+    assertTrue(tracker.handleKeyspaceNotification());
+  }
+
+  @Test
+  void testKeyspaceNotificationDuringInsertion() {
+    tracker.handleInsertionStarted();
+    assertFalse(tracker.handleKeyspaceNotification());
+
+    // The held-back notification is delivered once the insertion completes...
+    assertTrue(tracker.handleInsertionCompleted());
+
+    // ...which also covers the direct signal for the insertion
+    assertFalse(tracker.handleLocalNotification());
+
+    assertTrue(tracker.handleKeyspaceNotification());
+  }
+
+  @Test
+  void testKeyspaceNotificationAfterLocalNotification() {
+    tracker.handleInsertionStarted();
+    assertFalse(tracker.handleInsertionCompleted());
+    assertTrue(tracker.handleLocalNotification());
+
+    assertFalse(tracker.handleKeyspaceNotification());
+
+    // Only the insertion's own notification is covered
+    assertTrue(tracker.handleKeyspaceNotification());
+  }
+
+  @Test
+  void testKeyspaceNotificationBeforeLocalNotification() {
+    tracker.handleInsertionStarted();
+    assertFalse(tracker.handleInsertionCompleted());
+
+    // The insertion's notification may already have arrived, so a later notification may be for a later insertion
+    assertTrue(tracker.handleKeyspaceNotification());
+    assertTrue(tracker.handleLocalNotification());
+
+    assertTrue(tracker.handleKeyspaceNotification());
+  }
+
+  @Test
+  void testLocalNotificationWithoutInsertion() {
+    assertTrue(tracker.handleLocalNotification());
+    assertTrue(tracker.handleKeyspaceNotification());
+  }
+
+  @Test
+  void testExpectedNotificationExpires() {
+    tracker.handleInsertionStarted();
+    assertFalse(tracker.handleInsertionCompleted());
+    assertTrue(tracker.handleLocalNotification());
+
+    when(clock.millis()).thenReturn(LocalQueueNotificationTracker.EXPECTED_NOTIFICATION_TTL.toMillis());
+
+    assertTrue(tracker.handleKeyspaceNotification());
+  }
+}
@@ -6,6 +6,8 @@
 package org.whispersystems.textsecuregcm.storage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
@@ -24,9 +26,11 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Before;
 import org.junit.Test;
@@ -69,7 +73,7 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
 
         notificationExecutorService = Executors.newSingleThreadExecutor();
         messagesCache               = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService);
-        messagePersister            = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfigurationManager, PERSIST_DELAY);
+        messagePersister            = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfigurationManager, PERSIST_DELAY, 4);
 
         doAnswer(invocation -> {
           final UUID destinationUuid = invocation.getArgument(0);
@@ -82,7 +86,7 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
                 messagesCache.remove(destinationUuid, destinationDeviceId, UUID.fromString(message.getServerGuid()));
             }
 
-            return null;
+            return CompletableFuture.completedFuture(null);
         }).when(messagesManager).persistMessages(any(UUID.class), anyLong(), any());
     }
 
@@ -90,6 +94,8 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
     public void tearDown() throws Exception {
         super.tearDown();
 
+        messagePersister.stop();
+
         notificationExecutorService.shutdown();
         notificationExecutorService.awaitTermination(1, TimeUnit.SECONDS);
     }
@@ -182,6 +188,57 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
                      messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName), Instant.now().plus(messagePersister.getPersistDelay()), 1));
     }
 
+    @Test
+    public void testPersistQueueRetryBackoff() {
+        final String  queueName    = new String(MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+        final int     slot         = SlotHash.getSlot(queueName);
+        final Instant now          = Instant.now();
+
+        insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 10, now);
+        setNextSlotToPersist(slot);
+
+        doAnswer((Answer<Void>)invocation -> {
+            throw new RuntimeException("OH NO.");
+        }).when(messagesDynamoDb).store(any(), eq(DESTINATION_ACCOUNT_UUID), eq(DESTINATION_DEVICE_ID));
+
+        messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay()));
+
+        // The failed queue should only become eligible for persistence again after its backoff period
+        assertTrue(messagesCache.getQueuesToPersist(slot, Instant.now().minus(messagePersister.getPersistDelay()), 1).isEmpty());
+        assertEquals(List.of(queueName),
+                     messagesCache.getQueuesToPersist(slot, Instant.now().minus(messagePersister.getPersistDelay()).plus(MessagePersister.INITIAL_RETRY_BACKOFF), 1));
+    }
+
+    @Test
+    public void testGetRetryBackoff() {
+        assertEquals(MessagePersister.INITIAL_RETRY_BACKOFF, MessagePersister.getRetryBackoff(1));
+        assertEquals(MessagePersister.INITIAL_RETRY_BACKOFF.multipliedBy(2), MessagePersister.getRetryBackoff(2));
+        assertEquals(MessagePersister.INITIAL_RETRY_BACKOFF.multipliedBy(4), MessagePersister.getRetryBackoff(3));
+        assertEquals(MessagePersister.MAX_RETRY_BACKOFF, MessagePersister.getRetryBackoff(100));
+    }
+
+    @Test
+    public void testPersistQueueConcurrentPages() {
+        final int     messageCount = (MessagePersister.MESSAGE_BATCH_LIMIT * 3) + 7;
+        final Instant now          = Instant.now();
+
+        insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, messageCount, now);
+
+        messagePersister.persistQueue(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+
+        final ArgumentCaptor<List<MessageProtos.Envelope>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+
+        verify(messagesDynamoDb, atLeastOnce()).store(messagesCaptor.capture(), eq(DESTINATION_ACCOUNT_UUID), eq(DESTINATION_DEVICE_ID));
+
+        final List<MessageProtos.Envelope> storedMessages = messagesCaptor.getAllValues().stream()
+            .flatMap(List::stream)
+            .collect(Collectors.toList());
+
+        assertEquals(messageCount, storedMessages.size());
+        assertEquals(messageCount, storedMessages.stream().map(MessageProtos.Envelope::getServerGuid).distinct().count());
+        assertFalse(messagesCache.hasMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID));
+    }
+
     @SuppressWarnings("SameParameterValue")
     private static String generateRandomQueueNameForSlot(final int slot) {
         final UUID uuid = UUID.randomUUID();
@@ -10,6 +10,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.google.protobuf.ByteString;
+import io.lettuce.core.ScoredValue;
 import io.lettuce.core.cluster.SlotHash;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
@@ -19,10 +20,12 @@ import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
@@ -78,6 +81,21 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         generateRandomMessage(messageGuid, sealedSender)) > 0);
   }
 
+  @Test
+  public void testInsertAsync() {
+    final UUID firstMessageGuid = UUID.randomUUID();
+    final UUID secondMessageGuid = UUID.randomUUID();
+
+    final CompletableFuture<Long> firstInsertFuture = messagesCache.insertAsync(firstMessageGuid, DESTINATION_UUID,
+        DESTINATION_DEVICE_ID, generateRandomMessage(firstMessageGuid, true));
+
+    final CompletableFuture<Long> secondInsertFuture = messagesCache.insertAsync(secondMessageGuid, DESTINATION_UUID,
+        DESTINATION_DEVICE_ID, generateRandomMessage(secondMessageGuid, true));
+
+    assertTrue(firstInsertFuture.join() < secondInsertFuture.join());
+    assertEquals(2, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10).size());
+  }
+
   @Test
   public void testDoubleInsertGuid() {
     final UUID duplicateGuid = UUID.randomUUID();
@@ -141,7 +159,9 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         removedMessages);
 
     assertEquals(messagesToPreserve,
-        messagesCache.getMessagesToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
+        messagesCache.getMessagesToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, -1, messageCount).stream()
+            .map(ScoredValue::getValue)
+            .collect(Collectors.toList()));
   }
 
   @Test
@@ -173,6 +193,39 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertEquals(expectedMessages, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
   }
 
+  @Test
+  @Parameters({"true", "false"})
+  public void testGetMessagesAfterMessageId(final boolean sealedSender) {
+    final int messageCount = 100;
+    final int pageSize = 30;
+
+    final List<OutgoingMessageEntity> expectedMessages = new ArrayList<>(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      final UUID messageGuid = UUID.randomUUID();
+      final MessageProtos.Envelope message = generateRandomMessage(messageGuid, sealedSender);
+      final long messageId = messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+
+      expectedMessages.add(MessagesCache.constructEntityFromEnvelope(messageId, message));
+    }
+
+    final List<OutgoingMessageEntity> retrievedMessages = new ArrayList<>(messageCount);
+    Optional<Long> afterMessageId = Optional.empty();
+
+    List<OutgoingMessageEntity> page;
+
+    do {
+      page = messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, pageSize, afterMessageId);
+      retrievedMessages.addAll(page);
+
+      if (!page.isEmpty()) {
+        afterMessageId = Optional.of(page.get(page.size() - 1).getId());
+      }
+    } while (!page.isEmpty());
+
+    assertEquals(expectedMessages, retrievedMessages);
+  }
+
   @Test
   @Parameters({"true", "false"})
   public void testClearQueueForDevice(final boolean sealedSender) {
@@ -313,6 +366,67 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
     assertTrue(notified.get());
   }
 
+  @Test(timeout = 5_000L)
+  public void testNotifyLocalListener() throws InterruptedException {
+    final AtomicBoolean notified = new AtomicBoolean(false);
+
+    final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+        synchronized (notified) {
+          notified.set(true);
+          notified.notifyAll();
+        }
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+      }
+    };
+
+    assertFalse(messagesCache.notifyLocalListener(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+    messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+    assertTrue(messagesCache.notifyLocalListener(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+    synchronized (notified) {
+      while (!notified.get()) {
+        notified.wait();
+      }
+    }
+
+    messagesCache.removeMessageAvailabilityListener(listener);
+    assertFalse(messagesCache.notifyLocalListener(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+  }
+
+  @Test(timeout = 5_000L)
+  public void testNotifyLocalListenerAfterInsert() throws InterruptedException {
+    final AtomicInteger notifications = new AtomicInteger();
+    final UUID messageGuid = UUID.randomUUID();
+
+    final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+      @Override
+      public void handleNewMessagesAvailable() {
+        notifications.incrementAndGet();
+      }
+
+      @Override
+      public void handleMessagesPersisted() {
+      }
+    };
+
+    messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+    messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID,
+        generateRandomMessage(messageGuid, true));
+
+    assertTrue(messagesCache.notifyLocalListener(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+
+    // Give the keyspace notification for the insertion plenty of time to arrive; it's covered by the local signal
+    Thread.sleep(1_000);
+
+    assertEquals(1, notifications.get());
+  }
+
   @Test(timeout = 5_000L)
   public void testNotifyListenerPersisted() throws InterruptedException {
     final AtomicBoolean notified = new AtomicBoolean(false);
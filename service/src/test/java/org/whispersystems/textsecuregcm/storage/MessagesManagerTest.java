@@ -1,15 +1,27 @@
 package org.whispersystems.textsecuregcm.storage;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import io.lettuce.core.RedisException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.Test;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntity;
 import org.whispersystems.textsecuregcm.metrics.PushLatencyManager;
+import org.whispersystems.textsecuregcm.util.Pair;
 
 class MessagesManagerTest {
 
@@ -43,4 +55,87 @@ class MessagesManagerTest {
 
     verifyNoMoreInteractions(reportMessageManager);
   }
+
+  @Test
+  void insertBatch() {
+    final String sourceNumber = "+12025551212";
+    final UUID sourceUuid = UUID.randomUUID();
+    final UUID destinationUuid = UUID.randomUUID();
+
+    final Envelope message = Envelope.newBuilder()
+        .setSource(sourceNumber)
+        .setSourceUuid(sourceUuid.toString())
+        .build();
+
+    when(messagesCache.insertAsync(any(), any(), anyLong(), any())).thenReturn(CompletableFuture.completedFuture(1L));
+
+    messagesManager.insert(Map.of(
+        new Pair<>(destinationUuid, 1L), message,
+        new Pair<>(destinationUuid, 2L), message,
+        new Pair<>(sourceUuid, 2L), message));
+
+    verify(messagesCache).insertAsync(any(UUID.class), eq(destinationUuid), eq(1L), eq(message));
+    verify(messagesCache).insertAsync(any(UUID.class), eq(destinationUuid), eq(2L), eq(message));
+    verify(messagesCache).insertAsync(any(UUID.class), eq(sourceUuid), eq(2L), eq(message));
+    verify(reportMessageManager, times(2)).store(eq(sourceNumber), any(UUID.class));
+  }
+
+  @Test
+  void insertBatchPartialFailure() {
+    final String sourceNumber = "+12025551212";
+    final UUID sourceUuid = UUID.randomUUID();
+    final UUID failedDestinationUuid = UUID.randomUUID();
+    final UUID destinationUuid = UUID.randomUUID();
+
+    final Envelope message = Envelope.newBuilder()
+        .setSource(sourceNumber)
+        .setSourceUuid(sourceUuid.toString())
+        .build();
+
+    when(messagesCache.insertAsync(any(), eq(failedDestinationUuid), anyLong(), any()))
+        .thenReturn(CompletableFuture.failedFuture(new RedisException("OH NO")));
+
+    when(messagesCache.insertAsync(any(), eq(destinationUuid), anyLong(), any()))
+        .thenReturn(CompletableFuture.completedFuture(1L));
+
+    assertEquals(Set.of(new Pair<>(failedDestinationUuid, 1L)), messagesManager.insert(Map.of(
+        new Pair<>(failedDestinationUuid, 1L), message,
+        new Pair<>(destinationUuid, 1L), message)));
+
+    verify(messagesCache).insertAsync(any(UUID.class), eq(destinationUuid), eq(1L), eq(message));
+    verify(reportMessageManager).store(eq(sourceNumber), any(UUID.class));
+    verifyNoMoreInteractions(reportMessageManager);
+  }
+
+  @Test
+  void deleteBatch() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final OutgoingMessageEntity cachedMessage = buildMessage(UUID.randomUUID());
+    final OutgoingMessageEntity persistedMessage = buildMessage(UUID.randomUUID());
+
+    when(messagesCache.remove(destinationUuid, 1L, List.of(cachedMessage.getGuid(), persistedMessage.getGuid())))
+        .thenReturn(List.of(cachedMessage));
+
+    messagesManager.delete(destinationUuid, 1L, List.of(cachedMessage, persistedMessage));
+
+    verify(messagesDynamoDb).deleteMessages(destinationUuid, 1L, List.of(persistedMessage));
+  }
+
+  @Test
+  void deleteBatchAllCached() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final OutgoingMessageEntity cachedMessage = buildMessage(UUID.randomUUID());
+
+    when(messagesCache.remove(destinationUuid, 1L, List.of(cachedMessage.getGuid())))
+        .thenReturn(List.of(cachedMessage));
+
+    messagesManager.delete(destinationUuid, 1L, List.of(cachedMessage));
+
+    verifyNoInteractions(messagesDynamoDb);
+  }
+
+  private static OutgoingMessageEntity buildMessage(final UUID guid) {
+    return new OutgoingMessageEntity(0, true, guid, Envelope.Type.CIPHERTEXT_VALUE, null, System.currentTimeMillis(),
+        null, null, 0, null, new byte[16], System.currentTimeMillis());
+  }
 }
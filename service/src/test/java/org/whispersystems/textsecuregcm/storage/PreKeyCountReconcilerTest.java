@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class PreKeyCountReconcilerTest {
+
+  @Test
+  void testOnCrawlChunk() throws AccountDatabaseCrawlerRestartException {
+    final KeysDynamoDb keysDynamoDb = mock(KeysDynamoDb.class);
+    final PreKeyCountReconciler reconciler = new PreKeyCountReconciler(keysDynamoDb);
+
+    final UUID firstAccountUuid = UUID.randomUUID();
+    final UUID secondAccountUuid = UUID.randomUUID();
+
+    final Account firstAccount = mock(Account.class);
+    final Account secondAccount = mock(Account.class);
+    final Device primaryDevice = mock(Device.class);
+    final Device linkedDevice = mock(Device.class);
+
+    when(primaryDevice.getId()).thenReturn(1L);
+    when(linkedDevice.getId()).thenReturn(2L);
+    when(firstAccount.getUuid()).thenReturn(firstAccountUuid);
+    when(firstAccount.getDevices()).thenReturn(Set.of(primaryDevice, linkedDevice));
+    when(secondAccount.getUuid()).thenReturn(secondAccountUuid);
+    when(secondAccount.getDevices()).thenReturn(Set.of(primaryDevice));
+
+    when(keysDynamoDb.reconcileCount(eq(firstAccountUuid), anyLong())).thenThrow(new RuntimeException("OH NO"));
+
+    reconciler.timeAndProcessCrawlChunk(Optional.empty(), List.of(firstAccount, secondAccount));
+
+    verify(keysDynamoDb).reconcileCount(firstAccountUuid, 1L);
+    verify(keysDynamoDb).reconcileCount(firstAccountUuid, 2L);
+    verify(keysDynamoDb).reconcileCount(secondAccountUuid, 1L);
+  }
+}
@@ -4,11 +4,14 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.time.Duration;
+import java.util.function.Consumer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration;
 import org.whispersystems.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
@@ -74,6 +77,15 @@ class DynamicRateLimitsTest {
 
     when(limitsConfiguration.getUnsealedSenderNumber()).thenReturn(new RateLimitsConfiguration.CardinalityRateLimitConfiguration(20, Duration.ofHours(2)));
 
+    // Limiters are rebuilt when a new configuration version is published, not when it is read
+    assertSame(rateLimiters.getUnsealedSenderCardinalityLimiter(), limiter);
+
+    @SuppressWarnings("unchecked") final ArgumentCaptor<Consumer<DynamicConfiguration>> listenerCaptor =
+        ArgumentCaptor.forClass(Consumer.class);
+
+    verify(dynamicConfig).addConfigurationListener(listenerCaptor.capture());
+    listenerCaptor.getValue().accept(configuration);
+
     CardinalityRateLimiter changed = rateLimiters.getUnsealedSenderCardinalityLimiter();
 
     assertThat(changed.getDefaultMaxCardinality()).isEqualTo(20);
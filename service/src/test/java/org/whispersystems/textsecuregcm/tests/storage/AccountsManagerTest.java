@@ -9,9 +9,11 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
@@ -23,14 +25,23 @@ import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import io.lettuce.core.KeyValue;
 import io.lettuce.core.RedisException;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -38,35 +49,45 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.entities.AccountAttributes;
 import org.whispersystems.textsecuregcm.entities.SignedPreKey;
 import org.whispersystems.textsecuregcm.push.ClientPresenceManager;
 import org.whispersystems.textsecuregcm.securebackup.SecureBackupClient;
 import org.whispersystems.textsecuregcm.securestorage.SecureStorageClient;
 import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountCodec;
+import org.whispersystems.textsecuregcm.storage.AccountNearCache;
 import org.whispersystems.textsecuregcm.storage.Accounts;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.ContestedOptimisticLockException;
 import org.whispersystems.textsecuregcm.storage.DeletedAccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.Device.DeviceCapabilities;
+import org.whispersystems.textsecuregcm.storage.DynamicConfigurationManager;
 import org.whispersystems.textsecuregcm.storage.KeysDynamoDb;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
 import org.whispersystems.textsecuregcm.storage.ProfilesManager;
 import org.whispersystems.textsecuregcm.storage.StoredVerificationCodeManager;
 import org.whispersystems.textsecuregcm.storage.UsernamesManager;
+import org.whispersystems.textsecuregcm.tests.util.MockRedisFuture;
 import org.whispersystems.textsecuregcm.tests.util.RedisClusterHelper;
 
 class AccountsManagerTest {
 
   private Accounts accounts;
+  private AccountNearCache accountNearCache;
   private DeletedAccountsManager deletedAccountsManager;
   private KeysDynamoDb keys;
   private MessagesManager messagesManager;
   private ProfilesManager profilesManager;
+  private DynamicConfiguration dynamicConfiguration;
 
   private RedisAdvancedClusterCommands<String, String> commands;
+  private RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands;
+  private RedisAdvancedClusterAsyncCommands<byte[], byte[]> binaryAsyncCommands;
   private AccountsManager accountsManager;
 
   private static final Answer<?> ACCOUNT_UPDATE_ANSWER = (answer) -> {
@@ -80,14 +101,27 @@ class AccountsManagerTest {
   @BeforeEach
   void setup() throws InterruptedException {
     accounts = mock(Accounts.class);
+    accountNearCache = mock(AccountNearCache.class);
     deletedAccountsManager = mock(DeletedAccountsManager.class);
     keys = mock(KeysDynamoDb.class);
     messagesManager = mock(MessagesManager.class);
     profilesManager = mock(ProfilesManager.class);
+    dynamicConfiguration = new DynamicConfiguration();
+
+    //noinspection unchecked
+    final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager =
+        mock(DynamicConfigurationManager.class);
+    when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
 
     //noinspection unchecked
     commands = mock(RedisAdvancedClusterCommands.class);
 
+    //noinspection unchecked
+    binaryCommands = mock(RedisAdvancedClusterCommands.class);
+
+    //noinspection unchecked
+    binaryAsyncCommands = mock(RedisAdvancedClusterAsyncCommands.class);
+
     doAnswer((Answer<Void>) invocation -> {
       final Account account = invocation.getArgument(0, Account.class);
       final String number = invocation.getArgument(1, String.class);
@@ -111,7 +145,9 @@ class AccountsManagerTest {
 
     accountsManager = new AccountsManager(
         accounts,
-        RedisClusterHelper.buildMockRedisCluster(commands),
+        RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands,
+            mock(RedisAdvancedClusterAsyncCommands.class), binaryAsyncCommands),
+        accountNearCache,
         deletedAccountsManager,
         keys,
         messagesManager,
@@ -120,7 +156,8 @@ class AccountsManagerTest {
         mock(StoredVerificationCodeManager.class),
         storageClient,
         backupClient,
-        mock(ClientPresenceManager.class));
+        mock(ClientPresenceManager.class),
+        dynamicConfigurationManager);
   }
 
   @Test
@@ -128,7 +165,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
 
     when(commands.get(eq("AccountMap::+14152222222"))).thenReturn(uuid.toString());
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
 
     Optional<Account> account = accountsManager.get("+14152222222");
 
@@ -137,7 +174,7 @@ class AccountsManagerTest {
     assertEquals(account.get().getProfileName(), "test");
 
     verify(commands, times(1)).get(eq("AccountMap::+14152222222"));
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verifyNoMoreInteractions(commands);
 
     verifyNoInteractions(accounts);
@@ -147,7 +184,7 @@ class AccountsManagerTest {
   void testGetAccountByUuidInCache() {
     UUID uuid = UUID.randomUUID();
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
 
     Optional<Account> account = accountsManager.get(uuid);
 
@@ -156,12 +193,122 @@ class AccountsManagerTest {
     assertEquals(account.get().getUuid(), uuid);
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verifyNoMoreInteractions(commands);
 
     verifyNoInteractions(accounts);
   }
 
+  @Test
+  void testGetAccountByUuidInNearCache() {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    when(accountNearCache.get(uuid)).thenReturn(Optional.of(account));
+
+    assertSame(account, accountsManager.get(uuid).orElseThrow());
+
+    verifyNoInteractions(commands);
+    verifyNoInteractions(accounts);
+  }
+
+  @Test
+  void testGetAccountByUuidPopulatesNearCache() {
+    final UUID uuid = UUID.randomUUID();
+
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
+
+    final Account account = accountsManager.get(uuid).orElseThrow();
+
+    verify(accountNearCache).put(account);
+  }
+
+  @Test
+  void testUpdateInvalidatesNearCache() {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    doAnswer(ACCOUNT_UPDATE_ANSWER).when(accounts).update(any());
+
+    final Account updatedAccount = accountsManager.update(account, a -> a.setProfileName("name"));
+
+    verify(accountNearCache).put(updatedAccount);
+    verify(accountNearCache).invalidate(uuid, 1);
+  }
+
+  @Test
+  void testUnchangedUpdateDoesNotInvalidateNearCache() {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    accountsManager.updateDeviceLastSeen(account, new Device(), 0);
+
+    verify(accountNearCache, never()).invalidate(any(UUID.class), anyInt());
+    verify(accountNearCache, never()).invalidate(any(UUID.class));
+  }
+
+  @Test
+  void testGetAll() {
+    final UUID cachedUuid = UUID.randomUUID();
+    final UUID uncachedUuid = UUID.randomUUID();
+    final UUID missingUuid = UUID.randomUUID();
+    final Account uncachedAccount = new Account("+14152222223", uncachedUuid, new HashSet<>(), new byte[16]);
+
+    final Map<String, String> cachedValues =
+        Map.of("Account3::" + cachedUuid, "{\"number\": \"+14152222222\", \"name\": \"test\"}");
+
+    when(binaryAsyncCommands.mget(any())).thenAnswer(invocation -> MockRedisFuture.completedFuture(
+        Arrays.stream(invocation.getArguments())
+            .map(key -> KeyValue.fromNullable((byte[]) key,
+                Optional.ofNullable(cachedValues.get(new String((byte[]) key, StandardCharsets.UTF_8)))
+                    .map(value -> value.getBytes(StandardCharsets.UTF_8))
+                    .orElse(null)))
+            .collect(Collectors.toList())));
+
+    when(accounts.getAll(any())).thenReturn(List.of(uncachedAccount));
+
+    final Map<UUID, Account> accountsByUuid = accountsManager.getAll(List.of(cachedUuid, uncachedUuid, missingUuid));
+
+    assertEquals(Set.of(cachedUuid, uncachedUuid), accountsByUuid.keySet());
+    assertEquals("+14152222222", accountsByUuid.get(cachedUuid).getNumber());
+    assertEquals(cachedUuid, accountsByUuid.get(cachedUuid).getUuid());
+    assertSame(uncachedAccount, accountsByUuid.get(uncachedUuid));
+
+    verify(accounts).getAll(List.of(uncachedUuid, missingUuid));
+    verify(binaryCommands).set(aryEq(getAccountEntityKey(uncachedUuid)), any());
+  }
+
+  @Test
+  void testGetAllBrokenCache() {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    when(binaryAsyncCommands.mget(any())).thenReturn(MockRedisFuture.failedFuture(new RedisException("Connection lost!")));
+    when(accounts.getAll(List.of(uuid))).thenReturn(List.of(account));
+
+    assertEquals(Map.of(uuid, account), accountsManager.getAll(List.of(uuid)));
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {true, false})
+  void testCachedAccountEncoding(final boolean binaryWritesEnabled) throws IOException {
+    dynamicConfiguration.getAccountEncodingConfiguration().setBinaryWritesEnabled(binaryWritesEnabled);
+
+    UUID uuid = UUID.randomUUID();
+    Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    when(commands.get(eq("AccountMap::+14152222222"))).thenReturn(null);
+    when(accounts.get(eq("+14152222222"))).thenReturn(Optional.of(account));
+
+    accountsManager.get("+14152222222");
+
+    final ArgumentCaptor<byte[]> encodedAccountCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(binaryCommands).set(aryEq(getAccountEntityKey(uuid)), encodedAccountCaptor.capture());
+
+    final byte[] encodedAccount = encodedAccountCaptor.getValue();
+    assertEquals(!binaryWritesEnabled, encodedAccount[0] == '{');
+    assertEquals("+14152222222", AccountCodec.decode(encodedAccount).getNumber());
+  }
 
   @Test
   void testGetAccountByNumberNotInCache() {
@@ -178,7 +325,7 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::+14152222222"));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any());
     verifyNoMoreInteractions(commands);
 
     verify(accounts, times(1)).get(eq("+14152222222"));
@@ -190,7 +337,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -198,9 +345,9 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any());
     verifyNoMoreInteractions(commands);
 
     verify(accounts, times(1)).get(eq(uuid));
@@ -222,7 +369,7 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::+14152222222"));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any());
     verifyNoMoreInteractions(commands);
 
     verify(accounts, times(1)).get(eq("+14152222222"));
@@ -234,7 +381,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenThrow(new RedisException("Connection lost!"));
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenThrow(new RedisException("Connection lost!"));
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -242,9 +389,9 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any());
     verifyNoMoreInteractions(commands);
 
     verify(accounts, times(1)).get(eq(uuid));
@@ -256,7 +403,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
 
     when(accounts.get(uuid)).thenReturn(
         Optional.of(new Account("+14152222222", uuid, new HashSet<>(), new byte[16])));
@@ -285,7 +432,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
     when(accounts.get(uuid)).thenReturn(Optional.empty())
         .thenReturn(Optional.of(account));
     when(accounts.create(any())).thenThrow(ContestedOptimisticLockException.class);
@@ -362,6 +509,7 @@ class AccountsManagerTest {
     verify(keys).delete(existingUuid);
     verify(messagesManager).clear(existingUuid);
     verify(profilesManager).deleteAll(existingUuid);
+    verify(accountNearCache).invalidate(existingUuid);
   }
 
   @Test
@@ -444,6 +592,7 @@ class AccountsManagerTest {
     account = accountsManager.changeNumber(account, targetNumber);
 
     assertEquals(targetNumber, account.getNumber());
+    verify(accountNearCache).invalidate(eq(uuid), anyInt());
   }
 
   @Test
@@ -486,4 +635,8 @@ class AccountsManagerTest {
 
     assertThrows(AssertionError.class, () -> accountsManager.update(account, a -> a.setNumber(targetNumber)));
   }
+
+  private static byte[] getAccountEntityKey(final UUID uuid) {
+    return ("Account3::" + uuid).getBytes(StandardCharsets.UTF_8);
+  }
 }
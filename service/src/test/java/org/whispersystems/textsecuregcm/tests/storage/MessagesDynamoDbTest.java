@@ -10,9 +10,11 @@ import static org.assertj.core.api.Assertions.assertThat;
 import com.google.protobuf.ByteString;
 import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
@@ -95,6 +97,23 @@ class MessagesDynamoDbTest {
     assertThat(messagesStored).element(2).satisfies(verify(MESSAGE2));
   }
 
+  @Test
+  void testLoadAfterMessage() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final int destinationDeviceId = random.nextInt(255) + 1;
+    messagesDynamoDb.store(List.of(MESSAGE1, MESSAGE2, MESSAGE3), destinationUuid, destinationDeviceId);
+
+    final List<OutgoingMessageEntity> firstPage = messagesDynamoDb.load(destinationUuid, destinationDeviceId, 2);
+    assertThat(firstPage).hasSize(2);
+
+    final List<OutgoingMessageEntity> secondPage = messagesDynamoDb.load(destinationUuid, destinationDeviceId, 2,
+        Optional.of(firstPage.get(1)));
+    assertThat(secondPage).hasSize(1).element(0).satisfies(verify(MESSAGE2));
+
+    assertThat(messagesDynamoDb.load(destinationUuid, destinationDeviceId, 2, Optional.of(secondPage.get(0))))
+        .isEmpty();
+  }
+
   @Test
   void testDeleteForDestination() {
     final UUID destinationUuid = UUID.randomUUID();
@@ -168,6 +187,28 @@ class MessagesDynamoDbTest {
         .isEmpty();
   }
 
+  @Test
+  void testDeleteMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesDynamoDb.store(List.of(MESSAGE1, MESSAGE2, MESSAGE3), destinationUuid, 1);
+    messagesDynamoDb.store(List.of(MESSAGE1), destinationUuid, 2);
+
+    final List<OutgoingMessageEntity> messagesStored = messagesDynamoDb.load(destinationUuid, 1,
+        MessagesDynamoDb.RESULT_SET_CHUNK_SIZE);
+    assertThat(messagesStored).hasSize(3);
+
+    final List<OutgoingMessageEntity> messagesToDelete = messagesStored.stream()
+        .filter(message -> !message.getGuid().equals(UUID.fromString(MESSAGE2.getServerGuid())))
+        .collect(Collectors.toList());
+
+    messagesDynamoDb.deleteMessages(destinationUuid, 1, messagesToDelete);
+
+    assertThat(messagesDynamoDb.load(destinationUuid, 1, MessagesDynamoDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1)
+        .element(0).satisfies(verify(MESSAGE2));
+    assertThat(messagesDynamoDb.load(destinationUuid, 2, MessagesDynamoDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1)
+        .element(0).satisfies(verify(MESSAGE1));
+  }
+
   private static void verify(OutgoingMessageEntity retrieved, MessageProtos.Envelope inserted) {
     assertThat(retrieved.getTimestamp()).isEqualTo(inserted.getTimestamp());
     assertThat(retrieved.getSource()).isEqualTo(inserted.hasSource() ? inserted.getSource() : null);
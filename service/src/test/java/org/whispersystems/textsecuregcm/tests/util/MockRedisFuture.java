@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.tests.util;
+
+import io.lettuce.core.RedisFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link RedisFuture} that can be completed directly, for use as the return value of mocked asynchronous Redis
+ * commands.
+ */
+public class MockRedisFuture<T> extends CompletableFuture<T> implements RedisFuture<T> {
+
+  public static <T> MockRedisFuture<T> completedFuture(final T value) {
+    final MockRedisFuture<T> future = new MockRedisFuture<>();
+    future.complete(value);
+
+    return future;
+  }
+
+  public static <T> MockRedisFuture<T> failedFuture(final Throwable cause) {
+    final MockRedisFuture<T> future = new MockRedisFuture<>();
+    future.completeExceptionally(cause);
+
+    return future;
+  }
+
+  @Override
+  public String getError() {
+    return null;
+  }
+
+  @Override
+  public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+    try {
+      get(timeout, unit);
+    } catch (final ExecutionException ignored) {
+    } catch (final TimeoutException e) {
+      return false;
+    }
+
+    return true;
+  }
+}
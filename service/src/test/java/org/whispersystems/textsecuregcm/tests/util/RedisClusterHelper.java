@@ -6,9 +6,11 @@
 package org.whispersystems.textsecuregcm.tests.util;
 
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -26,12 +28,27 @@ public class RedisClusterHelper {
 
     @SuppressWarnings("unchecked")
     public static FaultTolerantRedisCluster buildMockRedisCluster(final RedisAdvancedClusterCommands<String, String> stringCommands, final RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands) {
+        return buildMockRedisCluster(stringCommands, binaryCommands, mock(RedisAdvancedClusterAsyncCommands.class), mock(RedisAdvancedClusterAsyncCommands.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static FaultTolerantRedisCluster buildMockRedisCluster(final RedisAdvancedClusterCommands<String, String> stringCommands, final RedisAdvancedClusterAsyncCommands<String, String> stringAsyncCommands) {
+        return buildMockRedisCluster(stringCommands, mock(RedisAdvancedClusterCommands.class), stringAsyncCommands, mock(RedisAdvancedClusterAsyncCommands.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static FaultTolerantRedisCluster buildMockRedisCluster(final RedisAdvancedClusterCommands<String, String> stringCommands,
+                                                                  final RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands,
+                                                                  final RedisAdvancedClusterAsyncCommands<String, String> stringAsyncCommands,
+                                                                  final RedisAdvancedClusterAsyncCommands<byte[], byte[]> binaryAsyncCommands) {
         final FaultTolerantRedisCluster                      cluster    = mock(FaultTolerantRedisCluster.class);
         final StatefulRedisClusterConnection<String, String> stringConnection = mock(StatefulRedisClusterConnection.class);
         final StatefulRedisClusterConnection<byte[], byte[]> binaryConnection = mock(StatefulRedisClusterConnection.class);
 
         when(stringConnection.sync()).thenReturn(stringCommands);
         when(binaryConnection.sync()).thenReturn(binaryCommands);
+        when(stringConnection.async()).thenReturn(stringAsyncCommands);
+        when(binaryConnection.async()).thenReturn(binaryAsyncCommands);
 
         when(cluster.withCluster(any(Function.class))).thenAnswer(invocation -> {
             return invocation.getArgument(0, Function.class).apply(stringConnection);
@@ -68,7 +85,15 @@ public class RedisClusterHelper {
             invocation.getArgument(0, Consumer.class).accept(binaryConnection);
             return null;
         }).when(cluster).useBinaryCluster(any(Consumer.class));
-        
+
+        when(cluster.withClusterAsync(any(Function.class))).thenAnswer(invocation -> {
+            return ((CompletionStage<?>) invocation.getArgument(0, Function.class).apply(stringConnection)).toCompletableFuture();
+        });
+
+        when(cluster.withBinaryClusterAsync(any(Function.class))).thenAnswer(invocation -> {
+            return ((CompletionStage<?>) invocation.getArgument(0, Function.class).apply(binaryConnection)).toCompletableFuture();
+        });
+
         return cluster;
     }
 }
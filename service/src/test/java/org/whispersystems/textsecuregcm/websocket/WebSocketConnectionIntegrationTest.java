@@ -91,6 +91,8 @@ class WebSocketConnectionIntegrationTest {
     account = mock(Account.class);
     device = mock(Device.class);
     webSocketClient = mock(WebSocketClient.class);
+    when(webSocketClient.isWritable()).thenReturn(true);
+    when(webSocketClient.awaitWritable()).thenReturn(CompletableFuture.completedFuture(null));
     retrySchedulingExecutor = Executors.newSingleThreadScheduledExecutor();
 
     when(account.getNumber()).thenReturn("+18005551234");
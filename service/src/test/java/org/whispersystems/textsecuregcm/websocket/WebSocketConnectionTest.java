@@ -55,6 +55,7 @@ import org.whispersystems.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.whispersystems.textsecuregcm.push.ApnFallbackManager;
 import org.whispersystems.textsecuregcm.push.ClientPresenceManager;
 import org.whispersystems.textsecuregcm.push.MessageSender;
+import org.whispersystems.textsecuregcm.push.PushNotificationCoalescer;
 import org.whispersystems.textsecuregcm.push.ReceiptSender;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
@@ -63,6 +64,7 @@ import org.whispersystems.textsecuregcm.storage.MessagesManager;
 import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.websocket.WebSocketClient;
 import org.whispersystems.websocket.auth.WebSocketAuthenticator.AuthenticationResult;
+import org.whispersystems.websocket.configuration.WebSocketConfiguration;
 import org.whispersystems.websocket.messages.WebSocketResponseMessage;
 import org.whispersystems.websocket.session.WebSocketSessionContext;
 
@@ -100,12 +102,16 @@ public class WebSocketConnectionTest {
   @Test
   public void testCredentials() throws Exception {
     MessagesManager storedMessages = mock(MessagesManager.class);
+    ClientPresenceManager clientPresenceManager = mock(ClientPresenceManager.class);
     WebSocketAccountAuthenticator webSocketAuthenticator = new WebSocketAccountAuthenticator(accountAuthenticator);
     AuthenticatedConnectListener connectListener = new AuthenticatedConnectListener(receiptSender, storedMessages,
-        mock(MessageSender.class), apnFallbackManager, mock(ClientPresenceManager.class),
-        retrySchedulingExecutor);
+        mock(MessageSender.class), apnFallbackManager, clientPresenceManager,
+        mock(PushNotificationCoalescer.class), retrySchedulingExecutor, new WebSocketConfiguration());
     WebSocketSessionContext sessionContext = mock(WebSocketSessionContext.class);
 
+    when(clientPresenceManager.setPresentAsync(any(), anyLong(), any()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
     when(accountAuthenticator.authenticate(eq(new BasicCredentials(VALID_USER, VALID_PASSWORD))))
         .thenReturn(Optional.of(new AuthenticatedAccount(() -> new Pair<>(account, device))));
 
@@ -181,7 +187,7 @@ public class WebSocketConnectionTest {
         .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
-    final WebSocketClient                                   client  = mock(WebSocketClient.class);
+    final WebSocketClient                                   client  = mockWebSocketClient();
 
     when(client.getUserAgent()).thenReturn(userAgent);
     when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any()))
@@ -210,7 +216,7 @@ public class WebSocketConnectionTest {
     futures.get(0).completeExceptionally(new IOException());
     futures.get(2).completeExceptionally(new IOException());
 
-    verify(storedMessages, times(1)).delete(eq(accountUuid), eq(2L), eq(outgoingMessages.get(1).getGuid()));
+    verify(storedMessages, times(1)).delete(accountUuid, 2L, List.of(outgoingMessages.get(1)));
     verify(receiptSender, times(1)).sendReceipt(eq(auth), eq(senderOneUuid), eq(2222L));
 
     connection.stop();
@@ -220,7 +226,7 @@ public class WebSocketConnectionTest {
   @Test(timeout = 5_000L)
   public void testOnlineSend() throws Exception {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -336,7 +342,7 @@ public class WebSocketConnectionTest {
         .thenReturn(pendingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
-    final WebSocketClient                                   client  = mock(WebSocketClient.class);
+    final WebSocketClient                                   client  = mockWebSocketClient();
 
     when(client.getUserAgent()).thenReturn(userAgent);
     when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class), ArgumentMatchers.<Optional<byte[]>>any()))
@@ -373,7 +379,7 @@ public class WebSocketConnectionTest {
   @Test(timeout = 5000L)
   public void testProcessStoredMessageConcurrency() throws InterruptedException {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -436,7 +442,7 @@ public class WebSocketConnectionTest {
   @Test(timeout = 5000L)
   public void testProcessStoredMessagesMultiplePages() throws InterruptedException {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -477,10 +483,119 @@ public class WebSocketConnectionTest {
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
+  @Test(timeout = 5000L)
+  public void testProcessStoredMessagesWindowed() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mockWebSocketClient();
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, ignored -> MessagesManager.RESULT_SET_CHUNK_SIZE * 2);
+
+    when(account.getNumber()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final List<OutgoingMessageEntity> firstPageMessages =
+        List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+            createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"));
+
+    final List<OutgoingMessageEntity> secondPageMessages =
+        List.of(createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third"));
+
+    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false, Optional.empty()))
+        .thenReturn(new OutgoingMessageEntityList(firstPageMessages, true));
+
+    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false,
+        Optional.of(firstPageMessages.get(1))))
+        .thenReturn(new OutgoingMessageEntityList(secondPageMessages, false));
+
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer(
+        (Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
+          final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+          futures.add(future);
+          return future;
+        });
+
+    connection.processStoredMessages();
+
+    // The second page should be sent before any message from the first page has been acknowledged
+    assertEquals(firstPageMessages.size() + secondPageMessages.size(), futures.size());
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), any(Optional.class));
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    futures.forEach(future -> future.complete(successResponse));
+
+    verify(messagesManager).delete(eq(account.getUuid()), eq(1L),
+        argThat((List<OutgoingMessageEntity> messages) -> messages.size() == 3));
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
+  @Test(timeout = 5000L)
+  public void testProcessStoredMessagesWaitsForWritable() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mockWebSocketClient();
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, ignored -> MessagesManager.RESULT_SET_CHUNK_SIZE * 2);
+
+    when(account.getNumber()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final List<OutgoingMessageEntity> firstPageMessages =
+        List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+            createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"));
+
+    final List<OutgoingMessageEntity> secondPageMessages =
+        List.of(createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third"));
+
+    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false, Optional.empty()))
+        .thenReturn(new OutgoingMessageEntityList(firstPageMessages, true));
+
+    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false,
+        Optional.of(firstPageMessages.get(1))))
+        .thenReturn(new OutgoingMessageEntityList(secondPageMessages, false));
+
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer(
+        (Answer<CompletableFuture<WebSocketResponseMessage>>) invocation -> {
+          final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+          futures.add(future);
+          return future;
+        });
+
+    // The client's outbound buffers are full after the first page
+    final CompletableFuture<Void> writableFuture = new CompletableFuture<>();
+    when(client.isWritable()).thenReturn(false);
+    when(client.awaitWritable()).thenReturn(writableFuture);
+
+    connection.processStoredMessages();
+
+    // There's room in the in-flight window, but the second page should wait until the client is writable again
+    assertEquals(firstPageMessages.size(), futures.size());
+
+    when(client.isWritable()).thenReturn(true);
+    writableFuture.complete(null);
+
+    assertEquals(firstPageMessages.size() + secondPageMessages.size(), futures.size());
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    futures.forEach(future -> future.complete(successResponse));
+
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
   @Test(timeout = 5000L)
   public void testProcessStoredMessagesContainsSenderUuid() throws InterruptedException {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -532,7 +647,7 @@ public class WebSocketConnectionTest {
   @Test
   public void testProcessStoredMessagesSingleEmptyCall() {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -562,7 +677,7 @@ public class WebSocketConnectionTest {
   @Test(timeout = 5000L)
   public void testRequeryOnStateMismatch() throws InterruptedException {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
     final UUID accountUuid = UUID.randomUUID();
@@ -610,7 +725,7 @@ public class WebSocketConnectionTest {
   @Test
   public void testProcessCachedMessagesOnly() {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -643,7 +758,7 @@ public class WebSocketConnectionTest {
   @Test
   public void testProcessDatabaseMessagesAfterPersist() {
     final MessagesManager messagesManager = mock(MessagesManager.class);
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor);
 
@@ -709,7 +824,7 @@ public class WebSocketConnectionTest {
             .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
-    final WebSocketClient                                   client  = mock(WebSocketClient.class);
+    final WebSocketClient                                   client  = mockWebSocketClient();
 
     when(client.getUserAgent()).thenReturn(userAgent);
     when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class),
@@ -740,7 +855,8 @@ public class WebSocketConnectionTest {
 
     // We should delete all three messages even though we only sent two; one got discarded because it was too big for
     // desktop clients.
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages).delete(eq(accountUuid), eq(2L),
+        argThat((List<OutgoingMessageEntity> messages) -> messages.size() == 3 && messages.containsAll(outgoingMessages)));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -785,7 +901,7 @@ public class WebSocketConnectionTest {
             .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
-    final WebSocketClient                                   client  = mock(WebSocketClient.class);
+    final WebSocketClient                                   client  = mockWebSocketClient();
 
     when(client.getUserAgent()).thenReturn(userAgent);
     when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class),
@@ -815,7 +931,7 @@ public class WebSocketConnectionTest {
     futures.get(1).complete(response);
     futures.get(2).complete(response);
 
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages).delete(accountUuid, 2L, outgoingMessages);
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -843,7 +959,7 @@ public class WebSocketConnectionTest {
           return mock(ScheduledFuture.class);
         });
 
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     when(client.isOpen()).thenReturn(true);
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client,
@@ -871,7 +987,7 @@ public class WebSocketConnectionTest {
     when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
         .thenThrow(new RedisException("OH NO"));
 
-    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketClient client = mockWebSocketClient();
     when(client.isOpen()).thenReturn(false);
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client,
@@ -882,6 +998,14 @@ public class WebSocketConnectionTest {
     verify(client, never()).close(anyInt(), anyString());
   }
 
+  private static WebSocketClient mockWebSocketClient() {
+    final WebSocketClient client = mock(WebSocketClient.class);
+    when(client.isWritable()).thenReturn(true);
+    when(client.awaitWritable()).thenReturn(CompletableFuture.completedFuture(null));
+
+    return client;
+  }
+
   private OutgoingMessageEntity createMessage(long id, boolean cached, String sender, UUID senderUuid, long timestamp, boolean receipt, String content) {
     return new OutgoingMessageEntity(id, cached, UUID.randomUUID(), receipt ? Envelope.Type.SERVER_DELIVERY_RECEIPT_VALUE : Envelope.Type.CIPHERTEXT_VALUE,
                                      null, timestamp, sender, senderUuid, 1, content.getBytes(), null, 0);
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.websocket.messages.WebSocketMessage;
+import org.whispersystems.websocket.messages.WebSocketMessageFactory;
+import org.whispersystems.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+
+/**
+ * Compares the per-request cost of turning a Jersey response body into a serialized WebSocket response message using
+ * the original copying path and the pooled path in {@link WebSocketResourceProvider}. Payload sizes approximate a
+ * single-device {@code /v2/keys} response, a multi-device {@code /v2/keys} response, and a typical and a full page of
+ * {@code /v1/messages}. The gradle configuration enables the GC profiler; {@code gc.alloc.rate.norm} is the number of
+ * bytes allocated per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseSerializationBenchmark {
+
+  @Param({"600", "2500", "65536", "262144"})
+  private int payloadSize;
+
+  // Jersey's committing output stream flushes entity bytes to the container stream in chunks of this size
+  private static final int JERSEY_CHUNK_SIZE = 8192;
+
+  private static final List<String> HEADERS = List.of("Content-Type:application/json", "Content-Length:0");
+
+  private final WebSocketMessageFactory messageFactory = new ProtobufWebSocketMessageFactory();
+  private final ByteBufferPool bufferPool = new ByteBufferPool(1024 * 1024, 4 * 1024 * 1024);
+
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    payload = new byte[payloadSize];
+    new Random(payloadSize).nextBytes(payload);
+  }
+
+  @Benchmark
+  public ByteBuffer copying() {
+    final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+    writeBody(responseBody);
+
+    final byte[] body = responseBody.toByteArray();
+
+    return ByteBuffer.wrap(messageFactory.createResponse(1, 200, "OK", HEADERS, Optional.of(body)).toByteArray());
+  }
+
+  @Benchmark
+  public int pooled() {
+    final ByteBufferOutputStream responseBody = new ByteBufferOutputStream(bufferPool);
+    writeBody(responseBody);
+
+    final WebSocketMessage message = messageFactory.createResponse(1, 200, "OK", HEADERS, responseBody.getContent());
+    final ByteBuffer serialized = bufferPool.acquire(message.getSerializedSize());
+    message.writeTo(serialized);
+    serialized.flip();
+
+    final int length = serialized.remaining();
+
+    // Stands in for the write callback returning the buffer once Jetty has sent it
+    bufferPool.release(serialized);
+    responseBody.release();
+
+    return length;
+  }
+
+  private void writeBody(final OutputStream outputStream) {
+    try {
+      for (int offset = 0; offset < payload.length; offset += JERSEY_CHUNK_SIZE) {
+        outputStream.write(payload, offset, Math.min(JERSEY_CHUNK_SIZE, payload.length - offset));
+      }
+    } catch (final IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
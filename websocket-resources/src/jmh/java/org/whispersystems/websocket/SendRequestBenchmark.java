@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.websocket.messages.WebSocketMessageFactory;
+import org.whispersystems.websocket.messages.WebSocketResponseMessage;
+import org.whispersystems.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+import org.whispersystems.websocket.messages.protobuf.SubProtocol;
+
+/**
+ * Measures the throughput of sending requests to a single client from several threads at once (as when a message
+ * queue drain and receipts or other deliveries target the same session). Each operation sends a request and then
+ * resolves it the way a client response would; the fake remote endpoint parses every outgoing request to learn its
+ * ID, which adds the same fixed cost to both benchmarks. {@code legacy} reproduces the previous approach of drawing
+ * each request ID from a new {@link SecureRandom} and tracking pending requests in a boxed {@link ConcurrentHashMap}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SendRequestBenchmark {
+
+  private static final List<String> HEADERS = List.of("X-Signal-Key: false", "X-Signal-Timestamp: 1633738643000");
+  private static final Optional<byte[]> BODY = Optional.of(new byte[512]);
+
+  private final WebSocketMessageFactory messageFactory = new ProtobufWebSocketMessageFactory();
+  private final WebSocketResponseMessage response = messageFactory
+      .createResponse(1, 200, "OK", List.of(), Optional.empty()).getResponseMessage();
+
+  private final Map<Long, CompletableFuture<WebSocketResponseMessage>> legacyPendingRequests =
+      new ConcurrentHashMap<>();
+
+  private final ThreadLocal<long[]> lastRequestId = ThreadLocal.withInitial(() -> new long[1]);
+
+  private PendingRequestMap pendingRequests;
+  private WebSocketClient client;
+  private RemoteEndpoint remoteEndpoint;
+
+  @Setup
+  public void setUp() {
+    // Completes every write immediately; the proxy avoids depending on every method of Jetty's interface
+    remoteEndpoint = (RemoteEndpoint) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[]{RemoteEndpoint.class}, (proxy, method, args) -> {
+          if ("sendBytes".equals(method.getName()) && args.length == 2) {
+            lastRequestId.get()[0] = parseRequestId((ByteBuffer) args[0]);
+            ((WriteCallback) args[1]).writeSuccess();
+          }
+
+          return null;
+        });
+
+    pendingRequests = new PendingRequestMap(Duration.ofMinutes(2));
+    client = new WebSocketClient(null, remoteEndpoint, messageFactory, pendingRequests);
+  }
+
+  @Benchmark
+  public CompletableFuture<WebSocketResponseMessage> sendRequest() {
+    final CompletableFuture<WebSocketResponseMessage> future =
+        client.sendRequest("PUT", "/api/v1/message", HEADERS, BODY);
+
+    final CompletableFuture<WebSocketResponseMessage> pending = pendingRequests.remove(lastRequestId.get()[0]);
+
+    if (pending != null) {
+      pending.complete(response);
+    }
+
+    return future;
+  }
+
+  @Benchmark
+  public CompletableFuture<WebSocketResponseMessage> legacy() {
+    final long requestId = Math.abs(new SecureRandom().nextLong());
+    final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+
+    legacyPendingRequests.put(requestId, future);
+
+    final byte[] bytes = messageFactory.createRequest(Optional.of(requestId), "PUT", "/api/v1/message", HEADERS, BODY)
+        .toByteArray();
+
+    remoteEndpoint.sendBytes(ByteBuffer.wrap(bytes), new WriteCallback() {
+      @Override
+      public void writeFailed(final Throwable x) {
+        legacyPendingRequests.remove(requestId);
+        future.completeExceptionally(x);
+      }
+
+      @Override
+      public void writeSuccess() {
+      }
+    });
+
+    final CompletableFuture<WebSocketResponseMessage> pending = legacyPendingRequests.remove(lastRequestId.get()[0]);
+
+    if (pending != null) {
+      pending.complete(response);
+    }
+
+    return future;
+  }
+
+  private static long parseRequestId(final ByteBuffer buffer) {
+    try {
+      return SubProtocol.WebSocketMessage.parseFrom(buffer.duplicate()).getRequest().getId();
+    } catch (final InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream that writes into buffers borrowed from a {@link ByteBufferPool}, growing by swapping in a larger
+ * pooled buffer as needed. Closing the stream does not return its buffer to the pool (Jersey closes response streams
+ * before callers are done with the content); callers must call {@link #release()} explicitly.
+ */
+class ByteBufferOutputStream extends OutputStream {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final ByteBufferPool pool;
+  private ByteBuffer buffer;
+
+  ByteBufferOutputStream(final ByteBufferPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public void write(final int b) {
+    ensureRemaining(1);
+    buffer.put((byte) b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
+    ensureRemaining(len);
+    buffer.put(b, off, len);
+  }
+
+  /**
+   * Returns a read-only view of the bytes written so far. The view is only valid until {@link #release()} is called.
+   */
+  ByteBuffer getContent() {
+    if (buffer == null) {
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+
+    final ByteBuffer content = buffer.duplicate();
+    content.flip();
+
+    return content.asReadOnlyBuffer();
+  }
+
+  int size() {
+    return buffer == null ? 0 : buffer.position();
+  }
+
+  void release() {
+    if (buffer != null) {
+      pool.release(buffer);
+      buffer = null;
+    }
+  }
+
+  private void ensureRemaining(final int length) {
+    if (buffer == null) {
+      buffer = pool.acquire(Math.max(INITIAL_CAPACITY, length));
+    } else if (buffer.remaining() < length) {
+      final int required = buffer.position() + length;
+
+      if (required < 0) {
+        throw new OutOfMemoryError("Response body too large");
+      }
+
+      final ByteBuffer expanded = pool.acquire(Math.max(required, buffer.capacity() * 2));
+      buffer.flip();
+      expanded.put(buffer);
+
+      pool.release(buffer);
+      buffer = expanded;
+    }
+  }
+}
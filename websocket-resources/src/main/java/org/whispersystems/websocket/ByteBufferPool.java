@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of heap byte buffers with power-of-two capacities. Each size class holds at most
+ * {@code maxBytesPerSizeClass} bytes of idle buffers; requests for buffers larger than the largest size class are
+ * served with unpooled buffers.
+ */
+public class ByteBufferPool {
+
+  private static final int MIN_CAPACITY_SHIFT = 10; // 1 KiB
+
+  private final int maxCapacityShift;
+  private final List<ArrayBlockingQueue<ByteBuffer>> sizeClasses;
+
+  public ByteBufferPool(final int maxPooledCapacity, final int maxBytesPerSizeClass) {
+    if (Integer.bitCount(maxPooledCapacity) != 1 || maxPooledCapacity < 1 << MIN_CAPACITY_SHIFT) {
+      throw new IllegalArgumentException("Maximum pooled capacity must be a power of two of at least 1 KiB");
+    }
+
+    this.maxCapacityShift = Integer.numberOfTrailingZeros(maxPooledCapacity);
+    this.sizeClasses = new ArrayList<>(maxCapacityShift - MIN_CAPACITY_SHIFT + 1);
+
+    for (int shift = MIN_CAPACITY_SHIFT; shift <= maxCapacityShift; shift++) {
+      sizeClasses.add(new ArrayBlockingQueue<>(Math.max(1, maxBytesPerSizeClass >> shift)));
+    }
+  }
+
+  /**
+   * Returns a cleared buffer with a capacity of at least {@code minCapacity} bytes. Callers should return the buffer
+   * with {@link #release(ByteBuffer)} once they're done with it.
+   */
+  public ByteBuffer acquire(final int minCapacity) {
+    final int shift = getCapacityShift(minCapacity);
+
+    if (shift > maxCapacityShift) {
+      return ByteBuffer.allocate(minCapacity);
+    }
+
+    final ByteBuffer pooled = sizeClasses.get(shift - MIN_CAPACITY_SHIFT).poll();
+
+    if (pooled != null) {
+      pooled.clear();
+      return pooled;
+    }
+
+    return ByteBuffer.allocate(1 << shift);
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers that didn't come from this pool, or that don't fit in a full size class, are
+   * left for the garbage collector.
+   */
+  public void release(final ByteBuffer buffer) {
+    final int capacity = buffer.capacity();
+
+    if (buffer.isDirect() || buffer.isReadOnly() || Integer.bitCount(capacity) != 1) {
+      return;
+    }
+
+    final int shift = Integer.numberOfTrailingZeros(capacity);
+
+    if (shift >= MIN_CAPACITY_SHIFT && shift <= maxCapacityShift) {
+      sizeClasses.get(shift - MIN_CAPACITY_SHIFT).offer(buffer);
+    }
+  }
+
+  private static int getCapacityShift(final int minCapacity) {
+    if (minCapacity <= 1 << MIN_CAPACITY_SHIFT) {
+      return MIN_CAPACITY_SHIFT;
+    }
+
+    return Integer.SIZE - Integer.numberOfLeadingZeros(minCapacity - 1);
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import org.whispersystems.websocket.messages.WebSocketResponseMessage;
+
+/**
+ * Tracks requests sent to a single WebSocket client that are still waiting for a response. Requests are keyed by their
+ * (non-negative) request ID in an open-addressing table of primitive longs, so tracking a request doesn't box its ID
+ * or allocate a map entry. Requests that go unanswered for longer than the configured timeout are failed with a
+ * {@link TimeoutException} by {@link #expireIfDue()}, which callers may invoke as often as they like; the table is only
+ * swept once per {@linkplain #getSweepInterval() sweep interval}. Owners should call it on a schedule so that requests
+ * still expire when nothing new is being sent.
+ */
+public class PendingRequestMap {
+
+  private static final long EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Clock clock;
+  private final long timeoutMillis;
+  private final long sweepIntervalMillis;
+
+  private long[] requestIds;
+  private long[] deadlines;
+  private CompletableFuture<WebSocketResponseMessage>[] futures;
+  private int size;
+
+  private volatile long nextSweepMillis;
+
+  public PendingRequestMap(final Duration timeout) {
+    this(timeout, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  PendingRequestMap(final Duration timeout, final Clock clock) {
+    this.clock = clock;
+    this.timeoutMillis = timeout.toMillis();
+    this.sweepIntervalMillis = Math.max(1_000, timeoutMillis / 4);
+    this.nextSweepMillis = clock.millis() + sweepIntervalMillis;
+
+    allocate(INITIAL_CAPACITY);
+  }
+
+  public synchronized void put(final long requestId, final CompletableFuture<WebSocketResponseMessage> future) {
+    if (requestId < 0) {
+      throw new IllegalArgumentException("Request IDs must not be negative");
+    }
+
+    if ((size + 1) * 2 > requestIds.length) {
+      resize(requestIds.length * 2);
+    }
+
+    int slot = findSlot(requestId);
+
+    if (requestIds[slot] == EMPTY) {
+      size++;
+    }
+
+    requestIds[slot] = requestId;
+    deadlines[slot] = clock.millis() + timeoutMillis;
+    futures[slot] = future;
+  }
+
+  /**
+   * Removes and returns the future for the given request, or {@code null} if no such request is pending.
+   */
+  public synchronized CompletableFuture<WebSocketResponseMessage> remove(final long requestId) {
+    if (requestId < 0) {
+      return null;
+    }
+
+    final int slot = findSlot(requestId);
+
+    if (requestIds[slot] == EMPTY) {
+      return null;
+    }
+
+    final CompletableFuture<WebSocketResponseMessage> future = futures[slot];
+    removeSlot(slot);
+
+    return future;
+  }
+
+  public Duration getSweepInterval() {
+    return Duration.ofMillis(sweepIntervalMillis);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Fails every pending request with the given cause and empties the table.
+   */
+  public void failAll(final Throwable cause) {
+    final List<CompletableFuture<WebSocketResponseMessage>> pending = new ArrayList<>();
+
+    synchronized (this) {
+      for (int slot = 0; slot < requestIds.length; slot++) {
+        if (requestIds[slot] != EMPTY) {
+          pending.add(futures[slot]);
+        }
+      }
+
+      allocate(INITIAL_CAPACITY);
+    }
+
+    pending.forEach(future -> future.completeExceptionally(cause));
+  }
+
+  /**
+   * Fails requests whose timeout has elapsed if at least one sweep interval has passed since the last sweep.
+   */
+  public void expireIfDue() {
+    final long now = clock.millis();
+
+    if (now < nextSweepMillis) {
+      return;
+    }
+
+    final List<CompletableFuture<WebSocketResponseMessage>> expired = new ArrayList<>();
+
+    synchronized (this) {
+      if (now < nextSweepMillis) {
+        return;
+      }
+
+      nextSweepMillis = now + sweepIntervalMillis;
+
+      final List<Long> expiredRequestIds = new ArrayList<>();
+
+      for (int slot = 0; slot < requestIds.length; slot++) {
+        if (requestIds[slot] != EMPTY && deadlines[slot] <= now) {
+          expiredRequestIds.add(requestIds[slot]);
+        }
+      }
+
+      for (final long requestId : expiredRequestIds) {
+        final int slot = findSlot(requestId);
+        expired.add(futures[slot]);
+        removeSlot(slot);
+      }
+    }
+
+    expired.forEach(future -> future.completeExceptionally(
+        new TimeoutException("No response after " + timeoutMillis + "ms")));
+  }
+
+  private int indexFor(final long requestId) {
+    // Request IDs are allocated sequentially, so their low bits spread evenly across the table as-is
+    return (int) requestId & (requestIds.length - 1);
+  }
+
+  private int findSlot(final long requestId) {
+    final int mask = requestIds.length - 1;
+    int slot = indexFor(requestId);
+
+    while (requestIds[slot] != EMPTY && requestIds[slot] != requestId) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private void removeSlot(int slot) {
+    final int mask = requestIds.length - 1;
+
+    // Shift later entries in the same probe sequence back so lookups never stop early at the emptied slot
+    int next = slot;
+
+    while (true) {
+      next = (next + 1) & mask;
+
+      if (requestIds[next] == EMPTY) {
+        break;
+      }
+
+      final int home = indexFor(requestIds[next]);
+      final boolean homeBetweenSlotAndNext = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+
+      if (!homeBetweenSlotAndNext) {
+        requestIds[slot] = requestIds[next];
+        deadlines[slot] = deadlines[next];
+        futures[slot] = futures[next];
+        slot = next;
+      }
+    }
+
+    requestIds[slot] = EMPTY;
+    futures[slot] = null;
+    size--;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void allocate(final int capacity) {
+    requestIds = new long[capacity];
+    deadlines = new long[capacity];
+    futures = (CompletableFuture<WebSocketResponseMessage>[]) new CompletableFuture<?>[capacity];
+    size = 0;
+
+    Arrays.fill(requestIds, EMPTY);
+  }
+
+  private void resize(final int capacity) {
+    final long[] oldRequestIds = requestIds;
+    final long[] oldDeadlines = deadlines;
+    final CompletableFuture<WebSocketResponseMessage>[] oldFutures = futures;
+
+    allocate(capacity);
+
+    for (int i = 0; i < oldRequestIds.length; i++) {
+      if (oldRequestIds[i] != EMPTY) {
+        final int slot = findSlot(oldRequestIds[i]);
+
+        requestIds[slot] = oldRequestIds[i];
+        deadlines[slot] = oldDeadlines[i];
+        futures[slot] = oldFutures[i];
+        size++;
+      }
+    }
+  }
+}
@@ -16,34 +16,67 @@ import org.whispersystems.websocket.messages.WebSocketResponseMessage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public class WebSocketClient {
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketClient.class);
 
+  private static final AtomicInteger TOTAL_IN_FLIGHT_REQUESTS = new AtomicInteger();
+  private static final AtomicLong    TOTAL_QUEUED_BYTES       = new AtomicLong();
+
   private final Session                                                session;
   private final RemoteEndpoint                                         remoteEndpoint;
   private final WebSocketMessageFactory                                messageFactory;
-  private final Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper;
+  private final PendingRequestMap                                      pendingRequests;
   private final long                                                   created;
 
+  private final int  maxInFlightRequests;
+  private final long maxQueuedBytes;
+
+  // Request IDs only need to be unique within a session; starting from a random point keeps them from being predictable
+  // without paying for a secure random number per request
+  private final AtomicLong nextRequestId = new AtomicLong(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+
+  private final AtomicInteger                            inFlightRequests = new AtomicInteger();
+  private final AtomicLong                               queuedBytes      = new AtomicLong();
+  private final AtomicReference<CompletableFuture<Void>> writableFuture   = new AtomicReference<>();
+
+  public WebSocketClient(Session session, RemoteEndpoint remoteEndpoint,
+                         WebSocketMessageFactory messageFactory,
+                         PendingRequestMap pendingRequests)
+  {
+    this(session, remoteEndpoint, messageFactory, pendingRequests, Integer.MAX_VALUE, Long.MAX_VALUE);
+  }
+
   public WebSocketClient(Session session, RemoteEndpoint remoteEndpoint,
                          WebSocketMessageFactory messageFactory,
-                         Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper)
+                         PendingRequestMap pendingRequests,
+                         int maxInFlightRequests, long maxQueuedBytes)
   {
-    this.session              = session;
-    this.remoteEndpoint       = remoteEndpoint;
-    this.messageFactory       = messageFactory;
-    this.pendingRequestMapper = pendingRequestMapper;
-    this.created              = System.currentTimeMillis();
+    this.session             = session;
+    this.remoteEndpoint      = remoteEndpoint;
+    this.messageFactory      = messageFactory;
+    this.pendingRequests     = pendingRequests;
+    this.created             = System.currentTimeMillis();
+    this.maxInFlightRequests = maxInFlightRequests;
+    this.maxQueuedBytes      = maxQueuedBytes;
   }
 
+  /**
+   * Sends a request to the client. Requests are always sent, even if this client is not currently
+   * {@linkplain #isWritable() writable}; callers that send many requests in bulk should wait for
+   * {@link #awaitWritable()} between batches so that a slow client can't accumulate unbounded write buffers and
+   * pending responses.
+   */
   public CompletableFuture<WebSocketResponseMessage> sendRequest(String verb, String path,
                                                                  List<String> headers,
                                                                  Optional<byte[]> body)
@@ -51,31 +84,110 @@ public class WebSocketClient {
     final long                                        requestId = generateRequestId();
     final CompletableFuture<WebSocketResponseMessage> future    = new CompletableFuture<>();
 
-    pendingRequestMapper.put(requestId, future);
+    pendingRequests.expireIfDue();
+    pendingRequests.put(requestId, future);
 
     WebSocketMessage requestMessage = messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body);
 
+    final byte[]        bytes    = requestMessage.toByteArray();
+    final AtomicBoolean released = new AtomicBoolean(false);
+
+    inFlightRequests.incrementAndGet();
+    TOTAL_IN_FLIGHT_REQUESTS.incrementAndGet();
+    queuedBytes.addAndGet(bytes.length);
+    TOTAL_QUEUED_BYTES.addAndGet(bytes.length);
+
+    future.whenComplete((response, throwable) -> {
+      inFlightRequests.decrementAndGet();
+      TOTAL_IN_FLIGHT_REQUESTS.decrementAndGet();
+      signalIfWritable();
+    });
+
     try {
-      remoteEndpoint.sendBytes(ByteBuffer.wrap(requestMessage.toByteArray()), new WriteCallback() {
+      remoteEndpoint.sendBytes(ByteBuffer.wrap(bytes), new WriteCallback() {
         @Override
         public void writeFailed(Throwable x) {
           logger.debug("Write failed", x);
-          pendingRequestMapper.remove(requestId);
+          releaseQueuedBytes(bytes.length, released);
+          pendingRequests.remove(requestId);
           future.completeExceptionally(x);
         }
 
         @Override
-        public void writeSuccess() {}
+        public void writeSuccess() {
+          releaseQueuedBytes(bytes.length, released);
+        }
       });
     } catch (WebSocketException e) {
       logger.debug("Write", e);
-      pendingRequestMapper.remove(requestId);
+      releaseQueuedBytes(bytes.length, released);
+      pendingRequests.remove(requestId);
       future.completeExceptionally(e);
     }
 
     return future;
   }
 
+  /**
+   * Indicates whether this client has room for more outbound requests under its configured limits for in-flight
+   * requests and queued bytes.
+   */
+  public boolean isWritable() {
+    return inFlightRequests.get() < maxInFlightRequests && queuedBytes.get() < maxQueuedBytes;
+  }
+
+  /**
+   * Returns a future that completes when this client is {@linkplain #isWritable() writable}. The returned future is
+   * already complete if the client is writable now.
+   */
+  public CompletableFuture<Void> awaitWritable() {
+    if (isWritable()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final CompletableFuture<Void> pendingFuture =
+        writableFuture.updateAndGet(existing -> existing != null ? existing : new CompletableFuture<>());
+
+    // Responses or write callbacks may have released capacity between the first check and publishing the future
+    signalIfWritable();
+
+    return pendingFuture;
+  }
+
+  public int getInFlightRequests() {
+    return inFlightRequests.get();
+  }
+
+  public long getQueuedBytes() {
+    return queuedBytes.get();
+  }
+
+  public static int getTotalInFlightRequests() {
+    return TOTAL_IN_FLIGHT_REQUESTS.get();
+  }
+
+  public static long getTotalQueuedBytes() {
+    return TOTAL_QUEUED_BYTES.get();
+  }
+
+  private void releaseQueuedBytes(final int length, final AtomicBoolean released) {
+    if (released.compareAndSet(false, true)) {
+      queuedBytes.addAndGet(-length);
+      TOTAL_QUEUED_BYTES.addAndGet(-length);
+      signalIfWritable();
+    }
+  }
+
+  private void signalIfWritable() {
+    if (writableFuture.get() != null && isWritable()) {
+      final CompletableFuture<Void> pendingFuture = writableFuture.getAndSet(null);
+
+      if (pendingFuture != null) {
+        pendingFuture.complete(null);
+      }
+    }
+  }
+
   public String getUserAgent() {
     return session.getUpgradeRequest().getHeader("User-Agent");
   }
@@ -101,7 +213,7 @@ public class WebSocketClient {
   }
 
   private long generateRequestId() {
-    return Math.abs(new SecureRandom().nextLong());
+    return nextRequestId.getAndIncrement() & Long.MAX_VALUE;
   }
 
 }
@@ -7,7 +7,9 @@ package org.whispersystems.websocket;
 import com.google.common.annotations.VisibleForTesting;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.glassfish.jersey.internal.MapPropertiesDelegate;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerRequest;
@@ -26,12 +28,11 @@ import org.whispersystems.websocket.setup.WebSocketConnectListener;
 
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,7 +40,9 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
@@ -47,7 +50,14 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketResourceProvider.class);
 
-  private final Map<Long, CompletableFuture<WebSocketResponseMessage>> requestMap = new ConcurrentHashMap<>();
+  private static final Duration DEFAULT_OUTBOUND_REQUEST_TIMEOUT = Duration.ofMinutes(2);
+
+  // Response bodies and serialized responses are built in pooled buffers; eleven size classes from 1 KiB to 1 MiB, with
+  // up to 4 MiB of idle buffers in each, bound the pool's footprint to 44 MiB per node
+  private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(1024 * 1024, 4 * 1024 * 1024);
+
+  // Expires unanswered outbound requests for every open session, including sessions that have stopped sending
+  private static final ScheduledThreadPoolExecutor REQUEST_EXPIRATION_EXECUTOR = buildRequestExpirationExecutor();
 
   private final T                                  authenticated;
   private final WebSocketMessageFactory            messageFactory;
@@ -56,10 +66,14 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   private final WebsocketRequestLog                requestLog;
   private final long                               idleTimeoutMillis;
   private final String                             remoteAddress;
+  private final int                                maxOutboundInFlightRequests;
+  private final long                               maxOutboundQueuedBytes;
+  private final PendingRequestMap                  requestMap;
 
   private Session                 session;
   private RemoteEndpoint          remoteEndpoint;
   private WebSocketSessionContext context;
+  private ScheduledFuture<?>      requestExpirationFuture;
 
   private static final Set<String> EXCLUDED_UPGRADE_REQUEST_HEADERS = Set.of("connection", "upgrade");
 
@@ -71,23 +85,46 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
                                    Optional<WebSocketConnectListener> connectListener,
                                    long                               idleTimeoutMillis)
   {
-    this.remoteAddress     = remoteAddress;
-    this.jerseyHandler     = jerseyHandler;
-    this.requestLog        = requestLog;
-    this.authenticated     = authenticated;
-    this.messageFactory    = messageFactory;
-    this.connectListener   = connectListener;
-    this.idleTimeoutMillis = idleTimeoutMillis;
+    this(remoteAddress, jerseyHandler, requestLog, authenticated, messageFactory, connectListener, idleTimeoutMillis,
+        Integer.MAX_VALUE, Long.MAX_VALUE, DEFAULT_OUTBOUND_REQUEST_TIMEOUT);
+  }
+
+  public WebSocketResourceProvider(String                             remoteAddress,
+                                   ApplicationHandler                 jerseyHandler,
+                                   WebsocketRequestLog                requestLog,
+                                   T                                  authenticated,
+                                   WebSocketMessageFactory            messageFactory,
+                                   Optional<WebSocketConnectListener> connectListener,
+                                   long                               idleTimeoutMillis,
+                                   int                                maxOutboundInFlightRequests,
+                                   long                               maxOutboundQueuedBytes,
+                                   Duration                           outboundRequestTimeout)
+  {
+    this.remoteAddress               = remoteAddress;
+    this.jerseyHandler               = jerseyHandler;
+    this.requestLog                  = requestLog;
+    this.authenticated               = authenticated;
+    this.messageFactory              = messageFactory;
+    this.connectListener             = connectListener;
+    this.idleTimeoutMillis           = idleTimeoutMillis;
+    this.maxOutboundInFlightRequests = maxOutboundInFlightRequests;
+    this.maxOutboundQueuedBytes      = maxOutboundQueuedBytes;
+    this.requestMap                  = new PendingRequestMap(outboundRequestTimeout);
   }
 
   @Override
   public void onWebSocketConnect(Session session) {
     this.session        = session;
     this.remoteEndpoint = session.getRemote();
-    this.context        = new WebSocketSessionContext(new WebSocketClient(session, remoteEndpoint, messageFactory, requestMap));
+    this.context        = new WebSocketSessionContext(new WebSocketClient(session, remoteEndpoint, messageFactory, requestMap,
+        maxOutboundInFlightRequests, maxOutboundQueuedBytes));
     this.context.setAuthenticated(authenticated);
     this.session.setIdleTimeout(idleTimeoutMillis);
 
+    final long sweepIntervalMillis = requestMap.getSweepInterval().toMillis();
+    this.requestExpirationFuture = REQUEST_EXPIRATION_EXECUTOR.scheduleWithFixedDelay(requestMap::expireIfDue,
+        sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+
     connectListener.ifPresent(listener -> listener.onWebSocketConnect(this.context));
   }
 
@@ -121,16 +158,14 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   @Override
   public void onWebSocketClose(int statusCode, String reason) {
+    if (requestExpirationFuture != null) {
+      requestExpirationFuture.cancel(false);
+    }
+
     if (context != null) {
       context.notifyClosed(statusCode, reason);
 
-      for (long requestId : requestMap.keySet()) {
-        CompletableFuture<WebSocketResponseMessage> outstandingRequest = requestMap.remove(requestId);
-
-        if (outstandingRequest != null) {
-          outstandingRequest.completeExceptionally(new IOException("Connection closed!"));
-        }
-      }
+      requestMap.failAll(new IOException("Connection closed!"));
     }
   }
 
@@ -143,11 +178,9 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
     ContainerRequest containerRequest = new ContainerRequest(null, URI.create(requestMessage.getPath()), requestMessage.getVerb(), new WebSocketSecurityContext(new ContextPrincipal(context)), new MapPropertiesDelegate(new HashMap<>()), jerseyHandler.getConfiguration());
     containerRequest.headers(getCombinedHeaders(session.getUpgradeRequest().getHeaders(), requestMessage.getHeaders()));
 
-    if (requestMessage.getBody().isPresent()) {
-      containerRequest.setEntityStream(new ByteArrayInputStream(requestMessage.getBody().get()));
-    }
+    requestMessage.getBodyAsStream().ifPresent(containerRequest::setEntityStream);
 
-    ByteArrayOutputStream                responseBody     = new ByteArrayOutputStream();
+    ByteBufferOutputStream               responseBody     = new ByteBufferOutputStream(BUFFER_POOL);
     CompletableFuture<ContainerResponse> responseFuture   = (CompletableFuture<ContainerResponse>) jerseyHandler.apply(containerRequest, responseBody);
 
     responseFuture.thenAccept(response -> {
@@ -158,7 +191,7 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
       sendErrorResponse(requestMessage, Response.status(500).build());
       requestLog.log(remoteAddress, containerRequest, new ContainerResponse(containerRequest, Response.status(500).build()));
       return null;
-    });
+    }).whenComplete((ignored, throwable) -> responseBody.release());
   }
 
   @VisibleForTesting
@@ -198,22 +231,15 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
     session.close(status, message);
   }
 
-  private void sendResponse(WebSocketRequestMessage requestMessage, ContainerResponse response, ByteArrayOutputStream responseBody) {
+  private void sendResponse(WebSocketRequestMessage requestMessage, ContainerResponse response, ByteBufferOutputStream responseBody) {
     if (requestMessage.hasRequestId()) {
-      byte[] body = responseBody.toByteArray();
-
-      if (body.length <= 0) {
-        body = null;
-      }
+      WebSocketMessage responseMessage = messageFactory.createResponse(requestMessage.getRequestId(),
+                                                                       response.getStatus(),
+                                                                       response.getStatusInfo().getReasonPhrase(),
+                                                                       getHeaderList(response.getStringHeaders()),
+                                                                       responseBody.getContent());
 
-      byte[] responseBytes = messageFactory.createResponse(requestMessage.getRequestId(),
-                                                           response.getStatus(),
-                                                           response.getStatusInfo().getReasonPhrase(),
-                                                           getHeaderList(response.getStringHeaders()),
-                                                           Optional.ofNullable(body))
-                                           .toByteArray();
-
-      remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(responseBytes));
+      sendMessage(responseMessage);
     }
   }
 
@@ -225,10 +251,34 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
                                                                 getHeaderList(error.getStringHeaders()),
                                                                 Optional.empty());
 
-      remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(response.toByteArray()));
+      sendMessage(response);
     }
   }
 
+  private void sendMessage(WebSocketMessage message) {
+    final ByteBuffer serialized = BUFFER_POOL.acquire(message.getSerializedSize());
+
+    message.writeTo(serialized);
+    serialized.flip();
+
+    try {
+      remoteEndpoint.sendBytes(serialized, new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable x) {
+          logger.debug("Write failed", x);
+          BUFFER_POOL.release(serialized);
+        }
+
+        @Override
+        public void writeSuccess() {
+          BUFFER_POOL.release(serialized);
+        }
+      });
+    } catch (WebSocketException e) {
+      logger.debug("Write", e);
+      BUFFER_POOL.release(serialized);
+    }
+  }
 
   @VisibleForTesting
   WebSocketSessionContext getContext() {
@@ -247,4 +297,17 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
     return headers;
   }
+
+  private static ScheduledThreadPoolExecutor buildRequestExpirationExecutor() {
+    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      final Thread thread = new Thread(runnable, "WebSocketRequestExpiration");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    // Sessions cancel their sweeps when they close; don't keep the cancelled tasks around until their next run time
+    executor.setRemoveOnCancelPolicy(true);
+
+    return executor;
+  }
 }
@@ -5,6 +5,9 @@
 package org.whispersystems.websocket.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
 import javax.validation.Valid;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
@@ -28,6 +31,48 @@ public class WebSocketConfiguration {
   @JsonProperty
   private int maxTextMessageSize = 512 * 1024;
 
+  /**
+   * The maximum number of stored messages that may be awaiting acknowledgement from a client at any time while its
+   * message queue is drained. Values larger than a single page of messages let the server fetch the next page while
+   * the previous one is still in flight.
+   */
+  @Min(1)
+  @JsonProperty
+  private int maxInFlightMessages = 100;
+
+  /**
+   * Per-platform overrides for {@link #maxInFlightMessages}, keyed by lower-case client platform name.
+   */
+  @NotNull
+  @JsonProperty
+  private Map<String, @Min(1) Integer> maxInFlightMessagesByPlatform = Map.of(
+      "android", 300,
+      "desktop", 500,
+      "ios", 200);
+
+  /**
+   * The maximum number of requests the server may send to a single client before it must wait for responses; bulk
+   * senders (like the stored message drain) pause when this limit is reached.
+   */
+  @Min(1)
+  @JsonProperty
+  private int maxOutboundInFlightRequests = 1_000;
+
+  /**
+   * The maximum number of bytes the server may queue for writing to a single client before bulk senders pause.
+   */
+  @Min(64 * 1024)        // 64 KB
+  @JsonProperty
+  private long maxOutboundQueuedBytes = 4 * 1024 * 1024;
+
+  /**
+   * How long the server waits for a client to respond to a request before failing it; requests that time out no longer
+   * count against {@link #maxOutboundInFlightRequests}.
+   */
+  @NotNull
+  @JsonProperty
+  private Duration outboundRequestTimeout = Duration.ofMinutes(2);
+
   public WebsocketRequestLoggerFactory getRequestLog() {
     return requestLog;
   }
@@ -39,4 +84,21 @@ public class WebSocketConfiguration {
   public int getMaxTextMessageSize() {
     return maxTextMessageSize;
   }
+
+  public int getMaxOutboundInFlightRequests() {
+    return maxOutboundInFlightRequests;
+  }
+
+  public long getMaxOutboundQueuedBytes() {
+    return maxOutboundQueuedBytes;
+  }
+
+  public Duration getOutboundRequestTimeout() {
+    return outboundRequestTimeout;
+  }
+
+  public int getMaxInFlightMessages(final Optional<String> platform) {
+    return platform.map(p -> maxInFlightMessagesByPlatform.getOrDefault(p.toLowerCase(), maxInFlightMessages))
+        .orElse(maxInFlightMessages);
+  }
 }
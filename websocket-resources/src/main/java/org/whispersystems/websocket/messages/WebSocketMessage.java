@@ -4,6 +4,8 @@
  */
 package org.whispersystems.websocket.messages;
 
+import java.nio.ByteBuffer;
+
 public interface WebSocketMessage {
 
   public enum Type {
@@ -16,5 +18,7 @@ public interface WebSocketMessage {
   public WebSocketRequestMessage  getRequestMessage();
   public WebSocketResponseMessage getResponseMessage();
   public byte[]                   toByteArray();
+  public int                      getSerializedSize();
+  public void                     writeTo(ByteBuffer buffer);
 
 }
@@ -5,6 +5,7 @@
 package org.whispersystems.websocket.messages;
 
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 
@@ -23,4 +24,13 @@ public interface WebSocketMessageFactory {
                                          List<String> headers,
                                          Optional<byte[]> body);
 
+  /**
+   * Creates a response message whose body refers to (rather than copies) the remaining bytes of the given buffer; an
+   * empty buffer produces a response with no body. The buffer must not be modified until the message has been
+   * serialized.
+   */
+  public WebSocketMessage createResponse(long requestId, int status, String message,
+                                         List<String> headers,
+                                         ByteBuffer body);
+
 }
@@ -5,12 +5,17 @@
 package org.whispersystems.websocket.messages.protobuf;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.whispersystems.websocket.messages.InvalidMessageException;
 import org.whispersystems.websocket.messages.WebSocketMessage;
 import org.whispersystems.websocket.messages.WebSocketRequestMessage;
 import org.whispersystems.websocket.messages.WebSocketResponseMessage;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
 public class ProtobufWebSocketMessage implements WebSocketMessage {
 
   private final SubProtocol.WebSocketMessage message;
@@ -66,4 +71,20 @@ public class ProtobufWebSocketMessage implements WebSocketMessage {
   public byte[] toByteArray() {
     return message.toByteArray();
   }
+
+  @Override
+  public int getSerializedSize() {
+    return message.getSerializedSize();
+  }
+
+  @Override
+  public void writeTo(ByteBuffer buffer) {
+    try {
+      CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(buffer);
+      message.writeTo(codedOutputStream);
+      codedOutputStream.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 }
@@ -5,10 +5,12 @@
 package org.whispersystems.websocket.messages.protobuf;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.whispersystems.websocket.messages.InvalidMessageException;
 import org.whispersystems.websocket.messages.WebSocketMessage;
 import org.whispersystems.websocket.messages.WebSocketMessageFactory;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 
@@ -55,15 +57,23 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
 
   @Override
   public WebSocketMessage createResponse(long requestId, int status, String messageString, List<String> headers, Optional<byte[]> body) {
+    return buildResponse(requestId, status, messageString, headers, body.map(ByteString::copyFrom));
+  }
+
+  @Override
+  public WebSocketMessage createResponse(long requestId, int status, String messageString, List<String> headers, ByteBuffer body) {
+    return buildResponse(requestId, status, messageString, headers,
+        body.hasRemaining() ? Optional.of(UnsafeByteOperations.unsafeWrap(body)) : Optional.empty());
+  }
+
+  private WebSocketMessage buildResponse(long requestId, int status, String messageString, List<String> headers, Optional<ByteString> body) {
     SubProtocol.WebSocketResponseMessage.Builder responseMessage =
         SubProtocol.WebSocketResponseMessage.newBuilder()
                                             .setId(requestId)
                                             .setStatus(status)
                                             .setMessage(messageString);
 
-    if (body.isPresent()) {
-      responseMessage.setBody(ByteString.copyFrom(body.get()));
-    }
+    body.ifPresent(responseMessage::setBody);
 
     if (headers != null) {
       responseMessage.addAllHeaders(headers);
@@ -6,6 +6,7 @@ package org.whispersystems.websocket.messages.protobuf;
 
 import org.whispersystems.websocket.messages.WebSocketRequestMessage;
 
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -37,6 +38,15 @@ public class ProtobufWebSocketRequestMessage implements WebSocketRequestMessage
     }
   }
 
+  @Override
+  public Optional<InputStream> getBodyAsStream() {
+    if (message.hasBody()) {
+      return Optional.of(message.getBody().newInput());
+    } else {
+      return Optional.empty();
+    }
+  }
+
   @Override
   public long getRequestId() {
     return message.getId();
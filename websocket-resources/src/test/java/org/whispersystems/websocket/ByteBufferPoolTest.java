@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ByteBufferPoolTest {
+
+  @Test
+  void testAcquireRelease() {
+    final ByteBufferPool pool = new ByteBufferPool(64 * 1024, 128 * 1024);
+
+    final ByteBuffer small = pool.acquire(1);
+    assertEquals(1024, small.capacity());
+
+    final ByteBuffer medium = pool.acquire(1025);
+    assertEquals(2048, medium.capacity());
+
+    medium.put((byte) 1);
+    pool.release(medium);
+
+    final ByteBuffer reused = pool.acquire(2000);
+    assertSame(medium, reused);
+    assertEquals(0, reused.position());
+
+    // Buffers larger than the largest size class are never pooled
+    final ByteBuffer large = pool.acquire(100_000);
+    assertEquals(100_000, large.capacity());
+    pool.release(large);
+    assertNotSame(large, pool.acquire(100_000));
+  }
+
+  @Test
+  void testSizeClassLimit() {
+    // Only two 64 KiB buffers fit in each size class
+    final ByteBufferPool pool = new ByteBufferPool(64 * 1024, 128 * 1024);
+
+    final ByteBuffer first = pool.acquire(64 * 1024);
+    final ByteBuffer second = pool.acquire(64 * 1024);
+    final ByteBuffer third = pool.acquire(64 * 1024);
+
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+
+    assertSame(first, pool.acquire(64 * 1024));
+    assertSame(second, pool.acquire(64 * 1024));
+    assertNotSame(third, pool.acquire(64 * 1024));
+  }
+
+  @Test
+  void testOutputStream() {
+    final ByteBufferPool pool = new ByteBufferPool(64 * 1024, 128 * 1024);
+    final ByteBufferOutputStream outputStream = new ByteBufferOutputStream(pool);
+
+    assertEquals(0, outputStream.getContent().remaining());
+
+    final byte[] data = new byte[5000];
+    new Random().nextBytes(data);
+
+    outputStream.write(data[0]);
+    outputStream.write(data, 1, data.length - 1);
+
+    final ByteBuffer content = outputStream.getContent();
+    final byte[] written = new byte[content.remaining()];
+    content.get(written);
+
+    assertEquals(data.length, outputStream.size());
+    assertArrayEquals(data, written);
+
+    outputStream.release();
+    assertEquals(0, outputStream.size());
+  }
+}
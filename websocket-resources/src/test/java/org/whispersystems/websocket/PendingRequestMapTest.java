@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.whispersystems.websocket.messages.WebSocketResponseMessage;
+
+class PendingRequestMapTest {
+
+  private Clock clock;
+  private PendingRequestMap pendingRequests;
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+  @BeforeEach
+  void setUp() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    pendingRequests = new PendingRequestMap(TIMEOUT, clock);
+  }
+
+  @Test
+  void testPutRemove() {
+    final Map<Long, CompletableFuture<WebSocketResponseMessage>> expected = new HashMap<>();
+    final Random random = new Random(1);
+
+    // Sequential IDs at the top of the range plus random IDs that collide with them in the table
+    for (long requestId = Long.MAX_VALUE - 500; requestId != Long.MIN_VALUE; requestId++) {
+      expected.put(requestId, new CompletableFuture<>());
+    }
+
+    for (int i = 0; i < 500; i++) {
+      expected.put(random.nextLong() & Long.MAX_VALUE, new CompletableFuture<>());
+    }
+
+    expected.forEach(pendingRequests::put);
+    assertEquals(expected.size(), pendingRequests.size());
+
+    final List<Long> requestIds = new ArrayList<>(expected.keySet());
+    Collections.shuffle(requestIds, random);
+
+    for (int i = 0; i < requestIds.size(); i++) {
+      final long requestId = requestIds.get(i);
+
+      assertSame(expected.get(requestId), pendingRequests.remove(requestId));
+      assertNull(pendingRequests.remove(requestId));
+
+      // Removing an entry must not hide entries later in its probe sequence
+      if (i % 97 == 0) {
+        for (int j = i + 1; j < requestIds.size(); j++) {
+          final long remaining = requestIds.get(j);
+          final CompletableFuture<WebSocketResponseMessage> future = pendingRequests.remove(remaining);
+
+          assertSame(expected.get(remaining), future);
+          pendingRequests.put(remaining, future);
+        }
+      }
+    }
+
+    assertEquals(0, pendingRequests.size());
+  }
+
+  @Test
+  void testNegativeRequestIds() {
+    assertThrows(IllegalArgumentException.class, () -> pendingRequests.put(-1, new CompletableFuture<>()));
+    assertNull(pendingRequests.remove(-1));
+  }
+
+  @Test
+  void testExpireIfDue() {
+    final CompletableFuture<WebSocketResponseMessage> early = new CompletableFuture<>();
+    final CompletableFuture<WebSocketResponseMessage> late = new CompletableFuture<>();
+
+    pendingRequests.put(1, early);
+
+    when(clock.millis()).thenReturn(10_000L);
+    pendingRequests.put(2, late);
+
+    // Not yet past the first request's deadline
+    when(clock.millis()).thenReturn(45_000L);
+    pendingRequests.expireIfDue();
+    assertFalse(early.isDone());
+
+    when(clock.millis()).thenReturn(61_000L);
+    pendingRequests.expireIfDue();
+
+    final ExecutionException exception = assertThrows(ExecutionException.class, early::get);
+    assertTrue(exception.getCause() instanceof TimeoutException);
+    assertFalse(late.isDone());
+    assertEquals(1, pendingRequests.size());
+
+    // The second request's deadline has passed, but sweeps happen at most once per sweep interval
+    when(clock.millis()).thenReturn(72_000L);
+    pendingRequests.expireIfDue();
+    assertFalse(late.isDone());
+
+    when(clock.millis()).thenReturn(76_000L);
+    pendingRequests.expireIfDue();
+    assertTrue(late.isCompletedExceptionally());
+    assertEquals(0, pendingRequests.size());
+  }
+
+  @Test
+  void testFailAll() {
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new ArrayList<>();
+
+    for (long requestId = 0; requestId < 100; requestId++) {
+      final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+      futures.add(future);
+      pendingRequests.put(requestId, future);
+    }
+
+    pendingRequests.failAll(new IOException("Connection closed!"));
+
+    assertEquals(0, pendingRequests.size());
+    futures.forEach(future -> assertTrue(future.isCompletedExceptionally()));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.whispersystems.websocket.messages.WebSocketResponseMessage;
+import org.whispersystems.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+
+class WebSocketClientTest {
+
+  private RemoteEndpoint remoteEndpoint;
+  private PendingRequestMap pendingRequests;
+  private List<WriteCallback> writeCallbacks;
+
+  @BeforeEach
+  void setUp() {
+    remoteEndpoint = mock(RemoteEndpoint.class);
+    pendingRequests = new PendingRequestMap(Duration.ofMinutes(1));
+    writeCallbacks = new ArrayList<>();
+
+    doAnswer(invocation -> {
+      writeCallbacks.add(invocation.getArgument(1));
+      return null;
+    }).when(remoteEndpoint).sendBytes(any(), any());
+  }
+
+  private WebSocketClient buildClient(final int maxInFlightRequests, final long maxQueuedBytes) {
+    return new WebSocketClient(mock(Session.class), remoteEndpoint, new ProtobufWebSocketMessageFactory(),
+        pendingRequests, maxInFlightRequests, maxQueuedBytes);
+  }
+
+  private CompletableFuture<WebSocketResponseMessage> sendRequest(final WebSocketClient client) {
+    return client.sendRequest("PUT", "/api/v1/message", List.of(), Optional.of(new byte[128]));
+  }
+
+  @Test
+  void testInFlightRequestLimit() {
+    final WebSocketClient client = buildClient(2, Long.MAX_VALUE);
+
+    final CompletableFuture<WebSocketResponseMessage> firstResponse = sendRequest(client);
+    assertTrue(client.isWritable());
+    assertTrue(client.awaitWritable().isDone());
+
+    sendRequest(client);
+    assertFalse(client.isWritable());
+    assertEquals(2, client.getInFlightRequests());
+
+    final CompletableFuture<Void> writableFuture = client.awaitWritable();
+    assertFalse(writableFuture.isDone());
+
+    writeCallbacks.forEach(WriteCallback::writeSuccess);
+    assertFalse(writableFuture.isDone(), "Writes completing should not release in-flight requests");
+
+    firstResponse.complete(mock(WebSocketResponseMessage.class));
+    assertTrue(writableFuture.isDone());
+    assertTrue(client.isWritable());
+    assertEquals(1, client.getInFlightRequests());
+  }
+
+  @Test
+  void testQueuedBytesLimit() {
+    final WebSocketClient client = buildClient(Integer.MAX_VALUE, 256);
+
+    sendRequest(client);
+    sendRequest(client);
+
+    assertFalse(client.isWritable());
+    assertTrue(client.getQueuedBytes() >= 256);
+
+    final CompletableFuture<Void> writableFuture = client.awaitWritable();
+    assertFalse(writableFuture.isDone());
+
+    writeCallbacks.get(0).writeSuccess();
+    assertTrue(writableFuture.isDone());
+
+    // Callbacks must only release their bytes once
+    writeCallbacks.get(0).writeFailed(new RuntimeException());
+    writeCallbacks.get(1).writeSuccess();
+    assertEquals(0, client.getQueuedBytes());
+  }
+
+  @Test
+  void testWriteException() {
+    final WebSocketClient client = buildClient(1, Long.MAX_VALUE);
+
+    doThrow(new WebSocketException("Closed")).when(remoteEndpoint).sendBytes(any(), any());
+
+    final CompletableFuture<WebSocketResponseMessage> response = sendRequest(client);
+
+    assertTrue(response.isCompletedExceptionally());
+    assertEquals(0, pendingRequests.size());
+    assertTrue(client.isWritable());
+    assertEquals(0, client.getInFlightRequests());
+    assertEquals(0, client.getQueuedBytes());
+  }
+}